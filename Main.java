@@ -1,9 +1,37 @@
 import java.io.*;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.lang.management.ManagementFactory;
+import javax.management.NotificationEmitter;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
 
 
 enum Type {
@@ -29,13 +57,18 @@ public class Main {
     }
 
     public static void main(String[] args) {
-        System.out.println("""
+        // Port of the solver server, may be changed with -Dsolver.port=<port>
+        int serverPort = Integer.getInteger("solver.port", 8080);
+        System.out.printf("""
                 Enter:
                 1) To enter the perception in console with auto generated map
-                2) To read the map and perception from file input.txt"""
+                2) To read the map and perception from file input.txt
+                3) To start the solver server on port %d (set by -Dsolver.port)
+                """, serverPort
         );
 
         boolean analysisWasDone = false;
+        boolean serverWasStarted = false;
 
         try {
             Scanner sc = new Scanner(System.in);
@@ -84,18 +117,168 @@ public class Main {
                         processInvalidData(Type.FILE);
                     }
                 }
+                case 3 -> {
+                    // Server keeps solvers warm and answers maps over HTTP until the process is killed
+                    new SolverServer(serverPort, 256, 1000).start();
+                    System.out.println("Solver server is listening on port " + serverPort);
+                    serverWasStarted = true;
+                }
+                // Hidden case for checking all algorithms against each other and against the latency baseline
+                // dec: 48879
+                case 0xBEEF -> {
+                    Locale.setDefault(Locale.US);
+                    System.exit(new RegressionHarness(42, 500, 0.25).run(Paths.get("regressionBaseline.txt")) ? 0 : 1);
+                }
+                // Hidden case for comparing many-to-one queries with A* from every starting cell
+                // dec: 64206
+                case 0xFACE -> {
+                    Locale.setDefault(Locale.US);
+                    Map board = new Map();
+                    board.setSize(64);
+                    board.setScenario(2);
+                    board.generate(new Random(42), 64, 16, 256);
+                    // First pass compiles both ways of solving by JIT, the second one is measured
+                    analyser.analyseStartQueries(board);
+                    analyser.analyseStartQueries(board);
+                    analysisWasDone = true;
+                }
+                // Hidden case for converting maps to a binary corpus and comparing reads of it with parsing text
+                // dec: 53596
+                case 0xD15C -> {
+                    Locale.setDefault(Locale.US);
+                    analyser.analyseCorpus(Paths.get("mapCorpus.txt"), Paths.get("mapCorpus.bin"), 100000);
+                    analysisWasDone = true;
+                }
+                // Hidden case for solving seas which would not fit on the heap, it is meant to run with -Xmx32m
+                // dec: 45419
+                case 0xB16B -> {
+                    Locale.setDefault(Locale.US);
+                    analyser.analyseOffHeapGrid(Paths.get("offHeapGrid.bin"), 1000, 4000, 8000);
+                    analysisWasDone = true;
+                }
+                // Hidden case for checking GridSolver on heap, off-heap and tiled grids, and loads of tiles
+                // dec: 29043
+                case 0x7173 -> {
+                    Locale.setDefault(Locale.US);
+                    analyser.analyseGrids(Paths.get("tiledGrid.bin"), 1000, 8000, 64);
+                    analysisWasDone = true;
+                }
+                // Hidden case for comparing the distance field with A* from every cell
+                // dec: 45429
+                case 0xB175 -> {
+                    Locale.setDefault(Locale.US);
+                    for (int size : new int[]{64, 256, 1024}) {
+                        Map board = new Map();
+                        board.setSize(size);
+                        board.setScenario(2);
+                        board.generate(new Random(42), size, size / 4, size * 4);
+                        // First pass compiles the field and A* by JIT, the second one is measured
+                        analyser.analyseDistanceField(board, 20);
+                        analyser.analyseDistanceField(board, 20);
+                    }
+                    analysisWasDone = true;
+                }
+                // Hidden case for planning through patrolling enemies on a large map
+                // dec: 49374
+                case 0xC0DE -> {
+                    Locale.setDefault(Locale.US);
+                    Map board = new Map();
+                    board.setSize(256);
+                    board.generate(new Random(42), 256, 64, 1024);
+
+                    // Periods 20, 28, 40 and 56 ticks make the period of all patrols 280 ticks
+                    Random random = new Random(42);
+                    int[] patrolSteps = {10, 14, 20, 28};
+                    List<Patrol> patrols = new ArrayList<>();
+                    for (int i = 0; i < board.davyJoneses.size(); i += 2) {
+                        patrols.add(Patrol.pingPong(board, board.davyJoneses.get(i), random,
+                                patrolSteps[patrols.size() % patrolSteps.length]));
+                    }
+                    // First pass compiles the search by JIT, the second one is measured
+                    analyser.analyseSpaceTime(board, patrols);
+                    analyser.analyseSpaceTime(board, patrols);
+                    analysisWasDone = true;
+                }
+                // Hidden case for comparing A* with landmarks against A* with Chebyshev distance on a large map
+                // dec: 51966
+                case 0xCAFE -> {
+                    Locale.setDefault(Locale.US);
+                    Map board = new Map();
+                    board.setSize(256);
+                    board.setScenario(2);
+                    board.generate(new Random(42), 256, 64, 1024);
+                    // Walls of rocks with gaps at alternating ends, around which Chebyshev distance is far too low
+                    for (int y = 16; y < board.size; y += 32) {
+                        for (int x = 0; x < board.size; x++) {
+                            boolean gap = (y / 32) % 2 == 0 ? x >= board.size - 4 : x < 4;
+                            if (!gap && board.cells[x][y].agents.isEmpty()) board.addAgent(new Rock(x, y, false));
+                        }
+                    }
+                    // First pass compiles both searches by JIT, the second one is measured
+                    analyser.analyseLandmarks(board, Landmarks.DEFAULT_COUNT, 10);
+                    analyser.analyseLandmarks(board, Landmarks.DEFAULT_COUNT, 50);
+                    analysisWasDone = true;
+                }
+                // Hidden case for solving maps on all cores, with live stats of the sweep
+                // dec: 65261
+                case 0xFEED -> {
+                    Locale.setDefault(Locale.US);
+                    analyser.analyseConcurrentSweep(500, Runtime.getRuntime().availableProcessors());
+                    analysisWasDone = true;
+                }
+                // Hidden case for routing through several Tortugas and Chests on a large map
+                // dec: 61453
+                case 0xF00D -> {
+                    Locale.setDefault(Locale.US);
+                    Map board = new Map();
+                    board.setSize(256);
+                    board.generate(new Random(42), 256, 64, 1024);
+
+                    // 6 more Tortugas and 8 more Chests are put on free cells, 16 waypoints in total
+                    Random random = new Random(42);
+                    for (int i = 0; i < 14; i++) {
+                        int x, y;
+                        do {
+                            x = random.nextInt(board.size);
+                            y = random.nextInt(board.size);
+                        } while (!board.cells[x][y].walkable || !board.cells[x][y].agents.isEmpty());
+                        board.addAgent(i < 6 ? new Tortuga(x, y, false) : new Chest(x, y, false));
+                    }
+                    // First pass compiles the searches by JIT, the second one is measured
+                    analyser.analyseWaypoints(board);
+                    analyser.analyseWaypoints(board);
+                    analysisWasDone = true;
+                }
                 // Hidden case for performing statistical analysis
                 // dec: 57005
                 case 0xDEAD -> {
                     Locale.setDefault(Locale.US);
                     final int mapsToGenerate = 1000;
+                    // Additional maps which are solved before the measured ones, so the solvers are compiled by JIT
+                    final int warmUpMaps = 200;
+                    analyser.setWarmUpIterations(warmUpMaps);
 
                     Solver.AStar shortestPathByAStar;
                     Solver.Backtracking shortestPathByBacktracking;
-
-                    for (int i = 0; i < mapsToGenerate; i++) {
+                    List<Map> measuredMaps = new ArrayList<>(mapsToGenerate);
+                    // With -Danalysis.resultsLog=<file> every measured solve is kept in the log, so outliers can be
+                    // looked into after the run. Without it nothing is written to disk
+                    String resultsLogFile = System.getProperty("analysis.resultsLog");
+                    ResultsLog.Writer resultsLog = resultsLogFile == null ? null :
+                            new ResultsLog.Writer(Paths.get(resultsLogFile), false);
+                    analyser.setResultsLog(resultsLog);
+
+                    // Handles are looked up once, not on every solve
+                    var metrics = analyser.getMetrics();
+                    var aStarFirst = metrics.handle("AStar", 1);
+                    var aStarSecond = metrics.handle("AStar", 2);
+                    var backtrackingFirst = metrics.handle("Backtracking", 1);
+                    var backtrackingSecond = metrics.handle("Backtracking", 2);
+
+                    for (int i = 0; i < mapsToGenerate + warmUpMaps; i++) {
                         Map currentMap = new Map();
                         currentMap.generate();
+                        if (i >= warmUpMaps) measuredMaps.add(currentMap);
 
                         var shortestPath = new Solver(currentMap);
 
@@ -103,13 +286,15 @@ public class Main {
                         shortestPathByBacktracking = shortestPath.new Backtracking();
 
                         currentMap.setScenario(1);
-                        analyser.performAnalysis(shortestPathByAStar, 1);
-                        analyser.performAnalysis(shortestPathByBacktracking, 1);
+                        analyser.performAnalysis(shortestPathByAStar, aStarFirst, currentMap);
+                        analyser.performAnalysis(shortestPathByBacktracking, backtrackingFirst, currentMap);
 
                         currentMap.setScenario(2);
-                        analyser.performAnalysis(shortestPathByBacktracking, 2);
-                        analyser.performAnalysis(shortestPathByAStar, 2);
+                        analyser.performAnalysis(shortestPathByBacktracking, backtrackingSecond, currentMap);
+                        analyser.performAnalysis(shortestPathByAStar, aStarSecond, currentMap);
                     }
+                    if (resultsLog != null) resultsLog.close();
+                    analyser.setResultsLog(null);
 
                     for (int i = 1; i <= 2; i++) {
                         System.out.printf("A* with scenario %d:\n", i);
@@ -118,6 +303,23 @@ public class Main {
                         analyser.showResults("Backtracking", i);
                     }
 
+                    if (resultsLogFile != null) {
+                        try (var reader = new ResultsLog.Reader(Paths.get(resultsLogFile))) {
+                            System.out.println("Slowest solves by A*:");
+                            Analysis.showSlowestSolves(reader, "AStar", 5);
+                            System.out.println("Slowest solves by Backtracking:");
+                            Analysis.showSlowestSolves(reader, "Backtracking", 5);
+                            System.out.println();
+                        }
+                    }
+
+                    // The same maps are solved by the batch solver, first passes compile it by JIT
+                    for (int i = 0; i < 20; i++) {
+                        BatchSolver.solveAll(measuredMaps);
+                    }
+                    System.out.println("Batch solver against A* per map:");
+                    analyser.analyseBatch(measuredMaps);
+
                     analysisWasDone = true;
                 }
 
@@ -125,6 +327,7 @@ public class Main {
             }
 
             if (analysisWasDone) System.exit(0);
+            if (serverWasStarted) return;
 
             PrintWriter writerAStar = new PrintWriter("outputAStar.txt", StandardCharsets.UTF_8);
             PrintWriter writerBacktracking = new PrintWriter("outputBacktracking.txt", StandardCharsets.UTF_8);
@@ -145,1130 +348,9921 @@ public class Main {
 
 
 /**
- * Class to analyse algorithms on randomly generated maps
+ * Long-running server which keeps solvers warm and answers maps over HTTP.
+ * POST /solve - body has the same format as input.txt (map line and scenario line), optional third line
+ * chooses the algorithm (AStar, Backtracking, AnytimeAStar with optional deadline in ms, or WeightedAStar
+ * with optional weight of danger proximity, A* by default, other names are invalid requests). Answer has
+ * the same format as output files, AnytimeAStar adds the suboptimality bound of the path and WeightedAStar
+ * adds the cost of the route
+ * GET /stats - counters and latency histogram of served requests
  */
-class Analysis {
-    public HashMap<Integer, HashMap<String, List<Double>>> executionMap;
+class SolverServer {
+    private final HttpServer server;
+    // Solves run on this executor, while requests are read and answered on the bounded pool of handlers
+    private final ExecutorService executor;
+    private final ExecutorService handlerExecutor;
 
-    public HashMap<Integer, HashMap<String, Integer>> winsMap;
-    public HashMap<Integer, HashMap<String, Integer>> losesMap;
+    // Limits the number of solves that are running at the same time, other requests are rejected
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final long timeoutMillis;
 
-    public Analysis() {
-        executionMap = new HashMap<>();
-        winsMap = new HashMap<>();
-        losesMap = new HashMap<>();
+    // Bucket i counts requests which took less than 2^i microseconds
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(32);
+
+    private final LongAdder served = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+
+    /**
+     * @param port - Local port to listen on
+     * @param maxInFlight - Maximum number of solves running at the same time
+     * @param timeoutMillis - Time after which request is answered with timeout
+     */
+    public SolverServer(int port, int maxInFlight, long timeoutMillis) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.executor = newRequestExecutor();
+        // Handlers only read requests and hand solves over, so they need no more threads than there are cores
+        this.handlerExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.timeoutMillis = timeoutMillis;
+
+        this.server.setExecutor(this.handlerExecutor);
+        this.server.createContext("/solve", this::handleSolve);
+        this.server.createContext("/stats", this::handleStats);
+    }
+
+    public void start() {
+        this.server.start();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.handlerExecutor.shutdownNow();
+        this.executor.shutdownNow();
     }
 
     /**
-     * Method to analyse and immediately product output of single map that was either generated or manually typed
-     * @param algorithm - Algorithm to analyse
-     * @param writer - File to write output to
-     * @param map - Given map
+     * @return Executor which serves every request on its own virtual thread (Java 21+),
+     * or on a cached pool of platform threads on older runtimes
      */
-    public void analyseSingleMap(Algorithm algorithm, PrintWriter writer, Map map) {
-        long startTime = System.nanoTime();
-        List<Point<Integer, Integer>> path = algorithm.findShortestPath();
-        long stopTime = System.nanoTime();
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
 
-        if (path == null) {
-            writer.println("Loss");
-        } else {
-            double elapsedTime = ((stopTime - startTime) * Math.pow(10, -6));
-            writer.println("Win");
+    private void handleSolve(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "Use POST");
+            return;
+        }
 
-            // Best path size
-            writer.println(path.size() - 1);
+        String[] lines = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).split("\\R");
 
-            for (Point<Integer, Integer> point : path) {
-                writer.printf("[%d,%d] ", point.getX(), point.getY());
-            }
+        if (!this.inFlight.tryAcquire()) {
+            this.rejected.increment();
+            respond(exchange, 503, "Too many requests");
+            return;
+        }
 
-            writer.println();
-            map.print(path, writer);
-            // Execution time
-            writer.println(elapsedTime + " ms");
-            // Clear path from global map
-            map.clearPath(path);
+        long startTime = System.nanoTime();
+        // Interrupting the solve does nothing, so solvers which take a request are stopped by its token.
+        // The task itself is never cancelled, so even a task which had not started yet releases its permit
+        CancellationToken cancellation = CancellationToken.withBudget(TimeUnit.MILLISECONDS.toNanos(this.timeoutMillis));
+        CompletableFuture<String> answer;
+        try {
+            answer = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return solve(lines, cancellation);
+                } finally {
+                    // The permit is released only when the solve is really over, even if the client got timeout
+                    this.inFlight.release();
+                }
+            }, this.executor);
+        } catch (RejectedExecutionException e) {
+            this.inFlight.release();
+            respond(exchange, 503, "Server is stopping");
+            return;
         }
 
-        writer.close();
+        // The handler does not wait for the solve, the answer is sent by whichever thread completes the future
+        answer.orTimeout(this.timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((result, failure) -> {
+            try {
+                respondSolve(exchange, startTime, cancellation, result, failure);
+            } catch (IOException e) {
+                // Client went away, there is nobody to answer
+                exchange.close();
+            }
+        });
+    }
+
+    private void respondSolve(HttpExchange exchange, long startTime, CancellationToken cancellation,
+                              String result, Throwable failure) throws IOException {
+        Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+
+        if (cause instanceof TimeoutException) {
+            // A* and Backtracking check the token and return soon, and the permit is released then
+            cancellation.cancel();
+            this.timedOut.increment();
+            respond(exchange, 504, "Timeout");
+        } else if (cause instanceof CancellationException) {
+            // Token ran out just before the wait did
+            this.timedOut.increment();
+            respond(exchange, 504, "Timeout");
+        } else if (cause != null) {
+            respond(exchange, 500, "Solver failed");
+        } else if (result == null) {
+            this.invalid.increment();
+            respond(exchange, 400, "Invalid data");
+        } else {
+            long elapsedMicros = (System.nanoTime() - startTime) / 1000;
+            this.latencyHistogram.incrementAndGet(Math.min(31, 64 - Long.numberOfLeadingZeros(elapsedMicros)));
+            this.served.increment();
+            respond(exchange, 200, result);
+        }
     }
 
     /**
-     * Method to analyse an algorithm and store it in common HashMap to produce stats later
-     * @param algorithm - Algorithm to analyse
-     * @param scenario - Perception scenario
+     * @param lines - Lines of request body
+     * @param cancellation - Token which stops the solve, AnytimeAStar answers with its best path by then
+     * @return Answer in the same format as output files, or null if the request is invalid
+     * @throws CancellationException if the token stopped the solve
      */
-    public void performAnalysis(Algorithm algorithm, int scenario) {
-        List<Double> elapsed;
-        String algorithmName = algorithm.getClass().getSimpleName();
+    private static String solve(String[] lines, CancellationToken cancellation) {
+        if (lines.length < 2 || !lines[1].strip().matches("^-?[1-2]$")) return null;
 
-        long startTime = System.nanoTime();
-        boolean win = algorithm.findShortestPath() != null;
-        long stopTime = System.nanoTime();
+        Map map = new Map();
+        map.setScenario(Integer.parseInt(lines[1].strip()));
 
-        double elapsedTime = ((stopTime - startTime) * Math.pow(10, -6));
+        try {
+            if (!map.generate(lines[0].replaceAll(" ", ""))) return null;
+        } catch (RuntimeException e) {
+            // Map line is too short or has something else than digits on the places of coordinates
+            return null;
+        }
 
-        if (executionMap.get(scenario) == null) {
-            executionMap.put(scenario, new HashMap<>() {{
-                put(algorithmName, new ArrayList<>(List.of(elapsedTime)));
-                }}
-            );
-            return;
-        } else {
-            if (executionMap.get(scenario).get(algorithmName) != null) {
-                elapsed = executionMap.get(scenario).get(algorithmName);
-                elapsed.add(elapsedTime);
-            } else {
-                elapsed = new ArrayList<>(List.of(elapsedTime));
+        Solver solver = new Solver(map);
+        String[] choice = lines.length > 2 ? lines[2].strip().split("\\s+") : new String[]{"AStar"};
+        Algorithm algorithm;
+        // Token of the solve, AnytimeAStar gets its own deadline, which is still cut short by the server's timeout
+        CancellationToken solveCancellation = cancellation;
+
+        switch (choice[0]) {
+            case "AStar" -> algorithm = solver.new AStar();
+            case "Backtracking" -> algorithm = solver.new Backtracking();
+            case "AnytimeAStar" -> {
+                // Optional second word is the deadline of the solve in milliseconds, the timeout of the server
+                // by default. The deadline holds for the first iteration as well, so a tiny one gives timeout
+                if (choice.length > 1 && !choice[1].matches("^\\d{1,6}$")) return null;
+                if (choice.length > 1) {
+                    solveCancellation = cancellation.limitedTo(TimeUnit.MILLISECONDS.toNanos(Long.parseLong(choice[1])));
+                }
+                algorithm = solver.new AnytimeAStar();
+            }
+            case "WeightedAStar" -> {
+                // Optional second word is the extra cost per unit of danger next to the cell
+                if (choice.length > 1 && !choice[1].matches("^\\d{1,2}$")) return null;
+                int proximityWeight = choice.length > 1 ? Integer.parseInt(choice[1]) : 1;
+                algorithm = solver.new WeightedAStar(proximityWeight);
+            }
+            default -> {
+                // Unknown names are invalid requests, they are not answered by some other algorithm
+                return null;
             }
         }
 
-        if (win) {
-            if (winsMap.get(scenario) == null) {
-                winsMap.put(scenario, new HashMap<>() {{
-                    put(algorithmName, 1);
-                }}
-                );
-            } else {
-                int wins = winsMap.get(scenario).getOrDefault(algorithmName, 0);
-                winsMap.get(scenario).put(algorithmName, ++wins);
+        StringWriter answer = new StringWriter();
+        if (algorithm instanceof Pathfinder pathfinder && SolveRequest.isValidScenario(map.scenario)) {
+            var request = SolveRequest.of(map).withCancellation(solveCancellation);
+            if (!new Analysis().analyseSingleMap(pathfinder, new PrintWriter(answer), request)) {
+                throw new CancellationException("Solve was stopped by its token");
             }
         } else {
-            if (losesMap.get(scenario) != null) {
-                int loses = losesMap.get(scenario).getOrDefault(algorithmName, 0);
-                losesMap.get(scenario).put(algorithmName, ++loses);
-            } else {
-                losesMap.put(scenario, new HashMap<>() {{
-                    put(algorithmName, 1);
-                }
-                });
-            }
+            new Analysis().analyseSingleMap(algorithm, new PrintWriter(answer), map);
         }
 
-        executionMap.get(scenario).put(algorithmName, elapsed);
+        if (algorithm instanceof Solver.AnytimeAStar anytime) {
+            answer.append(String.format(Locale.US, "Suboptimality bound: %.2f\n", anytime.getSuboptimalityBound()));
+        }
+        if (algorithm instanceof Solver.WeightedAStar weighted) {
+            answer.append(String.format("Route cost: %d\n", weighted.getRouteCost()));
+        }
+        return answer.toString();
     }
 
-    public void showResults(String algorithmName, int scenario) {
-        scenario = algorithmName.equals("Backtracking") ? 1 : scenario;
-        List<Double> executionTimes = executionMap.get(scenario).get(algorithmName);
-        Integer wins = winsMap.get(scenario).get(algorithmName);
-        Integer loses = losesMap.get(scenario).get(algorithmName);
+    private void handleStats(HttpExchange exchange) throws IOException {
+        StringBuilder stats = new StringBuilder();
+        stats.append(String.format("Served: %d\n", this.served.sum()));
+        stats.append(String.format("Rejected: %d\n", this.rejected.sum()));
+        stats.append(String.format("Timed out: %d\n", this.timedOut.sum()));
+        stats.append(String.format("Invalid: %d\n", this.invalid.sum()));
+        stats.append(String.format("In flight: %d\n", this.maxInFlight - this.inFlight.availablePermits()));
+        stats.append("Latency histogram:\n");
+
+        for (int i = 0; i < this.latencyHistogram.length(); i++) {
+            long count = this.latencyHistogram.get(i);
+            if (count != 0) stats.append(String.format("< %d us: %d\n", 1L << i, count));
+        }
 
-        System.out.printf("Mean execution time: %f ms\n", Analysis.mean(executionTimes));
-        System.out.printf("Mode execution time: %s ms\n", Analysis.mode(executionTimes));
-        System.out.printf("Median execution time: %f ms\n", Analysis.median(executionTimes));
-        System.out.printf("Standard deviation execution time: %f ms\n", Analysis.deviation(executionTimes));
-        System.out.printf("Wins: %d\n", wins);
-        System.out.printf("Loses: %d\n", loses);
-        System.out.printf("Wins percentage: %.2f\n", (wins / (double) (wins + loses)) * 100);
-        System.out.printf("Loses percentage: %.2f\n", (loses / (double) (wins + loses)) * 100);
-        System.out.println();
+        respond(exchange, 200, stats.toString());
     }
 
-    public static double mean(List<Double> array) {
-        double sum = 0;
-        for (double value : array) {
-            sum += value;
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
         }
-        return sum / array.size();
     }
+}
 
-    public static double median(List<Double> array) {
-        int mid = array.size() / 2;
-        Collections.sort(array);
 
-        if (array.size() % 2 == 1) {
-            return array.get(mid);
-        } else {
-            return (array.get(mid - 1) + array.get(mid)) / 2.0;
-        }
+/**
+ * Harness which runs every algorithm over the same seeded corpus of maps. It fails if algorithms
+ * disagree on the length of the path, if any path is not valid, or if p50/p99 latency of some algorithm
+ * regressed compared with the baseline file
+ */
+class RegressionHarness {
+    // All implementations of the Algorithm which are checked
+    static final java.util.Map<String, java.util.function.Function<Solver, Algorithm>> algorithms = new LinkedHashMap<>();
+
+    static {
+        algorithms.put("AStar", solver -> solver.new AStar());
+        algorithms.put("Backtracking", solver -> solver.new Backtracking());
+        algorithms.put("IterativeBacktracking", solver -> solver.new IterativeBacktracking());
+        algorithms.put("ParallelBacktracking", solver -> solver.new ParallelBacktracking());
+        algorithms.put("HierarchicalAStar", solver -> solver.new HierarchicalAStar());
+        // Without a deadline the route is improved until it is optimal
+        algorithms.put("AnytimeAStar", solver -> solver.new AnytimeAStar());
+        // With zero weight every move costs 1, so the cheapest path is the shortest one
+        algorithms.put("WeightedAStar", solver -> solver.new WeightedAStar(0));
     }
 
-    public static String mode(List<Double> array) {
-        HashMap<String, Integer> map = new HashMap<>();
-        String maxValue = null;
-        double maxCount = 1;
+    // Maps which once made some algorithm fail, they are solved along with the generated corpus.
+    // On the first two A* killed The Kraken for the whole search from Tortuga and stepped next to it later
+    static final List<String> regressionMaps = List.of(
+            "[0,0] [6,3] [4,1] [4,1] [5,0] [0,4]",
+            "[0,0] [2,8] [4,4] [4,4] [7,7] [2,1]",
+            "[0,0] [7,6] [6,7] [8,2] [8,8] [0,3]");
 
-        for (Double value : array) {
-            String a1 = String.format("%.2f", value);
-            if (map.get(a1) != null) {
-                int count = map.get(a1);
-                map.put(a1, ++count);
+    // Passes over the corpus before the measured one. A single pass of short solves ends before JIT
+    // compiles them, so their latencies would depend on how long the other algorithms ran before
+    static final int WARM_UP_PASSES = 10;
+    // Timed solves of every map, the fastest one is recorded, so a single GC pause does not move p99
+    static final int TIMED_RUNS = 3;
 
-                if (count > maxCount) {
-                    maxCount = count;
-                    maxValue = a1;
-                }
-            } else {
-                map.put(a1, 1);
-            }
-        }
+    // Versions of Backtracking which must find exactly the same path as the recursive one
+    static final Set<String> backtrackingVersions = Set.of("IterativeBacktracking", "ParallelBacktracking");
 
-        return maxValue;
-    }
+    private final long seed;
+    private final int mapsToGenerate;
+    // Allowed relative growth of latency, compared with the baseline
+    private final double threshold;
 
-    public static double deviation(List<Double> array) {
-        final double mean = mean(array);
-        double sum = 0;
+    /**
+     * @param seed - Seed of the corpus
+     * @param mapsToGenerate - Number of maps in the corpus, each of them is solved in both scenarios
+     * @param threshold - Allowed relative growth of p50 and p99 latency, 0.25 means 25%
+     */
+    public RegressionHarness(long seed, int mapsToGenerate, double threshold) {
+        this.seed = seed;
+        this.mapsToGenerate = mapsToGenerate;
+        this.threshold = threshold;
+    }
 
-        for (int index = 0; index != array.size(); ++index) {
-            sum += Math.pow(Math.abs(mean - array.get(index)), 2);
+    /**
+     * @param baselineFile - File with latency baseline, it is created from current results if it does not exist
+     * @return true if all checks passed
+     */
+    public boolean run(java.nio.file.Path baselineFile) throws IOException {
+        Random random = new Random(seed);
+        List<String> corpus = new ArrayList<>(regressionMaps);
+        for (int i = 0; i < mapsToGenerate; i++) {
+            Map map = new Map();
+            map.generate(random, 1, 1, 1);
+            corpus.add(map.toString());
         }
 
-        return Math.sqrt(sum / (array.size() - 1));
-    }
-}
+        // First passes only warm up the solvers, their latencies are not recorded
+        for (int pass = 0; pass < WARM_UP_PASSES; pass++) {
+            solveCorpus(corpus, null);
+        }
 
-/**
- * A point class to conveniently print path after finding the path
- * @param x - x coordinate
- * @param y - x coordinate
- * @param <X> - Integer
- * @param <Y> - Integer
- */
-record Point<X, Y>(X x, Y y) {
+        java.util.Map<String, List<Long>> latencies = new LinkedHashMap<>();
+        for (String name : algorithms.keySet()) {
+            latencies.put(name, new ArrayList<>());
+        }
+        boolean passed = solveCorpus(corpus, latencies);
 
-    public X getX() {
-        return this.x;
-    }
+        java.util.Map<String, long[]> baseline = readBaseline(baselineFile);
+        StringBuilder newBaseline = new StringBuilder();
 
-    public Y getY() {
-        return this.y;
-    }
-}
+        for (var entry : latencies.entrySet()) {
+            long p50 = percentile(entry.getValue(), 50);
+            long p99 = percentile(entry.getValue(), 99);
+            newBaseline.append(String.format("%s %d %d\n", entry.getKey(), p50, p99));
+            System.out.printf("%s: p50 %.3f ms, p99 %.3f ms\n", entry.getKey(), p50 / 1e6, p99 / 1e6);
 
+            long[] expected = baseline.get(entry.getKey());
+            if (expected == null) continue;
 
-/**
- * An interface for both pathfinding algorithms
- */
-interface Algorithm {
-    List<Point<Integer, Integer>> findShortestPath();
-}
+            if (p50 > expected[0] * (1 + threshold) || p99 > expected[1] * (1 + threshold)) {
+                System.out.printf("%s latency regressed, baseline: p50 %.3f ms, p99 %.3f ms\n",
+                        entry.getKey(), expected[0] / 1e6, expected[1] / 1e6);
+                passed = false;
+            }
+        }
 
+        if (baseline.isEmpty()) {
+            Files.writeString(baselineFile, newBaseline.toString());
+            System.out.println("Baseline was written to " + baselineFile);
+        }
 
-/**
- * Class for all objects on map
- */
-class Agent {
-    public boolean isDangerous;
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
 
-    private final int x;
-    private final int y;
+    /**
+     * @param corpus - Maps to solve
+     * @param latencies - Lists to put latencies of every algorithm to, or null if they are not needed
+     * @return true if all algorithms agree and all paths are valid
+     */
+    private boolean solveCorpus(List<String> corpus, java.util.Map<String, List<Long>> latencies) {
+        boolean passed = true;
+
+        for (String enteredMap : corpus) {
+            for (int scenario = 1; scenario <= 2; scenario++) {
+                java.util.Map<String, Integer> lengths = new LinkedHashMap<>();
+                java.util.Map<String, List<Point<Integer, Integer>>> paths = new HashMap<>();
+
+                for (var algorithm : algorithms.entrySet()) {
+                    Map map = null;
+                    List<Point<Integer, Integer>> path = null;
+                    long latency = Long.MAX_VALUE;
+
+                    for (int run = 0; run < (latencies == null ? 1 : TIMED_RUNS); run++) {
+                        // Every solve gets its own copy of the map, so algorithms can not affect each other
+                        map = new Map();
+                        map.setScenario(scenario);
+                        map.generate(enteredMap.replaceAll(" ", ""));
+
+                        Algorithm solver = algorithm.getValue().apply(new Solver(map));
+                        long startTime = System.nanoTime();
+                        path = solver.findShortestPath();
+                        latency = Math.min(latency, System.nanoTime() - startTime);
+                    }
 
-    // The perception of each object - danger zone in case of dangerous enemy,
-    // and perception zone in case of Jack Sparrow
-    protected ArrayList<Point<Integer, Integer>> perception;
+                    if (latencies == null) continue;
+                    latencies.get(algorithm.getKey()).add(latency);
 
-    // Fields below for the cells that will be occupied by agents' perception zone
-    protected final Point<Integer, Integer> _default = new Point<>(0, 0);
+                    String error = validatePath(map, path);
+                    if (error != null) {
+                        System.out.printf("%s scenario %d: %s gave invalid path, %s\n",
+                                enteredMap, scenario, algorithm.getKey(), error);
+                        passed = false;
+                    }
+                    lengths.put(algorithm.getKey(), path == null ? -1 : path.size() - 1);
+                    paths.put(algorithm.getKey(), path);
+                }
 
-    protected final Point<Integer, Integer> left = new Point<>(-1, 0);
-    protected final Point<Integer, Integer> right = new Point<>(1, 0);
+                if (latencies != null && new HashSet<>(lengths.values()).size() > 1) {
+                    System.out.printf("%s scenario %d: lengths differ %s\n", enteredMap, scenario, lengths);
+                    passed = false;
+                }
 
-    protected final Point<Integer, Integer> top = new Point<>(0, -1);
-    protected final Point<Integer, Integer> topLeft = new Point<>(-1, -1);
-    protected final Point<Integer, Integer> topRight = new Point<>(1, -1);
+                for (String name : backtrackingVersions) {
+                    if (latencies == null || Objects.equals(paths.get(name), paths.get("Backtracking"))) continue;
+                    System.out.printf("%s scenario %d: %s gave %s, Backtracking gave %s\n",
+                            enteredMap, scenario, name, paths.get(name), paths.get("Backtracking"));
+                    passed = false;
+                }
+            }
+        }
 
-    protected final Point<Integer, Integer> bottom = new Point<>(0, 1);
-    protected final Point<Integer, Integer> bottomLeft = new Point<>(-1, 1);
-    protected final Point<Integer, Integer> bottomRight = new Point<>(1, 1);
+        return passed;
+    }
 
     /**
-     * @param x - X coordinate
-     * @param y - Y coordinate
-     * @param dangerous - Field for dangerous objects - Kraken, Rock and Davy Jones
+     * @param map - Map which the path was found on
+     * @param path - Path to check, null means loss
+     * @return Description of the first problem of the path, or null if the path is valid
      */
-    public Agent(int x, int y, boolean dangerous) {
-        this.x = x;
-        this.y = y;
-        // By default, the perception zone of an agent is the agent himself
-        this.perception = new ArrayList<>(List.of(_default));
-        this.isDangerous = dangerous;
-    }
+    static String validatePath(Map map, List<Point<Integer, Integer>> path) {
+        if (path == null) return null;
+        if (path.isEmpty()) return "path is empty";
 
-    public int getX() {
-        return x;
-    }
+        Point<Integer, Integer> first = path.get(0), last = path.get(path.size() - 1);
+        if (first.getX() != map.jack.getX() || first.getY() != map.jack.getY()) return "path does not start at Jack";
+        if (last.getX() != map.chest.getX() || last.getY() != map.chest.getY()) return "path does not end at the Chest";
 
-    public int getY() {
-        return y;
-    }
+        boolean tortugaPassed = false;
+        List<MapCell> killedKrakens = new ArrayList<>();
+
+        for (int i = 0; i < path.size(); i++) {
+            MapCell cell = map.cells[path.get(i).getX()][path.get(i).getY()];
+
+            if (i > 0) {
+                int deltaX = Math.abs(path.get(i - 1).getX() - cell.x);
+                int deltaY = Math.abs(path.get(i - 1).getY() - cell.y);
+                if (Math.max(deltaX, deltaY) != 1) return String.format("illegal move to [%d,%d]", cell.x, cell.y);
+            }
+
+            // Danger of the cell, without danger zones of the Krakens that are already killed.
+            // Jack does not choose his starting cell, so only cells he moves to are checked
+            int dangerLevel = cell.dangerLevel;
+            for (MapCell kraken : killedKrakens) {
+                if (Math.abs(kraken.x - cell.x) + Math.abs(kraken.y - cell.y) <= 1) dangerLevel--;
+            }
+            if (i > 0 && dangerLevel != 0) return String.format("cell [%d,%d] is not walkable", cell.x, cell.y);
+
+            if (cell.agents.contains('T')) tortugaPassed = true;
+            // With rum casks from Tortuga, Jack kills any Kraken he sees
+            if (tortugaPassed) {
+                for (MapCell neighbour : map.getNeighbourCells(cell)) {
+                    if (neighbour.agents.contains('K') && !killedKrakens.contains(neighbour)) killedKrakens.add(neighbour);
+                }
+            }
+        }
 
+        return null;
+    }
 
     /**
-     * @param agent - Agent object
-     * @return - True if agents position on map is the same
+     * @param values - Values, they are sorted by this method
+     * @param percentile - Percentile from 0 to 100
+     * @return Nearest-rank percentile of the values
      */
-    public boolean equals(Agent agent) {
-        return this.x == agent.x && this.y == agent.y;
+    static long percentile(List<Long> values, double percentile) {
+        if (values.isEmpty()) return 0;
+        Collections.sort(values);
+        int rank = (int) Math.ceil(percentile / 100 * values.size());
+        return values.get(Math.max(0, rank - 1));
     }
 
-
     /**
-     * @return Alias of each agent object
+     * @param baselineFile - File with lines "algorithm p50 p99", latencies are in nanoseconds
+     * @return p50 and p99 of every algorithm, empty if there is no baseline yet
      */
-    public char getAlias() {
-        return '-';
+    private static java.util.Map<String, long[]> readBaseline(java.nio.file.Path baselineFile) throws IOException {
+        java.util.Map<String, long[]> baseline = new HashMap<>();
+        if (!Files.exists(baselineFile)) return baseline;
+
+        for (String line : Files.readAllLines(baselineFile)) {
+            String[] values = line.trim().split("\\s+");
+            if (values.length != 3) continue;
+            baseline.put(values[0], new long[]{Long.parseLong(values[1]), Long.parseLong(values[2])});
+        }
+        return baseline;
     }
 }
 
 
 /**
- * Class for Davy Jones enemy
+ * Compact binary corpus of maps, so workloads can be captured and replayed exactly.
+ * Header: magic, version, grid size, flags, record size and record count.
+ * Record: packed cells (x * size + y) of Jack, Davy Jones, The Kraken, Rock, the Chest and Tortuga,
+ * then the scenario and, if the corpus has expected results, the expected length of the path.
+ * Records are fixed-size, so only maps with exactly one agent of each type can be written
  */
-class DavyJones extends Agent {
+class MapCorpus {
+    static final int MAGIC = 0x4D415053;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
 
-    public DavyJones(int x, int y, boolean dangerous) {
-        super(x, y, dangerous);
-        this.perception = new ArrayList<>(Arrays.asList(this.topLeft, this.top, this.topRight,
-                this.left, this.right,
-                this.bottomLeft, this.bottom, this.bottomRight)
-        );
-    }
+    // Agents of the record, in the same order as in the text format
+    static final int AGENTS_PER_RECORD = 6;
 
-    @Override
-    public char getAlias() {
-        return 'D';
+    // Flag of the header which tells that records have expected results
+    static final short FLAG_EXPECTED_RESULTS = 1;
+
+    // Expected length of the map which has no path, and of the map which result is not known
+    static final int LOSS = -1;
+    static final int UNKNOWN = Short.MIN_VALUE;
+
+    /**
+     * @param gridSize - Side of the map
+     * @return Number of bytes of a packed cell
+     */
+    static int getCellBytes(int gridSize) {
+        return gridSize * gridSize <= 256 ? 1 : 2;
     }
-}
 
-/**
- * Class for The Kraken enemy
- */
-class Kraken extends Agent {
+    /**
+     * @param gridSize - Side of the map
+     * @param expectedResults - true if records have expected results
+     * @return Number of bytes of a record
+     */
+    static int getRecordSize(int gridSize, boolean expectedResults) {
+        return AGENTS_PER_RECORD * getCellBytes(gridSize) + 1 + (expectedResults ? 2 : 0);
+    }
 
-    public Kraken(int x, int y, boolean dangerous) {
-        super(x, y, dangerous);
-        this.perception = new ArrayList<>(Arrays.asList(this.top, this.left,
-                this.right, this.bottom)
-        );
+    /**
+     * Writer which appends records through a small buffer, the header with the number of records
+     * is written when the writer is closed
+     */
+    static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+
+        private final int gridSize;
+        private final int cellBytes;
+        private final boolean expectedResults;
+        private int recordCount = 0;
+
+        /**
+         * @param file - File of the corpus, it is overwritten
+         * @param gridSize - Side of the maps
+         * @param expectedResults - true if records have expected results
+         */
+        public Writer(java.nio.file.Path file, int gridSize, boolean expectedResults) throws IOException {
+            if (gridSize < 1 || gridSize > 256) throw new IllegalArgumentException("Grid size must be in [1, 256]");
+
+            this.gridSize = gridSize;
+            this.cellBytes = getCellBytes(gridSize);
+            this.expectedResults = expectedResults;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            // Space for the header, it is filled in on close
+            this.buffer.position(HEADER_SIZE);
+        }
+
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * @param map - Map to append, it must have exactly one agent of each type
+         */
+        public void append(Map map) throws IOException {
+            append(map, UNKNOWN);
+        }
+
+        /**
+         * @param map - Map to append, it must have exactly one agent of each type
+         * @param expectedLength - Expected length of the path, LOSS or UNKNOWN
+         */
+        public void append(Map map, int expectedLength) throws IOException {
+            if (map.size != gridSize) throw new IllegalArgumentException("Map size differs from the corpus grid size");
+            for (var group : List.of(map.davyJoneses, map.krakens, map.rocks, map.chests, map.tortugas)) {
+                if (group.size() != 1) {
+                    throw new IllegalArgumentException("Records hold exactly one agent of each type, not " + map);
+                }
+            }
+
+            int[] cells = {
+                    map.jack.getX() * gridSize + map.jack.getY(),
+                    map.davyJoneses.get(0).getX() * gridSize + map.davyJoneses.get(0).getY(),
+                    map.krakens.get(0).getX() * gridSize + map.krakens.get(0).getY(),
+                    map.rocks.get(0).getX() * gridSize + map.rocks.get(0).getY(),
+                    map.chest.getX() * gridSize + map.chest.getY(),
+                    map.tortuga.getX() * gridSize + map.tortuga.getY()
+            };
+            append(cells, map.scenario, expectedLength);
+        }
+
+        /**
+         * @param cells - Packed cells of the agents, in the order of the record
+         * @param scenario - Scenario of the map, 1 or 2, input files may also have -1 and -2
+         * @param expectedLength - Expected length of the path, LOSS or UNKNOWN
+         */
+        public void append(int[] cells, int scenario, int expectedLength) throws IOException {
+            // Values are narrowed to bytes and shorts below, so anything out of their range must not get there
+            if (cells.length != AGENTS_PER_RECORD) {
+                throw new IllegalArgumentException("Record must have " + AGENTS_PER_RECORD + " cells");
+            }
+            for (int cell : cells) {
+                if (cell < 0 || cell >= gridSize * gridSize) {
+                    throw new IllegalArgumentException("Cell " + cell + " is outside the grid of size " + gridSize);
+                }
+            }
+            if (!SolveRequest.isValidScenario(Math.abs(scenario))) {
+                throw new IllegalArgumentException("Scenario must be 1, 2, -1 or -2");
+            }
+            if (expectedResults && expectedLength != LOSS && expectedLength != UNKNOWN &&
+                    (expectedLength < 0 || expectedLength > Short.MAX_VALUE)) {
+                throw new IllegalArgumentException("Expected length " + expectedLength + " does not fit the record");
+            }
+
+            if (buffer.remaining() < getRecordSize(gridSize, expectedResults)) flush();
+
+            for (int i = 0; i < AGENTS_PER_RECORD; i++) {
+                if (cellBytes == 1) {
+                    buffer.put((byte) cells[i]);
+                } else {
+                    buffer.putShort((short) cells[i]);
+                }
+            }
+            buffer.put((byte) scenario);
+            if (expectedResults) buffer.putShort((short) expectedLength);
+
+            recordCount++;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC)
+                    .putShort(VERSION)
+                    .putShort((short) gridSize)
+                    .putShort(expectedResults ? FLAG_EXPECTED_RESULTS : 0)
+                    .putShort((short) getRecordSize(gridSize, expectedResults))
+                    .putInt(recordCount)
+                    .flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.close();
+        }
     }
 
-    @Override
-    public char getAlias() {
-        return 'K';
+    /**
+     * Reader which maps the whole corpus into memory, so any record is read by its index
+     * with a few absolute reads and without any copying
+     */
+    static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        private final int gridSize;
+        private final int cellBytes;
+        private final int recordSize;
+        private final int recordCount;
+        private final boolean expectedResults;
+
+        /**
+         * @param file - File of the corpus
+         */
+        public Reader(java.nio.file.Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                channel.close();
+                throw new IOException("Not a map corpus: " + file);
+            }
+            if (buffer.getShort(4) != VERSION) {
+                channel.close();
+                throw new IOException("Unsupported map corpus version: " + buffer.getShort(4));
+            }
+
+            this.gridSize = buffer.getShort(6) & 0xFFFF;
+            this.cellBytes = getCellBytes(gridSize);
+            this.expectedResults = (buffer.getShort(8) & FLAG_EXPECTED_RESULTS) != 0;
+            this.recordSize = buffer.getShort(10);
+            this.recordCount = buffer.getInt(12);
+
+            if (gridSize < 1 || gridSize > 256 || recordSize != getRecordSize(gridSize, expectedResults) ||
+                    recordCount < 0) {
+                channel.close();
+                throw new IOException("Map corpus has invalid header: " + file);
+            }
+            if ((long) HEADER_SIZE + (long) recordCount * recordSize > buffer.limit()) {
+                channel.close();
+                throw new IOException("Map corpus is truncated: " + file);
+            }
+        }
+
+        public int getGridSize() {
+            return gridSize;
+        }
+
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        public boolean hasExpectedResults() {
+            return expectedResults;
+        }
+
+        /**
+         * @param record - Index of the record
+         * @param agent - Index of the agent in the record, from 0 (Jack) to 5 (Tortuga)
+         * @return Packed cell of the agent, x * size + y
+         */
+        public int getCell(int record, int agent) {
+            if (agent < 0 || agent >= AGENTS_PER_RECORD) {
+                throw new IndexOutOfBoundsException("Agent " + agent + " is out of the record");
+            }
+            int offset = getOffset(record) + agent * cellBytes;
+            return cellBytes == 1 ? buffer.get(offset) & 0xFF : buffer.getShort(offset) & 0xFFFF;
+        }
+
+        /**
+         * @param record - Index of the record
+         * @return Scenario of the map
+         */
+        public int getScenario(int record) {
+            return buffer.get(getOffset(record) + AGENTS_PER_RECORD * cellBytes);
+        }
+
+        /**
+         * @param record - Index of the record
+         * @return Expected length of the path, LOSS, or UNKNOWN if the corpus has no expected results
+         */
+        public int getExpectedLength(int record) {
+            int offset = getOffset(record);
+            if (!expectedResults) return UNKNOWN;
+            return buffer.getShort(offset + AGENTS_PER_RECORD * cellBytes + 1);
+        }
+
+        /**
+         * @param record - Index of the record
+         * @return Position of the record in the corpus
+         */
+        private int getOffset(int record) {
+            if (record < 0 || record >= recordCount) {
+                throw new IndexOutOfBoundsException("Record " + record + " is out of the corpus");
+            }
+            return HEADER_SIZE + record * recordSize;
+        }
+
+        /**
+         * @param record - Index of the record
+         * @return Map of the record in the same format as in input.txt
+         */
+        public String getMapLine(int record) {
+            StringBuilder line = new StringBuilder();
+            for (int agent = 0; agent < AGENTS_PER_RECORD; agent++) {
+                int cell = getCell(record, agent);
+                if (agent > 0) line.append(' ');
+                line.append('[').append(cell / gridSize).append(',').append(cell % gridSize).append(']');
+            }
+            return line.toString();
+        }
+
+        /**
+         * Generates the map of the record, the size of the map is set to the grid size of the corpus
+         * @param record - Index of the record
+         * @param map - Map to generate
+         * @return true if the map is correct
+         */
+        public boolean load(int record, Map map) {
+            map.setSize(gridSize);
+            map.setScenario(getScenario(record));
+            return map.generate(getMapLine(record).replaceAll(" ", ""));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
     }
-}
 
-/**
- * Class for The Rock enemy
- */
-class Rock extends Agent {
+    /**
+     * Converts maps of the default size in the text format of input.txt to a corpus
+     * @param textFile - File with maps in the text format
+     * @param corpusFile - File of the corpus, it is overwritten
+     * @return Number of converted maps
+     */
+    public static int convertFromText(java.nio.file.Path textFile, java.nio.file.Path corpusFile) throws IOException {
+        return convertFromText(textFile, corpusFile, Map.DEFAULT_SIZE);
+    }
 
-    public Rock(int x, int y, boolean dangerous) {
-        super(x, y, dangerous);
+    /**
+     * Converts maps in the text format of input.txt (map line followed by scenario line, repeated) to a corpus.
+     * The text format does not have the size of the maps, so it is given
+     * @param textFile - File with maps in the text format
+     * @param corpusFile - File of the corpus, it is overwritten
+     * @param gridSize - Side of the maps
+     * @return Number of converted maps
+     */
+    public static int convertFromText(java.nio.file.Path textFile, java.nio.file.Path corpusFile, int gridSize)
+            throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(textFile)) {
+            if (!line.isBlank()) lines.add(line.trim());
+        }
+
+        try (Writer writer = new Writer(corpusFile, gridSize, false)) {
+            for (int i = 0; i + 1 < lines.size(); i += 2) {
+                writer.append(parseMapLine(lines.get(i), gridSize), Integer.parseInt(lines.get(i + 1)), UNKNOWN);
+            }
+            return writer.getRecordCount();
+        }
     }
 
-    @Override
-    public char getAlias() {
-        return 'R';
+    /**
+     * Converts a corpus to the text format of input.txt (map line followed by scenario line, repeated)
+     * @param corpusFile - File of the corpus
+     * @param textFile - File to write maps to, it is overwritten
+     * @return Number of converted maps
+     */
+    public static int convertToText(java.nio.file.Path corpusFile, java.nio.file.Path textFile) throws IOException {
+        try (Reader reader = new Reader(corpusFile);
+             PrintWriter writer = new PrintWriter(Files.newBufferedWriter(textFile, StandardCharsets.UTF_8))) {
+            for (int i = 0; i < reader.getRecordCount(); i++) {
+                writer.println(reader.getMapLine(i));
+                writer.println(reader.getScenario(i));
+            }
+            return reader.getRecordCount();
+        }
+    }
+
+    /**
+     * @param line - Map in the text format, [x,y] of Jack, Davy Jones, The Kraken, Rock, the Chest and Tortuga
+     * @param gridSize - Side of the map
+     * @return Packed cells of the agents
+     */
+    static int[] parseMapLine(String line, int gridSize) {
+        int[] cells = new int[AGENTS_PER_RECORD];
+        var matcher = java.util.regex.Pattern.compile("\\[(\\d{1,9}),(\\d{1,9})]").matcher(line);
+
+        int count = 0;
+        while (matcher.find()) {
+            int x = Integer.parseInt(matcher.group(1)), y = Integer.parseInt(matcher.group(2));
+            if (count == AGENTS_PER_RECORD || x >= gridSize || y >= gridSize) {
+                throw new IllegalArgumentException("Invalid map line: " + line);
+            }
+            cells[count++] = x * gridSize + y;
+        }
+        if (count != AGENTS_PER_RECORD) throw new IllegalArgumentException("Invalid map line: " + line);
+
+        return cells;
     }
 }
 
 
 /**
- * Class for Dead Man's Chest - our destination point
+ * Append-only columnar log of single solves, so sweeps can be analysed after the process exits.
+ * The log is a sequence of blocks, every block is written at once and is self-describing.
+ * Block header: magic, version, number of algorithm names, number of rows and size of the block,
+ * then the names of algorithms which codes are used by the block.
+ * Block body: every column of the rows one after another, so a column is scanned without touching other ones
  */
-class Chest extends Agent {
+class ResultsLog {
+    static final int BLOCK_MAGIC = 0x52534C54;
+    static final short VERSION = 1;
+    static final int BLOCK_HEADER_SIZE = 16;
 
-    public Chest(int x, int y, boolean dangerous) {
-        super(x, y, dangerous);
+    // Rows which the writer keeps in memory before it writes them as a block
+    static final int BLOCK_ROWS = 1 << 16;
+    // Codes of algorithms are single unsigned bytes
+    static final int MAX_ALGORITHMS = 256;
+
+    // Encoding of the map which has no agent of some type or has coordinates which don't fit into 5 bits
+    static final long NO_ENCODING = -1;
+    // Path length of the loss
+    static final int LOSS = -1;
+
+    /**
+     * Columns of the log, in the order they are stored in a block, with the width of their values in bytes.
+     * Single byte columns are unsigned, except the scenario, which is -1 or -2 in some input files
+     */
+    enum Column {
+        MAP_ID(Integer.BYTES),
+        MAP_ENCODING(Long.BYTES),
+        SCENARIO(Byte.BYTES, true),
+        ALGORITHM(Byte.BYTES),
+        WIN(Byte.BYTES),
+        PATH_LENGTH(Integer.BYTES),
+        ELAPSED_NANOS(Long.BYTES),
+        EXPANDED_NODES(Long.BYTES);
+
+        final int width;
+        // Single byte values are sign-extended when they are read
+        final boolean signedByte;
+
+        Column(int width) {
+            this(width, false);
+        }
+
+        Column(int width, boolean signedByte) {
+            this.width = width;
+            this.signedByte = signedByte;
+        }
     }
 
-    @Override
-    public char getAlias() {
-        return 'C';
+    /**
+     * Consumer of the values of a scanned column
+     */
+    interface RowVisitor {
+        /**
+         * @param row - Index of the row in the whole log
+         * @param value - Value of the column in the row
+         */
+        void visit(long row, long value);
     }
-}
 
-/**
- * Class for Tortuga - island with rum casks
- */
-class Tortuga extends Agent {
+    /**
+     * @param map - Map to encode
+     * @return Coordinates of Jack, Davy Jones, The Kraken, Rock, the Chest and Tortuga packed by 5 bits,
+     * in the same order as in input.txt, or NO_ENCODING
+     */
+    static long encode(Map map) {
+        if (map.davyJoneses.isEmpty() || map.krakens.isEmpty() || map.rocks.isEmpty()) return NO_ENCODING;
 
-    public Tortuga(int x, int y, boolean dangerous) {
-        super(x, y, dangerous);
+        Agent[] agents = {map.jack, map.davyJoneses.get(0), map.krakens.get(0), map.rocks.get(0), map.chest, map.tortuga};
+        long encoding = 0;
+        for (Agent agent : agents) {
+            if (agent.getX() >= 32 || agent.getY() >= 32) return NO_ENCODING;
+            encoding = (encoding << 10) | ((long) agent.getX() << 5) | agent.getY();
+        }
+        return encoding;
     }
 
-    @Override
-    public char getAlias() {
-        return 'T';
+    /**
+     * @param encoding - Encoding of the map, not NO_ENCODING
+     * @return Map in the same format as in input.txt
+     */
+    static String decode(long encoding) {
+        StringBuilder line = new StringBuilder();
+        for (int shift = 50; shift >= 0; shift -= 10) {
+            if (shift < 50) line.append(' ');
+            line.append('[').append((encoding >>> (shift + 5)) & 31).append(',').append((encoding >>> shift) & 31).append(']');
+        }
+        return line.toString();
     }
-}
 
-/**
- * Class for the Actor - Captain Jack Sparrow
- */
-class JackSparrow extends Agent {
+    /**
+     * Writer which keeps every column of the current block in its own buffer,
+     * full blocks are written to the end of the file by a single gathering write
+     */
+    static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer[] columns = new ByteBuffer[Column.values().length];
+
+        private final List<String> algorithms = new ArrayList<>();
+        private final HashMap<String, Integer> algorithmCodes = new HashMap<>();
+        private int blockRows = 0;
+        private long rowCount = 0;
+
+        /**
+         * @param file - File of the log
+         * @param append - If true, rows are appended to the existing log, otherwise it is overwritten
+         */
+        public Writer(java.nio.file.Path file, boolean append) throws IOException {
+            this.channel = append
+                    ? FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                    : FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            for (Column column : Column.values()) {
+                columns[column.ordinal()] = ByteBuffer.allocateDirect(BLOCK_ROWS * column.width);
+            }
+        }
+
+        /**
+         * @return Number of rows appended by this writer
+         */
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * @param map - Solved map
+         * @param algorithm - Name of the algorithm
+         * @param pathLength - Number of moves of the path, or LOSS
+         * @param elapsedNanos - Time of the solve
+         * @param expandedNodes - Number of cells expanded by the solve, -1 if the algorithm doesn't count them
+         */
+        public void append(Map map, String algorithm, int pathLength, long elapsedNanos, long expandedNodes)
+                throws IOException {
+            append(map.id, encode(map), map.scenario, algorithm, pathLength, elapsedNanos, expandedNodes);
+        }
+
+        /**
+         * @param mapId - Id of the map in the process which solved it
+         * @param mapEncoding - Encoding of the map, or NO_ENCODING
+         * @param scenario - Scenario of the map
+         * @param algorithm - Name of the algorithm
+         * @param pathLength - Number of moves of the path, or LOSS
+         * @param elapsedNanos - Time of the solve
+         * @param expandedNodes - Number of cells expanded by the solve, -1 if the algorithm doesn't count them
+         */
+        public void append(int mapId, long mapEncoding, int scenario, String algorithm, int pathLength,
+                           long elapsedNanos, long expandedNodes) throws IOException {
+            Integer code = algorithmCodes.get(algorithm);
+            if (code == null) {
+                if (algorithms.size() == MAX_ALGORITHMS) throw new IllegalStateException("Too many algorithms in one log");
+                code = algorithms.size();
+                algorithms.add(algorithm);
+                algorithmCodes.put(algorithm, code);
+            }
+
+            columns[Column.MAP_ID.ordinal()].putInt(mapId);
+            columns[Column.MAP_ENCODING.ordinal()].putLong(mapEncoding);
+            columns[Column.SCENARIO.ordinal()].put((byte) scenario);
+            columns[Column.ALGORITHM.ordinal()].put((byte) (int) code);
+            columns[Column.WIN.ordinal()].put((byte) (pathLength == LOSS ? 0 : 1));
+            columns[Column.PATH_LENGTH.ordinal()].putInt(pathLength);
+            columns[Column.ELAPSED_NANOS.ordinal()].putLong(elapsedNanos);
+            columns[Column.EXPANDED_NODES.ordinal()].putLong(expandedNodes);
+
+            rowCount++;
+            if (++blockRows == BLOCK_ROWS) flush();
+        }
+
+        /**
+         * Writes buffered rows as a block, so they are seen by readers which are opened later
+         */
+        public void flush() throws IOException {
+            if (blockRows == 0) return;
+
+            byte[][] names = new byte[algorithms.size()][];
+            int headerSize = BLOCK_HEADER_SIZE;
+            for (int i = 0; i < names.length; i++) {
+                names[i] = algorithms.get(i).getBytes(StandardCharsets.UTF_8);
+                headerSize += Short.BYTES + names[i].length;
+            }
+            long blockSize = headerSize;
+            for (Column column : Column.values()) {
+                blockSize += (long) blockRows * column.width;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            header.putInt(BLOCK_MAGIC)
+                    .putShort(VERSION)
+                    .putShort((short) names.length)
+                    .putInt(blockRows)
+                    .putInt((int) blockSize);
+            for (byte[] name : names) {
+                header.putShort((short) name.length).put(name);
+            }
+            header.flip();
+
+            ByteBuffer[] parts = new ByteBuffer[columns.length + 1];
+            parts[0] = header;
+            for (int i = 0; i < columns.length; i++) {
+                parts[i + 1] = columns[i].flip();
+            }
+            while (blockSize > 0) {
+                blockSize -= channel.write(parts);
+            }
+
+            for (ByteBuffer column : columns) {
+                column.clear();
+            }
+            blockRows = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            channel.close();
+        }
+    }
+
+    /**
+     * Reader which maps every block of the log into memory, so a column is scanned
+     * by absolute reads of its values only, without building records
+     */
+    static class Reader implements Closeable {
+        /**
+         * Mapped block of the log
+         * @param firstRow - Index of the first row of the block in the whole log
+         * @param rowCount - Number of rows of the block
+         * @param buffer - Whole block
+         * @param columnOffsets - Offsets of the columns in the block
+         * @param algorithms - Names of algorithms by their codes
+         */
+        private record Block(long firstRow, int rowCount, MappedByteBuffer buffer, int[] columnOffsets,
+                             List<String> algorithms) {
+        }
+
+        private final FileChannel channel;
+        private final List<Block> blocks = new ArrayList<>();
+        private final long rowCount;
+
+        /**
+         * @param file - File of the log, a block at its end which was not written completely is ignored
+         */
+        public Reader(java.nio.file.Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            long position = 0, rows = 0, fileSize = channel.size();
+            while (position + BLOCK_HEADER_SIZE <= fileSize) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    channel.read(header, position + header.position());
+                }
+
+                if (header.getInt(0) != BLOCK_MAGIC) {
+                    channel.close();
+                    throw new IOException("Not a results log: " + file);
+                }
+                if (header.getShort(4) != VERSION) {
+                    channel.close();
+                    throw new IOException("Unsupported results log version: " + header.getShort(4));
+                }
+
+                int algorithmCount = header.getShort(6);
+                int blockRows = header.getInt(8);
+                int blockSize = header.getInt(12);
+                if (position + blockSize > fileSize) break;
+
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, blockSize);
+                List<String> algorithms = new ArrayList<>(algorithmCount);
+                int offset = BLOCK_HEADER_SIZE;
+                for (int i = 0; i < algorithmCount; i++) {
+                    byte[] name = new byte[buffer.getShort(offset)];
+                    buffer.get(offset + Short.BYTES, name);
+                    algorithms.add(new String(name, StandardCharsets.UTF_8));
+                    offset += Short.BYTES + name.length;
+                }
+
+                int[] columnOffsets = new int[Column.values().length];
+                for (Column column : Column.values()) {
+                    columnOffsets[column.ordinal()] = offset;
+                    offset += blockRows * column.width;
+                }
+
+                blocks.add(new Block(rows, blockRows, buffer, columnOffsets, algorithms));
+                rows += blockRows;
+                position += blockSize;
+            }
+            this.rowCount = rows;
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * @param column - Column to read
+         * @param row - Index of the row
+         * @return Value of the column in the row, single byte columns are unsigned, except the scenario
+         */
+        public long get(Column column, long row) {
+            Block block = findBlock(row);
+            return read(block, column, (int) (row - block.firstRow()));
+        }
+
+        /**
+         * @param row - Index of the row
+         * @return Name of the algorithm of the row
+         */
+        public String getAlgorithm(long row) {
+            Block block = findBlock(row);
+            return block.algorithms().get((int) read(block, Column.ALGORITHM, (int) (row - block.firstRow())));
+        }
+
+        /**
+         * @param row - Index of the row
+         * @return Map of the row in the same format as in input.txt, or null if the map was not encoded
+         */
+        public String getMapLine(long row) {
+            long encoding = get(Column.MAP_ENCODING, row);
+            return encoding == NO_ENCODING ? null : decode(encoding);
+        }
+
+        /**
+         * Visits values of the column in the order of rows
+         * @param column - Column to scan
+         * @param algorithm - Name of the algorithm which rows are visited, or null to visit all rows
+         * @param visitor - Consumer of the values
+         */
+        public void scan(Column column, String algorithm, RowVisitor visitor) {
+            for (Block block : blocks) {
+                int code = algorithm == null ? -1 : block.algorithms().indexOf(algorithm);
+                // Codes are per block, so the block which doesn't know the algorithm has none of its rows
+                if (algorithm != null && code < 0) continue;
+
+                MappedByteBuffer buffer = block.buffer();
+                int codes = block.columnOffsets()[Column.ALGORITHM.ordinal()];
+                for (int i = 0; i < block.rowCount(); i++) {
+                    if (code >= 0 && (buffer.get(codes + i) & 0xFF) != code) continue;
+                    visitor.visit(block.firstRow() + i, read(block, column, i));
+                }
+            }
+        }
+
+        private Block findBlock(long row) {
+            if (row < 0 || row >= rowCount) throw new IndexOutOfBoundsException("Row " + row + " is out of the log");
+
+            int low = 0, high = blocks.size() - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (blocks.get(middle).firstRow() <= row) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return blocks.get(low);
+        }
+
+        private static long read(Block block, Column column, int index) {
+            int offset = block.columnOffsets()[column.ordinal()] + index * column.width;
+            return switch (column.width) {
+                case Byte.BYTES -> column.signedByte ? block.buffer().get(offset) : block.buffer().get(offset) & 0xFF;
+                case Integer.BYTES -> block.buffer().getInt(offset);
+                default -> block.buffer().getLong(offset);
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
+
+
+/**
+ * Registry of solve results which many solver threads update at once. Every (algorithm, scenario) pair gets
+ * a handle once, before the sweep, so recording a solve touches only counters of the handle. Counters are
+ * striped (LongAdder), so threads which record results of the same pair do not contend on one cache line.
+ * Raw measurements go to reservoirs of the recording threads, which are merged only when they are read.
+ * Reservoirs of threads which died are folded into one sample of the handle, so memory is bounded
+ * by the threads which are alive and not by all threads which have ever recorded
+ */
+class MetricsRegistry {
+    // Bucket i of the latency histogram counts solves shorter than 2^i us, the last one counts the rest
+    static final int HISTOGRAM_BUCKETS = 32;
+    // Raw measurements kept by a pair in each live thread and in the sample of dead threads, the ones above it
+    // replace kept ones at random. Merged samples of all threads are cut to the same size
+    static final int MEASUREMENT_RESERVOIR_SIZE = 1 << 14;
+    // Slots of a new reservoir, they double until the reservoir size, so rarely used threads stay small
+    private static final int INITIAL_RESERVOIR_SLOTS = 64;
+
+    /**
+     * Result of measuring a single solve
+     * @param elapsedTime - Execution time in ms
+     * @param allocatedBytes - Bytes allocated by the thread which called the algorithm
+     * @param gcHappened - true if garbage collection finished while the algorithm was running
+     * @param expandedCells - Cells expanded by the algorithm, -1 if it doesn't count them
+     */
+    record Measurement(double elapsedTime, long allocatedBytes, boolean gcHappened, long expandedCells) {
+        /**
+         * @return Group of solves which expanded the same number of cells up to the factor of 2,
+         * all solves are in the same group if the algorithm doesn't count cells
+         */
+        int workGroup() {
+            return 64 - Long.numberOfLeadingZeros(Math.max(0, expandedCells));
+        }
+    }
+
+    private record Key(String algorithmName, int scenario) {
+    }
+
+    private final ConcurrentHashMap<Key, Handle> handles = new ConcurrentHashMap<>();
+
+    /**
+     * @param algorithmName - Name of the algorithm
+     * @param scenario - Perception scenario
+     * @return Handle of the pair, the same one for every call with the same pair
+     */
+    public Handle handle(String algorithmName, int scenario) {
+        return handles.computeIfAbsent(new Key(algorithmName, scenario), key -> new Handle(algorithmName, scenario));
+    }
+
+    /**
+     * @return Snapshots of all pairs, sorted by scenario and algorithm name
+     */
+    public List<Snapshot> snapshot() {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (Handle handle : handles.values()) {
+            snapshots.add(handle.snapshot());
+        }
+        snapshots.sort(Comparator.comparingInt(Snapshot::scenario).thenComparing(Snapshot::algorithmName));
+        return snapshots;
+    }
+
+    static final class Handle {
+        private final String algorithmName;
+        private final int scenario;
+
+        private final LongAdder wins = new LongAdder();
+        private final LongAdder loses = new LongAdder();
+        private final LongAdder elapsedNanos = new LongAdder();
+        // Squares of times in ms, their sum gives the deviation without keeping every time
+        private final DoubleAdder squaredMillis = new DoubleAdder();
+        private final LongAccumulator minNanos = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder allocatedBytes = new LongAdder();
+        private final LongAdder[] histogram = new LongAdder[HISTOGRAM_BUCKETS];
+
+        // Solves which were not measured yet, and uniform samples of raw measurements of solves which were,
+        // one per recording thread, so threads never wait for each other
+        private final AtomicInteger warmUps = new AtomicInteger();
+        private final Queue<Reservoir> reservoirs = new ConcurrentLinkedQueue<>();
+        private final ThreadLocal<Reservoir> threadReservoir = ThreadLocal.withInitial(this::addReservoir);
+        // Merged sample of the reservoirs of threads which died, and the number of measurements they saw
+        private List<Measurement> deadThreadsSample = new ArrayList<>();
+        private long deadThreadsSeen;
+
+        private Handle(String algorithmName, int scenario) {
+            this.algorithmName = algorithmName;
+            this.scenario = scenario;
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param win - true if the algorithm found a path
+         * @param elapsedNanos - Time of the solve
+         * @param allocatedBytes - Bytes allocated by the solve, 0 if they were not measured
+         */
+        public void record(boolean win, long elapsedNanos, long allocatedBytes) {
+            (win ? wins : loses).increment();
+            this.elapsedNanos.add(elapsedNanos);
+            this.squaredMillis.add(elapsedNanos * 1e-6 * elapsedNanos * 1e-6);
+            this.minNanos.accumulate(elapsedNanos);
+            this.maxNanos.accumulate(elapsedNanos);
+            this.allocatedBytes.add(allocatedBytes);
+
+            long elapsedMicros = elapsedNanos / 1000;
+            histogram[Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(elapsedMicros))].increment();
+        }
+
+        /**
+         * @param warmUpIterations - Number of first solves of the pair that are not measured
+         * @return true if the caller's solve is one of the warm-up solves
+         */
+        public boolean warmUp(int warmUpIterations) {
+            // Counter stops growing once the warm-up is over
+            return warmUps.get() < warmUpIterations && warmUps.getAndIncrement() < warmUpIterations;
+        }
+
+        /**
+         * Lock-free, the measurement goes to the reservoir of the calling thread
+         * @param measurement - Raw measurement of a solve, kept for stats which counters can't give
+         */
+        public void addMeasurement(Measurement measurement) {
+            threadReservoir.get().add(measurement);
+        }
+
+        /**
+         * Merges reservoirs of all threads and the sample of dead threads
+         * @return Kept raw measurements, all of them in the order each thread added them if there are few enough
+         */
+        public synchronized List<Measurement> getMeasurements() {
+            foldDeadReservoirs();
+
+            List<List<Measurement>> samples = new ArrayList<>();
+            List<Long> seenCounts = new ArrayList<>();
+            samples.add(new ArrayList<>(deadThreadsSample));
+            seenCounts.add(deadThreadsSeen);
+            for (Reservoir reservoir : reservoirs) {
+                long seen = reservoir.seen;
+                samples.add(reservoir.read(seen));
+                seenCounts.add(seen);
+            }
+            return merge(samples, seenCounts);
+        }
+
+        /**
+         * Called once by every thread which records its first measurement of the pair, so reservoirs of dead
+         * threads are folded before they can pile up, even if measurements are never read
+         * @return Reservoir of the calling thread
+         */
+        private synchronized Reservoir addReservoir() {
+            foldDeadReservoirs();
+            Reservoir reservoir = new Reservoir(Thread.currentThread());
+            reservoirs.add(reservoir);
+            return reservoir;
+        }
+
+        /**
+         * A dead thread never adds to its reservoir again, so the reservoir is merged into the sample
+         * of dead threads and dropped
+         */
+        private void foldDeadReservoirs() {
+            for (Iterator<Reservoir> iterator = reservoirs.iterator(); iterator.hasNext(); ) {
+                Reservoir reservoir = iterator.next();
+                if (reservoir.isOwnerAlive()) continue;
+
+                long seen = reservoir.seen;
+                foldIntoDeadThreadsSample(reservoir.read(seen), seen);
+                iterator.remove();
+            }
+        }
+
+        /**
+         * Same as merging the two samples, but the work depends only on the size of the folded one, since
+         * threads which record a few solves each may die by thousands
+         * @param sample - Uniform sample of a dead thread
+         * @param seen - Number of measurements the sample was taken from
+         */
+        private void foldIntoDeadThreadsSample(List<Measurement> sample, long seen) {
+            long totalSeen = deadThreadsSeen + seen;
+            deadThreadsSeen = totalSeen;
+            if (deadThreadsSample.size() + sample.size() <= MEASUREMENT_RESERVOIR_SIZE) {
+                deadThreadsSample.addAll(sample);
+                return;
+            }
+
+            // Solves of the dead thread among MEASUREMENT_RESERVOIR_SIZE solves picked from all of them,
+            // by selection sampling over whichever is fewer: solves of the thread or picks
+            Random random = ThreadLocalRandom.current();
+            int share = 0;
+            if (seen <= MEASUREMENT_RESERVOIR_SIZE) {
+                for (long i = 0; i < seen; i++) {
+                    if (random.nextLong(totalSeen - i) < MEASUREMENT_RESERVOIR_SIZE - share) share++;
+                }
+            } else {
+                long remaining = seen;
+                for (long i = 0; i < MEASUREMENT_RESERVOIR_SIZE; i++) {
+                    if (random.nextLong(totalSeen - i) < remaining) {
+                        remaining--;
+                        share++;
+                    }
+                }
+            }
+
+            // Kept part of each sample is random, so it is still a uniform sample of its solves
+            removeRandom(deadThreadsSample, deadThreadsSample.size() - (MEASUREMENT_RESERVOIR_SIZE - share), random);
+            removeRandom(sample, sample.size() - share, random);
+            deadThreadsSample.addAll(sample);
+        }
+
+        private static void removeRandom(List<Measurement> sample, int count, Random random) {
+            for (int i = 0; i < count; i++) {
+                int last = sample.size() - 1;
+                sample.set(random.nextInt(last + 1), sample.get(last));
+                sample.remove(last);
+            }
+        }
+
+        /**
+         * Once samples hold more than MEASUREMENT_RESERVOIR_SIZE measurements, the merged sample takes
+         * a random part of each of them. Sizes of the parts are drawn as if MEASUREMENT_RESERVOIR_SIZE solves
+         * were picked from all solves seen by the samples, so the merged sample stays uniform over all solves,
+         * even after many merges of small samples into a large one
+         * @param samples - Uniform samples
+         * @param seenCounts - Number of measurements each sample was taken from
+         * @return Merged sample, all measurements in the order of the samples if there are few enough
+         */
+        private static List<Measurement> merge(List<List<Measurement>> samples, List<Long> seenCounts) {
+            long totalSeen = 0, totalKept = 0;
+            for (int i = 0; i < samples.size(); i++) {
+                totalSeen += seenCounts.get(i);
+                totalKept += samples.get(i).size();
+            }
+
+            List<Measurement> merged = new ArrayList<>();
+            if (totalKept <= MEASUREMENT_RESERVOIR_SIZE) {
+                samples.forEach(merged::addAll);
+                return merged;
+            }
+
+            // Every sample holds at least its share, since the share is at most both its seen count and the size
+            Random random = ThreadLocalRandom.current();
+            long[] remaining = seenCounts.stream().mapToLong(Long::longValue).toArray();
+            int[] shares = new int[samples.size()];
+            for (int k = 0; k < MEASUREMENT_RESERVOIR_SIZE; k++) {
+                long pick = random.nextLong(totalSeen--);
+                int i = 0;
+                while (pick >= remaining[i]) {
+                    pick -= remaining[i++];
+                }
+                remaining[i]--;
+                shares[i]++;
+            }
+
+            for (int i = 0; i < samples.size(); i++) {
+                List<Measurement> shuffled = new ArrayList<>(samples.get(i));
+                Collections.shuffle(shuffled, random);
+                merged.addAll(shuffled.subList(0, shares[i]));
+            }
+            return merged;
+        }
+
+        public String getAlgorithmName() {
+            return algorithmName;
+        }
+
+        public int getScenario() {
+            return scenario;
+        }
+
+        /**
+         * Every counter of the snapshot is exact, but counters may be read at slightly different moments
+         * while other threads are recording
+         * @return Current values of the counters
+         */
+        public Snapshot snapshot() {
+            long[] buckets = new long[HISTOGRAM_BUCKETS];
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                buckets[i] = histogram[i].sum();
+            }
+
+            return new Snapshot(algorithmName, scenario, wins.sum(), loses.sum(), elapsedNanos.sum(),
+                    squaredMillis.sum(), minNanos.get(), maxNanos.get(), allocatedBytes.sum(), buckets);
+        }
+    }
+
+    /**
+     * Uniform sample of raw measurements of a single thread, only that thread adds to it. The count is written
+     * after the slot, so readers see every slot below it filled, either before or after a replacement.
+     * Slots grow until the reservoir size, and grown slots are published before the count as well
+     */
+    private static final class Reservoir {
+        // Thread is not kept alive by its reservoir, a collected thread is dead
+        private final WeakReference<Thread> owner;
+        private volatile AtomicReferenceArray<Measurement> slots = new AtomicReferenceArray<>(INITIAL_RESERVOIR_SLOTS);
+        // Measurements added by the thread
+        private volatile long seen = 0;
+
+        Reservoir(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+
+        boolean isOwnerAlive() {
+            Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+
+        /**
+         * Reservoir sampling, the measurement is kept with probability size / seen once the reservoir is full
+         */
+        void add(Measurement measurement) {
+            long count = seen + 1;
+            if (count <= MEASUREMENT_RESERVOIR_SIZE) {
+                AtomicReferenceArray<Measurement> current = slots;
+                if (count > current.length()) {
+                    AtomicReferenceArray<Measurement> grown = new AtomicReferenceArray<>(
+                            Math.min(MEASUREMENT_RESERVOIR_SIZE, current.length() * 2));
+                    for (int i = 0; i < current.length(); i++) {
+                        grown.set(i, current.get(i));
+                    }
+                    slots = current = grown;
+                }
+                current.set((int) (count - 1), measurement);
+            } else {
+                long slot = ThreadLocalRandom.current().nextLong(count);
+                if (slot < MEASUREMENT_RESERVOIR_SIZE) slots.set((int) slot, measurement);
+            }
+            seen = count;
+        }
+
+        /**
+         * @param seen - Count read by the caller
+         * @return Copy of the slots which were filled at that count
+         */
+        List<Measurement> read(long seen) {
+            // Slots are read after the count, so they were grown at least up to it
+            AtomicReferenceArray<Measurement> current = slots;
+            int kept = (int) Math.min(seen, MEASUREMENT_RESERVOIR_SIZE);
+            List<Measurement> sample = new ArrayList<>(kept);
+            for (int i = 0; i < kept; i++) {
+                sample.add(current.get(i));
+            }
+            return sample;
+        }
+    }
+
+    /**
+     * Values of the counters of a pair
+     * @param histogram - Bucket i counts solves shorter than 2^i us
+     */
+    record Snapshot(String algorithmName, int scenario, long wins, long loses, long elapsedNanos,
+                    double squaredMillis, long minNanos, long maxNanos, long allocatedBytes, long[] histogram) {
+        public long solves() {
+            return wins + loses;
+        }
+
+        public double meanMillis() {
+            return elapsedNanos * 1e-6 / solves();
+        }
+
+        public double deviationMillis() {
+            double mean = meanMillis();
+            return Math.sqrt(Math.max(0, (squaredMillis - solves() * mean * mean) / (solves() - 1)));
+        }
+
+        /**
+         * @param quantile - Quantile from 0 to 1
+         * @return Upper bound of the quantile of solve times in us, taken from the histogram
+         */
+        public long quantileMicros(double quantile) {
+            long rank = (long) Math.ceil(quantile * solves()), seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank) return 1L << i;
+            }
+            return 1L << (histogram.length - 1);
+        }
+    }
+}
+
+
+/**
+ * Class to analyse algorithms on randomly generated maps
+ */
+class Analysis {
+    // Number of garbage collections finished since the start of the program
+    private static final AtomicLong garbageCollections = new AtomicLong();
+
+    static {
+        for (var collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter emitter) {
+                emitter.addNotificationListener((notification, handback) -> {
+                    if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                        garbageCollections.incrementAndGet();
+                    }
+                }, null, null);
+            }
+        }
+    }
+
+    // Wins, loses, time accumulators and raw measurements of every algorithm in every scenario
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    // Number of first solves of each algorithm in each scenario which are not measured,
+    // so the stats do not describe the interpreter and JIT compilation
+    private volatile int warmUpIterations;
+
+    private final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Log to which every measured solve is appended, if it is set
+    private ResultsLog.Writer resultsLog;
+
+    public Analysis() {
+        this(0);
+    }
+
+    /**
+     * @param warmUpIterations - Number of first solves of each algorithm in each scenario that are not measured
+     */
+    public Analysis(int warmUpIterations) {
+        this.warmUpIterations = warmUpIterations;
+    }
+
+    public void setWarmUpIterations(int warmUpIterations) {
+        this.warmUpIterations = warmUpIterations;
+    }
+
+    /**
+     * @return Registry of all measured solves, it can be read while solves are recorded
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param resultsLog - Log to which every measured solve is appended, null to stop logging
+     */
+    public void setResultsLog(ResultsLog.Writer resultsLog) {
+        this.resultsLog = resultsLog;
+    }
+
+    /**
+     * Method to analyse and immediately product output of single map that was either generated or manually typed
+     * @param algorithm - Algorithm to analyse
+     * @param writer - File to write output to
+     * @param map - Given map
+     */
+    public void analyseSingleMap(Algorithm algorithm, PrintWriter writer, Map map) {
+        long startTime = System.nanoTime();
+        List<Point<Integer, Integer>> path = algorithm.findShortestPath();
+        long stopTime = System.nanoTime();
+
+        writeSingleMap(algorithm, writer, map, path, stopTime - startTime);
+    }
+
+    /**
+     * Same as the method above, but the solve is stopped by the token of the request
+     * @param pathfinder - Algorithm to analyse
+     * @param writer - File to write output to
+     * @param request - Request of the solve, the map of the request is given map
+     * @return false if the token stopped the solve before it had a path, nothing is written then
+     */
+    public boolean analyseSingleMap(Pathfinder pathfinder, PrintWriter writer, SolveRequest request) {
+        SolveResult result = pathfinder.solve(request);
+        if (result.status() == SolveResult.Status.CANCELLED || result.status() == SolveResult.Status.TIMED_OUT) {
+            return false;
+        }
+
+        writeSingleMap(pathfinder, writer, request.map(), result.getPoints(request.map().size), result.elapsedNanos());
+        return true;
+    }
+
+    private void writeSingleMap(Object algorithm, PrintWriter writer, Map map, List<Point<Integer, Integer>> path,
+                                long elapsedNanos) {
+        RenderOutputEvent event = new RenderOutputEvent();
+        event.begin();
+
+        if (path == null) {
+            writer.println("Loss");
+        } else {
+            double elapsedTime = (elapsedNanos * Math.pow(10, -6));
+            writer.println("Win");
+
+            // Best path size
+            writer.println(path.size() - 1);
+
+            for (Point<Integer, Integer> point : path) {
+                writer.printf("[%d,%d] ", point.getX(), point.getY());
+            }
+
+            writer.println();
+            map.print(path, writer);
+            // Execution time
+            writer.println(elapsedTime + " ms");
+            // Clear path from global map
+            map.clearPath(path);
+        }
+
+        writer.close();
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.mapId = map.id;
+            event.scenario = map.scenario;
+            event.algorithm = algorithm.getClass().getSimpleName();
+            event.pathLength = path == null ? -1 : path.size() - 1;
+            event.commit();
+        }
+    }
+
+    /**
+     * Method to compare answering every starting cell of the map by many-to-one queries
+     * with running A* from every starting cell, results must be equal
+     * @param map - Given map, Jack is moved over all cells and returned back after that
+     */
+    public void analyseStartQueries(Map map) {
+        int startX = map.jack.getX(), startY = map.jack.getY();
+        var solver = new Solver(map);
+
+        long startTime = System.nanoTime();
+        var queries = solver.new ReverseSearch();
+        long preparedTime = System.nanoTime();
+        long totalLength = 0;
+        for (int x = 0; x < map.size; x++) {
+            for (int y = 0; y < map.size; y++) {
+                List<Point<Integer, Integer>> path = queries.getPath(x, y);
+                if (path != null) totalLength += path.size() - 1;
+            }
+        }
+        long queriesTime = System.nanoTime();
+
+        long totalLengthByAStar = 0;
+        for (int x = 0; x < map.size; x++) {
+            for (int y = 0; y < map.size; y++) {
+                map.moveAgent(map.jack, x, y);
+                List<Point<Integer, Integer>> path = solver.new AStar().findShortestPath();
+                if (path != null) totalLengthByAStar += path.size() - 1;
+            }
+        }
+        long aStarTime = System.nanoTime();
+        map.moveAgent(map.jack, startX, startY);
+
+        int starts = map.size * map.size;
+        System.out.printf("Starts: %d, total length: %d (A*: %d)\n", starts, totalLength, totalLengthByAStar);
+        System.out.printf("Reverse searches: %f ms, queries: %f ms, %f starts per ms\n",
+                (preparedTime - startTime) * 1e-6, (queriesTime - preparedTime) * 1e-6,
+                starts / ((queriesTime - startTime) * 1e-6));
+        System.out.printf("A* per start: %f ms, %f starts per ms\n",
+                (aStarTime - queriesTime) * 1e-6, starts / ((aStarTime - queriesTime) * 1e-6));
+    }
+
+    /**
+     * Method to convert generated maps from the text format to a corpus and to compare reading records
+     * of the corpus with parsing the text lines. Records are checked against the maps they were made of,
+     * and maps of a larger corpus with expected results are loaded back and solved
+     * @param textFile - File to write maps in the text format to, it is overwritten
+     * @param corpusFile - File of the corpus, it is overwritten
+     * @param mapsToGenerate - Number of maps of the default size
+     */
+    public void analyseCorpus(java.nio.file.Path textFile, java.nio.file.Path corpusFile, int mapsToGenerate)
+            throws IOException {
+        final int passes = 5;
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<>(2 * mapsToGenerate);
+        for (int i = 0; i < mapsToGenerate; i++) {
+            Map map = new Map();
+            map.generate(random, 1, 1, 1);
+            lines.add(map.toString());
+            lines.add(String.valueOf(1 + random.nextInt(2)));
+        }
+        Files.write(textFile, lines);
+
+        long startTime = System.nanoTime();
+        int converted = MapCorpus.convertFromText(textFile, corpusFile);
+        System.out.printf("Converted %d maps in %f ms, text: %d bytes, corpus: %d bytes\n", converted,
+                (System.nanoTime() - startTime) * 1e-6, Files.size(textFile), Files.size(corpusFile));
+
+        try (var reader = new MapCorpus.Reader(corpusFile)) {
+            int mismatches = 0;
+            for (int i = 0; i < reader.getRecordCount(); i++) {
+                if (!reader.getMapLine(i).equals(lines.get(2 * i)) ||
+                        reader.getScenario(i) != Integer.parseInt(lines.get(2 * i + 1))) mismatches++;
+            }
+            System.out.printf("Records different from their maps: %d\n", mismatches);
+
+            List<Integer> shuffled = new ArrayList<>(reader.getRecordCount());
+            for (int i = 0; i < reader.getRecordCount(); i++) {
+                shuffled.add(i);
+            }
+            Collections.shuffle(shuffled, random);
+            int[] order = shuffled.stream().mapToInt(Integer::intValue).toArray();
+
+            // Sums of the values keep JIT from removing the reads, the best time of a few passes is shown
+            long parseTime = Long.MAX_VALUE, readTime = Long.MAX_VALUE, randomReadTime = Long.MAX_VALUE;
+            long parsedSum = 0, readSum = 0, randomReadSum = 0;
+            for (int pass = 0; pass < passes; pass++) {
+                parsedSum = readSum = randomReadSum = 0;
+
+                startTime = System.nanoTime();
+                for (int i = 0; i < converted; i++) {
+                    for (int cell : MapCorpus.parseMapLine(lines.get(2 * i), Map.DEFAULT_SIZE)) parsedSum += cell;
+                    parsedSum += Integer.parseInt(lines.get(2 * i + 1));
+                }
+                long parsedTime = System.nanoTime();
+                for (int i = 0; i < converted; i++) {
+                    for (int agent = 0; agent < MapCorpus.AGENTS_PER_RECORD; agent++) {
+                        readSum += reader.getCell(i, agent);
+                    }
+                    readSum += reader.getScenario(i);
+                }
+                long readFinishedTime = System.nanoTime();
+                for (int i : order) {
+                    for (int agent = 0; agent < MapCorpus.AGENTS_PER_RECORD; agent++) {
+                        randomReadSum += reader.getCell(i, agent);
+                    }
+                    randomReadSum += reader.getScenario(i);
+                }
+
+                parseTime = Math.min(parseTime, parsedTime - startTime);
+                readTime = Math.min(readTime, readFinishedTime - parsedTime);
+                randomReadTime = Math.min(randomReadTime, System.nanoTime() - readFinishedTime);
+            }
+
+            System.out.printf("Sums of values, parsed: %d, read: %d, read in random order: %d\n",
+                    parsedSum, readSum, randomReadSum);
+            System.out.printf("Per record, parsing text: %.1f ns, reading: %.1f ns (%.1fx), " +
+                            "reading in random order: %.1f ns (%.1fx)\n", (double) parseTime / converted,
+                    (double) readTime / converted, (double) parseTime / readTime,
+                    (double) randomReadTime / converted, (double) parseTime / randomReadTime);
+        }
+
+        // Grid size is kept in the header, so maps of other sizes are loaded back as they were written
+        final int largeSize = 64;
+        final int largeMaps = Math.max(1, mapsToGenerate / 100);
+        java.nio.file.Path largeCorpusFile = corpusFile.resolveSibling(corpusFile.getFileName() + "." + largeSize);
+        List<String> largeLines = new ArrayList<>(largeMaps);
+        try (var writer = new MapCorpus.Writer(largeCorpusFile, largeSize, true)) {
+            for (int i = 0; i < largeMaps; i++) {
+                Map map = new Map();
+                map.setSize(largeSize);
+                map.setScenario(1 + i % 2);
+                map.generate(random, 1, 1, 1);
+                List<Point<Integer, Integer>> path = new Solver(map).new AStar().findShortestPath();
+                writer.append(map, path == null ? MapCorpus.LOSS : path.size() - 1);
+                largeLines.add(map.toString());
+            }
+        }
+
+        int mismatches = 0;
+        try (var reader = new MapCorpus.Reader(largeCorpusFile)) {
+            for (int i = 0; i < reader.getRecordCount(); i++) {
+                Map map = new Map();
+                if (!reader.load(i, map) || !map.toString().equals(largeLines.get(i))) {
+                    mismatches++;
+                    continue;
+                }
+                List<Point<Integer, Integer>> path = new Solver(map).new AStar().findShortestPath();
+                if ((path == null ? MapCorpus.LOSS : path.size() - 1) != reader.getExpectedLength(i)) mismatches++;
+            }
+            System.out.printf("Maps of size %d loaded back: %d, different maps or lengths: %d\n",
+                    reader.getGridSize(), reader.getRecordCount(), mismatches);
+        }
+    }
+
+    /**
+     * Method to solve seas which would not fit on the heap as a Map by GridSolver on a grid mapped from a file.
+     * Heap used after the solve must not grow with the side of the sea, for example: java -Xmx32m Main
+     * @param gridFile - File of the grid, it is overwritten and deleted after the solves
+     * @param sizes - Sides of the seas
+     */
+    public void analyseOffHeapGrid(java.nio.file.Path gridFile, int... sizes) throws IOException {
+        var memory = ManagementFactory.getMemoryMXBean();
+
+        for (int size : sizes) {
+            // Mapped grid keeps whatever the file had, so every sea starts from an empty file
+            Files.deleteIfExists(gridFile);
+            System.gc();
+            long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+            long startTime = System.nanoTime();
+            OffHeapGrid grid = OffHeapGrid.map(gridFile, size);
+            List<Point<Integer, Integer>> keyCells = drawSea(new Random(42 + size), size, size / 4, size / 4,
+                    size * 4, grid::addAgent);
+            long builtTime = System.nanoTime();
+            List<Point<Integer, Integer>> path = new GridSolver(grid, keyCells.get(0), keyCells.get(1),
+                    keyCells.get(2)).findShortestPath();
+            long solvedTime = System.nanoTime();
+
+            System.gc();
+            long heapAfter = memory.getHeapMemoryUsage().getUsed();
+            System.out.printf("Size: %d, grid: %d MB off the heap, built in %f ms, solved in %f ms, length: %d\n",
+                    size, Files.size(gridFile) >> 20, (builtTime - startTime) * 1e-6, (solvedTime - builtTime) * 1e-6,
+                    path == null ? -1 : path.size() - 1);
+            System.out.printf("Heap used: %.1f MB before the sea, %.1f MB after the solve, max heap: %.1f MB\n",
+                    heapBefore / 1048576.0, heapAfter / 1048576.0, memory.getHeapMemoryUsage().getMax() / 1048576.0);
+        }
+        Files.deleteIfExists(gridFile);
+    }
+
+    /**
+     * Method to check lengths of GridSolver on the heap, off-heap and tiled grids against A* on generated maps,
+     * and to show how many tiles are loaded by a solve on a huge tiled sea
+     * @param tilesFile - File of the tiled grid, it is overwritten and deleted after the solves
+     * @param mapsToGenerate - Number of maps of the default size, there are 10 times less maps of size 64
+     * @param seaSize - Side of the huge sea
+     * @param seaTileSize - Side of the tiles of the huge sea
+     */
+    public void analyseGrids(java.nio.file.Path tilesFile, int mapsToGenerate, int seaSize, int seaTileSize)
+            throws IOException {
+        Random random = new Random(42);
+
+        for (int size : new int[]{Map.DEFAULT_SIZE, 64}) {
+            int maps = size == Map.DEFAULT_SIZE ? mapsToGenerate : Math.max(1, mapsToGenerate / 10);
+            int[] tileSizes = {1, 4, size};
+            // Lengths which differ from A*: heap grid, off-heap grid, then tiled grids
+            int[] mismatches = new int[2 + tileSizes.length];
+
+            for (int i = 0; i < maps; i++) {
+                Map map = new Map();
+                map.setSize(size);
+                if (size == Map.DEFAULT_SIZE) {
+                    map.generate(random, 1, 1, 1);
+                } else {
+                    map.generate(random, size / 8, 1, size);
+                }
+                List<Point<Integer, Integer>> path = new Solver(map).new AStar().findShortestPath();
+                int length = path == null ? -1 : path.size() - 1;
+                List<Point<Integer, Integer>> keyCells = List.of(new Point<>(map.jack.getX(), map.jack.getY()),
+                        new Point<>(map.chest.getX(), map.chest.getY()),
+                        new Point<>(map.tortuga.getX(), map.tortuga.getY()));
+
+                if (getGridLength(new HeapGrid(map), keyCells) != length) mismatches[0]++;
+                if (getGridLength(OffHeapGrid.of(map), keyCells) != length) mismatches[1]++;
+                for (int j = 0; j < tileSizes.length; j++) {
+                    // Every tiled grid is solved before the file is written again, as the file stays mapped
+                    TiledGrid.write(tilesFile, size, tileSizes[j], map.agents);
+                    // Only two tiles fit into the budget, so tiles are evicted all the time
+                    try (TiledGrid grid = new TiledGrid(tilesFile, 2L * tileSizes[j] * tileSizes[j] * 3)) {
+                        if (getGridLength(grid, keyCells) != length) mismatches[2 + j]++;
+                    }
+                }
+            }
+
+            System.out.printf("Size: %d, maps: %d, lengths different from A* on heap grid: %d, off-heap grid: %d\n",
+                    size, maps, mismatches[0], mismatches[1]);
+            for (int j = 0; j < tileSizes.length; j++) {
+                System.out.printf("Tiled grid with tiles of size %d: %d\n", tileSizes[j], mismatches[2 + j]);
+            }
+        }
+
+        // Huge sea is solved on tiles and, for the reference, on the grid in direct memory
+        List<Agent> agents = new ArrayList<>();
+        List<Point<Integer, Integer>> seaKeyCells = drawSea(random, seaSize, seaSize / 4, seaSize / 4, seaSize * 4,
+                agents::add);
+        TiledGrid.write(tilesFile, seaSize, seaTileSize, agents);
+        OffHeapGrid referenceGrid = new OffHeapGrid(seaSize);
+        for (Agent agent : agents) {
+            referenceGrid.addAgent(agent);
+        }
+        agents = null;
+
+        int referenceLength = getGridLength(referenceGrid, seaKeyCells);
+        referenceGrid = null;
+
+        long memoryBudget = 64L << 20;
+        try (TiledGrid grid = new TiledGrid(tilesFile, memoryBudget)) {
+            long startTime = System.nanoTime();
+            int length = getGridLength(grid, seaKeyCells);
+            long solveTime = System.nanoTime() - startTime;
+            int tilesPerSide = (seaSize + seaTileSize - 1) / seaTileSize;
+
+            System.out.printf("Sea of size %d with tiles of size %d, solved in %f ms, length: %d (off-heap grid: %d)\n",
+                    seaSize, seaTileSize, solveTime * 1e-6, length, referenceLength);
+            System.out.printf("Tiles loaded: %d of %d, hits: %d, misses: %d, evictions: %d, budget: %d MB\n",
+                    grid.getLoadedTiles(), tilesPerSide * tilesPerSide, grid.getHits(), grid.getMisses(),
+                    grid.getEvictions(), memoryBudget >> 20);
+        }
+        Files.deleteIfExists(tilesFile);
+    }
+
+    private static int getGridLength(Grid grid, List<Point<Integer, Integer>> keyCells) {
+        List<Point<Integer, Integer>> path = new GridSolver(grid, keyCells.get(0), keyCells.get(1),
+                keyCells.get(2)).findShortestPath();
+        return path == null ? -1 : path.size() - 1;
+    }
+
+    /**
+     * Draws agents of a sea without building a Map. Enemies are never put next to Jack, the Chest or Tortuga,
+     * so those cells stay walkable, while enemies and rocks may share cells with each other
+     * @param random - Source of randomness
+     * @param size - Side of the sea
+     * @param davyJoneses - Number of Davy Joneses
+     * @param krakens - Number of Krakens
+     * @param rocks - Number of Rocks
+     * @param sink - Receives every agent, Jack, the Chest and Tortuga go first
+     * @return Cells of Jack, the Chest and Tortuga
+     */
+    private static List<Point<Integer, Integer>> drawSea(Random random, int size, int davyJoneses, int krakens,
+                                                         int rocks, java.util.function.Consumer<Agent> sink) {
+        List<Point<Integer, Integer>> keyCells = new ArrayList<>(3);
+        while (keyCells.size() < 3) {
+            Point<Integer, Integer> cell = new Point<>(random.nextInt(size), random.nextInt(size));
+            if (!keyCells.contains(cell)) keyCells.add(cell);
+        }
+        sink.accept(new JackSparrow(keyCells.get(0).getX(), keyCells.get(0).getY(), false, 1));
+        sink.accept(new Chest(keyCells.get(1).getX(), keyCells.get(1).getY(), false));
+        sink.accept(new Tortuga(keyCells.get(2).getX(), keyCells.get(2).getY(), false));
+
+        for (int i = 0; i < davyJoneses + krakens + rocks; i++) {
+            int x, y;
+            boolean nearKeyCell;
+            do {
+                x = random.nextInt(size);
+                y = random.nextInt(size);
+                nearKeyCell = false;
+                for (var keyCell : keyCells) {
+                    // Danger zones reach one cell away, while a rock only takes its own cell
+                    int distance = Math.max(Math.abs(keyCell.getX() - x), Math.abs(keyCell.getY() - y));
+                    if (distance < (i < davyJoneses + krakens ? 2 : 1)) nearKeyCell = true;
+                }
+            } while (nearKeyCell);
+
+            if (i < davyJoneses) {
+                sink.accept(new DavyJones(x, y, true));
+            } else if (i < davyJoneses + krakens) {
+                sink.accept(new Kraken(x, y, true));
+            } else {
+                sink.accept(new Rock(x, y, false));
+            }
+        }
+
+        return keyCells;
+    }
+
+    /**
+     * Method to compare solving maps one at a time by A* with solving them by the bit-sliced batch solver,
+     * in both scenarios. Lengths of the paths must be equal, the best time of a few passes is shown
+     * @param maps - Maps of the same size with at most one Kraken each, their scenario is changed
+     */
+    public void analyseBatch(List<Map> maps) {
+        final int passes = 5;
+
+        for (int scenario = 1; scenario <= 2; scenario++) {
+            for (Map map : maps) {
+                map.setScenario(scenario);
+            }
+
+            int[] lengthsByAStar = new int[maps.size()];
+            int[] lengths = null;
+            long aStarTime = Long.MAX_VALUE, batchTime = Long.MAX_VALUE;
+
+            for (int pass = 0; pass < passes; pass++) {
+                long startTime = System.nanoTime();
+                for (int i = 0; i < maps.size(); i++) {
+                    List<Point<Integer, Integer>> path = new Solver(maps.get(i)).new AStar().findShortestPath();
+                    lengthsByAStar[i] = path == null ? -1 : path.size() - 1;
+                }
+                long solvedTime = System.nanoTime();
+                lengths = BatchSolver.solveAll(maps);
+
+                aStarTime = Math.min(aStarTime, solvedTime - startTime);
+                batchTime = Math.min(batchTime, System.nanoTime() - solvedTime);
+            }
+
+            int mismatches = 0;
+            for (int i = 0; i < maps.size(); i++) {
+                if (lengths[i] != lengthsByAStar[i]) mismatches++;
+            }
+
+            System.out.printf("Scenario %d, maps: %d, different lengths: %d\n", scenario, maps.size(), mismatches);
+            System.out.printf("A* per map: %f ms, batch: %f ms (%.1fx)\n", aStarTime * 1e-6, batchTime * 1e-6,
+                    (double) aStarTime / batchTime);
+        }
+    }
+
+    /**
+     * Method to compare the distance field to the Chest with running A* from every cell
+     * (estimated from a sample of starting cells)
+     * @param map - Given map, Jack is moved over the sampled cells and returned back after that
+     * @param sampledStarts - Number of starting cells solved by A*
+     */
+    public void analyseDistanceField(Map map, int sampledStarts) {
+        final int repeats = 20;
+        int chest = map.getIndex(map.cells[map.chest.getX()][map.chest.getY()]);
+        DistanceField bitsetField = new DistanceField(map);
+        DistanceField scalarField = new DistanceField(map);
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < repeats; i++) {
+            bitsetField.compute(chest, true, DistanceField.Engine.BITSET);
+        }
+        double bitsetTime = (System.nanoTime() - startTime) * 1e-6 / repeats;
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < repeats; i++) {
+            scalarField.compute(chest, true, DistanceField.Engine.SCALAR);
+        }
+        double scalarTime = (System.nanoTime() - startTime) * 1e-6 / repeats;
+
+        int cellsCount = map.size * map.size, reachable = 0;
+        for (int i = 0; i < cellsCount; i++) {
+            if (bitsetField.getDistance(i) != scalarField.getDistance(i)) {
+                System.out.println("Engines disagree on cell " + i);
+                return;
+            }
+            if (bitsetField.isReachable(i)) reachable++;
+        }
+
+        int startX = map.jack.getX(), startY = map.jack.getY();
+        Random random = new Random(42);
+        startTime = System.nanoTime();
+        for (int i = 0; i < sampledStarts; i++) {
+            map.moveAgent(map.jack, random.nextInt(map.size), random.nextInt(map.size));
+            new Solver(map).new AStar().findShortestPath();
+        }
+        double aStarTime = (System.nanoTime() - startTime) * 1e-6 / sampledStarts * cellsCount;
+        map.moveAgent(map.jack, startX, startY);
+
+        System.out.printf("Size: %d, reachable cells: %d of %d\n", map.size, reachable, cellsCount);
+        System.out.printf("Bitset wavefront: %f ms, scalar queue: %f ms (%.1fx)\n",
+                bitsetTime, scalarTime, scalarTime / bitsetTime);
+        System.out.printf("A* from every cell: %f ms (estimated from %d starts)\n", aStarTime, sampledStarts);
+    }
+
+    /**
+     * Method to solve generated maps by A* and Backtracking on several threads. Results are recorded only
+     * in the metrics registry, through handles which are taken before the sweep, and its snapshot is shown
+     * while the sweep is running
+     * @param mapsToGenerate - Number of maps, each of them is solved in both scenarios
+     * @param threads - Number of solver threads
+     */
+    public void analyseConcurrentSweep(int mapsToGenerate, int threads) {
+        // Handles of A* and Backtracking in scenarios 1 and 2
+        MetricsRegistry.Handle[][] handles = new MetricsRegistry.Handle[2][3];
+        for (int scenario = 1; scenario <= 2; scenario++) {
+            handles[0][scenario] = metrics.handle("AStar", scenario);
+            handles[1][scenario] = metrics.handle("Backtracking", scenario);
+        }
+
+        AtomicInteger nextMap = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                while (nextMap.getAndIncrement() < mapsToGenerate) {
+                    Map map = new Map();
+                    map.generate();
+                    Solver solver = new Solver(map);
+
+                    for (int scenario = 1; scenario <= 2; scenario++) {
+                        map.setScenario(scenario);
+                        performAnalysis(solver.new AStar(), handles[0][scenario], null);
+                        performAnalysis(solver.new Backtracking(), handles[1][scenario], null);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        long startTime = System.nanoTime();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                long solves = 0;
+                for (MetricsRegistry.Snapshot snapshot : metrics.snapshot()) {
+                    solves += snapshot.solves();
+                }
+                System.out.printf("%.1f s: %d solves\n", (System.nanoTime() - startTime) * 1e-9, solves);
+            }
+        } catch (InterruptedException e) {
+            // Stats of the solves which were recorded so far are still shown
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        for (MetricsRegistry.Snapshot snapshot : metrics.snapshot()) {
+            System.out.printf("%s with scenario %d: %d solves, %d wins, mean %f ms, deviation %f ms, " +
+                            "p50 < %d us, p99 < %d us, max %f ms\n", snapshot.algorithmName(), snapshot.scenario(),
+                    snapshot.solves(), snapshot.wins(), snapshot.meanMillis(), snapshot.deviationMillis(),
+                    snapshot.quantileMicros(0.5), snapshot.quantileMicros(0.99), snapshot.maxNanos() * 1e-6);
+        }
+    }
+
+    /**
+     * Method to compare A* with the ALT heuristic against A* with Chebyshev distance on queries with random
+     * Jack, Tortuga and Chest cells. Lengths of the paths must be equal
+     * @param map - Given map, Tortuga and the Chest are moved over walkable cells and returned back after that
+     * @param landmarksCount - Number of landmarks
+     * @param queries - Number of queries
+     */
+    public void analyseLandmarks(Map map, int landmarksCount, int queries) {
+        int tortugaX = map.tortuga.getX(), tortugaY = map.tortuga.getY();
+        int chestX = map.chest.getX(), chestY = map.chest.getY();
+        var solver = new Solver(map);
+
+        long startTime = System.nanoTime();
+        var landmarks = new Landmarks(map, landmarksCount);
+        double preparedTime = (System.nanoTime() - startTime) * 1e-6;
+
+        var plain = solver.new AStar();
+        var alt = solver.new AStar(landmarks);
+        Random random = new Random(42);
+        long plainExpanded = 0, altExpanded = 0, plainTime = 0, altTime = 0;
+        int mismatches = 0, wins = 0;
+
+        for (int i = 0; i < queries; i++) {
+            // Cells are taken one after another, so Tortuga, the Chest and Jack never share a cell
+            int tortugaCell = getFreeCell(map, random);
+            map.moveAgent(map.tortuga, tortugaCell / map.size, tortugaCell % map.size);
+            int chestCell = getFreeCell(map, random);
+            map.moveAgent(map.chest, chestCell / map.size, chestCell % map.size);
+            int startCell = getFreeCell(map, random);
+            var request = SolveRequest.of(map).withStart(new Point<>(startCell / map.size, startCell % map.size));
+
+            SolveResult plainResult = plain.solve(request);
+            SolveResult altResult = alt.solve(request);
+            if (plainResult.length() != altResult.length()) mismatches++;
+            if (plainResult.status() == SolveResult.Status.FOUND) wins++;
+
+            plainExpanded += plainResult.expandedNodes();
+            altExpanded += altResult.expandedNodes();
+            plainTime += plainResult.elapsedNanos();
+            altTime += altResult.elapsedNanos();
+        }
+        map.moveAgent(map.tortuga, tortugaX, tortugaY);
+        map.moveAgent(map.chest, chestX, chestY);
+
+        System.out.printf("Size: %d, landmarks: %d, %d KB, prepared in %f ms\n", map.size, landmarks.getCount(),
+                landmarks.getMemoryBytes() / 1024, preparedTime);
+        System.out.printf("Queries: %d, wins: %d, different lengths: %d\n", queries, wins, mismatches);
+        System.out.printf("Expanded per query: %.1f with Chebyshev, %.1f with landmarks (%.1fx fewer)\n",
+                (double) plainExpanded / queries, (double) altExpanded / queries,
+                (double) plainExpanded / Math.max(1, altExpanded));
+        System.out.printf("Time per query: %f ms with Chebyshev, %f ms with landmarks\n",
+                plainTime * 1e-6 / queries, altTime * 1e-6 / queries);
+    }
+
+    /**
+     * @return Index of a random walkable cell without agents
+     */
+    private static int getFreeCell(Map map, Random random) {
+        while (true) {
+            MapCell cell = map.cells[random.nextInt(map.size)][random.nextInt(map.size)];
+            if (cell.walkable && cell.agents.isEmpty()) return map.getIndex(cell);
+        }
+    }
+
+    /**
+     * Method to show the route through all Chests of the map and the time of its parts
+     * @param map - Given map, it may have several Tortugas and Chests
+     */
+    public void analyseWaypoints(Map map) {
+        var router = new Solver(map).new WaypointRouter();
+        SolveResult result = router.solve(SolveRequest.of(map));
+
+        StringBuilder order = new StringBuilder();
+        for (Agent waypoint : router.getVisitOrder()) {
+            order.append(String.format("%c[%d,%d] ", waypoint.getAlias(), waypoint.getX(), waypoint.getY()));
+        }
+
+        System.out.printf("Size: %d, Tortugas: %d, Chests: %d\n", map.size, map.tortugas.size(), map.chests.size());
+        System.out.printf("Route: %s, length %d, states expanded %d\n", result.status(), result.length(),
+                result.expandedNodes());
+        System.out.printf("Order: %s\n", order.toString().strip());
+        System.out.printf("Legs: %f ms, ordering: %f ms, total: %f ms\n", router.getLegsNanos() * 1e-6,
+                router.getOrderingNanos() * 1e-6, result.elapsedNanos() * 1e-6);
+    }
+
+    /**
+     * Method to show the size of the reservation table of patrols and the cost of planning through them,
+     * compared with A* on the same map where patrolling enemies stand still
+     * @param map - Given map
+     * @param patrols - Trajectories of enemies of the map
+     */
+    public void analyseSpaceTime(Map map, List<Patrol> patrols) {
+        var solver = new Solver(map);
+
+        long startTime = System.nanoTime();
+        var reservations = new ReservationTable(map, patrols);
+        int reservedCells = reservations.getReservedCells();
+        long builtTime = System.nanoTime();
+
+        var spaceTime = solver.new SpaceTimeAStar(reservations);
+        SolveResult result = spaceTime.solve(SolveRequest.of(map));
+
+        long frozenStartTime = System.nanoTime();
+        List<Point<Integer, Integer>> frozenPath = solver.new AStar().findShortestPath();
+        long frozenTime = System.nanoTime() - frozenStartTime;
+
+        System.out.printf("Size: %d, patrols: %d, period: %d ticks\n", map.size, patrols.size(),
+                reservations.getPeriod());
+        System.out.printf("Reserved cells: %d of %d, table: %d KB, built in %f ms\n", reservedCells,
+                map.size * map.size, reservations.getMemoryBytes() / 1024, (builtTime - startTime) * 1e-6);
+        System.out.printf("Space-time A*: %s, length %d, waits %d, states expanded %d, %f ms\n", result.status(),
+                result.length(), spaceTime.getWaits(), result.expandedNodes(), result.elapsedNanos() * 1e-6);
+        System.out.printf("A* with patrols standing still: length %d, %f ms\n",
+                frozenPath == null ? -1 : frozenPath.size() - 1, frozenTime * 1e-6);
+    }
+
+    /**
+     * Method to analyse an algorithm and store it in the metrics registry to produce stats later
+     * @param algorithm - Algorithm to analyse
+     * @param scenario - Perception scenario
+     */
+    public void performAnalysis(Algorithm algorithm, int scenario) {
+        performAnalysis(algorithm, scenario, null);
+    }
+
+    /**
+     * Method to analyse an algorithm and store it in the metrics registry to produce stats later
+     * @param algorithm - Algorithm to analyse
+     * @param scenario - Perception scenario
+     * @param map - Map which is solved by the algorithm, it identifies the solve in the results log, may be null
+     */
+    public void performAnalysis(Algorithm algorithm, int scenario, Map map) {
+        performAnalysis(algorithm, metrics.handle(algorithm.getClass().getSimpleName(), scenario), map);
+    }
+
+    /**
+     * Same as the method above, but the pair is not looked up on every solve. It may be called from several
+     * threads at once, if the results log is not set
+     * @param algorithm - Algorithm to analyse
+     * @param handle - Handle of the algorithm and scenario from the registry of this analysis
+     * @param map - Map which is solved by the algorithm, it identifies the solve in the results log, may be null
+     */
+    public void performAnalysis(Algorithm algorithm, MetricsRegistry.Handle handle, Map map) {
+        // Warm-up solves are not counted at all
+        if (handle.warmUp(warmUpIterations)) {
+            algorithm.findShortestPath();
+            return;
+        }
+
+        // Only allocations of the current thread are seen, for example, fork-join workers are not counted
+        long garbageCollectionsBefore = garbageCollections.get();
+        long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        long startTime = System.nanoTime();
+        List<Point<Integer, Integer>> path = algorithm.findShortestPath();
+        long stopTime = System.nanoTime();
+        long allocatedAfter = threadBean.getCurrentThreadAllocatedBytes();
+        boolean win = path != null;
+
+        double elapsedTime = ((stopTime - startTime) * Math.pow(10, -6));
+        boolean gcHappened = garbageCollections.get() != garbageCollectionsBefore;
+
+        handle.addMeasurement(new MetricsRegistry.Measurement(elapsedTime, allocatedAfter - allocatedBefore, gcHappened,
+                algorithm.getExpandedCells()));
+        handle.record(win, stopTime - startTime, allocatedAfter - allocatedBefore);
+
+        if (resultsLog != null) {
+            try {
+                resultsLog.append(map == null ? -1 : map.id, map == null ? ResultsLog.NO_ENCODING : ResultsLog.encode(map),
+                        handle.getScenario(), handle.getAlgorithmName(), win ? path.size() - 1 : ResultsLog.LOSS,
+                        stopTime - startTime, algorithm.getExpandedCells());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Method to show the slowest solves of an algorithm which were appended to the results log
+     * @param reader - Results log
+     * @param algorithmName - Name of the algorithm
+     * @param count - Number of solves to show
+     */
+    public static void showSlowestSolves(ResultsLog.Reader reader, String algorithmName, int count) {
+        // Rows and times of the slowest solves seen so far, the fastest of them is at the head
+        PriorityQueue<long[]> slowest = new PriorityQueue<>(Comparator.comparingLong(solve -> solve[1]));
+        reader.scan(ResultsLog.Column.ELAPSED_NANOS, algorithmName, (row, elapsedNanos) -> {
+            if (slowest.size() < count) {
+                slowest.add(new long[]{row, elapsedNanos});
+            } else if (elapsedNanos > slowest.peek()[1]) {
+                slowest.poll();
+                slowest.add(new long[]{row, elapsedNanos});
+            }
+        });
+
+        List<long[]> solves = new ArrayList<>(slowest);
+        solves.sort(Comparator.comparingLong((long[] solve) -> solve[1]).reversed());
+        for (long[] solve : solves) {
+            long row = solve[0];
+            System.out.printf("%f ms, map %d, scenario %d, length %d, expanded cells %d: %s\n", solve[1] * 1e-6,
+                    reader.get(ResultsLog.Column.MAP_ID, row), reader.get(ResultsLog.Column.SCENARIO, row),
+                    reader.get(ResultsLog.Column.PATH_LENGTH, row), reader.get(ResultsLog.Column.EXPANDED_NODES, row),
+                    reader.getMapLine(row));
+        }
+    }
+
+    public void showResults(String algorithmName, int scenario) {
+        MetricsRegistry.Handle handle = metrics.handle(algorithmName, scenario);
+        List<MetricsRegistry.Measurement> measurements = handle.getMeasurements();
+        MetricsRegistry.Snapshot snapshot = handle.snapshot();
+        long wins = snapshot.wins();
+        long loses = snapshot.loses();
+
+        List<Double> allTimes = new ArrayList<>();
+        List<Double> allocations = new ArrayList<>();
+        for (MetricsRegistry.Measurement measurement : measurements) {
+            allTimes.add(measurement.elapsedTime());
+            allocations.add((double) measurement.allocatedBytes());
+        }
+
+        // Solves which overlapped garbage collection are excluded, and so are outliers, see getUpperFence().
+        // Slow solves which expanded many cells are the real tail of the algorithm and stay.
+        // Figures of all solves are shown next to the ones without them
+        java.util.Map<Integer, List<Double>> timesByWork = new HashMap<>();
+        for (MetricsRegistry.Measurement measurement : measurements) {
+            timesByWork.computeIfAbsent(measurement.workGroup(), group -> new ArrayList<>())
+                    .add(measurement.elapsedTime());
+        }
+        java.util.Map<Integer, Double> fences = new HashMap<>();
+        timesByWork.forEach((group, times) -> fences.put(group, Analysis.getUpperFence(times)));
+
+        List<Double> executionTimes = new ArrayList<>();
+        int outliers = 0, gcSolves = 0;
+        for (MetricsRegistry.Measurement measurement : measurements) {
+            if (measurement.gcHappened()) {
+                gcSolves++;
+            } else if (measurement.elapsedTime() > fences.get(measurement.workGroup())) {
+                outliers++;
+            } else {
+                executionTimes.add(measurement.elapsedTime());
+            }
+        }
+
+        System.out.printf("Measured solves: %d (excluded from times below: %d overlapped GC, %d outliers)\n",
+                snapshot.solves(), gcSolves, outliers);
+        if (measurements.size() < snapshot.solves()) {
+            System.out.printf("Times and allocations below are taken from a random sample of %d solves\n",
+                    measurements.size());
+        }
+        System.out.printf("Mean execution time: %f ms (all solves: %f ms)\n", Analysis.mean(executionTimes),
+                Analysis.mean(allTimes));
+        System.out.printf("95%% confidence interval: %f ms\n", Analysis.confidenceInterval(executionTimes));
+        System.out.printf("Mode execution time: %s ms\n", Analysis.mode(executionTimes));
+        System.out.printf("Median execution time: %f ms (all solves: %f ms)\n", Analysis.median(executionTimes),
+                Analysis.median(allTimes));
+        System.out.printf("p90, p99 and max execution time: %f, %f, %f ms (all solves: %f, %f, %f ms)\n",
+                Analysis.percentile(executionTimes, 90), Analysis.percentile(executionTimes, 99),
+                Analysis.percentile(executionTimes, 100), Analysis.percentile(allTimes, 90),
+                Analysis.percentile(allTimes, 99), Analysis.percentile(allTimes, 100));
+        System.out.printf("Standard deviation execution time: %f ms\n", Analysis.deviation(executionTimes));
+        System.out.printf("Mean allocation per solve: %.0f bytes\n", Analysis.mean(allocations));
+        System.out.printf("Wins: %d\n", wins);
+        System.out.printf("Loses: %d\n", loses);
+        System.out.printf("Wins percentage: %.2f\n", (wins / (double) (wins + loses)) * 100);
+        System.out.printf("Loses percentage: %.2f\n", (loses / (double) (wins + loses)) * 100);
+        System.out.println();
+    }
+
+    /**
+     * Outliers are solves which were slow for a reason outside of the algorithm, such as preemption of the thread
+     * or JIT deoptimization. Searches which expand hundreds of times more cells than the median one are the tail
+     * of the algorithm, so a solve is compared only with the ones which did the same work, see
+     * {@link MetricsRegistry.Measurement#workGroup()}, and it is an outlier above Tukey's far-out fence
+     * Q3 + 3 * IQR of their times. Groups of less than 4 solves have no outliers
+     * @param array - Execution times of solves which expanded about the same number of cells
+     * @return Time above which a solve is an outlier, infinity if there are less than 4 times
+     */
+    public static double getUpperFence(List<Double> array) {
+        if (array.size() < 4) return Double.POSITIVE_INFINITY;
+
+        double firstQuartile = percentile(array, 25);
+        double thirdQuartile = percentile(array, 75);
+        return thirdQuartile + 3 * (thirdQuartile - firstQuartile);
+    }
+
+    /**
+     * @param array - Values
+     * @param percentile - Percentile from 0 to 100, 100 is the maximum
+     * @return Nearest-rank percentile of the values, NaN if there are none
+     */
+    public static double percentile(List<Double> array, double percentile) {
+        if (array.isEmpty()) return Double.NaN;
+
+        List<Double> sorted = new ArrayList<>(array);
+        Collections.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * sorted.size());
+        return sorted.get(Math.max(rank, 1) - 1);
+    }
+
+    /**
+     * @param array - Values
+     * @return Half-width of 95% confidence interval of the mean
+     */
+    public static double confidenceInterval(List<Double> array) {
+        return 1.96 * deviation(array) / Math.sqrt(array.size());
+    }
+
+    public static double mean(List<Double> array) {
+        double sum = 0;
+        for (double value : array) {
+            sum += value;
+        }
+        return sum / array.size();
+    }
+
+    public static double median(List<Double> array) {
+        int mid = array.size() / 2;
+        Collections.sort(array);
+
+        if (array.size() % 2 == 1) {
+            return array.get(mid);
+        } else {
+            return (array.get(mid - 1) + array.get(mid)) / 2.0;
+        }
+    }
+
+    public static String mode(List<Double> array) {
+        HashMap<String, Integer> map = new HashMap<>();
+        String maxValue = null;
+        double maxCount = 1;
+
+        for (Double value : array) {
+            String a1 = String.format("%.2f", value);
+            if (map.get(a1) != null) {
+                int count = map.get(a1);
+                map.put(a1, ++count);
+
+                if (count > maxCount) {
+                    maxCount = count;
+                    maxValue = a1;
+                }
+            } else {
+                map.put(a1, 1);
+            }
+        }
+
+        return maxValue;
+    }
+
+    public static double deviation(List<Double> array) {
+        final double mean = mean(array);
+        double sum = 0;
+
+        for (int index = 0; index != array.size(); ++index) {
+            sum += Math.pow(Math.abs(mean - array.get(index)), 2);
+        }
+
+        return Math.sqrt(sum / (array.size() - 1));
+    }
+}
+
+/**
+ * Flight recorder events of the solvers. They are committed only while a recording with them enabled is running,
+ * otherwise creating an event is removed by JIT, so they cost nothing. Settings for continuous recording
+ * are in pirates.jfc, for example: java -XX:StartFlightRecording:settings=default,settings=pirates.jfc Main
+ */
+@Name("pirates.MapGenerate")
+@Label("Map Generation")
+@Category({"Pirates", "Map"})
+@StackTrace(false)
+class MapGenerateEvent extends Event {
+    @Label("Map Id")
+    int mapId;
+
+    @Label("Scenario")
+    int scenario;
+
+    @Label("Size")
+    int size;
+
+    @Label("Attempts")
+    @Description("Maps drawn until a correct one on the default size, on larger maps 1 plus the number of times " +
+            "an agent was redrawn because of a conflict, 1 for maps read from input")
+    int attempts;
+}
+
+@Name("pirates.FillCells")
+@Label("Fill Cells")
+@Category({"Pirates", "Map"})
+@StackTrace(false)
+class FillCellsEvent extends Event {
+    @Label("Map Id")
+    int mapId;
+
+    @Label("Scenario")
+    int scenario;
+
+    @Label("Refill")
+    boolean refill;
+}
+
+@Name("pirates.KrakenKill")
+@Label("Kraken Kill")
+@Category({"Pirates", "Map"})
+@StackTrace(false)
+class KrakenKillEvent extends Event {
+    @Label("Map Id")
+    int mapId;
+
+    @Label("Scenario")
+    int scenario;
+
+    @Label("X")
+    int x;
+
+    @Label("Y")
+    int y;
+}
+
+@Name("pirates.SearchLeg")
+@Label("Search Leg")
+@Category({"Pirates", "Solver"})
+@StackTrace(false)
+class SearchLegEvent extends Event {
+    static final String STRAIGHT = "straight";
+    static final String TO_TORTUGA = "to Tortuga";
+    static final String FROM_TORTUGA = "from Tortuga";
+
+    @Label("Map Id")
+    int mapId;
+
+    @Label("Scenario")
+    int scenario;
+
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Leg")
+    String leg;
+
+    @Label("Nodes Expanded")
+    int nodesExpanded;
+
+    @Label("Path Length")
+    @Description("Number of moves of the leg, -1 if there's no path")
+    int pathLength;
+
+    /**
+     * @return Event which measures the leg from now on
+     */
+    static SearchLegEvent start() {
+        SearchLegEvent event = new SearchLegEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the leg and commits it, if the event is enabled and the leg is longer than its threshold
+     * @param map - Map of the search
+     * @param algorithm - Algorithm which searched the leg
+     * @param leg - STRAIGHT, TO_TORTUGA or FROM_TORTUGA
+     * @param nodesExpanded - Number of cells which were expanded by the leg
+     * @param pathLength - Number of moves of the leg, -1 if there's no path
+     */
+    void finish(Map map, Algorithm algorithm, String leg, int nodesExpanded, int pathLength) {
+        end();
+        if (!shouldCommit()) return;
+
+        this.mapId = map.id;
+        this.scenario = map.scenario;
+        this.algorithm = algorithm.getClass().getSimpleName();
+        this.leg = leg;
+        this.nodesExpanded = nodesExpanded;
+        this.pathLength = pathLength;
+        commit();
+    }
+}
+
+@Name("pirates.RenderOutput")
+@Label("Render Output")
+@Category({"Pirates", "Solver"})
+@StackTrace(false)
+class RenderOutputEvent extends Event {
+    @Label("Map Id")
+    int mapId;
+
+    @Label("Scenario")
+    int scenario;
+
+    @Label("Algorithm")
+    String algorithm;
+
+    @Label("Path Length")
+    int pathLength;
+}
+
+
+/**
+ * A point class to conveniently print path after finding the path
+ * @param x - x coordinate
+ * @param y - x coordinate
+ * @param <X> - Integer
+ * @param <Y> - Integer
+ */
+record Point<X, Y>(X x, Y y) {
+
+    public X getX() {
+        return this.x;
+    }
+
+    public Y getY() {
+        return this.y;
+    }
+}
+
+
+/**
+ * An interface for both pathfinding algorithms
+ */
+interface Algorithm {
+    List<Point<Integer, Integer>> findShortestPath();
+
+    /**
+     * @return Number of cells expanded by all legs of the last solve, -1 if the algorithm doesn't count them
+     */
+    default long getExpandedCells() {
+        return -1;
+    }
+}
+
+
+/**
+ * Second version of the interface of pathfinding algorithms, every input of a solve comes with its request
+ * and every output comes with its result
+ */
+interface Pathfinder {
+    /**
+     * @param request - Map, scenario, starting cell, cancellation and scratch memory of the solve
+     * @return Path to the Dead Man's Chest with stats of the solve, or the reason why there's no path
+     */
+    SolveResult solve(SolveRequest request);
+}
+
+
+/**
+ * Token which lets the caller stop a solve, either explicitly or when its deadline passes.
+ * Solvers check it once per 64 expanded cells, so a cancelled solve returns soon but not at once
+ */
+class CancellationToken {
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final long deadline;
+    private volatile boolean cancelled = false;
+    // Token which cancels this one as well, or null
+    private final CancellationToken parent;
+
+    /**
+     * Token without a deadline, it is cancelled only explicitly
+     */
+    public CancellationToken() {
+        this(NO_DEADLINE, null);
+    }
+
+    private CancellationToken(long deadline, CancellationToken parent) {
+        this.deadline = deadline;
+        this.parent = parent;
+    }
+
+    /**
+     * @param budgetNanos - Time from now after which the token is cancelled
+     * @return Token with a deadline
+     */
+    public static CancellationToken withBudget(long budgetNanos) {
+        if (budgetNanos < 0) throw new IllegalArgumentException("budgetNanos must not be negative");
+        return new CancellationToken(System.nanoTime() + budgetNanos, null);
+    }
+
+    /**
+     * @param budgetNanos - Time from now after which the new token is cancelled
+     * @return Token which is cancelled when this one is, or when its own deadline passes
+     */
+    public CancellationToken limitedTo(long budgetNanos) {
+        if (budgetNanos < 0) throw new IllegalArgumentException("budgetNanos must not be negative");
+        return new CancellationToken(System.nanoTime() + budgetNanos, this);
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled || (deadline != NO_DEADLINE && System.nanoTime() - deadline > 0) ||
+                (parent != null && parent.isCancelled());
+    }
+}
+
+
+/**
+ * Request of a single solve
+ * @param map - Map to solve, it must be the map of the solver
+ * @param scenario - Perception scenario, the map is switched to it before the solve
+ * @param start - Cell from which Jack starts
+ * @param cancellation - Token which stops the solve
+ * @param context - Scratch memory of the solve, or null to use the context of the current thread
+ */
+record SolveRequest(Map map, int scenario, Point<Integer, Integer> start, CancellationToken cancellation,
+                    SearchContext context) {
+    SolveRequest {
+        if (map == null || start == null || cancellation == null) {
+            throw new IllegalArgumentException("Only the context of the request may be null");
+        }
+        if (!isValidScenario(scenario)) throw new IllegalArgumentException("Scenario must be 1 or 2");
+        if (start.getX() < 0 || start.getX() >= map.size || start.getY() < 0 || start.getY() >= map.size) {
+            throw new IllegalArgumentException("Start is outside the map");
+        }
+    }
+
+    /**
+     * @param scenario - Perception scenario
+     * @return true if Jack has a perception in the scenario, input files may also have -1 and -2
+     */
+    static boolean isValidScenario(int scenario) {
+        return scenario == 1 || scenario == 2;
+    }
+
+    /**
+     * @param map - Map to solve
+     * @return Request of the map in its current scenario from Jack's cell, which is never cancelled
+     */
+    static SolveRequest of(Map map) {
+        return new SolveRequest(map, map.scenario, new Point<>(map.jack.getX(), map.jack.getY()),
+                new CancellationToken(), null);
+    }
+
+    SolveRequest withScenario(int scenario) {
+        return new SolveRequest(map, scenario, start, cancellation, context);
+    }
+
+    SolveRequest withStart(Point<Integer, Integer> start) {
+        return new SolveRequest(map, scenario, start, cancellation, context);
+    }
+
+    SolveRequest withCancellation(CancellationToken cancellation) {
+        return new SolveRequest(map, scenario, start, cancellation, context);
+    }
+
+    SolveRequest withContext(SearchContext context) {
+        return new SolveRequest(map, scenario, start, cancellation, context);
+    }
+
+    /**
+     * @return Scratch memory of the solve, which is big enough for the map
+     */
+    SearchContext acquireContext() {
+        int cellsCount = map.size * map.size;
+        return context == null ? SearchContext.acquire(cellsCount) : context.reserve(cellsCount);
+    }
+}
+
+
+/**
+ * Result of a single solve
+ * @param status - FOUND, NO_PATH, CANCELLED if the token stopped the solve before it was finished,
+ * or TIMED_OUT if the token stopped an anytime solve before it found its first path
+ * @param path - Packed cells (x * size + y) of the path from the start to the Chest, empty unless FOUND
+ * @param expandedNodes - Cells expanded by all legs of the solve
+ * @param elapsedNanos - Time of the solve
+ */
+record SolveResult(Status status, int[] path, long expandedNodes, long elapsedNanos) {
+    enum Status {
+        FOUND,
+        NO_PATH,
+        CANCELLED,
+        TIMED_OUT
+    }
+
+    /**
+     * @param points - Path from the start to the Chest, or null if there's no path
+     * @param size - Side of the map
+     * @param expandedNodes - Cells expanded by all legs of the solve
+     * @param elapsedNanos - Time of the solve
+     * @return FOUND or NO_PATH result
+     */
+    static SolveResult of(List<Point<Integer, Integer>> points, int size, long expandedNodes, long elapsedNanos) {
+        if (points == null) return new SolveResult(Status.NO_PATH, new int[0], expandedNodes, elapsedNanos);
+
+        int[] path = new int[points.size()];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = points.get(i).getX() * size + points.get(i).getY();
+        }
+        return new SolveResult(Status.FOUND, path, expandedNodes, elapsedNanos);
+    }
+
+    static SolveResult cancelled(long expandedNodes, long elapsedNanos) {
+        return new SolveResult(Status.CANCELLED, new int[0], expandedNodes, elapsedNanos);
+    }
+
+    static SolveResult timedOut(long expandedNodes, long elapsedNanos) {
+        return new SolveResult(Status.TIMED_OUT, new int[0], expandedNodes, elapsedNanos);
+    }
+
+    /**
+     * @return Number of moves of the path, -1 unless FOUND
+     */
+    public int length() {
+        return status == Status.FOUND ? path.length - 1 : -1;
+    }
+
+    /**
+     * @param size - Side of the map
+     * @return Points of the path in the format of the first version of the interface, null unless FOUND
+     */
+    public List<Point<Integer, Integer>> getPoints(int size) {
+        if (status != Status.FOUND) return null;
+
+        List<Point<Integer, Integer>> points = new ArrayList<>(path.length);
+        for (int cell : path) {
+            points.add(new Point<>(cell / size, cell % size));
+        }
+        return points;
+    }
+}
+
+
+/**
+ * Class for all objects on map
+ */
+class Agent {
+    public boolean isDangerous;
+
+    private int x;
+    private int y;
+
+    // The perception of each object - danger zone in case of dangerous enemy,
+    // and perception zone in case of Jack Sparrow.
+    // Perception is shared between all agents of the same type, so it must never be modified
+    protected List<Point<Integer, Integer>> perception;
+
+    // Fields below for the cells that will be occupied by agents' perception zone,
+    // they are static so that agents do not allocate their own copies of the same offsets
+    protected static final Point<Integer, Integer> _default = new Point<>(0, 0);
+
+    protected static final Point<Integer, Integer> left = new Point<>(-1, 0);
+    protected static final Point<Integer, Integer> right = new Point<>(1, 0);
+
+    protected static final Point<Integer, Integer> top = new Point<>(0, -1);
+    protected static final Point<Integer, Integer> topLeft = new Point<>(-1, -1);
+    protected static final Point<Integer, Integer> topRight = new Point<>(1, -1);
+
+    protected static final Point<Integer, Integer> bottom = new Point<>(0, 1);
+    protected static final Point<Integer, Integer> bottomLeft = new Point<>(-1, 1);
+    protected static final Point<Integer, Integer> bottomRight = new Point<>(1, 1);
+
+    // By default, the perception zone of an agent is the agent himself
+    protected static final List<Point<Integer, Integer>> defaultPerception = List.of(_default);
+
+    // All 8 cells around the agent
+    protected static final List<Point<Integer, Integer>> surroundingPerception = List.of(topLeft, top, topRight,
+            left, right,
+            bottomLeft, bottom, bottomRight);
+
+    /**
+     * @param x - X coordinate
+     * @param y - Y coordinate
+     * @param dangerous - Field for dangerous objects - Kraken, Rock and Davy Jones
+     */
+    public Agent(int x, int y, boolean dangerous) {
+        this.x = x;
+        this.y = y;
+        this.perception = defaultPerception;
+        this.isDangerous = dangerous;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Changes position of the agent, must be called only by the map which holds this agent,
+     * so the danger zones and the spatial index stay consistent
+     * @param x - New X coordinate
+     * @param y - New Y coordinate
+     */
+    void moveTo(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
+
+
+    /**
+     * @param agent - Agent object
+     * @return - True if agents position on map is the same
+     */
+    public boolean equals(Agent agent) {
+        return this.x == agent.x && this.y == agent.y;
+    }
+
+
+    /**
+     * @return Alias of each agent object
+     */
+    public char getAlias() {
+        return '-';
+    }
+}
+
+
+/**
+ * Class for Davy Jones enemy
+ */
+class DavyJones extends Agent {
+    static final List<Point<Integer, Integer>> dangerZone = surroundingPerception;
+
+    public DavyJones(int x, int y, boolean dangerous) {
+        super(x, y, dangerous);
+        this.perception = dangerZone;
+    }
+
+    @Override
+    public char getAlias() {
+        return 'D';
+    }
+}
+
+/**
+ * Class for The Kraken enemy
+ */
+class Kraken extends Agent {
+    static final List<Point<Integer, Integer>> dangerZone = List.of(top, left, right, bottom);
+
+    public Kraken(int x, int y, boolean dangerous) {
+        super(x, y, dangerous);
+        this.perception = dangerZone;
+    }
+
+    @Override
+    public char getAlias() {
+        return 'K';
+    }
+}
+
+/**
+ * Class for The Rock enemy
+ */
+class Rock extends Agent {
+
+    public Rock(int x, int y, boolean dangerous) {
+        super(x, y, dangerous);
+    }
+
+    @Override
+    public char getAlias() {
+        return 'R';
+    }
+}
+
+
+/**
+ * Class for Dead Man's Chest - our destination point
+ */
+class Chest extends Agent {
+
+    public Chest(int x, int y, boolean dangerous) {
+        super(x, y, dangerous);
+    }
+
+    @Override
+    public char getAlias() {
+        return 'C';
+    }
+}
+
+/**
+ * Class for Tortuga - island with rum casks
+ */
+class Tortuga extends Agent {
+
+    public Tortuga(int x, int y, boolean dangerous) {
+        super(x, y, dangerous);
+    }
+
+    @Override
+    public char getAlias() {
+        return 'T';
+    }
+}
+
+/**
+ * Class for the Actor - Captain Jack Sparrow
+ */
+class JackSparrow extends Agent {
+    static final List<Point<Integer, Integer>> firstScenarioPerception = surroundingPerception;
+
+    static final List<Point<Integer, Integer>> secondScenarioPerception = List.of(new Point<>(0, -2),
+            topLeft, top, topRight,
+            new Point<>(-2, 0), left, right, new Point<>(2, 0),
+            bottomLeft, bottom, bottomRight,
+            new Point<>(0, 2));
+
+    public JackSparrow(int x, int y, boolean dangerous, int scenario) {
+        super(x, y, dangerous);
+        // Depending on the scenario, perception of the Jack Sparrow will change
+        switch (scenario) {
+            case 1 -> this.perception = firstScenarioPerception;
+            case 2 -> this.perception = secondScenarioPerception;
+        }
+    }
+
+    @Override
+    public char getAlias() {
+        return 'J';
+    }
+}
+
+
+/**
+ * Class for Sea Map, on which all objects will be stored
+ */
+class Map {
+    // Redraws of a single agent per cell of the map, after which generation gives up
+    private static final int MAX_REDRAWS_PER_CELL = 64;
+
+    // Side of the map of the original task, such maps are generated by drawing whole maps
+    static final int DEFAULT_SIZE = 9;
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    // Identifier of the map in flight recorder events
+    public final int id = nextId.incrementAndGet();
+
+    // Current perception of scenario
+    int scenario = 1;
+
+    // Side of the square map
+    int size = DEFAULT_SIZE;
+
+    // Agents that will be placed on map, there can be any number of enemies and rocks
+    public List<Tortuga> tortugas = new ArrayList<>();
+    public List<Chest> chests = new ArrayList<>();
+    public List<Rock> rocks = new ArrayList<>();
+    public List<Kraken> krakens = new ArrayList<>();
+    public List<DavyJones> davyJoneses = new ArrayList<>();
+
+    // Tortuga and Chest through which the route is built (the first ones of their lists)
+    public Tortuga tortuga;
+    public Chest chest;
+
+    public JackSparrow jack;
+
+    List<Agent> agents;
+
+    // Spatial index of all agents, so we do not compare every pair of agents
+    public SpatialIndex index;
+
+    // Ring log of cells which walkability or agents were changed by the latest edits, every consumer reads it
+    // from its own cursor, so no consumer drains it for the others. ALL_CELLS is logged when cells are refilled
+    private static final int EDIT_LOG_CAPACITY = 1 << 12;
+    private static final int ALL_CELLS = -1;
+    private final int[] editLog = new int[EDIT_LOG_CAPACITY];
+    private long editLogEnd = 0;
+
+    // Cells of The Krakens killed by the current solve, so they can be revived after it
+    private final Deque<MapCell> killedKrakens = new ArrayDeque<>();
+
+    // Number of times the cells were filled or agents were added, removed or moved,
+    // so caches of the map can tell if they are outdated
+    private int editCount = 0;
+
+    // Cells of our map
+    public MapCell[][] cells;
+    // 2D ascii representation of the map
+    public char[][] asciiMap;
+
+    /**
+     *  Method to change the scenario of our map
+     */
+    public void setScenario(int scenario) {
+        this.scenario = scenario;
+    }
+
+    /**
+     * Method to change the side of the map, must be called before generating the map
+     */
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * @param x - X coordinate
+     * @param y - Y coordinate
+     * @return true if the point lies on the map
+     */
+    public boolean isInside(int x, int y) {
+        return x >= 0 && x < size && y >= 0 && y < size;
+    }
+
+    /**
+     * @param cell - Map cell
+     * @return Index of the cell in flat per-cell arrays, such as arrays of SearchContext
+     */
+    public int getIndex(MapCell cell) {
+        return cell.x * size + cell.y;
+    }
+
+    /**
+     * @param index - Index of the cell in flat per-cell arrays
+     * @return Map cell with such index
+     */
+    public MapCell getCell(int index) {
+        return cells[index / size][index % size];
+    }
+
+
+    /**
+     * @param cell - Map cell
+     * @return Set of neighbour cells on the map for the given cell
+     */
+    public HashSet<MapCell> getNeighbourCells(MapCell cell) {
+        HashSet<MapCell> neighbourCells = new HashSet<>();
+        switch(this.scenario) {
+            case 1 -> {
+                for (Point<Integer, Integer> perceptionPoint : this.jack.perception) {
+                    int newX = perceptionPoint.getX() + cell.x;
+                    int newY = perceptionPoint.getY() + cell.y;
+
+                    if (isInside(newX, newY)) neighbourCells.add(cells[newX][newY]);
+                }
+            }
+            case 2 -> {
+                for (int i = -1; i <= 1; i++) {
+                    for (int j = -1; j <= 1; j++) {
+                        if (!(i == 0 && j == 0)) {
+                            int newX = cell.x + i;
+                            int newY = cell.y + j;
+
+                            if (isInside(newX, newY)) neighbourCells.add(cells[newX][newY]);
+                        }
+                    }
+                }
+            }
+        }
+
+        return neighbourCells;
+    }
+
+    /**
+     * Same as getNeighbourCells(), but writes indices of neighbour cells into the given array
+     * in a fixed order, so the caller does not allocate anything
+     * @param index - Index of the cell
+     * @param neighbours - Array to write indices to, it must have space for 8 neighbours
+     * @param offset - Position in the array to start writing from
+     * @return Number of neighbours that were written
+     */
+    public int getNeighbourIndices(int index, int[] neighbours, int offset) {
+        int x = index / size, y = index % size;
+        int count = 0;
+
+        // In both scenarios Jack moves to any of 8 surrounding cells
+        for (var perceptionPoint : Agent.surroundingPerception) {
+            int newX = x + perceptionPoint.getX();
+            int newY = y + perceptionPoint.getY();
+
+            if (isInside(newX, newY)) neighbours[offset + count++] = newX * size + newY;
+        }
+
+        return count;
+    }
+
+    /**
+     * Method to fill map cells after generating the map
+     */
+    public void fillCells(boolean refill) {
+        FillCellsEvent event = new FillCellsEvent();
+        event.begin();
+
+        // Refill flag is needed to restore original cells' value of the map
+        // after performing any of the algorithms, so they will not affect each other
+        if (!refill) {
+            cells = new MapCell[size][size];
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    cells[i][j] = new MapCell(i, j, true);
+                }
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    cells[i][j].dangerLevel = 0;
+                    cells[i][j].walkable = true;
+                    cells[i][j].agents.clear();
+                }
+            }
+            killedKrakens.clear();
+        }
+
+        for (Agent agent : agents) {
+            int x = agent.getX(), y = agent.getY();
+
+            if (agent.isDangerous) {
+                // If agent is dangerous, increment danger level of its perception zone and make those cells
+                // unpassable. Perception offsets never repeat, so every cell is stamped at most once per agent
+                for (var perception : agent.perception) {
+                    int newX = x + perception.getX();
+                    int newY = y + perception.getY();
+
+                    if (!isInside(newX, newY) || (newX == x && newY == y)) continue;
+
+                    cells[newX][newY].changeWalkability(false);
+                    cells[newX][newY].dangerLevel++;
+                }
+            }
+
+            // Also, add agent to the common agents list for further purposes
+            cells[x][y].agents.add(agent.getAlias());
+            if (agent.isDangerous || agent instanceof Rock) {
+                cells[x][y].changeWalkability(false);
+                cells[x][y].dangerLevel++;
+            }
+        }
+
+        editCount++;
+        logEdit(ALL_CELLS);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.mapId = id;
+            event.scenario = scenario;
+            event.refill = refill;
+            event.commit();
+        }
+    }
+
+    /**
+     * Method to randomly generate the map
+     */
+    public void generate() {
+        generate(1, 1, 1);
+    }
+
+    /**
+     * Method to randomly generate the map with the given number of enemies and rocks
+     * @param davyJonesCount - Number of Davy Jones enemies
+     * @param krakenCount - Number of The Kraken enemies
+     * @param rockCount - Number of rocks
+     */
+    public void generate(int davyJonesCount, int krakenCount, int rockCount) {
+        generate(new Random(), davyJonesCount, krakenCount, rockCount);
+    }
+
+    /**
+     * Same as generate(davyJonesCount, krakenCount, rockCount), but takes positions from the given generator,
+     * so the same seed always gives the same map.
+     * Maps of the default size are drawn whole until a correct one is drawn, so every correct map is equally likely.
+     * Larger maps would almost never be correct at once, so their agents are placed one at a time. That is not
+     * uniform: agents placed first never move, so later ones are redrawn around them, and, for example,
+     * Tortuga lands in a corner a bit less often than in uniformly drawn maps.
+     * Agents which can't fit into the cells of the map at all are rejected up front. Maps which are merely
+     * too dense, so that no correct map or no free cell is drawn in 64 * size * size draws, are rejected
+     * after those draws. Danger zones must stay clear of Jack, the Chest and Tortuga, so in practice enemies
+     * should cover well under half of the cells
+     * @param random - Random generator
+     * @param davyJonesCount - Number of Davy Jones enemies
+     * @param krakenCount - Number of The Kraken enemies
+     * @param rockCount - Number of rocks
+     * @throws IllegalArgumentException if a count is negative or the agents do not fit on the map
+     */
+    public void generate(Random random, int davyJonesCount, int krakenCount, int rockCount) {
+        // Only a Rock with The Kraken, and Tortuga with Jack may share a cell, so this many cells are taken at least
+        long cellsNeeded = 2L + davyJonesCount + Math.max(krakenCount, rockCount);
+        if (davyJonesCount < 0 || krakenCount < 0 || rockCount < 0) {
+            throw new IllegalArgumentException("Numbers of agents must not be negative");
+        }
+        if (cellsNeeded > (long) size * size) {
+            throw new IllegalArgumentException("Agents need at least " + cellsNeeded + " cells, the map of size " +
+                    size + " has " + size * size);
+        }
+
+        MapGenerateEvent event = new MapGenerateEvent();
+        event.begin();
+
+        int attempts = size == DEFAULT_SIZE ? drawWholeMaps(random, davyJonesCount, krakenCount, rockCount) :
+                placeAgents(random, davyJonesCount, krakenCount, rockCount);
+
+        this.fillCells(false);
+        this.makeAsciiMap();
+        commitGenerateEvent(event, attempts);
+    }
+
+    /**
+     * Draws every agent at random until the map is correct
+     * @return Number of maps that were drawn
+     */
+    private int drawWholeMaps(Random random, int davyJonesCount, int krakenCount, int rockCount) {
+        int attempts = 0;
+        do {
+            // Correct maps are drawn once in a few attempts, so after many more there is none
+            if (++attempts > MAX_REDRAWS_PER_CELL * size * size) {
+                throw new IllegalArgumentException("Agents do not fit on the map of size " + size);
+            }
+            this.jack = new JackSparrow(0, 0, false, this.scenario);
+
+            this.davyJoneses = new ArrayList<>(davyJonesCount);
+            for (int i = 0; i < davyJonesCount; i++) {
+                this.davyJoneses.add(new DavyJones(random.nextInt(size), random.nextInt(size), true));
+            }
+
+            this.krakens = new ArrayList<>(krakenCount);
+            for (int i = 0; i < krakenCount; i++) {
+                this.krakens.add(new Kraken(random.nextInt(size), random.nextInt(size), true));
+            }
+
+            this.rocks = new ArrayList<>(rockCount);
+            for (int i = 0; i < rockCount; i++) {
+                this.rocks.add(new Rock(random.nextInt(size), random.nextInt(size), false));
+            }
+
+            this.chest = new Chest(random.nextInt(size), random.nextInt(size), false);
+            this.tortuga = new Tortuga(random.nextInt(size), random.nextInt(size), false);
+            this.chests = new ArrayList<>(List.of(chest));
+            this.tortugas = new ArrayList<>(List.of(tortuga));
+
+            this.collectAgents();
+        } while (!this.isCorrect()); // we stop randomizing map only after when current generation is correct
+
+        return attempts;
+    }
+
+    /**
+     * Places agents one at a time into the spatial index, and only the agent which conflicts
+     * with already placed ones is redrawn, so dense maps do not regenerate everything again and again
+     * @return 1 plus the number of times an agent was redrawn
+     */
+    private int placeAgents(Random random, int davyJonesCount, int krakenCount, int rockCount) {
+        int attempts = 1;
+
+        this.jack = new JackSparrow(0, 0, false, this.scenario);
+        this.index = new SpatialIndex(size);
+        this.index.add(jack);
+
+        // Tortuga and the Chest go first, so a danger zone is checked against them when the enemy is drawn
+        this.tortuga = new Tortuga(0, 0, false);
+        attempts += place(tortuga, random);
+        this.chest = new Chest(0, 0, false);
+        attempts += place(chest, random);
+        this.chests = new ArrayList<>(List.of(chest));
+        this.tortugas = new ArrayList<>(List.of(tortuga));
+
+        this.davyJoneses = new ArrayList<>(davyJonesCount);
+        for (int i = 0; i < davyJonesCount; i++) {
+            DavyJones davyJones = new DavyJones(0, 0, true);
+            attempts += place(davyJones, random);
+            this.davyJoneses.add(davyJones);
+        }
+
+        this.krakens = new ArrayList<>(krakenCount);
+        for (int i = 0; i < krakenCount; i++) {
+            Kraken kraken = new Kraken(0, 0, true);
+            attempts += place(kraken, random);
+            this.krakens.add(kraken);
+        }
+
+        this.rocks = new ArrayList<>(rockCount);
+        for (int i = 0; i < rockCount; i++) {
+            Rock rock = new Rock(0, 0, false);
+            attempts += place(rock, random);
+            this.rocks.add(rock);
+        }
+
+        this.collectAgents();
+        return attempts;
+    }
+
+    /**
+     * @param map - String representation of map, as written by toString(), spaces are ignored.
+     * Coordinates are checked against the size of the map, so it must be set before generating the map
+     * @return true if map was successfully generated
+     */
+    public boolean generate(String map) {
+        MapGenerateEvent event = new MapGenerateEvent();
+        event.begin();
+
+        // Types of agents are separated by "][", agents of the same type by "],["
+        String[] groups = map.replaceAll("\\s", "").split("(?<=])(?=\\[)");
+        if (groups.length != 6) return false;
+
+        List<List<Point<Integer, Integer>>> positions = new ArrayList<>(groups.length);
+        for (String group : groups) {
+            if (!group.matches("\\[]|\\[\\d{1,9},\\d{1,9}](,\\[\\d{1,9},\\d{1,9}])*")) return false;
+
+            List<Point<Integer, Integer>> points = new ArrayList<>();
+            var matcher = java.util.regex.Pattern.compile("\\[(\\d+),(\\d+)]").matcher(group);
+            while (matcher.find()) {
+                points.add(new Point<>(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))));
+            }
+            positions.add(points);
+        }
+        // There is a single Jack, and the route needs at least one Chest and one Tortuga
+        if (positions.get(0).size() != 1 || positions.get(4).isEmpty() || positions.get(5).isEmpty()) return false;
+
+        Point<Integer, Integer> start = positions.get(0).get(0);
+        this.jack = new JackSparrow(start.getX(), start.getY(), false, this.scenario);
+        this.davyJoneses = new ArrayList<>();
+        for (var point : positions.get(1)) this.davyJoneses.add(new DavyJones(point.getX(), point.getY(), true));
+        this.krakens = new ArrayList<>();
+        for (var point : positions.get(2)) this.krakens.add(new Kraken(point.getX(), point.getY(), true));
+        this.rocks = new ArrayList<>();
+        for (var point : positions.get(3)) this.rocks.add(new Rock(point.getX(), point.getY(), false));
+        this.chests = new ArrayList<>();
+        for (var point : positions.get(4)) this.chests.add(new Chest(point.getX(), point.getY(), false));
+        this.tortugas = new ArrayList<>();
+        for (var point : positions.get(5)) this.tortugas.add(new Tortuga(point.getX(), point.getY(), false));
+        this.chest = chests.get(0);
+        this.tortuga = tortugas.get(0);
+
+        this.collectAgents();
+
+        if (this.isCorrect()) {
+            // If the map from input file is correct, proceed
+            this.fillCells(false);
+            this.makeAsciiMap();
+            commitGenerateEvent(event, 1);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private void commitGenerateEvent(MapGenerateEvent event, int attempts) {
+        event.end();
+        if (!event.shouldCommit()) return;
+
+        event.mapId = id;
+        event.scenario = scenario;
+        event.size = size;
+        event.attempts = attempts;
+        event.commit();
+    }
+
+    /**
+     * @return Map in the same format as in input.txt. Agents of the same type are separated by commas,
+     * and a type without agents is written as [], so maps with any number of agents can be generated back
+     */
+    @Override
+    public String toString() {
+        StringJoiner line = new StringJoiner(" ");
+        for (List<? extends Agent> group : List.of(List.of(jack), davyJoneses, krakens, rocks, chests, tortugas)) {
+            StringJoiner agents = new StringJoiner(",");
+            agents.setEmptyValue("[]");
+            for (Agent agent : group) {
+                agents.add("[" + agent.getX() + "," + agent.getY() + "]");
+            }
+            line.add(agents.toString());
+        }
+        return line.toString();
+    }
+
+    /**
+     * Method to gather all agents in one list and to build spatial index over them
+     */
+    private void collectAgents() {
+        this.agents = new ArrayList<>(3 + davyJoneses.size() + krakens.size() + rocks.size());
+        this.agents.add(jack);
+        this.agents.addAll(davyJoneses);
+        this.agents.addAll(krakens);
+        this.agents.addAll(rocks);
+        this.agents.addAll(chests);
+        this.agents.addAll(tortugas);
+
+        this.index = new SpatialIndex(size);
+        for (Agent agent : agents) {
+            this.index.add(agent);
+        }
+    }
+
+
+    /**
+     * Draws random cells for the agent until it does not conflict with the agents of the spatial index,
+     * and puts it into the index. Tortuga and the Chest must be placed before the enemies
+     * @param agent - Agent to place
+     * @param random - Random generator
+     * @return Number of times the cell was redrawn
+     */
+    private int place(Agent agent, Random random) {
+        int redraws = -1;
+        do {
+            // A free cell is drawn once in size * size draws on average, so after many more there is none
+            if (++redraws > MAX_REDRAWS_PER_CELL * size * size) {
+                throw new IllegalArgumentException("Agents do not fit on the map of size " + size);
+            }
+            agent.moveTo(random.nextInt(size), random.nextInt(size));
+        } while (!canPlace(agent));
+
+        this.index.add(agent);
+        return redraws;
+    }
+
+    /**
+     * @param agent - Agent which is not in the spatial index yet
+     * @return true if the agent conflicts neither with agents on its cell nor with Tortuga and the Chest
+     */
+    private boolean canPlace(Agent agent) {
+        int x = agent.getX(), y = agent.getY();
+
+        for (Agent placedAgent : index.getBucket(x, y)) {
+            if (placedAgent.equals(agent) && !canShareCell(agent, placedAgent)) return false;
+        }
+
+        if (agent.isDangerous) {
+            for (var perception : agent.perception) {
+                int newX = x + perception.getX();
+                int newY = y + perception.getY();
+
+                if (!isInside(newX, newY)) continue;
+
+                for (Agent placedAgent : index.getBucket(newX, newY)) {
+                    if (placedAgent.getX() == newX && placedAgent.getY() == newY &&
+                            (placedAgent instanceof Tortuga || placedAgent instanceof Chest)) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true if agents may stand on the same cell, which is only [Rock, Kraken] or [Tortuga, Jack]
+     */
+    private static boolean canShareCell(Agent firstAgent, Agent secondAgent) {
+        return (firstAgent instanceof Rock && secondAgent instanceof Kraken) ||
+                (firstAgent instanceof Tortuga && secondAgent instanceof JackSparrow) ||
+                (firstAgent instanceof JackSparrow && secondAgent instanceof Tortuga) ||
+                (firstAgent instanceof Kraken && secondAgent instanceof Rock);
+    }
+
+    /**
+     * @return true if objects are correctly placed on map
+     */
+    private boolean isCorrect() {
+        if (jack.getX() != 0 || jack.getY() != 0) return false;
+
+        for (Agent firstAgent : agents) {
+            int x = firstAgent.getX(), y = firstAgent.getY();
+            if (!isInside(x, y)) return false;
+
+            // Agents can not spawn in each other, unless it is [Rock, Kraken] or [Tortuga, Jack].
+            // Only agents from the same bucket of spatial index can share the cell
+            for (Agent secondAgent : index.getBucket(x, y)) {
+                // Skip agents when they repeat in 2nd loop
+                if (firstAgent == secondAgent || !firstAgent.equals(secondAgent)) continue;
+
+                if (!canShareCell(firstAgent, secondAgent)) return false;
+            }
+
+            // Danger zone of an enemy can not cover Tortuga or the Chest
+            if (firstAgent.isDangerous) {
+                for (var perception : firstAgent.perception) {
+                    int newX = x + perception.getX();
+                    int newY = y + perception.getY();
+
+                    if (!isInside(newX, newY)) continue;
+
+                    for (Agent secondAgent : index.getBucket(newX, newY)) {
+                        if (secondAgent.getX() == newX && secondAgent.getY() == newY &&
+                                (secondAgent instanceof Tortuga || secondAgent instanceof Chest)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Clears path that was applied to the current map
+     * @param path - Solution path
+     */
+    public void clearPath(List<Point<Integer, Integer>> path) {
+        for (Point<Integer, Integer> point : path) {
+            this.asciiMap[point.getX()][point.getY()] = '-';
+        }
+    }
+
+    /**
+     * @param path - points path that will be highlighted on the map
+     * @param writer - output file to which the map will be printed
+     */
+    public void print(List<Point<Integer, Integer>> path, PrintWriter writer) {
+        for (Point<Integer, Integer> point : path) {
+            this.asciiMap[point.getX()][point.getY()] = '*';
+        }
+
+        _print(writer);
+    }
+
+    /**
+     * @param writer - print ascii representation of map to the given file
+     */
+    private void _print(PrintWriter writer) {
+        String border = " " + "—".repeat(2 * size + 3);
+
+        writer.println(border);
+        writer.print("|   ");
+        for (int j = 0; j < size; j++) {
+            writer.printf("%d ", j);
+        }
+        writer.println("|");
+        for (int i = 0; i < size; i++) {
+            writer.printf("| %d ", i);
+            for (int j = 0; j < size; j++) {
+                writer.printf("%c ", this.asciiMap[i][j]);
+            }
+            writer.println("|");
+        }
+        writer.println(border);
+    }
+
+
+    /**
+     * Method to generate ascii map after creating it
+     */
+    public void makeAsciiMap() {
+        this.asciiMap = new char[size][size];
+        for (char[] row : this.asciiMap) {
+            Arrays.fill(row, '-');
+        }
+
+        for (Agent agent : agents) {
+            int x = agent.getX(), y = agent.getY();
+            if (!(agent instanceof JackSparrow)) {
+                for (var perception : agent.perception) {
+                    int newX = x + perception.getX();
+                    int newY = y + perception.getY();
+
+                    if (isInside(newX, newY) && this.asciiMap[newX][newY] == '-')
+                        this.asciiMap[newX][newY] = '$';
+                }
+            }
+            if (this.asciiMap[x][y] == '-' || this.asciiMap[x][y] == '$' ||
+                    getDrawPriority(agent.getAlias()) < getDrawPriority(this.asciiMap[x][y])) {
+                this.asciiMap[x][y] = agent.getAlias();
+            }
+        }
+
+    }
+
+    /**
+     * @param alias - Alias of an agent
+     * @return Priority of the agent on the ascii map when several agents share a cell, lower is drawn on top
+     */
+    private static int getDrawPriority(char alias) {
+        return "JDKRCT".indexOf(alias);
+    }
+
+
+    /**
+     * Method to put a new agent on the already generated map. Only the danger zone of the agent is applied,
+     * the rest of the map stays untouched
+     * @param agent - Agent to add, Jack Sparrow can not be added since he is always on the map
+     * @return true if the agent was added
+     */
+    public boolean addAgent(Agent agent) {
+        if (agent instanceof JackSparrow || !isInside(agent.getX(), agent.getY())) return false;
+
+        if (agent instanceof DavyJones davyJones) this.davyJoneses.add(davyJones);
+        else if (agent instanceof Kraken kraken) this.krakens.add(kraken);
+        else if (agent instanceof Rock rock) this.rocks.add(rock);
+        else if (agent instanceof Chest chest) this.chests.add(chest);
+        else if (agent instanceof Tortuga tortuga) this.tortugas.add(tortuga);
+
+        if (this.chest == null && agent instanceof Chest chest) this.chest = chest;
+        if (this.tortuga == null && agent instanceof Tortuga tortuga) this.tortuga = tortuga;
+
+        long cursor = this.editLogEnd;
+        this.agents.add(agent);
+        this.index.add(agent);
+        this.stamp(agent, 1);
+        this.refreshAsciiMap(cursor);
+        return true;
+    }
+
+    /**
+     * Method to remove an agent from the map, its danger zone is removed as well
+     * @param agent - Agent to remove
+     * @return true if the agent was on the map and was removed
+     * @throws IllegalArgumentException if the agent is the last Chest or the last Tortuga, every route needs them
+     */
+    public boolean removeAgent(Agent agent) {
+        if ((agent == this.chest && this.chests.size() == 1) || (agent == this.tortuga && this.tortugas.size() == 1)) {
+            throw new IllegalArgumentException("The last " + agent.getClass().getSimpleName() + " can not be removed");
+        }
+        if (agent instanceof JackSparrow || !this.agents.remove(agent)) return false;
+
+        this.davyJoneses.remove(agent);
+        this.krakens.remove(agent);
+        this.rocks.remove(agent);
+        this.chests.remove(agent);
+        this.tortugas.remove(agent);
+
+        // If the Chest or Tortuga of the route was removed, the next one takes its place
+        if (this.chest == agent) this.chest = this.chests.get(0);
+        if (this.tortuga == agent) this.tortuga = this.tortugas.get(0);
+
+        long cursor = this.editLogEnd;
+        this.index.remove(agent);
+        this.stamp(agent, -1);
+        this.refreshAsciiMap(cursor);
+        return true;
+    }
+
+    /**
+     * Method to move an agent, which is already on the map, to another cell
+     * @param agent - Agent to move
+     * @param x - New X coordinate
+     * @param y - New Y coordinate
+     * @return true if the agent was moved
+     */
+    public boolean moveAgent(Agent agent, int x, int y) {
+        if (!isInside(x, y) || !this.agents.contains(agent)) return false;
+
+        long cursor = this.editLogEnd;
+        this.index.remove(agent);
+        this.stamp(agent, -1);
+
+        agent.moveTo(x, y);
+
+        this.index.add(agent);
+        this.stamp(agent, 1);
+        this.refreshAsciiMap(cursor);
+        return true;
+    }
+
+    /**
+     * Killing Krakens is scratch state of a single solve, undone by {@link #reviveKrakens()} before the solve
+     * returns, so it is neither counted here nor written to the edit log. Caches keyed on this count must not
+     * be built while {@link #hasKilledKrakens()} is true, or they would keep walkability of the killed state
+     * @return Number of times the cells were filled or agents were edited, killed Krakens do not count
+     */
+    public int getEditCount() {
+        return editCount;
+    }
+
+    /**
+     * @return Cursor of the edit log after the latest edit, consumers keep it to read only newer edits
+     */
+    public long getEditLogCursor() {
+        return editLogEnd;
+    }
+
+    /**
+     * @param cursor - Cursor which the consumer got from getEditLogCursor()
+     * @return Cells which walkability or agents were changed by edits after the cursor, a cell may repeat,
+     * or null if the cells were refilled or the log was overwritten since then, so all caches are outdated
+     */
+    public List<MapCell> getDirtyCellsSince(long cursor) {
+        if (editLogEnd - cursor > EDIT_LOG_CAPACITY) return null;
+
+        List<MapCell> changedCells = new ArrayList<>((int) (editLogEnd - cursor));
+        for (long i = cursor; i < editLogEnd; i++) {
+            int cell = editLog[(int) (i & (EDIT_LOG_CAPACITY - 1))];
+            if (cell == ALL_CELLS) return null;
+            changedCells.add(getCell(cell));
+        }
+        return changedCells;
+    }
+
+    private void logEdit(int cell) {
+        editLog[(int) (editLogEnd++ & (EDIT_LOG_CAPACITY - 1))] = cell;
+    }
+
+    /**
+     * Applies (delta = 1) or removes (delta = -1) the agent and its danger zone to the map cells
+     * @param agent - Agent to stamp
+     * @param delta - +1 or -1
+     */
+    private void stamp(Agent agent, int delta) {
+        int x = agent.getX(), y = agent.getY();
+
+        if (agent.isDangerous) {
+            for (var perception : agent.perception) {
+                int newX = x + perception.getX();
+                int newY = y + perception.getY();
+
+                if (!isInside(newX, newY) || (newX == x && newY == y)) continue;
+
+                changeDangerLevel(cells[newX][newY], delta);
+            }
+        }
+
+        if (agent.isDangerous || agent instanceof Rock) {
+            changeDangerLevel(cells[x][y], delta);
+        }
+
+        if (delta > 0) {
+            cells[x][y].agents.add(agent.getAlias());
+        } else {
+            cells[x][y].agents.remove(Character.valueOf(agent.getAlias()));
+        }
+        this.logEdit(getIndex(cells[x][y]));
+        this.editCount++;
+    }
+
+    /**
+     * Changes danger level of the cell, walkability of the cell changes only when danger level crosses zero
+     * @param cell - Map cell
+     * @param delta - +1 or -1
+     */
+    private void changeDangerLevel(MapCell cell, int delta) {
+        boolean wasSafe = cell.dangerLevel == 0;
+        cell.dangerLevel += delta;
+
+        if (wasSafe != (cell.dangerLevel == 0)) {
+            cell.changeWalkability(cell.dangerLevel == 0);
+            this.logEdit(getIndex(cell));
+        }
+    }
+
+    /**
+     * Method to update ascii map only for the cells which were changed by edits
+     * @param cursor - Cursor of the edit log before the edits
+     */
+    private void refreshAsciiMap(long cursor) {
+        if (this.asciiMap == null) return;
+
+        for (MapCell cell : getDirtyCellsSince(cursor)) {
+            char alias = cell.dangerLevel > 0 ? '$' : '-';
+            // Agents are drawn with the same priority as makeAsciiMap() draws them
+            int bestPriority = Integer.MAX_VALUE;
+            for (Agent agent : this.index.getBucket(cell.x, cell.y)) {
+                if (agent.getX() != cell.x || agent.getY() != cell.y) continue;
+
+                int priority = getDrawPriority(agent.getAlias());
+                if (priority < bestPriority) {
+                    bestPriority = priority;
+                    alias = agent.getAlias();
+                }
+            }
+            this.asciiMap[cell.x][cell.y] = alias;
+        }
+    }
+
+
+    /**
+     * Method to remove The Kraken and its danger zone on our map.
+     * The kill is not logged as an edit, see {@link #getEditCount()}
+     * @param cell - Cell on which The Kraken was spotted
+     */
+    public void killKraken(MapCell cell) {
+        for (var perception : Kraken.dangerZone) {
+            int newX = cell.x + perception.getX();
+            int newY = cell.y + perception.getY();
+
+            if (isInside(newX, newY)) {
+                if (--this.cells[newX][newY].dangerLevel == 0) {
+                    this.cells[newX][newY].changeWalkability(true);
+                }
+            }
+        }
+        this.cells[cell.x][cell.y].dangerLevel--;
+        this.killedKrakens.push(cell);
+
+        KrakenKillEvent event = new KrakenKillEvent();
+        if (event.shouldCommit()) {
+            event.mapId = id;
+            event.scenario = scenario;
+            event.x = cell.x;
+            event.y = cell.y;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return true if some Krakens were killed and not revived yet, i.e. a solve is in progress
+     */
+    public boolean hasKilledKrakens() {
+        return !this.killedKrakens.isEmpty();
+    }
+
+    /**
+     * Method to bring back all Krakens killed since the previous call, in reverse order of killing.
+     * Only danger zones of those Krakens are touched, so restoring the map after a solve does not cost O(cells)
+     */
+    public void reviveKrakens() {
+        while (!this.killedKrakens.isEmpty()) {
+            MapCell cell = this.killedKrakens.pop();
+
+            for (var perception : Kraken.dangerZone) {
+                int newX = cell.x + perception.getX();
+                int newY = cell.y + perception.getY();
+
+                if (isInside(newX, newY)) {
+                    if (++this.cells[newX][newY].dangerLevel > 0) {
+                        this.cells[newX][newY].changeWalkability(false);
+                    }
+                }
+            }
+            if (++this.cells[cell.x][cell.y].dangerLevel > 0) {
+                this.cells[cell.x][cell.y].changeWalkability(false);
+            }
+        }
+    }
+}
+
+
+/**
+ * Spatial index of agents on the map. The map is split into square buckets of cells,
+ * so looking for agents in some cell only touches agents of a single bucket
+ */
+class SpatialIndex {
+    // Side of a bucket is 2^BUCKET_SHIFT cells
+    static final int BUCKET_SHIFT = 3;
+
+    private final int bucketsPerSide;
+    private final List<List<Agent>> buckets;
+
+    /**
+     * @param size - Side of the map
+     */
+    public SpatialIndex(int size) {
+        this.bucketsPerSide = ((size - 1) >> BUCKET_SHIFT) + 1;
+        this.buckets = new ArrayList<>(Collections.nCopies(bucketsPerSide * bucketsPerSide, null));
+    }
+
+    private int bucketIndex(int x, int y) {
+        return (x >> BUCKET_SHIFT) * bucketsPerSide + (y >> BUCKET_SHIFT);
+    }
+
+    /**
+     * @param agent - Agent to put into the index
+     */
+    public void add(Agent agent) {
+        int bucketIndex = bucketIndex(agent.getX(), agent.getY());
+        // Agents outside of the map are not indexed, the map will be rejected anyway
+        if (bucketIndex < 0 || bucketIndex >= buckets.size()) return;
+
+        List<Agent> bucket = buckets.get(bucketIndex);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            buckets.set(bucketIndex, bucket);
+        }
+        bucket.add(agent);
+    }
+
+    /**
+     * @param agent - Agent to remove from the index, must be called before the agent changes its position
+     */
+    public void remove(Agent agent) {
+        int bucketIndex = bucketIndex(agent.getX(), agent.getY());
+        if (bucketIndex < 0 || bucketIndex >= buckets.size()) return;
+
+        List<Agent> bucket = buckets.get(bucketIndex);
+        if (bucket != null) bucket.remove(agent);
+    }
+
+    /**
+     * @param x - X coordinate
+     * @param y - Y coordinate
+     * @return Agents of the bucket which contains the given cell, caller has to check exact coordinates
+     */
+    public List<Agent> getBucket(int x, int y) {
+        List<Agent> bucket = buckets.get(bucketIndex(x, y));
+        return bucket == null ? Collections.emptyList() : bucket;
+    }
+}
+
+
+/**
+ * Class to fill map with cell objects
+ */
+class MapCell {
+    public boolean walkable;
+    public int x;
+    public int y;
+
+    public List<Character> agents = new ArrayList<>();
+    // Danger level of the cell
+    // It is useful when danger zones of the enemies intersect, so we do not
+    // make some cell walkable by mistake (for example, after killing kraken,
+    // the rock might be still on it so danger level will not be 0)
+    public int dangerLevel = 0;
+
+    /**
+     * @param x - X coordinate
+     * @param y - Y coordinate
+     * @param walkable - true if the cell is walkable
+     */
+    public MapCell(int x, int y, boolean walkable) {
+        this.x = x;
+        this.y = y;
+        this.walkable = walkable;
+    }
+
+    // Method to change walkability for the cell (used after killing The Kraken)
+    public void changeWalkability(boolean walkable) {
+        this.walkable = walkable;
+    }
+}
+
+
+/**
+ * Storage of the cells of the map, which solvers can run on regardless of where the cells live.
+ * Cells are addressed by index x * size + y, as in Map.getIndex().
+ * Only GridSolver runs on it. Algorithms of Solver stay on Map: besides neighbours and walkability they read
+ * agents of MapCell and share caches (Reachability, ClusterGraph, Landmarks) which are invalidated by the edit
+ * count and the edit log of Map, and Grid has neither of them. Krakens are killed on the grid only through
+ * killKraken(), so a grid over a Map kills them through Map.killKraken() and the caches see a solve in progress.
+ * Seas which don't fit on the heap as a Map are solved by GridSolver, which gives the same lengths as A*
+ */
+interface Grid {
+    // Aliases of agents in the order of their bits
+    String AGENT_ALIASES = "JDKRCT";
+
+    int getSize();
+
+    boolean isWalkable(int index);
+
+    int getDangerLevel(int index);
+
+    /**
+     * @param index - Index of the cell
+     * @return Bits of the agents which stand on the cell, see getAgentBit()
+     */
+    int getAgents(int index);
+
+    /**
+     * Removes danger zone of The Kraken, until reviveKrakens() is called
+     * @param index - Cell of The Kraken
+     */
+    void killKraken(int index);
+
+    /**
+     * Brings back all Krakens killed since the previous call
+     */
+    void reviveKrakens();
+
+    /**
+     * @param size - Side of the grid
+     * @param krakenCell - Cell of The Kraken
+     * @param zone - Array of at least 5 cells, the cell of The Kraken and its danger zone are stored there
+     * @return Number of the stored cells, the ones outside the grid are skipped
+     */
+    static int getKrakenZone(int size, int krakenCell, int[] zone) {
+        int x = krakenCell / size, y = krakenCell % size;
+        int count = 0;
+        for (var perception : Kraken.dangerZone) {
+            int newX = x + perception.getX(), newY = y + perception.getY();
+            if (newX >= 0 && newX < size && newY >= 0 && newY < size) zone[count++] = newX * size + newY;
+        }
+        zone[count++] = krakenCell;
+        return count;
+    }
+
+    /**
+     * @param alias - Alias of the agent
+     * @return Indices of the cells where such agents stand
+     */
+    default List<Integer> findAgents(char alias) {
+        List<Integer> result = new ArrayList<>();
+        int bit = getAgentBit(alias);
+        for (int index = 0; index < getSize() * getSize(); index++) {
+            if ((getAgents(index) & bit) != 0) result.add(index);
+        }
+        return result;
+    }
+
+    /**
+     * @param alias - Alias of the agent
+     * @return Bit of the agent in getAgents()
+     */
+    static int getAgentBit(char alias) {
+        return 1 << AGENT_ALIASES.indexOf(alias);
+    }
+}
+
+
+/**
+ * Grid over the cells of the map on the heap
+ */
+class HeapGrid implements Grid {
+    private final Map map;
+
+    /**
+     * @param map - Generated map
+     */
+    public HeapGrid(Map map) {
+        this.map = map;
+    }
+
+    @Override
+    public int getSize() {
+        return map.size;
+    }
+
+    @Override
+    public boolean isWalkable(int index) {
+        return map.getCell(index).walkable;
+    }
+
+    @Override
+    public int getDangerLevel(int index) {
+        return map.getCell(index).dangerLevel;
+    }
+
+    @Override
+    public int getAgents(int index) {
+        int agents = 0;
+        for (char alias : map.getCell(index).agents) {
+            agents |= Grid.getAgentBit(alias);
+        }
+        return agents;
+    }
+
+    /**
+     * Kills The Kraken through the map, so the map knows it has killed Krakens until they are revived
+     */
+    @Override
+    public void killKraken(int index) {
+        MapCell cell = map.getCell(index);
+        map.killKraken(cell);
+        if (!cell.agents.contains('R') && cell.dangerLevel == 0) cell.changeWalkability(true);
+    }
+
+    @Override
+    public void reviveKrakens() {
+        map.reviveKrakens();
+    }
+}
+
+
+/**
+ * Grid which keeps cells outside of the heap, in a direct buffer or in a file mapped into memory,
+ * so huge maps neither take heap space nor add objects for the garbage collector to trace.
+ * Every cell takes 4 bytes: danger level (short), agent bits (byte) and a reserved byte.
+ * Walkability is not stored, a cell is walkable exactly when its danger level is zero.
+ * The whole grid is a single buffer addressed by int, so the side of the map is at most 23170 cells
+ * (23170^2 * 4 bytes fits into Integer.MAX_VALUE), larger seas are kept by TiledGrid
+ */
+class OffHeapGrid implements Grid {
+    static final int CELL_BYTES = 4;
+
+    private final int size;
+    private final ByteBuffer cells;
+
+    // Killed Krakens in the order of killing, and scratch for their danger zones
+    private final Deque<Integer> killedKrakens = new ArrayDeque<>();
+    private final int[] krakenZone = new int[5];
+
+    /**
+     * Allocates the grid in direct memory
+     * @param size - Side of the map
+     */
+    public OffHeapGrid(int size) {
+        this(size, ByteBuffer.allocateDirect(getBytes(size)));
+    }
+
+    private OffHeapGrid(int size, ByteBuffer cells) {
+        this.size = size;
+        this.cells = cells;
+    }
+
+    /**
+     * Maps the grid from the file, which is created or resized if needed,
+     * so the grid can be larger than available memory and survive the process
+     * @param file - File of the grid
+     * @param size - Side of the map
+     */
+    public static OffHeapGrid map(java.nio.file.Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Mapping stays valid after the channel is closed
+            return new OffHeapGrid(size, channel.map(FileChannel.MapMode.READ_WRITE, 0, getBytes(size)));
+        }
+    }
+
+    /**
+     * @param map - Generated map
+     * @return Direct grid with the same agents and danger zones as the map
+     */
+    public static OffHeapGrid of(Map map) {
+        OffHeapGrid grid = new OffHeapGrid(map.size);
+        for (Agent agent : map.agents) {
+            grid.addAgent(agent);
+        }
+        return grid;
+    }
+
+    private static int getBytes(int size) {
+        // A single buffer is addressed by int, which limits the side of the map to 23170 cells
+        if (size < 1 || (long) size * size * CELL_BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported grid size: " + size);
+        }
+        return size * size * CELL_BYTES;
+    }
+
+    /**
+     * Puts the agent and its danger zone on the grid, with the same rules as Map uses
+     * @param agent - Agent to add
+     */
+    public void addAgent(Agent agent) {
+        int x = agent.getX(), y = agent.getY();
+
+        if (agent.isDangerous) {
+            for (var perception : agent.perception) {
+                int newX = x + perception.getX();
+                int newY = y + perception.getY();
+
+                if (newX < 0 || newX >= size || newY < 0 || newY >= size || (newX == x && newY == y)) continue;
+
+                changeDangerLevel(newX * size + newY, 1);
+            }
+        }
+
+        int index = x * size + y;
+        if (agent.isDangerous || agent instanceof Rock) changeDangerLevel(index, 1);
+        cells.put(index * CELL_BYTES + 2, (byte) (getAgents(index) | Grid.getAgentBit(agent.getAlias())));
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean isWalkable(int index) {
+        return cells.getShort(index * CELL_BYTES) == 0;
+    }
+
+    @Override
+    public int getDangerLevel(int index) {
+        return cells.getShort(index * CELL_BYTES);
+    }
+
+    @Override
+    public int getAgents(int index) {
+        return cells.get(index * CELL_BYTES + 2) & 0xFF;
+    }
+
+    @Override
+    public void killKraken(int index) {
+        int count = Grid.getKrakenZone(size, index, krakenZone);
+        for (int i = 0; i < count; i++) {
+            changeDangerLevel(krakenZone[i], -1);
+        }
+        killedKrakens.push(index);
+    }
+
+    @Override
+    public void reviveKrakens() {
+        while (!killedKrakens.isEmpty()) {
+            int count = Grid.getKrakenZone(size, killedKrakens.pop(), krakenZone);
+            for (int i = 0; i < count; i++) {
+                changeDangerLevel(krakenZone[i], 1);
+            }
+        }
+    }
+
+    /**
+     * Changes danger level of the cell, the cell is walkable only while its danger level is zero
+     * @param index - Index of the cell
+     * @param delta - +1 or -1
+     * @throws IllegalStateException if the danger level would leave [0, Short.MAX_VALUE], which means more
+     * danger zones overlap in the cell than a short can count, or a danger zone is removed which was never added
+     */
+    private void changeDangerLevel(int index, int delta) {
+        int dangerLevel = cells.getShort(index * CELL_BYTES) + delta;
+        // A wrapped short would turn the cell walkable or negative, so the level is checked instead
+        if (dangerLevel < 0 || dangerLevel > Short.MAX_VALUE) {
+            throw new IllegalStateException("Danger level " + dangerLevel + " of cell " + index + " is out of range");
+        }
+        cells.putShort(index * CELL_BYTES, (short) dangerLevel);
+    }
+}
+
+
+/**
+ * Grid of a huge sea which is stored on disk as tiles of agents. A tile is materialized, with danger levels
+ * stamped by agents of the tile and of its neighbour tiles, only when a search touches one of its cells.
+ * Materialized tiles are kept in an LRU cache limited by the memory budget.
+ * File: header (magic, size, tile size, agents count), index of the first agent of every tile,
+ * then agents sorted by tile, each one is the index of its cell and its alias
+ */
+class TiledGrid implements Grid, Closeable {
+    static final int MAGIC = 0x54494C45;
+    static final int HEADER_SIZE = 16;
+    static final int AGENT_BYTES = 5;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer file;
+
+    private final int size;
+    private final int tileSize;
+    private final int tilesPerSide;
+    private final int agentsOffset;
+
+    // Materialized tiles in access order, the eldest one is evicted when the budget is exceeded
+    private final LinkedHashMap<Integer, Tile> tiles;
+
+    // Last used tile, most lookups of a search hit the same tile
+    private int lastTileIndex = -1;
+    private Tile lastTile;
+
+    // Changes of danger levels made on top of the tiles (killed Krakens), they survive eviction of the tile
+    private final HashMap<Integer, Integer> dangerChanges = new HashMap<>();
+    // Killed Krakens in the order of killing, and scratch for their danger zones
+    private final Deque<Integer> killedKrakens = new ArrayDeque<>();
+    private final int[] krakenZone = new int[5];
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Cells of a materialized tile
+     */
+    private static class Tile {
+        final short[] dangerLevels;
+        final byte[] agents;
+
+        Tile(int cellsCount) {
+            this.dangerLevels = new short[cellsCount];
+            this.agents = new byte[cellsCount];
+        }
+    }
+
+    /**
+     * @param file - File written by write()
+     * @param memoryBudget - Maximum number of bytes which materialized tiles can take
+     */
+    public TiledGrid(java.nio.file.Path file, long memoryBudget) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        if (this.file.limit() < HEADER_SIZE || this.file.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException("Not a tiled map: " + file);
+        }
+
+        this.size = this.file.getInt(4);
+        this.tileSize = this.file.getInt(8);
+        this.tilesPerSide = (size + tileSize - 1) / tileSize;
+        this.agentsOffset = HEADER_SIZE + (tilesPerSide * tilesPerSide + 1) * 4;
+
+        // Every tile takes a short and a byte per cell
+        long tileBytes = (long) tileSize * tileSize * 3;
+        int maxTiles = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / tileBytes));
+
+        this.tiles = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(java.util.Map.Entry<Integer, Tile> eldest) {
+                if (size() <= maxTiles) return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Writes agents of the map into the tiled file
+     * @param file - File to write, it is overwritten
+     * @param size - Side of the map
+     * @param tileSize - Side of a tile
+     * @param agents - All agents of the map
+     */
+    public static void write(java.nio.file.Path file, int size, int tileSize, List<? extends Agent> agents) throws IOException {
+        int tilesPerSide = (size + tileSize - 1) / tileSize;
+        int tilesCount = tilesPerSide * tilesPerSide;
+
+        // Agents are counted per tile first, so they can be placed in tile order without sorting
+        int[] firstAgents = new int[tilesCount + 1];
+        for (Agent agent : agents) {
+            firstAgents[getTileOf(agent.getX(), agent.getY(), tileSize, tilesPerSide) + 1]++;
+        }
+        for (int i = 0; i < tilesCount; i++) {
+            firstAgents[i + 1] += firstAgents[i];
+        }
+
+        int agentsOffset = HEADER_SIZE + (tilesCount + 1) * 4;
+        ByteBuffer buffer = ByteBuffer.allocate(agentsOffset + agents.size() * AGENT_BYTES);
+        buffer.putInt(MAGIC).putInt(size).putInt(tileSize).putInt(agents.size());
+        for (int firstAgent : firstAgents) {
+            buffer.putInt(firstAgent);
+        }
+
+        int[] placed = Arrays.copyOf(firstAgents, tilesCount);
+        for (Agent agent : agents) {
+            int position = placed[getTileOf(agent.getX(), agent.getY(), tileSize, tilesPerSide)]++;
+            buffer.putInt(agentsOffset + position * AGENT_BYTES, agent.getX() * size + agent.getY());
+            buffer.put(agentsOffset + position * AGENT_BYTES + 4, (byte) agent.getAlias());
+        }
+
+        buffer.position(0);
+        try (FileChannel output = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                output.write(buffer);
+            }
+        }
+    }
+
+    private static int getTileOf(int x, int y, int tileSize, int tilesPerSide) {
+        return (x / tileSize) * tilesPerSide + y / tileSize;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public int getLoadedTiles() {
+        return tiles.size();
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean isWalkable(int index) {
+        return getDangerLevel(index) == 0;
+    }
+
+    @Override
+    public int getDangerLevel(int index) {
+        int dangerLevel = getTile(index).dangerLevels[getLocalIndex(index)];
+        if (!dangerChanges.isEmpty()) dangerLevel += dangerChanges.getOrDefault(index, 0);
+        return dangerLevel;
+    }
+
+    @Override
+    public int getAgents(int index) {
+        return getTile(index).agents[getLocalIndex(index)] & 0xFF;
+    }
+
+    @Override
+    public void killKraken(int index) {
+        int count = Grid.getKrakenZone(size, index, krakenZone);
+        for (int i = 0; i < count; i++) {
+            changeDangerLevel(krakenZone[i], -1);
+        }
+        killedKrakens.push(index);
+    }
+
+    @Override
+    public void reviveKrakens() {
+        while (!killedKrakens.isEmpty()) {
+            int count = Grid.getKrakenZone(size, killedKrakens.pop(), krakenZone);
+            for (int i = 0; i < count; i++) {
+                changeDangerLevel(krakenZone[i], 1);
+            }
+        }
+    }
+
+    private void changeDangerLevel(int index, int delta) {
+        int change = dangerChanges.getOrDefault(index, 0) + delta;
+        if (change == 0) {
+            dangerChanges.remove(index);
+        } else {
+            dangerChanges.put(index, change);
+        }
+    }
+
+    /**
+     * Agents are taken from the file, so looking for them does not materialize any tile
+     */
+    @Override
+    public List<Integer> findAgents(char alias) {
+        List<Integer> result = new ArrayList<>();
+        int agentsCount = file.getInt(12);
+        for (int i = 0; i < agentsCount; i++) {
+            if (file.get(agentsOffset + i * AGENT_BYTES + 4) == alias) result.add(file.getInt(agentsOffset + i * AGENT_BYTES));
+        }
+        return result;
+    }
+
+    private int getLocalIndex(int index) {
+        return (index / size % tileSize) * tileSize + index % size % tileSize;
+    }
+
+    private Tile getTile(int index) {
+        int tileIndex = getTileOf(index / size, index % size, tileSize, tilesPerSide);
+        if (tileIndex == lastTileIndex) {
+            hits++;
+            return lastTile;
+        }
+
+        // Hits of the fast path skip the cache, so the last tile is moved to the recent end only when the search
+        // leaves it. The order of the cache is then the same as if every lookup went through it
+        if (lastTile != null) tiles.get(lastTileIndex);
+        Tile tile = tiles.get(tileIndex);
+        if (tile == null) {
+            tile = load(tileIndex);
+            tiles.put(tileIndex, tile);
+        } else {
+            hits++;
+        }
+
+        lastTileIndex = tileIndex;
+        lastTile = tile;
+        return tile;
+    }
+
+    /**
+     * Stamps the tile by agents of the tile and of 8 tiles around it, as danger zones reach one cell away
+     * @param tileIndex - Index of the tile
+     * @return Materialized tile
+     */
+    private Tile load(int tileIndex) {
+        misses++;
+
+        Tile tile = new Tile(tileSize * tileSize);
+        int tileX = tileIndex / tilesPerSide, tileY = tileIndex % tilesPerSide;
+        int originX = tileX * tileSize, originY = tileY * tileSize;
+
+        for (int neighbourX = tileX - 1; neighbourX <= tileX + 1; neighbourX++) {
+            for (int neighbourY = tileY - 1; neighbourY <= tileY + 1; neighbourY++) {
+                if (neighbourX < 0 || neighbourX >= tilesPerSide || neighbourY < 0 || neighbourY >= tilesPerSide) continue;
+
+                int neighbourTile = neighbourX * tilesPerSide + neighbourY;
+                int firstAgent = file.getInt(HEADER_SIZE + neighbourTile * 4);
+                int lastAgent = file.getInt(HEADER_SIZE + (neighbourTile + 1) * 4);
+
+                for (int i = firstAgent; i < lastAgent; i++) {
+                    int cell = file.getInt(agentsOffset + i * AGENT_BYTES);
+                    char alias = (char) file.get(agentsOffset + i * AGENT_BYTES + 4);
+                    stamp(tile, originX, originY, cell / size, cell % size, alias);
+                }
+            }
+        }
+
+        return tile;
+    }
+
+    /**
+     * Applies the agent to the cells of the tile, with the same rules as Map uses
+     */
+    private void stamp(Tile tile, int originX, int originY, int x, int y, char alias) {
+        List<Point<Integer, Integer>> dangerZone = switch (alias) {
+            case 'D' -> DavyJones.dangerZone;
+            case 'K' -> Kraken.dangerZone;
+            default -> List.of();
+        };
+
+        for (var perception : dangerZone) {
+            int newX = x + perception.getX(), newY = y + perception.getY();
+            if (isInsideTile(originX, originY, newX, newY)) {
+                tile.dangerLevels[(newX - originX) * tileSize + newY - originY]++;
+            }
+        }
+
+        if (isInsideTile(originX, originY, x, y)) {
+            int local = (x - originX) * tileSize + y - originY;
+            if (alias == 'D' || alias == 'K' || alias == 'R') tile.dangerLevels[local]++;
+            tile.agents[local] |= (byte) Grid.getAgentBit(alias);
+        }
+    }
+
+    private boolean isInsideTile(int originX, int originY, int x, int y) {
+        return x >= originX && x < originX + tileSize && y >= originY && y < originY + tileSize && x < size && y < size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+
+/**
+ * Reusable scratch memory of the solvers, which replaces per-cell search fields of the map.
+ * Every value is tagged with the epoch of the search that wrote it, so starting a new search
+ * only bumps the epoch instead of clearing the whole grid. Contexts are pooled per thread,
+ * therefore a thread must not run two solves at the same time
+ */
+class SearchContext {
+    private static final ThreadLocal<SearchContext> pool = ThreadLocal.withInitial(SearchContext::new);
+
+    private int capacity = 0;
+    private int epoch = 0;
+
+    // Epochs of each group of values that are valid now
+    private int costsEpoch;
+    private int bestPathsEpoch;
+    private int visitedEpoch;
+
+    // G and H costs and parent cells used by A* algorithm
+    private int[] g = new int[0];
+    private int[] h = new int[0];
+    private int[] parent = new int[0];
+    private int[] costsStamp = new int[0];
+
+    // Membership of cells in open and closed lists of A* algorithm
+    private int[] openStamp = new int[0];
+    private int[] closedStamp = new int[0];
+
+    // Current best paths of cells and visited cells used by the Backtracking algorithm
+    private int[] bestPath = new int[0];
+    private int[] bestPathStamp = new int[0];
+    private int[] visitedStamp = new int[0];
+
+    /**
+     * @param cellsCount - Number of cells on the map
+     * @return Context of the current thread, which is big enough for the map
+     */
+    public static SearchContext acquire(int cellsCount) {
+        SearchContext context = pool.get();
+        context.ensureCapacity(cellsCount);
+        return context;
+    }
+
+    /**
+     * @param cellsCount - Number of cells on the map
+     * @return This context, which is big enough for the map
+     */
+    public SearchContext reserve(int cellsCount) {
+        ensureCapacity(cellsCount);
+        return this;
+    }
+
+    private void ensureCapacity(int cellsCount) {
+        if (cellsCount <= capacity) return;
+
+        // New arrays have zero stamps, which never belong to a valid epoch
+        g = new int[cellsCount];
+        h = new int[cellsCount];
+        parent = new int[cellsCount];
+        costsStamp = new int[cellsCount];
+        openStamp = new int[cellsCount];
+        closedStamp = new int[cellsCount];
+        bestPath = new int[cellsCount];
+        bestPathStamp = new int[cellsCount];
+        visitedStamp = new int[cellsCount];
+        capacity = cellsCount;
+    }
+
+    /**
+     * @return Epoch that was never used before
+     */
+    private int nextEpoch() {
+        if (epoch == Integer.MAX_VALUE) {
+            // Once in 2^31 searches stamps are really cleared, so old values can not come back to life
+            for (int[] stamps : List.of(costsStamp, openStamp, closedStamp, bestPathStamp, visitedStamp)) {
+                Arrays.fill(stamps, 0);
+            }
+            epoch = 0;
+        }
+        return ++epoch;
+    }
+
+    /**
+     * Forgets costs, parents, open and closed lists of A* algorithm
+     */
+    public void resetCosts() {
+        costsEpoch = nextEpoch();
+    }
+
+    /**
+     * Forgets current best paths of the Backtracking algorithm
+     */
+    public void resetBestPaths() {
+        bestPathsEpoch = nextEpoch();
+    }
+
+    /**
+     * Marks all cells as not visited
+     */
+    public void resetVisited() {
+        visitedEpoch = nextEpoch();
+    }
+
+    public int getG(int cell) {
+        return costsStamp[cell] == costsEpoch ? g[cell] : Integer.MAX_VALUE;
+    }
+
+    public int getH(int cell) {
+        return costsStamp[cell] == costsEpoch ? h[cell] : Integer.MAX_VALUE;
+    }
+
+    public int getParent(int cell) {
+        return costsStamp[cell] == costsEpoch ? parent[cell] : -1;
+    }
+
+    /**
+     * @return F-cost of the cell for A* algorithm
+     */
+    public int getHeuristic(int cell) {
+        return g[cell] + h[cell];
+    }
+
+    public void setCosts(int cell, int g, int h, int parent) {
+        this.g[cell] = g;
+        this.h[cell] = h;
+        this.parent[cell] = parent;
+        this.costsStamp[cell] = costsEpoch;
+    }
+
+    public boolean isOpen(int cell) {
+        return openStamp[cell] == costsEpoch;
+    }
+
+    public void setOpen(int cell, boolean open) {
+        openStamp[cell] = open ? costsEpoch : 0;
+    }
+
+    public boolean isClosed(int cell) {
+        return closedStamp[cell] == costsEpoch;
+    }
+
+    public void close(int cell) {
+        closedStamp[cell] = costsEpoch;
+    }
+
+    public int getBestPath(int cell) {
+        return bestPathStamp[cell] == bestPathsEpoch ? bestPath[cell] : Integer.MAX_VALUE;
+    }
+
+    public void setBestPath(int cell, int path) {
+        bestPath[cell] = path;
+        bestPathStamp[cell] = bestPathsEpoch;
+    }
+
+    public boolean isVisited(int cell) {
+        return visitedStamp[cell] == visitedEpoch;
+    }
+
+    public void setVisited(int cell, boolean visited) {
+        visitedStamp[cell] = visited ? visitedEpoch : 0;
+    }
+}
+
+
+/**
+ * Abstract graph of the map for hierarchical pathfinding (HPA*). The map is split into square clusters,
+ * nodes of the graph are all walkable cells on the border of each cluster, and distances between nodes
+ * of the same cluster are precomputed. Since every border cell is a node, distances over the graph
+ * are exact. Clusters are built lazily, when a search reaches them, and a change of walkability
+ * inside a cluster drops only the cache of that cluster. A search may take Krakens as killed without changing
+ * the map: clusters which their danger zones touch are then built again as variants for those kills,
+ * which are cached next to the clusters themselves
+ */
+class ClusterGraph {
+    private final Map map;
+    private final int clusterSize;
+    private final int clustersPerSide;
+
+    // Built clusters, null if the cluster was not built yet or its cells were changed
+    private final Cluster[] clusters;
+    // Variants of the clusters for killed Krakens which touch them, by cluster and sorted cells of the Krakens
+    private final java.util.Map<Integer, java.util.Map<List<Integer>, Cluster>> killedVariants = new HashMap<>();
+
+    // Sorted cells of Krakens taken as killed by the current search, and the ones of them touching each cluster
+    private int[] killedKrakens = new int[0];
+    private final java.util.Map<Integer, List<Integer>> killedByCluster = new HashMap<>();
+
+    // Nodes closed by the last search, and whether its token stopped it
+    private long expandedNodes;
+    private boolean cancelled;
+
+    // Number of times any cluster was built, shows how much work the cache saves
+    private int clusterBuilds = 0;
+
+    // Cursor of the edit log of the map, edits before it are already applied to the clusters
+    private long editLogCursor;
+
+    // Scratch arrays of the search inside of a single cluster, indexed by local index of the cell
+    private final int[] localDistance;
+    private final int[] localParent;
+    private final int[] localQueue;
+
+    /**
+     * Nodes of a cluster and distances between them
+     */
+    private static class Cluster {
+        // Indices of node cells on the map, in increasing order
+        int[] nodes;
+        // Distance from node i to node j inside of the cluster is stored at [i * nodes.length + j]
+        int[] distances;
+    }
+
+    /**
+     * @param map - Map to build the graph for
+     * @param clusterSize - Side of a cluster in cells
+     */
+    public ClusterGraph(Map map, int clusterSize) {
+        this.map = map;
+        this.clusterSize = clusterSize;
+        this.clustersPerSide = (map.size + clusterSize - 1) / clusterSize;
+        this.clusters = new Cluster[clustersPerSide * clustersPerSide];
+        this.localDistance = new int[clusterSize * clusterSize];
+        this.localParent = new int[clusterSize * clusterSize];
+        this.localQueue = new int[clusterSize * clusterSize];
+        this.editLogCursor = map.getEditLogCursor();
+    }
+
+    public int getClusterSize() {
+        return clusterSize;
+    }
+
+    public int getClusterBuilds() {
+        return clusterBuilds;
+    }
+
+    /**
+     * @return Nodes of the abstract graph closed by the last search
+     */
+    public long getExpandedNodes() {
+        return expandedNodes;
+    }
+
+    /**
+     * @return true if the last search was stopped by its token
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Drops caches of the clusters which cells were changed by map edits since the previous call
+     */
+    public void update() {
+        List<MapCell> changedCells = map.getDirtyCellsSince(editLogCursor);
+        editLogCursor = map.getEditLogCursor();
+
+        if (changedCells == null) {
+            Arrays.fill(clusters, null);
+            killedVariants.clear();
+            return;
+        }
+        for (MapCell cell : changedCells) {
+            invalidate(cell);
+        }
+    }
+
+    /**
+     * @param cell - Cell which walkability was changed
+     */
+    public void invalidate(MapCell cell) {
+        int cluster = getClusterOf(map.getIndex(cell));
+        clusters[cluster] = null;
+        killedVariants.remove(cluster);
+    }
+
+    private int getClusterOf(int cell) {
+        return (cell / map.size / clusterSize) * clustersPerSide + (cell % map.size) / clusterSize;
+    }
+
+    private int getLocalIndex(int cell) {
+        return (cell / map.size % clusterSize) * clusterSize + cell % map.size % clusterSize;
+    }
+
+    private Cluster getCluster(int cluster) {
+        List<Integer> kills = killedByCluster.get(cluster);
+        if (kills != null) {
+            return killedVariants.computeIfAbsent(cluster, key -> new HashMap<>())
+                    .computeIfAbsent(kills, key -> build(cluster));
+        }
+
+        if (clusters[cluster] == null) clusters[cluster] = build(cluster);
+        return clusters[cluster];
+    }
+
+    /**
+     * Takes Krakens as killed for the next searches, the map itself is not changed
+     * @param krakenCells - Sorted indices of cells of the killed Krakens
+     */
+    private void setKilledKrakens(int[] krakenCells) {
+        killedKrakens = krakenCells;
+        killedByCluster.clear();
+
+        for (int kraken : krakenCells) {
+            int x = kraken / map.size, y = kraken % map.size;
+            addKill(kraken, x, y);
+            for (var perception : Kraken.dangerZone) {
+                addKill(kraken, x + perception.getX(), y + perception.getY());
+            }
+        }
+    }
+
+    private void addKill(int kraken, int x, int y) {
+        if (!map.isInside(x, y)) return;
+
+        List<Integer> kills = killedByCluster.computeIfAbsent(getClusterOf(x * map.size + y), key -> new ArrayList<>());
+        if (!kills.contains(kraken)) kills.add(kraken);
+    }
+
+    /**
+     * @param cell - Index of the cell
+     * @return true if the cell is walkable once the Krakens of the current search are killed
+     */
+    private boolean isWalkable(int cell) {
+        MapCell mapCell = map.getCell(cell);
+        if (mapCell.walkable || killedKrakens.length == 0) return mapCell.walkable;
+
+        // The cell is walkable, if all its danger comes from the killed Krakens.
+        // Danger zone of The Kraken is the cross around it, and The Kraken's own cell
+        int dangerLevel = mapCell.dangerLevel;
+        for (int kraken : killedKrakens) {
+            if (Math.abs(kraken / map.size - mapCell.x) + Math.abs(kraken % map.size - mapCell.y) <= 1) dangerLevel--;
+        }
+        return dangerLevel == 0;
+    }
+
+    private Cluster build(int cluster) {
+        clusterBuilds++;
+
+        int originX = (cluster / clustersPerSide) * clusterSize, originY = (cluster % clustersPerSide) * clusterSize;
+        int endX = Math.min(originX + clusterSize, map.size), endY = Math.min(originY + clusterSize, map.size);
+
+        List<Integer> borderCells = new ArrayList<>();
+        for (int x = originX; x < endX; x++) {
+            for (int y = originY; y < endY; y++) {
+                boolean isBorder = x == originX || x == endX - 1 || y == originY || y == endY - 1;
+                if (isBorder && isWalkable(x * map.size + y)) borderCells.add(x * map.size + y);
+            }
+        }
+
+        Cluster result = new Cluster();
+        int count = borderCells.size();
+        result.nodes = new int[count];
+        result.distances = new int[count * count];
+
+        for (int i = 0; i < count; i++) {
+            result.nodes[i] = borderCells.get(i);
+        }
+        for (int i = 0; i < count; i++) {
+            searchInCluster(result.nodes[i]);
+            for (int j = 0; j < count; j++) {
+                result.distances[i * count + j] = localDistance[getLocalIndex(result.nodes[j])];
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Breadth-first search which does not leave the cluster of the starting cell. The starting cell itself
+     * may be not walkable, as Jack can start in a danger zone. Results are left in localDistance and localParent
+     * @param start - Index of the starting cell
+     */
+    private void searchInCluster(int start) {
+        int cluster = getClusterOf(start);
+        int originX = (cluster / clustersPerSide) * clusterSize, originY = (cluster % clustersPerSide) * clusterSize;
+        int endX = Math.min(originX + clusterSize, map.size), endY = Math.min(originY + clusterSize, map.size);
+
+        Arrays.fill(localDistance, Integer.MAX_VALUE);
+        int head = 0, tail = 0;
+        localDistance[getLocalIndex(start)] = 0;
+        localParent[getLocalIndex(start)] = -1;
+        localQueue[tail++] = start;
+
+        while (head < tail) {
+            int cell = localQueue[head++];
+            int x = cell / map.size, y = cell % map.size;
+
+            for (var offset : Agent.surroundingPerception) {
+                int newX = x + offset.getX(), newY = y + offset.getY();
+                if (newX < originX || newX >= endX || newY < originY || newY >= endY) continue;
+
+                int neighbour = newX * map.size + newY;
+                if (!isWalkable(neighbour)) continue;
+                int local = getLocalIndex(neighbour);
+                if (localDistance[local] != Integer.MAX_VALUE) continue;
+
+                localDistance[local] = localDistance[getLocalIndex(cell)] + 1;
+                localParent[local] = cell;
+                localQueue[tail++] = neighbour;
+            }
+        }
+    }
+
+    /**
+     * @param start - Starting cell
+     * @param finish - Finishing cell
+     * @param context - Scratch memory for the search over the abstract graph
+     * @param krakenCells - Sorted indices of cells of Krakens which are taken as killed, the map is not changed
+     * @param cancellation - Token which stops the search, see isCancelled()
+     * @return Cells of the shortest path without the starting cell, or null if there's no path or it was cancelled
+     */
+    public List<MapCell> shortestPath(MapCell start, MapCell finish, SearchContext context, int[] krakenCells,
+                                      CancellationToken cancellation) {
+        setKilledKrakens(krakenCells);
+        try {
+            return search(map.getIndex(start), map.getIndex(finish), context, cancellation);
+        } finally {
+            setKilledKrakens(new int[0]);
+        }
+    }
+
+    private List<MapCell> search(int startIndex, int finishIndex, SearchContext context,
+                                 CancellationToken cancellation) {
+        expandedNodes = 0;
+        cancelled = false;
+
+        if (startIndex == finishIndex) return new ArrayList<>();
+        if (!isWalkable(finishIndex)) return null;
+
+        int startCluster = getClusterOf(startIndex), finishCluster = getClusterOf(finishIndex);
+        Cluster startNodes = getCluster(startCluster);
+        Cluster finishNodes = getCluster(finishCluster);
+
+        // Start and finish are connected to nodes of their clusters, the finish is searched backwards,
+        // which gives the same distances since every move can be reversed
+        int[] toFinish = new int[finishNodes.nodes.length];
+        searchInCluster(finishIndex);
+        for (int i = 0; i < toFinish.length; i++) {
+            toFinish[i] = localDistance[getLocalIndex(finishNodes.nodes[i])];
+        }
+
+        int[] fromStart = new int[startNodes.nodes.length];
+        searchInCluster(startIndex);
+        for (int i = 0; i < fromStart.length; i++) {
+            fromStart[i] = localDistance[getLocalIndex(startNodes.nodes[i])];
+        }
+
+        // Path which does not leave the cluster
+        int bestPath = startCluster == finishCluster ? localDistance[getLocalIndex(finishIndex)] : Integer.MAX_VALUE;
+        int lastNode = -1;
+
+        context.resetCosts();
+        PriorityQueue<Long> openNodes = new PriorityQueue<>();
+
+        for (int i = 0; i < fromStart.length; i++) {
+            if (fromStart[i] == Integer.MAX_VALUE) continue;
+            open(context, openNodes, startNodes.nodes[i], fromStart[i], startIndex, finishIndex);
+        }
+
+        while (!openNodes.isEmpty()) {
+            long entry = openNodes.poll();
+            int node = (int) entry;
+            // F-costs only grow, so nothing better than the best path can be found anymore
+            if ((entry >>> 32) >= bestPath) break;
+            if (context.isClosed(node)) continue;
+            context.close(node);
+
+            // Reading the clock costs more than closing a node, so the token is checked once per 64 nodes
+            if ((++expandedNodes & 63) == 0 && cancellation.isCancelled()) {
+                cancelled = true;
+                return null;
+            }
+
+            int cost = context.getG(node);
+            int cluster = getClusterOf(node);
+            Cluster nodes = getCluster(cluster);
+            int position = Arrays.binarySearch(nodes.nodes, node);
+
+            if (cluster == finishCluster && toFinish[position] != Integer.MAX_VALUE &&
+                    cost + toFinish[position] < bestPath) {
+                bestPath = cost + toFinish[position];
+                lastNode = node;
+            }
+
+            // Nodes of the same cluster
+            for (int i = 0; i < nodes.nodes.length; i++) {
+                int distance = nodes.distances[position * nodes.nodes.length + i];
+                if (distance == Integer.MAX_VALUE || context.isClosed(nodes.nodes[i])) continue;
+                if (cost + distance < context.getG(nodes.nodes[i])) {
+                    open(context, openNodes, nodes.nodes[i], cost + distance, node, finishIndex);
+                }
+            }
+
+            // Nodes of neighbour clusters, which are right next to this node
+            int x = node / map.size, y = node % map.size;
+            for (var offset : Agent.surroundingPerception) {
+                int newX = x + offset.getX(), newY = y + offset.getY();
+                if (!map.isInside(newX, newY) || !isWalkable(newX * map.size + newY)) continue;
+
+                int neighbour = newX * map.size + newY;
+                if (getClusterOf(neighbour) == cluster || context.isClosed(neighbour)) continue;
+                if (cost + 1 < context.getG(neighbour)) {
+                    open(context, openNodes, neighbour, cost + 1, node, finishIndex);
+                }
+            }
+        }
+
+        if (bestPath == Integer.MAX_VALUE) return null;
+
+        // Abstract path is refined only inside the clusters it goes through
+        List<Integer> abstractPath = new ArrayList<>();
+        abstractPath.add(finishIndex);
+        for (int node = lastNode; node != -1 && node != startIndex; node = context.getParent(node)) {
+            abstractPath.add(node);
+        }
+        abstractPath.add(startIndex);
+        Collections.reverse(abstractPath);
+
+        List<MapCell> path = new ArrayList<>();
+        for (int i = 1; i < abstractPath.size(); i++) {
+            int from = abstractPath.get(i - 1), to = abstractPath.get(i);
+            if (from == to) continue;
+
+            if (getClusterOf(from) != getClusterOf(to)) {
+                path.add(map.getCell(to));
+                continue;
+            }
+
+            searchInCluster(from);
+            int pathStart = path.size();
+            for (int cell = to; cell != from; cell = localParent[getLocalIndex(cell)]) {
+                path.add(map.getCell(cell));
+            }
+            Collections.reverse(path.subList(pathStart, path.size()));
+        }
+
+        return path;
+    }
+
+    private void open(SearchContext context, PriorityQueue<Long> openNodes, int node, int cost, int parent, int finish) {
+        int deltaX = Math.abs(node / map.size - finish / map.size);
+        int deltaY = Math.abs(node % map.size - finish % map.size);
+        int heuristic = Math.max(deltaX, deltaY);
+
+        context.setCosts(node, cost, heuristic, parent);
+        openNodes.add(((long) (cost + heuristic) << 32) | node);
+    }
+}
+
+
+/**
+ * Connected components of walkable cells over moves of Jack, labelled by flood fill in O(cells).
+ * They tell before any search whether the map has a route at all, so losses are answered without searching.
+ * The answer may only be too optimistic: from Tortuga every Kraken that Jack can see from the cells he reaches
+ * is taken as dead at once, while solvers kill them on a single cell. Labels do not depend on the scenario
+ * and are reused until the map is edited, only labels with dead Krakens are kept per scenario
+ */
+class Reachability {
+    private static final int UNWALKABLE = -1;
+
+    private final Map map;
+    private final int[] neighbours = new int[8];
+    private int[] stack = new int[0];
+
+    // Labels of components with all Krakens alive, and labels with killed Krakens for each scenario
+    private int[] labels;
+    private final int[][] labelsAfterKills = new int[3][];
+    private int labelledEditCount = -1;
+
+    /**
+     * @param map - Current map instance
+     */
+    public Reachability(Map map) {
+        this.map = map;
+    }
+
+    /**
+     * @return false if Jack can reach the Chest neither straight nor through Tortuga
+     */
+    public boolean hasRoute() {
+        return hasRoute(map.cells[map.jack.getX()][map.jack.getY()]);
+    }
+
+    /**
+     * @param jackCell - Cell from which Jack starts
+     * @return false if Jack can reach the Chest neither straight nor through Tortuga
+     */
+    public boolean hasRoute(MapCell jackCell) {
+        // Outside of both scenarios Jack has no perception and can't make a single move
+        if (!SolveRequest.isValidScenario(map.scenario)) return false;
+        refresh();
+
+        MapCell chestCell = map.cells[map.chest.getX()][map.chest.getY()];
+        MapCell tortugaCell = map.cells[map.tortuga.getX()][map.tortuga.getY()];
+
+        if (isReachable(labels, jackCell, chestCell)) return true;
+        if (!isReachable(labels, jackCell, tortugaCell)) return false;
+
+        if (labelsAfterKills[map.scenario] == null) {
+            labelsAfterKills[map.scenario] = labelAfterKills(tortugaCell);
+        }
+        return isReachable(labelsAfterKills[map.scenario], tortugaCell, chestCell);
+    }
+
+    /**
+     * @param from - Starting cell, it does not have to be walkable
+     * @param to - Destination cell
+     * @return true if there's a path between the cells while all Krakens are alive
+     */
+    public boolean isReachable(MapCell from, MapCell to) {
+        refresh();
+        return isReachable(labels, from, to);
+    }
+
+    private void refresh() {
+        if (labelledEditCount == map.getEditCount()) return;
+
+        labels = label(new int[map.size * map.size]);
+        Arrays.fill(labelsAfterKills, null);
+        // Labels of a map with killed Krakens are used once and rebuilt after they are revived
+        labelledEditCount = map.hasKilledKrakens() ? -1 : map.getEditCount();
+    }
+
+    /**
+     * Jack never checks the cell he starts from, so the path may start from any cell next to it
+     */
+    private boolean isReachable(int[] labels, MapCell from, MapCell to) {
+        if (from == to) return true;
+
+        int target = labels[map.getIndex(to)];
+        if (target == UNWALKABLE) return false;
+        if (labels[map.getIndex(from)] == target) return true;
+
+        int count = map.getNeighbourIndices(map.getIndex(from), neighbours, 0);
+        for (int i = 0; i < count; i++) {
+            if (labels[neighbours[i]] == target) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Kills all Krakens which Jack sees from Tortuga or from the cells reachable from it, labels the map
+     * and revives them back, in the same way as solvers do
+     * @param tortugaCell - Cell of Tortuga
+     * @return Labels of components after the kills
+     */
+    private int[] labelAfterKills(MapCell tortugaCell) {
+        Set<MapCell> krakenCells = new HashSet<>();
+        for (Kraken kraken : map.krakens) {
+            MapCell krakenCell = map.cells[kraken.getX()][kraken.getY()];
+            // Perception of Jack is symmetric, so he sees The Kraken from the cells that he would see from it
+            for (MapCell cell : map.getNeighbourCells(krakenCell)) {
+                if (isReachable(labels, tortugaCell, cell)) {
+                    krakenCells.add(krakenCell);
+                    break;
+                }
+            }
+        }
+        if (krakenCells.isEmpty()) return labels;
+
+        for (MapCell krakenCell : krakenCells) {
+            map.killKraken(krakenCell);
+            if (!krakenCell.agents.contains('R') && krakenCell.dangerLevel == 0) {
+                krakenCell.changeWalkability(true);
+            }
+        }
+        int[] killedLabels = label(new int[map.size * map.size]);
+        map.reviveKrakens();
+        return killedLabels;
+    }
+
+    /**
+     * Flood fill, which gives the same label to walkable cells connected by moves of Jack
+     * @param labels - Array to write labels to
+     * @return The same array
+     */
+    private int[] label(int[] labels) {
+        int cellsCount = map.size * map.size;
+        if (stack.length < cellsCount) stack = new int[cellsCount];
+        Arrays.fill(labels, 0, cellsCount, UNWALKABLE);
+
+        int components = 0;
+        for (int cell = 0; cell < cellsCount; cell++) {
+            if (labels[cell] != UNWALKABLE || !map.getCell(cell).walkable) continue;
+
+            int label = components++;
+            int top = 0;
+            labels[cell] = label;
+            stack[top++] = cell;
+
+            while (top > 0) {
+                int current = stack[--top];
+                int count = map.getNeighbourIndices(current, neighbours, 0);
+                for (int i = 0; i < count; i++) {
+                    int neighbour = neighbours[i];
+                    if (labels[neighbour] != UNWALKABLE || !map.getCell(neighbour).walkable) continue;
+
+                    labels[neighbour] = label;
+                    stack[top++] = neighbour;
+                }
+            }
+        }
+
+        return labels;
+    }
+}
+
+
+/**
+ * Solver of many maps of the same size at once, which gives the same lengths as A* algorithm.
+ * Maps are bit-sliced: every cell has a long, in which bit i belongs to map i, so one wave of breadth-first
+ * search moves 64 maps at once by a few ORs per cell. Breadth-first search from Jack gives the straight leg
+ * and the leg to Tortuga. Search from Tortuga has two layers: with The Kraken alive and after it was killed,
+ * a map passes to the second layer on the cells from which Jack sees The Kraken
+ */
+class BatchSolver {
+    // Every map of the batch has its own bit in the words of the cells
+    static final int LANES = Long.SIZE;
+
+    private final int size;
+    private final int cellsCount;
+    // Neighbours of cell i are neighbourCells[neighbourStart[i]], ..., neighbourCells[neighbourStart[i + 1] - 1]
+    private final int[] neighbourStart;
+    private final int[] neighbourCells;
+
+    // Masks of the maps of the current batch
+    private final long[] walkable;
+    private final long[] walkableAfterKill;
+    private final long[] killingCells;
+    private final long[] jackCells;
+    private final long[] tortugaCells;
+    private final long[] chestCells;
+
+    // Reached cells and current wave of each search: from Jack, from Tortuga, from Tortuga after the kill
+    private final long[][] reached = new long[3][];
+    private long[][] frontier = new long[3][];
+    private long[][] nextFrontier = new long[3][];
+
+    /**
+     * @param size - Side of all maps which will be solved
+     */
+    public BatchSolver(int size) {
+        this.size = size;
+        this.cellsCount = size * size;
+
+        Map map = new Map();
+        map.setSize(size);
+        int[] neighbours = new int[8];
+        this.neighbourStart = new int[cellsCount + 1];
+        this.neighbourCells = new int[cellsCount * 8];
+        for (int cell = 0; cell < cellsCount; cell++) {
+            int count = map.getNeighbourIndices(cell, neighbours, 0);
+            System.arraycopy(neighbours, 0, neighbourCells, neighbourStart[cell], count);
+            neighbourStart[cell + 1] = neighbourStart[cell] + count;
+        }
+
+        this.walkable = new long[cellsCount];
+        this.walkableAfterKill = new long[cellsCount];
+        this.killingCells = new long[cellsCount];
+        this.jackCells = new long[cellsCount];
+        this.tortugaCells = new long[cellsCount];
+        this.chestCells = new long[cellsCount];
+        for (int i = 0; i < 3; i++) {
+            reached[i] = new long[cellsCount];
+            frontier[i] = new long[cellsCount];
+            nextFrontier[i] = new long[cellsCount];
+        }
+    }
+
+    /**
+     * @param maps - Maps of the same size with at most one Kraken each, in any number
+     * @return Lengths of the paths in the same order as maps, -1 if there's no path
+     */
+    public static int[] solveAll(List<Map> maps) {
+        int[] lengths = new int[maps.size()];
+        if (maps.isEmpty()) return lengths;
+
+        BatchSolver solver = new BatchSolver(maps.get(0).size);
+        for (int from = 0; from < maps.size(); from += LANES) {
+            int[] batch = solver.solve(maps.subList(from, Math.min(maps.size(), from + LANES)));
+            System.arraycopy(batch, 0, lengths, from, batch.length);
+        }
+        return lengths;
+    }
+
+    /**
+     * @param maps - Up to 64 maps of the solver's size with at most one Kraken each
+     * @return Lengths of the paths in the same order as maps, -1 if there's no path
+     */
+    public int[] solve(List<Map> maps) {
+        if (maps.size() > LANES) throw new IllegalArgumentException("batch can not have more than 64 maps");
+        load(maps);
+
+        int[] straightLength = new int[maps.size()];
+        int[] toTortugaLength = new int[maps.size()];
+        int[] fromTortugaLength = new int[maps.size()];
+        Arrays.fill(straightLength, -1);
+        Arrays.fill(toTortugaLength, -1);
+        Arrays.fill(fromTortugaLength, -1);
+
+        // All searches start from level 0, the kill may happen on Tortuga itself
+        for (int cell = 0; cell < cellsCount; cell++) {
+            frontier[0][cell] = reached[0][cell] = jackCells[cell];
+            frontier[1][cell] = reached[1][cell] = tortugaCells[cell];
+            frontier[2][cell] = reached[2][cell] = tortugaCells[cell] & killingCells[cell];
+        }
+
+        long lanes = maps.size() == LANES ? -1L : (1L << maps.size()) - 1;
+        long straightPending = lanes, toTortugaPending = lanes, fromTortugaPending = lanes;
+
+        for (int level = 0; ; level++) {
+            if (level > 0) {
+                boolean active = expand(0, walkable);
+                active |= expand(1, walkable);
+                active |= expand(2, walkableAfterKill);
+                if (!active) break;
+
+                // Maps pass to the layer with the killed Kraken when Jack stands where he sees it
+                for (int cell = 0; cell < cellsCount; cell++) {
+                    long passed = frontier[1][cell] & killingCells[cell] & ~reached[2][cell];
+                    frontier[2][cell] |= passed;
+                    reached[2][cell] |= passed;
+                }
+            }
+
+            straightPending = record(straightLength, straightPending, hits(frontier[0], chestCells), level);
+            toTortugaPending = record(toTortugaLength, toTortugaPending, hits(frontier[0], tortugaCells), level);
+            fromTortugaPending = record(fromTortugaLength, fromTortugaPending,
+                    hits(frontier[1], chestCells) | hits(frontier[2], chestCells), level);
+
+            if ((straightPending | toTortugaPending | fromTortugaPending) == 0) break;
+        }
+
+        // Path through Tortuga is chosen only if it is strictly shorter, as in A* algorithm
+        int[] lengths = new int[maps.size()];
+        for (int lane = 0; lane < maps.size(); lane++) {
+            boolean tortugaPathValid = toTortugaLength[lane] >= 0 && fromTortugaLength[lane] >= 0;
+            int tortugaPath = toTortugaLength[lane] + fromTortugaLength[lane];
+            lengths[lane] = tortugaPathValid && (straightLength[lane] < 0 || tortugaPath < straightLength[lane]) ?
+                    tortugaPath : straightLength[lane];
+        }
+        return lengths;
+    }
+
+    /**
+     * Slices the maps into masks of the cells, bit i of every mask belongs to the map i
+     */
+    private void load(List<Map> maps) {
+        Arrays.fill(walkable, 0);
+        Arrays.fill(walkableAfterKill, 0);
+        Arrays.fill(killingCells, 0);
+        Arrays.fill(jackCells, 0);
+        Arrays.fill(tortugaCells, 0);
+        Arrays.fill(chestCells, 0);
+
+        for (int lane = 0; lane < maps.size(); lane++) {
+            Map map = maps.get(lane);
+            long bit = 1L << lane;
+            if (map.size != size) throw new IllegalArgumentException("all maps of the batch must have the same size");
+            if (map.krakens.size() > 1) throw new IllegalArgumentException("batch maps can have at most one Kraken");
+
+            for (int x = 0, cell = 0; x < size; x++) {
+                MapCell[] row = map.cells[x];
+                for (int y = 0; y < size; y++, cell++) {
+                    if (row[y].walkable) walkable[cell] |= bit;
+                }
+            }
+            jackCells[map.jack.getX() * size + map.jack.getY()] |= bit;
+            tortugaCells[map.tortuga.getX() * size + map.tortuga.getY()] |= bit;
+            chestCells[map.chest.getX() * size + map.chest.getY()] |= bit;
+        }
+
+        // The kill only makes cells walkable, and only in the danger zone of The Kraken
+        System.arraycopy(walkable, 0, walkableAfterKill, 0, cellsCount);
+
+        for (int lane = 0; lane < maps.size(); lane++) {
+            Map map = maps.get(lane);
+            if (map.krakens.isEmpty()) continue;
+
+            long bit = 1L << lane;
+            Kraken kraken = map.krakens.get(0);
+            MapCell krakenCell = map.cells[kraken.getX()][kraken.getY()];
+
+            // Jack sees The Kraken from the cells which he would see from it, and kills it, as solvers do
+            for (MapCell cell : map.getNeighbourCells(krakenCell)) {
+                killingCells[map.getIndex(cell)] |= bit;
+            }
+
+            map.killKraken(krakenCell);
+            if (!krakenCell.agents.contains('R') && krakenCell.dangerLevel == 0) {
+                krakenCell.changeWalkability(true);
+            }
+            if (krakenCell.walkable) walkableAfterKill[map.getIndex(krakenCell)] |= bit;
+            for (var offset : Kraken.dangerZone) {
+                int x = kraken.getX() + offset.getX(), y = kraken.getY() + offset.getY();
+                if (map.isInside(x, y) && map.cells[x][y].walkable) walkableAfterKill[x * size + y] |= bit;
+            }
+            map.reviveKrakens();
+        }
+    }
+
+    /**
+     * Moves the wave of the search by one level for all maps, the start cell is never checked for walkability
+     * @param search - Index of the search
+     * @param mask - Walkable cells
+     * @return true if the wave of some map is not empty
+     */
+    private boolean expand(int search, long[] mask) {
+        long[] current = frontier[search], next = nextFrontier[search], searchReached = reached[search];
+        long active = 0;
+
+        for (int cell = 0; cell < cellsCount; cell++) {
+            long wave = 0;
+            for (int i = neighbourStart[cell]; i < neighbourStart[cell + 1]; i++) {
+                wave |= current[neighbourCells[i]];
+            }
+            wave &= mask[cell] & ~searchReached[cell];
+            next[cell] = wave;
+            active |= wave;
+        }
+        for (int cell = 0; cell < cellsCount; cell++) {
+            searchReached[cell] |= next[cell];
+        }
+
+        nextFrontier[search] = current;
+        frontier[search] = next;
+        return active != 0;
+    }
+
+    /**
+     * @return Maps in which the wave reached their target cell
+     */
+    private long hits(long[] wave, long[] targets) {
+        long hits = 0;
+        for (int cell = 0; cell < cellsCount; cell++) {
+            hits |= wave[cell] & targets[cell];
+        }
+        return hits;
+    }
+
+    /**
+     * Writes the level as the length of the leg for the maps that reached the target for the first time
+     * @return Maps that are still pending
+     */
+    private static long record(int[] lengths, long pending, long hits, int level) {
+        long reachedNow = hits & pending;
+        for (long bits = reachedNow; bits != 0; bits &= bits - 1) {
+            lengths[Long.numberOfTrailingZeros(bits)] = level;
+        }
+        return pending & ~reachedNow;
+    }
+}
+
+
+/**
+ * Distance field of the whole map from a single cell over moves of Jack, which also answers reachability.
+ * The default engine expands the wavefront on bitsets: every row of the map is a few longs, so one level
+ * of breadth-first search is a handful of shifts and ORs per 64 cells, masked by walkability of the cells.
+ * Scalar engine is a plain queue-based search, it is kept as a fallback and as a reference, and it is also
+ * the search of the solvers which need links of the cells or cancellation
+ */
+class DistanceField {
+    enum Engine {
+        BITSET,
+        SCALAR
+    }
+
+    // Engine can be switched to the scalar one with -DdistanceField.scalar=true
+    static final Engine DEFAULT_ENGINE = Boolean.getBoolean("distanceField.scalar") ? Engine.SCALAR : Engine.BITSET;
+
+    // Offsets of 8 surrounding cells, unboxed once for the queue search
+    private static final int[] OFFSETS_X = Agent.surroundingPerception.stream().mapToInt(Point::getX).toArray();
+    private static final int[] OFFSETS_Y = Agent.surroundingPerception.stream().mapToInt(Point::getY).toArray();
+    private static final CancellationToken NEVER_CANCELLED = new CancellationToken();
+
+    private final int size;
+    private final int wordsPerRow;
+    // Mask of the bits of the last word of a row which belong to the map
+    private final long lastWordMask;
+
+    // Bit y of row x is set if the cell (x, y) is walkable
+    private final long[] walkable;
+    private final long[] reached;
+    // Frontier of the current level and of the next one. Bit w of the words of a row is set
+    // if word w of the row has cells of the frontier
+    private long[] frontier;
+    private long[] nextFrontier;
+    private long[] frontierWords;
+    private long[] nextFrontierWords;
+    // Frontier of the rows around the current one ORed together, word w is at w + 1
+    private final long[] row;
+    // Mask of the bits of the words of a row which belong to the map
+    private final long rowWordsMask;
+    private final int[] queue;
+
+    private final int[] distances;
+    // Cells which the last queue search expanded
+    private long expandedCells;
+
+    /**
+     * @param map - Generated map, walkability of its cells is copied
+     */
+    public DistanceField(Map map) {
+        this.size = map.size;
+        this.wordsPerRow = (size + 63) / 64;
+        this.lastWordMask = size % 64 == 0 ? -1L : (1L << (size % 64)) - 1;
+
+        this.walkable = new long[size * wordsPerRow];
+        this.reached = new long[size * wordsPerRow];
+        this.frontier = new long[size * wordsPerRow];
+        this.nextFrontier = new long[size * wordsPerRow];
+        this.frontierWords = new long[size];
+        this.nextFrontierWords = new long[size];
+        this.rowWordsMask = wordsPerRow >= 64 ? -1L : (1L << wordsPerRow) - 1;
+        this.row = new long[wordsPerRow + 2];
+        this.queue = new int[size * size];
+        this.distances = new int[size * size];
+
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                if (map.cells[x][y].walkable) walkable[x * wordsPerRow + y / 64] |= 1L << (y % 64);
+            }
+        }
+    }
+
+    /**
+     * @param index - Index of the cell
+     * @return Number of moves between the cell and the source, or Integer.MAX_VALUE if it is not reachable
+     */
+    public int getDistance(int index) {
+        return distances[index];
+    }
+
+    public boolean isReachable(int index) {
+        return distances[index] != Integer.MAX_VALUE;
+    }
+
+    public long getExpandedCells() {
+        return expandedCells;
+    }
+
+    public void compute(int source, boolean reverse) {
+        compute(source, reverse, DEFAULT_ENGINE);
+    }
+
+    /**
+     * Every move must land on a walkable cell, while the starting cell of the route may be not walkable
+     * @param source - Index of the cell to compute distances from
+     * @param reverse - If true, distances of routes which end in the source are computed, otherwise of routes
+     *                which start there
+     * @param engine - Engine of the search
+     */
+    public void compute(int source, boolean reverse, Engine engine) {
+        // Words of a row are tracked by a single long, so rows longer than 4096 cells use the scalar engine
+        if (engine == Engine.BITSET && wordsPerRow <= 64) {
+            Arrays.fill(distances, Integer.MAX_VALUE);
+            distances[source] = 0;
+            computeByBitsets(source, reverse);
+        } else {
+            search(source, reverse, distances, null);
+        }
+    }
+
+    private void computeByBitsets(int source, boolean reverse) {
+        Arrays.fill(reached, 0);
+        Arrays.fill(frontier, 0);
+        Arrays.fill(nextFrontier, 0);
+        Arrays.fill(frontierWords, 0);
+        Arrays.fill(nextFrontierWords, 0);
+
+        int sourceRow = source / size, sourceWord = (source % size) >> 6;
+        reached[sourceRow * wordsPerRow + sourceWord] = 1L << (source % size);
+        frontier[sourceRow * wordsPerRow + sourceWord] = reached[sourceRow * wordsPerRow + sourceWord];
+        frontierWords[sourceRow] = 1L << sourceWord;
+        // Rows of the frontier, the wavefront never grows by more than one row in each direction
+        int firstRow = sourceRow, lastRow = sourceRow;
+
+        for (int distance = 1; firstRow <= lastRow; distance++) {
+            int nextFirstRow = Integer.MAX_VALUE, nextLastRow = -1;
+
+            for (int x = Math.max(0, firstRow - 1); x <= Math.min(size - 1, lastRow + 1); x++) {
+                // Only words of the frontier in this row and in the rows next to it can change, and the words
+                // next to them if a cell at the edge of the word moves into them. In the middle of the wavefront
+                // these are a few words at its sides
+                long words = frontierWords[x];
+                if (x > 0) words |= frontierWords[x - 1];
+                if (x < size - 1) words |= frontierWords[x + 1];
+                if (words == 0) continue;
+
+                // Vertical neighbours are ORed first, so the horizontal ones are just shifts of the same row
+                long changedWords = words;
+                for (long rest = words; rest != 0; rest &= rest - 1) {
+                    int w = Long.numberOfTrailingZeros(rest);
+                    long word = frontier[x * wordsPerRow + w];
+                    if (x > 0) word |= frontier[(x - 1) * wordsPerRow + w];
+                    if (x < size - 1) word |= frontier[(x + 1) * wordsPerRow + w];
+                    row[w + 1] = word;
+                    if ((word & 1) != 0) changedWords |= 1L << w >>> 1;
+                    if (word < 0) changedWords |= 1L << w << 1;
+                }
+                changedWords &= rowWordsMask;
+
+                long expandedWords = 0;
+                for (long rest = changedWords; rest != 0; rest &= rest - 1) {
+                    int w = Long.numberOfTrailingZeros(rest);
+                    int index = x * wordsPerRow + w;
+
+                    long word = (words & 1L << w) != 0 ? row[w + 1] : 0;
+                    long left = w > 0 && (words & 1L << (w - 1)) != 0 ? row[w] : 0;
+                    long right = w < wordsPerRow - 1 && (words & 1L << (w + 1)) != 0 ? row[w + 2] : 0;
+                    long neighbours = word | (word << 1) | (left >>> 63) | (word >>> 1) | (right << 63);
+                    if (w == wordsPerRow - 1) neighbours &= lastWordMask;
+
+                    long newCells = neighbours & ~reached[index];
+                    if (!reverse) newCells &= walkable[index];
+                    reached[index] |= newCells;
+
+                    // In reverse search the route can start in a danger zone, but can not pass through it
+                    long expanded = reverse ? newCells & walkable[index] : newCells;
+                    nextFrontier[index] = expanded;
+                    if (expanded != 0) expandedWords |= 1L << w;
+
+                    while (newCells != 0) {
+                        distances[x * size + (w << 6) + Long.numberOfTrailingZeros(newCells)] = distance;
+                        newCells &= newCells - 1;
+                    }
+                }
+
+                nextFrontierWords[x] = expandedWords;
+                if (expandedWords != 0) {
+                    nextFirstRow = Math.min(nextFirstRow, x);
+                    nextLastRow = x;
+                }
+            }
+
+            // Old frontier is cleared where it was set, so the arrays can be swapped for the next level
+            for (int x = firstRow; x <= lastRow; x++) {
+                for (long rest = frontierWords[x]; rest != 0; rest &= rest - 1) {
+                    frontier[x * wordsPerRow + Long.numberOfTrailingZeros(rest)] = 0;
+                }
+                frontierWords[x] = 0;
+            }
+            long[] frontierCells = frontier;
+            frontier = nextFrontier;
+            nextFrontier = frontierCells;
+            long[] words = frontierWords;
+            frontierWords = nextFrontierWords;
+            nextFrontierWords = words;
+
+            firstRow = nextFirstRow;
+            lastRow = nextLastRow;
+        }
+    }
+
+    /**
+     * Breadth-first search which can not be cancelled, see the search with a token
+     */
+    public void search(int source, boolean reverse, int[] distances, int[] links) {
+        search(source, reverse, distances, links, NEVER_CANCELLED);
+    }
+
+    /**
+     * Breadth-first search in the order of Agent.surroundingPerception, which also gives links of the cells,
+     * so it is shared by the searches which trace paths. Every move must land on a walkable cell, while
+     * the starting cell of the route may be not walkable
+     * @param source - Index of the cell to search from
+     * @param reverse - If true, routes which end in the source are searched, otherwise routes which start there
+     * @param distances - Array to store the number of moves of every cell, Integer.MAX_VALUE if it is not reached
+     * @param links - Array to store the next cell towards the source (reverse) or the previous cell (forward),
+     *              -1 for the source, or null if links are not needed
+     * @param cancellation - Token which is checked once per 64 expanded cells
+     * @return false if the token stopped the search
+     */
+    public boolean search(int source, boolean reverse, int[] distances, int[] links, CancellationToken cancellation) {
+        Arrays.fill(distances, Integer.MAX_VALUE);
+        distances[source] = 0;
+        if (links != null) links[source] = -1;
+
+        int head = 0, tail = 0;
+        queue[tail++] = source;
+
+        while (head < tail) {
+            int cell = queue[head++];
+            if ((head & 63) == 0 && cancellation.isCancelled()) {
+                expandedCells = head;
+                return false;
+            }
+
+            int x = cell / size, y = cell % size;
+            int distance = distances[cell] + 1;
+            for (int i = 0; i < OFFSETS_X.length; i++) {
+                int newX = x + OFFSETS_X[i], newY = y + OFFSETS_Y[i];
+                if (newX < 0 || newX >= size || newY < 0 || newY >= size) continue;
+
+                int neighbour = newX * size + newY;
+                if (distances[neighbour] != Integer.MAX_VALUE) continue;
+
+                boolean isWalkable = (walkable[newX * wordsPerRow + (newY >> 6)] & (1L << newY)) != 0;
+                // Forward route can not step on the cell, reverse route can start there but not pass through
+                if (!reverse && !isWalkable) continue;
+
+                distances[neighbour] = distance;
+                if (links != null) links[neighbour] = cell;
+                if (isWalkable) queue[tail++] = neighbour;
+            }
+        }
+
+        expandedCells = tail;
+        return true;
+    }
+}
+
+/**
+ * Landmarks of a map for the ALT heuristic (A*, Landmarks, Triangle inequality). For any landmark L,
+ * the distance between cells a and b is at least |d(L, a) - d(L, b)|, and the largest of those bounds is far
+ * closer to the real distance than Chebyshev distance is around walls of danger zones. Distances of all landmarks
+ * to a cell are stored next to each other as 16-bit values, so a bound reads one short row per cell
+ */
+class Landmarks {
+    static final int DEFAULT_COUNT = 8;
+    // Distances are saturated below this value, which still keeps the bounds admissible
+    private static final char UNREACHABLE = Character.MAX_VALUE;
+
+    private final Map map;
+    private final int count;
+    private final int[] landmarkCells;
+    // Row of the cell i is [i * count, (i + 1) * count), with all Krakens alive and with all of them killed
+    private final char[] distances;
+    private final char[] distancesAfterKills;
+
+    // Walkability of the cells the landmarks were built for, it is compared with the map only after edits
+    private final long[] walkable;
+    private int checkedEditCount;
+    private boolean upToDate = true;
+
+    public Landmarks(Map map, int count) {
+        this(map, count, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Landmarks are chosen one after another by farthest-point selection, since every choice depends on
+     * distances from the previous landmarks. Distances after kills are computed for all landmarks in parallel
+     * @param map - Map which walkability does not change while the landmarks are used
+     * @param count - Number of landmarks
+     * @param pool - Pool to compute distances after kills in
+     */
+    public Landmarks(Map map, int count, ForkJoinPool pool) {
+        if (count < 1) throw new IllegalArgumentException("count must be positive");
+
+        int cellsCount = map.size * map.size;
+        this.map = map;
+        this.count = count;
+        this.landmarkCells = new int[count];
+        this.distances = new char[cellsCount * count];
+        this.distancesAfterKills = new char[cellsCount * count];
+        this.walkable = new long[(cellsCount + 63) >> 6];
+        this.checkedEditCount = map.getEditCount();
+
+        for (int cell = 0; cell < cellsCount; cell++) {
+            if (map.getCell(cell).walkable) walkable[cell >> 6] |= 1L << cell;
+        }
+
+        // The first landmark is the cell farthest from the Chest, every next one is the cell farthest from
+        // all chosen landmarks. Cells which are not reachable from the Chest are never chosen
+        DistanceField field = new DistanceField(map);
+        field.compute(map.getIndex(map.cells[map.chest.getX()][map.chest.getY()]), false);
+        int[] nearestLandmark = new int[cellsCount];
+        for (int cell = 0; cell < cellsCount; cell++) {
+            nearestLandmark[cell] = field.getDistance(cell);
+        }
+
+        for (int k = 0; k < count; k++) {
+            // The Chest is always reachable from itself, so some cell is chosen
+            int farthest = -1;
+            for (int cell = 0; cell < cellsCount; cell++) {
+                if (nearestLandmark[cell] == Integer.MAX_VALUE) continue;
+                if (farthest == -1 || nearestLandmark[cell] > nearestLandmark[farthest]) farthest = cell;
+            }
+
+            landmarkCells[k] = farthest;
+            field.compute(farthest, false);
+            for (int cell = 0; cell < cellsCount; cell++) {
+                int distance = field.getDistance(cell);
+                distances[cell * count + k] = saturate(distance);
+                if (k == 0) {
+                    // Distances from the Chest are not a landmark, they only picked the first one
+                    nearestLandmark[cell] = distance;
+                } else if (distance != Integer.MAX_VALUE) {
+                    nearestLandmark[cell] = Math.min(nearestLandmark[cell], distance);
+                }
+            }
+        }
+
+        computeDistancesAfterKills(pool);
+    }
+
+    /**
+     * Jack kills Krakens only on the way from Tortuga, and only some of them, so the distances on the map
+     * without any Krakens bound all such paths from below
+     */
+    private void computeDistancesAfterKills(ForkJoinPool pool) {
+        int workers = Math.min(count, pool.getParallelism());
+        DistanceField[] fields = new DistanceField[workers];
+
+        // Fields copy walkability of the cells, so they are created while all Krakens are killed
+        for (Kraken kraken : map.krakens) {
+            MapCell cell = map.cells[kraken.getX()][kraken.getY()];
+            map.killKraken(cell);
+            if (!cell.agents.contains('R') && cell.dangerLevel == 0) cell.changeWalkability(true);
+        }
+        for (int worker = 0; worker < workers; worker++) {
+            fields[worker] = new DistanceField(map);
+        }
+        map.reviveKrakens();
+
+        List<Callable<Void>> tasks = new ArrayList<>(workers);
+        for (int worker = 0; worker < workers; worker++) {
+            DistanceField field = fields[worker];
+            int firstLandmark = worker;
+            tasks.add(() -> {
+                for (int k = firstLandmark; k < count; k += workers) {
+                    field.compute(landmarkCells[k], false);
+                    for (int cell = 0; cell < map.size * map.size; cell++) {
+                        distancesAfterKills[cell * count + k] = saturate(field.getDistance(cell));
+                    }
+                }
+                return null;
+            });
+        }
+
+        for (Future<Void> result : pool.invokeAll(tasks)) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Landmarks were interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Landmarks failed", e.getCause());
+            }
+        }
+    }
+
+    private static char saturate(int distance) {
+        return distance == Integer.MAX_VALUE ? UNREACHABLE : (char) Math.min(distance, UNREACHABLE - 1);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param k - Number of the landmark
+     * @return Index of the cell of the landmark
+     */
+    public int getLandmark(int k) {
+        return landmarkCells[k];
+    }
+
+    /**
+     * @return Bytes taken by distances of all landmarks
+     */
+    public long getMemoryBytes() {
+        return 2L * (distances.length + distancesAfterKills.length);
+    }
+
+    /**
+     * Walkability is compared only when the map was edited since the last check, so moving Jack, Tortuga
+     * or the Chest keeps the landmarks, while moving enemies or rocks makes them outdated for good
+     * @return false if walkability of the map is not the same as when the landmarks were built,
+     * or it can't be checked because Krakens are killed
+     */
+    public boolean isUpToDate() {
+        if (!upToDate || checkedEditCount == map.getEditCount()) return upToDate;
+        // Danger zones of killed Krakens are walkable until they are revived, so the check waits for that
+        if (map.hasKilledKrakens()) return false;
+
+        for (int cell = 0; cell < map.size * map.size && upToDate; cell++) {
+            upToDate = map.getCell(cell).walkable == ((walkable[cell >> 6] & (1L << cell)) != 0);
+        }
+        checkedEditCount = map.getEditCount();
+        return upToDate;
+    }
+
+    /**
+     * @param from - Index of the first cell
+     * @param to - Index of the second cell
+     * @param afterKills - true if Krakens may have been killed
+     * @return Lower bound of the number of moves between the cells, 0 if landmarks know nothing about them
+     */
+    public int getBound(int from, int to, boolean afterKills) {
+        char[] rows = afterKills ? distancesAfterKills : distances;
+        int fromRow = from * count, toRow = to * count;
+        int bound = 0;
+
+        for (int k = 0; k < count; k++) {
+            int fromDistance = rows[fromRow + k], toDistance = rows[toRow + k];
+            // A cell in another component than the landmark tells nothing
+            if (fromDistance == UNREACHABLE || toDistance == UNREACHABLE) continue;
+            bound = Math.max(bound, Math.abs(fromDistance - toDistance));
+        }
+        return bound;
+    }
+}
+
+
+/**
+ * Priority queue of cells with small integer keys (Dial's algorithm). Keys of queued cells never exceed
+ * the smallest key by more than a fixed delta, so a circle of delta + 1 buckets holds all of them, and both
+ * adding and polling take constant time instead of logarithmic time of a heap. Keys must never decrease
+ * below the key of the last polled cell, which holds for A* with consistent heuristic
+ */
+class BucketQueue {
+    private final int[][] buckets;
+    private final int[] bucketSizes;
+
+    // Key of the bucket that is polled now and number of cells in all buckets
+    private int currentKey = 0;
+    private int size = 0;
+
+    /**
+     * @param maxKeyDelta - Maximum difference between keys of any two cells in the queue at the same time
+     */
+    public BucketQueue(int maxKeyDelta) {
+        this.buckets = new int[maxKeyDelta + 1][16];
+        this.bucketSizes = new int[maxKeyDelta + 1];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(bucketSizes, 0);
+        size = 0;
+    }
+
+    /**
+     * @param cell - Index of the cell, the same cell may be added several times with different keys
+     * @param key - Key of the cell
+     */
+    public void add(int cell, int key) {
+        // Empty queue can move to any key, keys which fit the current window keep it, since polled cells
+        // may still add cells with the key that is polled now
+        if (size == 0 && (key < currentKey || key - currentKey >= buckets.length)) currentKey = key;
+        if (key < currentKey || key - currentKey >= buckets.length) {
+            throw new IllegalArgumentException(String.format("key %d is out of [%d, %d]",
+                    key, currentKey, currentKey + buckets.length - 1));
+        }
+
+        int bucket = key % buckets.length;
+        if (bucketSizes[bucket] == buckets[bucket].length) {
+            buckets[bucket] = Arrays.copyOf(buckets[bucket], 2 * buckets[bucket].length);
+        }
+        buckets[bucket][bucketSizes[bucket]++] = cell;
+        size++;
+    }
+
+    /**
+     * Cells with the same key are polled in reverse order of adding, for A* those are usually the deepest ones
+     * @return Index of a cell with the smallest key, the queue must not be empty
+     */
+    public int poll() {
+        while (bucketSizes[currentKey % buckets.length] == 0) currentKey++;
+
+        int bucket = currentKey % buckets.length;
+        size--;
+        return buckets[bucket][--bucketSizes[bucket]];
+    }
+
+    /**
+     * @return Key of the last polled cell
+     */
+    public int getCurrentKey() {
+        return currentKey;
+    }
+}
+
+
+/**
+ * Periodic trajectory of an enemy, the enemy stands on route[t % route.length] at tick t
+ * @param agent - Enemy of the map, its current position is ignored by space-time searches
+ * @param route - Packed cells (x * size + y) of one period of the trajectory
+ */
+record Patrol(Agent agent, int[] route) {
+    Patrol {
+        if (agent == null || !agent.isDangerous) throw new IllegalArgumentException("Only enemies can patrol");
+        if (route == null || route.length == 0) throw new IllegalArgumentException("Route must not be empty");
+    }
+
+    /**
+     * The walk never steps on rocks or on cells of other agents. An enemy which is walled in by them
+     * waits on its cell for the move
+     * @param map - Map of the enemy
+     * @param agent - Enemy which patrols
+     * @param random - Random generator
+     * @param steps - Number of moves the enemy makes before it turns back, at least 1
+     * @return Patrol which goes by a random walk from the cell of the enemy and back, its period is 2 * steps
+     */
+    static Patrol pingPong(Map map, Agent agent, Random random, int steps) {
+        if (steps < 1) throw new IllegalArgumentException("Patrol must make at least one step");
+
+        int[] route = new int[2 * steps];
+        int[] moves = new int[8];
+        int x = agent.getX(), y = agent.getY();
+
+        for (int i = 0; i <= steps; i++) {
+            route[i] = x * map.size + y;
+            if (i == steps) break;
+
+            // Enemies move to one of the 8 surrounding cells, as Jack does, if nothing else stands there
+            int count = 0;
+            for (int m = 0; m < Agent.surroundingPerception.size(); m++) {
+                var move = Agent.surroundingPerception.get(m);
+                int newX = x + move.getX(), newY = y + move.getY();
+                if (!map.isInside(newX, newY)) continue;
+                if ((newX == agent.getX() && newY == agent.getY()) || map.cells[newX][newY].agents.isEmpty()) {
+                    moves[count++] = m;
+                }
+            }
+            if (count == 0) continue;
+
+            var move = Agent.surroundingPerception.get(moves[random.nextInt(count)]);
+            x += move.getX();
+            y += move.getY();
+        }
+        for (int i = steps + 1; i < route.length; i++) {
+            route[i] = route[2 * steps - i];
+        }
+
+        return new Patrol(agent, route);
+    }
+}
+
+
+/**
+ * Table of ticks at which cells are covered by danger zones of patrolling enemies. Danger of other agents does not
+ * depend on time and is kept in a single bitset. Only cells which some patrol ever covers get a row of bits over
+ * one period of all patrols, so the table stays small when patrols sweep a small part of the map.
+ * Krakens which do not patrol may be killed by Jack, so the table also counts how many of such agents cover a cell
+ */
+class ReservationTable {
+    // Period of all patrols is bounded, so rows of the table and states of space-time searches stay small
+    static final int MAX_PERIOD = 1 << 16;
+
+    private final Map map;
+    private final List<Patrol> patrols;
+    // Agents are compared by identity, as the map compares them
+    private final Set<Agent> patrolling = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final int period;
+    // Number of longs in the row of a cell
+    private final int rowLength;
+
+    // Cells which are dangerous at every tick
+    private long[] staticDanger;
+    // Number of agents which do not patrol and whose danger covers the cell, and how many of them are Krakens
+    private short[] staticLevels;
+    private short[] krakenLevels;
+    // Components of cells which are safe at some tick, with all Krakens alive and with Krakens which do not patrol
+    // taken as dead, null until the first pre-check after a build
+    private int[] labels;
+    private int[] labelsWithoutKrakens;
+    private int[] stack = new int[0];
+    // Row of every cell in busyTicks, -1 for cells which no patrol covers
+    private int[] rows;
+    private long[] busyTicks;
+    private int rowsCount;
+    // Cells which some patrol covers, or which are next to such cells
+    private long[] nearPatrols;
+    private final int[] neighbours = new int[8];
+    private int builtEditCount = -1;
+
+    /**
+     * @param map - Current map instance
+     * @param patrols - Trajectories of patrolling enemies, each enemy must be on the map
+     */
+    public ReservationTable(Map map, List<Patrol> patrols) {
+        int cellsCount = map.size * map.size;
+        long period = 1;
+
+        for (Patrol patrol : patrols) {
+            if (!map.agents.contains(patrol.agent())) throw new IllegalArgumentException("Enemy is not on the map");
+            for (int cell : patrol.route()) {
+                if (cell < 0 || cell >= cellsCount) throw new IllegalArgumentException("Route leaves the map");
+            }
+
+            long length = patrol.route().length;
+            period = period / gcd(period, length) * length;
+            if (period > MAX_PERIOD) {
+                throw new IllegalArgumentException(String.format("Period of patrols exceeds %d ticks", MAX_PERIOD));
+            }
+        }
+
+        this.map = map;
+        this.patrols = List.copyOf(patrols);
+        for (Patrol patrol : patrols) {
+            patrolling.add(patrol.agent());
+        }
+        this.period = (int) period;
+        this.rowLength = (this.period + 63) >> 6;
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    /**
+     * @return Number of ticks after which all patrols are back to their starting cells
+     */
+    public int getPeriod() {
+        return period;
+    }
+
+    /**
+     * @return Number of cells which some patrol covers at some tick
+     */
+    public int getReservedCells() {
+        refresh();
+        return rowsCount;
+    }
+
+    /**
+     * @param agent - Agent of the map
+     * @return true if the agent moves along one of the patrols of the table
+     */
+    public boolean isPatrolling(Agent agent) {
+        return patrolling.contains(agent);
+    }
+
+    /**
+     * @return Bytes taken by bitsets, counters and rows of the table, without labels of the pre-check
+     */
+    public long getMemoryBytes() {
+        refresh();
+        return 8L * (staticDanger.length + nearPatrols.length + (long) rowsCount * rowLength) + 4L * rows.length +
+                2L * (staticLevels.length + krakenLevels.length);
+    }
+
+    /**
+     * Rebuilds the table if the map was edited since the last build, must be called before a search
+     */
+    public void refresh() {
+        if (builtEditCount == map.getEditCount()) return;
+
+        build();
+        // A table built with killed Krakens is used once and rebuilt after they are revived
+        builtEditCount = map.hasKilledKrakens() ? -1 : map.getEditCount();
+    }
+
+    /**
+     * @param cell - Index of the cell
+     * @param phase - Tick modulo the period
+     * @return true if no danger zone covers the cell at the tick
+     */
+    public boolean isSafe(int cell, int phase) {
+        if ((staticDanger[cell >> 6] & (1L << cell)) != 0) return false;
+
+        int row = rows[cell];
+        return row == -1 || (busyTicks[row * rowLength + (phase >> 6)] & (1L << phase)) == 0;
+    }
+
+    /**
+     * @param cell - Index of the cell
+     * @param phase - Tick modulo the period
+     * @param killedKrakens - Cells of Krakens which do not patrol and were killed by Jack
+     * @param killedCount - Number of the killed Krakens
+     * @return true if no danger zone covers the cell at the tick once the Krakens are dead
+     */
+    public boolean isSafe(int cell, int phase, int[] killedKrakens, int killedCount) {
+        if ((staticDanger[cell >> 6] & (1L << cell)) != 0) {
+            int level = staticLevels[cell];
+            // The Kraken covers its own cell and the cells next to it by side
+            for (int i = 0; i < killedCount; i++) {
+                int kraken = killedKrakens[i];
+                int deltaX = Math.abs(cell / map.size - kraken / map.size);
+                int deltaY = Math.abs(cell % map.size - kraken % map.size);
+                if (deltaX + deltaY <= 1) level--;
+            }
+            if (level > 0) return false;
+        }
+
+        int row = rows[cell];
+        return row == -1 || (busyTicks[row * rowLength + (phase >> 6)] & (1L << phase)) == 0;
+    }
+
+    /**
+     * Pre-check which is done before any search, it costs O(cells) once per build of the table. Patrols are
+     * ignored and from Tortuga every Kraken which does not patrol is taken as dead, so the answer may only be
+     * too optimistic
+     * @param start - Cell from which Jack starts
+     * @param chest - Cell of the Chest
+     * @param tortuga - Cell of Tortuga
+     * @return false if Jack can reach the Chest neither straight nor through Tortuga at any tick
+     */
+    public boolean hasRoute(int start, int chest, int tortuga) {
+        refresh();
+        if (labels == null) labels = label(false);
+        if (isReachable(labels, start, chest)) return true;
+        if (!isReachable(labels, start, tortuga)) return false;
+
+        if (labelsWithoutKrakens == null) labelsWithoutKrakens = label(true);
+        return isReachable(labelsWithoutKrakens, tortuga, chest);
+    }
+
+    /**
+     * Jack never checks the cell he starts from, so the path may start from any cell next to it
+     */
+    private boolean isReachable(int[] labels, int from, int to) {
+        if (from == to) return true;
+
+        int target = labels[to];
+        if (target == -1) return false;
+        if (labels[from] == target) return true;
+
+        int count = map.getNeighbourIndices(from, neighbours, 0);
+        for (int i = 0; i < count; i++) {
+            if (labels[neighbours[i]] == target) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Flood fill, which gives the same label to cells connected by moves of Jack, unless danger of agents
+     * which do not patrol covers them
+     * @param withoutKrakens - Whether Krakens which do not patrol are taken as dead
+     * @return Label of every cell, -1 for dangerous cells
+     */
+    private int[] label(boolean withoutKrakens) {
+        int cellsCount = map.size * map.size;
+        int[] labels = new int[cellsCount];
+        Arrays.fill(labels, -1);
+        if (stack.length < cellsCount) stack = new int[cellsCount];
+
+        int components = 0;
+        for (int cell = 0; cell < cellsCount; cell++) {
+            if (labels[cell] != -1 || !isSafeAtSomeTick(cell, withoutKrakens)) continue;
+
+            int label = components++;
+            int top = 0;
+            labels[cell] = label;
+            stack[top++] = cell;
+
+            while (top > 0) {
+                int current = stack[--top];
+                int count = map.getNeighbourIndices(current, neighbours, 0);
+                for (int i = 0; i < count; i++) {
+                    int neighbour = neighbours[i];
+                    if (labels[neighbour] != -1 || !isSafeAtSomeTick(neighbour, withoutKrakens)) continue;
+
+                    labels[neighbour] = label;
+                    stack[top++] = neighbour;
+                }
+            }
+        }
+
+        return labels;
+    }
+
+    private boolean isSafeAtSomeTick(int cell, boolean withoutKrakens) {
+        return (staticDanger[cell >> 6] & (1L << cell)) == 0 ||
+                (withoutKrakens && staticLevels[cell] == krakenLevels[cell]);
+    }
+
+    /**
+     * @param cell - Index of the cell
+     * @return true if danger of agents which do not patrol covers the cell
+     */
+    public boolean isStaticallyDangerous(int cell) {
+        return (staticDanger[cell >> 6] & (1L << cell)) != 0;
+    }
+
+    /**
+     * @param cell - Index of the cell
+     * @return true if some patrol covers the cell or one of its neighbours at some tick
+     */
+    public boolean isNearPatrols(int cell) {
+        return (nearPatrols[cell >> 6] & (1L << cell)) != 0;
+    }
+
+    private void build() {
+        int cellsCount = map.size * map.size;
+        staticDanger = new long[(cellsCount + 63) >> 6];
+        staticLevels = new short[cellsCount];
+        krakenLevels = new short[cellsCount];
+        labels = null;
+        labelsWithoutKrakens = null;
+        nearPatrols = new long[(cellsCount + 63) >> 6];
+        rows = new int[cellsCount];
+        Arrays.fill(rows, -1);
+        busyTicks = new long[16 * rowLength];
+        rowsCount = 0;
+
+        // Danger of other agents is applied in the same way as Map.fillCells() applies it
+        for (Agent agent : map.agents) {
+            if (patrolling.contains(agent) || !(agent.isDangerous || agent instanceof Rock)) continue;
+
+            int x = agent.getX(), y = agent.getY();
+            boolean kraken = agent instanceof Kraken;
+            cover(x * map.size + y, kraken);
+            if (!agent.isDangerous) continue;
+
+            for (var perception : agent.perception) {
+                int newX = x + perception.getX(), newY = y + perception.getY();
+                if (map.isInside(newX, newY)) cover(newX * map.size + newY, kraken);
+            }
+        }
+
+        for (Patrol patrol : patrols) {
+            int[] route = patrol.route();
+            for (int tick = 0; tick < period; tick++) {
+                int position = route[tick % route.length];
+                int x = position / map.size, y = position % map.size;
+
+                reserve(position, tick);
+                for (var perception : patrol.agent().perception) {
+                    int newX = x + perception.getX(), newY = y + perception.getY();
+                    if (map.isInside(newX, newY)) reserve(newX * map.size + newY, tick);
+                }
+            }
+        }
+    }
+
+    private void cover(int cell, boolean kraken) {
+        staticDanger[cell >> 6] |= 1L << cell;
+        staticLevels[cell]++;
+        if (kraken) krakenLevels[cell]++;
+    }
+
+    private void reserve(int cell, int tick) {
+        if (rows[cell] == -1) {
+            if ((rowsCount + 1) * rowLength > busyTicks.length) {
+                busyTicks = Arrays.copyOf(busyTicks, 2 * busyTicks.length);
+            }
+            rows[cell] = rowsCount++;
+
+            nearPatrols[cell >> 6] |= 1L << cell;
+            int count = map.getNeighbourIndices(cell, neighbours, 0);
+            for (int i = 0; i < count; i++) {
+                nearPatrols[neighbours[i] >> 6] |= 1L << neighbours[i];
+            }
+        }
+
+        busyTicks[rows[cell] * rowLength + (tick >> 6)] |= 1L << tick;
+    }
+}
+
+
+/**
+ * Solver which runs only on the Grid, so it works the same for maps on the heap, off the heap and in tiles.
+ * Searches are A* with Chebyshev heuristic, so they stay in a corridor between the cells instead of touching
+ * the whole grid. Scratch memory of the searches is a hash table of the touched cells, so memory of a solve
+ * depends on the corridor and not on the side of the grid. It is not a Pathfinder: a SolveRequest carries
+ * a Map, and maps off the heap or in tiles have only the Grid
+ */
+class GridSolver implements Algorithm {
+    // Offsets of 8 surrounding cells, unboxed once since searches visit every cell of huge maps
+    private static final int[] OFFSETS_X = Agent.surroundingPerception.stream().mapToInt(Point::getX).toArray();
+    private static final int[] OFFSETS_Y = Agent.surroundingPerception.stream().mapToInt(Point::getY).toArray();
+
+    // Position in the heap of the cell which was already analysed
+    private static final int CLOSED = -2;
+    // Initial number of slots of the table of touched cells, it doubles when it is half full
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final Grid grid;
+    private final int size;
+    private final int jack;
+    private final int chest;
+    private final int tortuga;
+
+    // Open-addressing table from a touched cell to its node, slot holds node + 1 and 0 if the slot is empty
+    private int[] table = new int[INITIAL_CAPACITY];
+    // Nodes are numbered in the order the current search touched their cells, so the numbers stay the same
+    // when the table grows. Link is the node of the previous cell, position is the position in the heap
+    private int[] nodeCells = new int[INITIAL_CAPACITY / 2];
+    private int[] costs = new int[INITIAL_CAPACITY / 2];
+    private int[] links = new int[INITIAL_CAPACITY / 2];
+    private int[] positions = new int[INITIAL_CAPACITY / 2];
+    private int nodesCount;
+    // Binary heap of open nodes, ordered by F-cost and then by larger G-cost
+    private int[] heap = new int[INITIAL_CAPACITY / 2];
+    private int heapSize;
+
+    private final int[] neighbours = new int[8];
+    private final int[] seenCells = new int[8];
+
+    /**
+     * @param grid - Grid of the map
+     * @param jack - Starting cell of Jack
+     * @param chest - Cell of the Chest
+     * @param tortuga - Cell of Tortuga
+     */
+    public GridSolver(Grid grid, Point<Integer, Integer> jack, Point<Integer, Integer> chest,
+                      Point<Integer, Integer> tortuga) {
+        this.grid = grid;
+        this.size = grid.getSize();
+        // Cells are addressed by int index, as everywhere in Grid
+        if ((long) size * size > Integer.MAX_VALUE) throw new IllegalArgumentException("Unsupported grid size: " + size);
+
+        this.jack = jack.getX() * size + jack.getY();
+        this.chest = chest.getX() * size + chest.getY();
+        this.tortuga = tortuga.getX() * size + tortuga.getY();
+    }
+
+    /**
+     * @return List of points which lay the shortest path to the Dead Man's Chest
+     */
+    @Override
+    public List<Point<Integer, Integer>> findShortestPath() {
+        List<Integer> straightPath = shortestPath(jack, chest);
+        List<Integer> pathToTortuga = shortestPath(jack, tortuga);
+        List<Integer> fromTortugaToEnd = pathToTortuga == null ? null : pathFromTortuga();
+
+        boolean straightPathValid = straightPath != null;
+        boolean tortugaPathValid = pathToTortuga != null && fromTortugaToEnd != null;
+        if (!straightPathValid && !tortugaPathValid) return null;
+
+        List<Point<Integer, Integer>> pointsPath = new ArrayList<>();
+        pointsPath.add(getPoint(jack));
+
+        // As in other algorithms, the path through Tortuga is chosen only if it is strictly shorter
+        if (tortugaPathValid && (!straightPathValid ||
+                pathToTortuga.size() + fromTortugaToEnd.size() < straightPath.size())) {
+            for (int cell : pathToTortuga) pointsPath.add(getPoint(cell));
+            for (int cell : fromTortugaToEnd) pointsPath.add(getPoint(cell));
+        } else {
+            for (int cell : straightPath) pointsPath.add(getPoint(cell));
+        }
+
+        return pointsPath;
+    }
+
+    /**
+     * @return Shortest path from Tortuga to the Chest without Tortuga's cell, on which Jack may kill Krakens
+     */
+    private List<Integer> pathFromTortuga() {
+        List<Integer> bestPath = shortestPath(tortuga, chest);
+        int krakenBit = Grid.getAgentBit('K');
+        Set<Integer> triedCells = new HashSet<>();
+
+        // Jack kills The Kraken as soon as he stands next to it, so every such cell is tried
+        int[] killingCells = new int[8];
+        for (int krakenCell : grid.findAgents('K')) {
+            int count = getNeighbours(krakenCell, killingCells);
+            for (int i = 0; i < count; i++) {
+                int killingCell = killingCells[i];
+                if (!triedCells.add(killingCell)) continue;
+                if (killingCell != tortuga && !grid.isWalkable(killingCell)) continue;
+                if (bestPath != null && getDistanceBetween(tortuga, killingCell) +
+                        getDistanceBetween(killingCell, chest) >= bestPath.size()) continue;
+
+                List<Integer> toKillingCell = shortestPath(tortuga, killingCell);
+                if (toKillingCell == null || (bestPath != null &&
+                        toKillingCell.size() + getDistanceBetween(killingCell, chest) >= bestPath.size())) continue;
+
+                // As in other algorithms, all Krakens seen from the cell are killed
+                List<Integer> krakenCells = new ArrayList<>();
+                int seenCount = getNeighbours(killingCell, seenCells);
+                for (int j = 0; j < seenCount; j++) {
+                    if ((grid.getAgents(seenCells[j]) & krakenBit) != 0) krakenCells.add(seenCells[j]);
+                }
+
+                // Krakens are revived even if the search fails, so the grid is never left with a kill on it
+                List<Integer> fromKillingCell;
+                try {
+                    for (int killedCell : krakenCells) {
+                        grid.killKraken(killedCell);
+                    }
+                    fromKillingCell = shortestPath(killingCell, chest);
+                } finally {
+                    grid.reviveKrakens();
+                }
+
+                if (fromKillingCell != null &&
+                        (bestPath == null || toKillingCell.size() + fromKillingCell.size() < bestPath.size())) {
+                    bestPath = toKillingCell;
+                    bestPath.addAll(fromKillingCell);
+                }
+            }
+        }
+
+        return bestPath;
+    }
+
+    /**
+     * A* over moves of Jack. Every move must land on a walkable cell, while the starting cell
+     * may be not walkable, as Jack can start in a danger zone
+     * @param start - Starting cell
+     * @param finish - Finishing cell
+     * @return Cells of the shortest path without the starting cell, or null if there's no path
+     */
+    private List<Integer> shortestPath(int start, int finish) {
+        if (start == finish) return new ArrayList<>();
+        if (!grid.isWalkable(finish)) return null;
+
+        // Nodes of the previous search are dropped at once
+        Arrays.fill(table, 0);
+        nodesCount = 0;
+        heapSize = 0;
+
+        int startNode = addNode(start);
+        costs[startNode] = 0;
+        links[startNode] = startNode;
+        push(startNode, finish);
+
+        while (heapSize > 0) {
+            int node = pop(finish);
+            int cell = nodeCells[node];
+            if (cell == finish) return tracePath(startNode, node);
+            positions[node] = CLOSED;
+
+            int newCost = costs[node] + 1;
+            int count = getNeighbours(cell, neighbours);
+            for (int i = 0; i < count; i++) {
+                int neighbour = neighbours[i];
+                int neighbourNode = findNode(neighbour);
+                boolean seen = neighbourNode >= 0;
+                if (seen && (positions[neighbourNode] == CLOSED || newCost >= costs[neighbourNode])) continue;
+                if (!grid.isWalkable(neighbour)) continue;
+
+                if (!seen) neighbourNode = addNode(neighbour);
+                costs[neighbourNode] = newCost;
+                links[neighbourNode] = node;
+                if (seen) {
+                    siftUp(positions[neighbourNode], finish);
+                } else {
+                    push(neighbourNode, finish);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param cell - Index of the cell
+     * @return Slot of the table where the cell is, or the empty slot where it would be
+     */
+    private int getSlot(int cell) {
+        int mask = table.length - 1;
+        // Fibonacci hashing spreads rows of the grid, which differ by multiples of the side, over the table
+        int slot = (cell * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask);
+        while (table[slot] != 0 && nodeCells[table[slot] - 1] != cell) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @param cell - Index of the cell
+     * @return Node of the cell, or -1 if the current search did not touch the cell
+     */
+    private int findNode(int cell) {
+        return table[getSlot(cell)] - 1;
+    }
+
+    /**
+     * @param cell - Index of the cell, which the current search did not touch
+     * @return New node of the cell
+     */
+    private int addNode(int cell) {
+        if (nodesCount == nodeCells.length) {
+            int length = nodeCells.length * 2;
+            nodeCells = Arrays.copyOf(nodeCells, length);
+            costs = Arrays.copyOf(costs, length);
+            links = Arrays.copyOf(links, length);
+            positions = Arrays.copyOf(positions, length);
+            heap = Arrays.copyOf(heap, length);
+        }
+        // Table is kept at most half full, so probe sequences stay short
+        if ((long) (nodesCount + 1) * 2 > table.length) growTable();
+
+        int node = nodesCount++;
+        nodeCells[node] = cell;
+        table[getSlot(cell)] = node + 1;
+        return node;
+    }
+
+    private void growTable() {
+        if (table.length >= MAX_CAPACITY) throw new IllegalStateException("Search touched too many cells");
+
+        table = new int[table.length * 2];
+        for (int node = 0; node < nodesCount; node++) {
+            table[getSlot(nodeCells[node])] = node + 1;
+        }
+    }
+
+    /**
+     * @return true if the cell of the first node must be analysed before the cell of the second one
+     */
+    private boolean isBefore(int firstNode, int secondNode, int finish) {
+        int firstCost = costs[firstNode], secondCost = costs[secondNode];
+        int firstF = firstCost + getDistanceBetween(nodeCells[firstNode], finish);
+        int secondF = secondCost + getDistanceBetween(nodeCells[secondNode], finish);
+        // Among cells with the same F-cost deeper ones are preferred, so the search goes straight to the finish
+        return firstF < secondF || (firstF == secondF && firstCost > secondCost);
+    }
+
+    private void push(int node, int finish) {
+        heap[heapSize] = node;
+        positions[node] = heapSize;
+        siftUp(heapSize++, finish);
+    }
+
+    private int pop(int finish) {
+        int top = heap[0];
+        int last = heap[--heapSize];
+        if (heapSize > 0) {
+            heap[0] = last;
+            positions[last] = 0;
+            siftDown(0, finish);
+        }
+        return top;
+    }
+
+    private void siftUp(int position, int finish) {
+        int node = heap[position];
+        while (position > 0) {
+            int parentPosition = (position - 1) / 2;
+            int parent = heap[parentPosition];
+            if (!isBefore(node, parent, finish)) break;
+
+            heap[position] = parent;
+            positions[parent] = position;
+            position = parentPosition;
+        }
+        heap[position] = node;
+        positions[node] = position;
+    }
+
+    private void siftDown(int position, int finish) {
+        int node = heap[position];
+        while (true) {
+            int child = position * 2 + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && isBefore(heap[child + 1], heap[child], finish)) child++;
+            if (!isBefore(heap[child], node, finish)) break;
+
+            heap[position] = heap[child];
+            positions[heap[position]] = position;
+            position = child;
+        }
+        heap[position] = node;
+        positions[node] = position;
+    }
+
+    /**
+     * @return Cells of the path without the starting cell
+     */
+    private List<Integer> tracePath(int startNode, int finishNode) {
+        List<Integer> path = new ArrayList<>();
+        for (int node = finishNode; node != startNode; node = links[node]) {
+            path.add(nodeCells[node]);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * @param cell - Index of the cell
+     * @param result - Array to write indices of 8 surrounding cells to
+     * @return Number of neighbours that were written
+     */
+    private int getNeighbours(int cell, int[] result) {
+        int x = cell / size, y = cell % size;
+        int count = 0;
+
+        for (int i = 0; i < OFFSETS_X.length; i++) {
+            int newX = x + OFFSETS_X[i];
+            int newY = y + OFFSETS_Y[i];
+
+            if (newX >= 0 && newX < size && newY >= 0 && newY < size) result[count++] = newX * size + newY;
+        }
+
+        return count;
+    }
+
+    private Point<Integer, Integer> getPoint(int cell) {
+        return new Point<>(cell / size, cell % size);
+    }
+
+    private int getDistanceBetween(int firstCell, int secondCell) {
+        int deltaX = Math.abs(firstCell / size - secondCell / size);
+        int deltaY = Math.abs(firstCell % size - secondCell % size);
+        return Math.max(deltaX, deltaY);
+    }
+}
+
+
+/**
+ * Common class for both Pathfinding algorithms
+ */
+class Solver {
+
+    public Map map;
+
+    // Abstract graph of clusters of the map, shared by all hierarchical searches on this map
+    private ClusterGraph clusterGraph;
+
+    // Components of walkable cells, shared by all algorithms on this map and by both scenarios
+    private Reachability reachability;
+
+    /**
+     * @param map - Current map instance
+     */
+    public Solver(Map map) {
+        this.map = map;
+    }
+
+    /**
+     * Pre-check which is done before any search, it costs O(cells) once per map and scenario
+     * @return false if there's no route to the Chest for sure, true if there might be one
+     */
+    boolean hasRoute() {
+        if (reachability == null) reachability = new Reachability(map);
+        return reachability.hasRoute();
+    }
+
+    /**
+     * @param startingCell - Cell from which Jack starts
+     * @return false if there's no route to the Chest for sure, true if there might be one
+     */
+    boolean hasRoute(MapCell startingCell) {
+        if (reachability == null) reachability = new Reachability(map);
+        return reachability.hasRoute(startingCell);
+    }
+
+    /**
+     * Prepares the map for the solve of the request
+     * @param request - Request of the solve
+     */
+    private void accept(SolveRequest request) {
+        if (request.map() != map) throw new IllegalArgumentException("Request is for another map than the solver's");
+        map.setScenario(request.scenario());
+    }
+
+    /**
+     * Solve of the old API, which is not stricter than it used to be: outside of both scenarios Jack has
+     * no perception, so he can't make a single move and the map is lost
+     * @param pathfinder - Algorithm of this solver
+     * @return List of points which lay the path to the Dead Man's Chest, or null if there's no path
+     */
+    List<Point<Integer, Integer>> solveCurrentMap(Pathfinder pathfinder) {
+        if (!SolveRequest.isValidScenario(map.scenario)) return null;
+        return pathfinder.solve(SolveRequest.of(map)).getPoints(map.size);
+    }
+
+    /**
+     * Joins paths of the legs into the answer, the path through Tortuga is chosen only if it is strictly shorter
+     * @param straightEndPath - Cells of the path from Jack to the Chest without Jack's cell, or null
+     * @param pathThroughTortuga - Cells of the path from Jack to Tortuga without Jack's cell, or null
+     * @param fromTortugaToEnd - Cells of the path from Tortuga to the Chest without Tortuga's cell, or null
+     * @return List of points which lay the shortest path to the Dead Man's Chest, or null if there's no path
+     */
+    List<Point<Integer, Integer>> joinPaths(List<MapCell> straightEndPath, List<MapCell> pathThroughTortuga,
+                                            List<MapCell> fromTortugaToEnd) {
+        return joinPaths(new Point<>(map.jack.getX(), map.jack.getY()), straightEndPath, pathThroughTortuga,
+                fromTortugaToEnd);
+    }
+
+    /**
+     * Joins paths of the legs into the answer, the path through Tortuga is chosen only if it is strictly shorter
+     * @param start - Point from which Jack starts
+     * @param straightEndPath - Cells of the path from the start to the Chest without the starting cell, or null
+     * @param pathThroughTortuga - Cells of the path from the start to Tortuga without the starting cell, or null
+     * @param fromTortugaToEnd - Cells of the path from Tortuga to the Chest without Tortuga's cell, or null
+     * @return List of points which lay the shortest path to the Dead Man's Chest, or null if there's no path
+     */
+    List<Point<Integer, Integer>> joinPaths(Point<Integer, Integer> start, List<MapCell> straightEndPath,
+                                            List<MapCell> pathThroughTortuga, List<MapCell> fromTortugaToEnd) {
+        boolean straightPathValid = straightEndPath != null;
+        boolean tortugaPathValid = pathThroughTortuga != null && fromTortugaToEnd != null;
+
+        // If none of the paths are valid, there's no path and therefore no answer
+        if (!tortugaPathValid && !straightPathValid) return null;
+
+        // Otherwise, we have some path and the initial Actor point will be immediately added to the result
+        List<Point<Integer, Integer>> pointsPath = new ArrayList<>();
+        pointsPath.add(start);
+
+        if (tortugaPathValid && (!straightPathValid ||
+                pathThroughTortuga.size() + fromTortugaToEnd.size() < straightEndPath.size())) {
+            // If Tortuga path is shorter, we form its points path
+            for (MapCell cell : pathThroughTortuga) {
+                pointsPath.add(new Point<>(cell.x, cell.y));
+            }
+
+            for (MapCell cell : fromTortugaToEnd) {
+                pointsPath.add(new Point<>(cell.x, cell.y));
+            }
+        } else {
+            // Else, if straight path is shorter, we form its points path
+            for (MapCell cell : straightEndPath) {
+                pointsPath.add(new Point<>(cell.x, cell.y));
+            }
+        }
+
+        return pointsPath;
+    }
+
+    /**
+     * @param path - Cells of a leg without its starting cell, or null
+     * @return Number of moves of the leg for flight recorder events, -1 if there's no path
+     */
+    static int getLength(List<MapCell> path) {
+        return path == null ? -1 : path.size();
+    }
+
+    public class AStar implements Algorithm, Pathfinder {
+        boolean tortugaPassed = false;
+
+        // Scratch memory with costs, parents and lists membership of the search nodes
+        private SearchContext context;
+        // Cell from which Jack killed Krakens on the best known way to each node of the killed layer
+        private int[] killOrigins = new int[0];
+        // Cells which were closed by the current leg
+        private int expandedCells;
+        // Cells which were expanded by all legs of the last solve
+        private long totalExpandedCells;
+
+        // Token of the current solve, and whether it stopped the solve
+        private CancellationToken cancellation;
+        private boolean cancelled;
+
+        // Landmarks of the map for the ALT heuristic, or null to use only Chebyshev distance
+        private final Landmarks landmarks;
+        // Landmarks of the current leg, null if they are outdated
+        private Landmarks legLandmarks;
+
+        public AStar() {
+            this(null);
+        }
+
+        /**
+         * @param landmarks - Landmarks of the map of the solver, they are ignored once walkability of the map changes
+         */
+        public AStar(Landmarks landmarks) {
+            this.landmarks = landmarks;
+        }
+
+        @Override
+        public long getExpandedCells() {
+            return totalExpandedCells;
+        }
+
+        /**
+         * @return List of points which lay the shortest path to the Dead Man's Chest
+         */
+        @Override
+        public List<Point<Integer, Integer>> findShortestPath() {
+            return solveCurrentMap(this);
+        }
+
+        /**
+         * @param request - Request of the solve, its map must be the map of the solver
+         * @return Shortest path to the Dead Man's Chest with stats of the solve
+         */
+        @Override
+        public SolveResult solve(SolveRequest request) {
+            long startTime = System.nanoTime();
+            accept(request);
+            this.cancellation = request.cancellation();
+            this.cancelled = false;
+            // Legs of the previous solve must not leak into this one, the instance may be reused
+            this.tortugaPassed = false;
+
+            Point<Integer, Integer> start = request.start();
+            // Losses are answered without running any of the legs
+            totalExpandedCells = 0;
+            if (!hasRoute(map.cells[start.getX()][start.getY()])) {
+                return SolveResult.of(null, map.size, 0, System.nanoTime() - startTime);
+            }
+            this.context = request.acquireContext();
+
+            Point<Integer, Integer> finish = new Point<>(map.chest.getX(), map.chest.getY());
+            // First, we calculate the path straight to the end, without passing through the tortuga
+            SearchLegEvent event = SearchLegEvent.start();
+            List<MapCell> straightEndPath = shortestPath(start, finish);
+            event.finish(map, this, SearchLegEvent.STRAIGHT, expandedCells, getLength(straightEndPath));
+            totalExpandedCells += expandedCells;
+
+            // Second, we calculate the path through Tortuga, unless the solve was cancelled
+            Point<Integer, Integer> passThroughTortuga = new Point<>(map.tortuga.getX(), map.tortuga.getY());
+            List<MapCell> pathThroughTortuga = null;
+            if (!cancelled) {
+                event = SearchLegEvent.start();
+                pathThroughTortuga = shortestPath(start, passThroughTortuga);
+                event.finish(map, this, SearchLegEvent.TO_TORTUGA, expandedCells, getLength(pathThroughTortuga));
+                totalExpandedCells += expandedCells;
+            }
+            List<MapCell> fromTortugaToEnd = null;
+
+            if (pathThroughTortuga != null) {
+                // If we successfully passed through the Tortuga, mark the appropriate flag as true,
+                // and try to calculate yet another path from Tortuga straight to the Dead Man's Chest
+                this.tortugaPassed = true;
+                event = SearchLegEvent.start();
+                fromTortugaToEnd = shortestPath(passThroughTortuga, finish);
+                event.finish(map, this, SearchLegEvent.FROM_TORTUGA, expandedCells, getLength(fromTortugaToEnd));
+                totalExpandedCells += expandedCells;
+            }
+
+            long elapsedNanos = System.nanoTime() - startTime;
+            if (cancelled) return SolveResult.cancelled(totalExpandedCells, elapsedNanos);
+            return SolveResult.of(joinPaths(start, straightEndPath, pathThroughTortuga, fromTortugaToEnd), map.size,
+                    totalExpandedCells, elapsedNanos);
+        }
+
+        /**
+         * @param start - starting point of the algorithm
+         * @param finish - finishing point of the algorithm
+         * @return list of cells on the map which form the shortest path
+         */
+        private List<MapCell> shortestPath(Point<Integer, Integer> start, Point<Integer, Integer> finish) {
+            MapCell startingCell = map.cells[start.getX()][start.getY()];
+            MapCell finishingCell = map.cells[finish.getX()][finish.getY()];
+            int cellsCount = map.size * map.size;
+            int finishingIndex = map.getIndex(finishingCell);
+
+            // Costs and lists of the previous search become invalid at once.
+            // Each cell has two nodes: one while The Kraken is alive, and one after Jack killed it
+            context.reserve(2 * cellsCount).resetCosts();
+            if (killOrigins.length < cellsCount) killOrigins = new int[cellsCount];
+            expandedCells = 0;
+            legLandmarks = landmarks != null && landmarks.isUpToDate() ? landmarks : null;
+
+            // We keep the list of open nodes, while membership in open and closed lists is stored in the context
+            List<Integer> openNodes = new ArrayList<>();
+            // We start from opening the starting cell
+            int startingNode = map.getIndex(startingCell);
+            context.setCosts(startingNode, 0, getHeuristic(startingCell, finishingCell), -1);
+            context.setOpen(startingNode, true);
+            openNodes.add(startingNode);
+
+            int[] neighbours = new int[8];
+            while (!openNodes.isEmpty()) {
+                // Until we have nodes to analyse, we get the first available from the list
+                int currentPosition = 0;
+                int currentNode = openNodes.get(0);
+
+                for (int i = 1; i < openNodes.size(); i++) {
+                    int node = openNodes.get(i);
+                    // If any other node has better F-cost than the node we already took,
+                    // we switch the node to the node we just found
+                    if (context.getHeuristic(node) < context.getHeuristic(currentNode) ||
+                            (context.getHeuristic(node) == context.getHeuristic(currentNode) &&
+                                    context.getH(node) < context.getH(currentNode))) {
+                        currentPosition = i;
+                        currentNode = node;
+                    }
+                }
+
+                int currentIndex = currentNode % cellsCount;
+                boolean krakenIsAlive = currentNode < cellsCount;
+                // If we reached the destination, we trace the path
+                if (currentIndex == finishingIndex) return tracePath(startingNode, currentNode);
+
+                // Since we already analysed current node, we remove it from the open list
+                // and it to the list of closed nodes
+                openNodes.set(currentPosition, openNodes.get(openNodes.size() - 1));
+                openNodes.remove(openNodes.size() - 1);
+                context.setOpen(currentNode, false);
+                context.close(currentNode);
+                expandedCells++;
+
+                // Reading the clock costs more than expanding a cell, so the token is checked once per 64 cells
+                if ((expandedCells & 63) == 0 && cancellation.isCancelled()) {
+                    cancelled = true;
+                    return null;
+                }
+
+                // Next, we retrieve neighbour cells of the current cell, based on the perception of Jack
+                int count = map.getNeighbourIndices(currentIndex, neighbours, 0);
+                // If we are currently calculating the path from Tortuga to the end, we need to check
+                // if we stand on the diagonal cell of the Kraken, so we can destroy him with the rum casks.
+                // The kill belongs only to the paths going through this node, so the map is left untouched
+                int killOrigin = krakenIsAlive ? -1 : killOrigins[currentIndex];
+                if (this.tortugaPassed && krakenIsAlive) {
+                    for (int i = 0; i < count; i++) {
+                        if (map.getCell(neighbours[i]).agents.contains('K')) killOrigin = currentIndex;
+                    }
+                }
+                int layer = killOrigin == -1 ? 0 : cellsCount;
+
+                // After that, we check neighbour cells once again to update costs
+                for (int i = 0; i < count; i++) {
+                    MapCell neighbourCell = map.getCell(neighbours[i]);
+                    int neighbourNode = layer + neighbours[i];
+                    // If current neighbour cells unreachable, we continue with the next neighbour
+                    if (context.isClosed(neighbourNode) || !canWalkThrough(neighbourCell, killOrigin)) continue;
+                    // New cost is calculated, every move costs 1
+                    int newCost = context.getG(currentNode) + 1;
+                    boolean isOpen = context.isOpen(neighbourNode);
+
+                    if ((newCost < context.getG(neighbourNode)) || !isOpen) {
+                        // Update costs and set the parent to traverse the path after completing
+                        context.setCosts(neighbourNode, newCost,
+                                getHeuristic(neighbourCell, finishingCell), currentNode);
+                        if (killOrigin != -1) killOrigins[neighbours[i]] = killOrigin;
+                        // Add neighbour node to the open nodes (if it is not here yet),
+                        // so we can analyse it on the next iterations
+                        if (!isOpen) {
+                            context.setOpen(neighbourNode, true);
+                            openNodes.add(neighbourNode);
+                        }
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * @param cell - Neighbour cell
+         * @param killOrigin - Cell from which Jack killed Krakens on the way to the neighbour, -1 if none
+         * @return true if the cell is walkable, taking into account Krakens seen from the kill origin
+         */
+        private boolean canWalkThrough(MapCell cell, int killOrigin) {
+            if (cell.walkable) return true;
+            if (killOrigin == -1) return false;
+
+            // The cell is walkable, if all its danger comes from Krakens that were killed on the way to it.
+            // Danger zone of The Kraken is the cross around it
+            int originX = killOrigin / map.size, originY = killOrigin % map.size;
+            int dangerLevel = cell.dangerLevel;
+            for (int x = Math.max(cell.x - 1, 0); x <= Math.min(cell.x + 1, map.size - 1); x++) {
+                for (int y = Math.max(cell.y - 1, 0); y <= Math.min(cell.y + 1, map.size - 1); y++) {
+                    if (Math.abs(x - cell.x) + Math.abs(y - cell.y) > 1) continue;
+                    // Only Krakens Jack saw from the kill origin are dead
+                    if (Math.max(Math.abs(x - originX), Math.abs(y - originY)) != 1) continue;
+                    if (map.cells[x][y].agents.contains('K')) dangerLevel--;
+                }
+            }
+            return dangerLevel == 0;
+        }
+
+        /**
+         * Method to trace the shortest path after finding it
+         * @param startingNode - starting node of the path
+         * @param finishingNode - finishing node of the path
+         * @return list of cells on the map which form the shortest path
+         */
+        private List<MapCell> tracePath(int startingNode, int finishingNode) {
+            List<MapCell> path = new ArrayList<>();
+            int cellsCount = map.size * map.size;
+            int currentNode = finishingNode;
+
+            // Starting from the finish, we go to the starting point
+            // by traversing parents of nodes, which may switch from the killed layer to the alive one
+            while (currentNode != startingNode) {
+                path.add(map.getCell(currentNode % cellsCount));
+                currentNode = context.getParent(currentNode);
+            }
+
+            Collections.reverse(path);
+            return path;
+        }
+
+        private int getDistanceBetween(MapCell firstCell, MapCell secondCell) {
+            // Heuristic to get the distance between two cells
+            int deltaX = Math.abs(firstCell.x - secondCell.x);
+            int deltaY = Math.abs(firstCell.y - secondCell.y);
+            return Math.max(deltaX, deltaY);
+        }
+
+        private int getHeuristic(MapCell cell, MapCell finishingCell) {
+            int distance = getDistanceBetween(cell, finishingCell);
+            if (legLandmarks == null) return distance;
+
+            // Both bounds are consistent, so their maximum is consistent too
+            return Math.max(distance, legLandmarks.getBound(map.getIndex(cell), map.getIndex(finishingCell),
+                    tortugaPassed));
+        }
+    }
+
+    public class Backtracking implements Algorithm, Pathfinder {
+        protected List<MapCell> bestPathToTortuga = new ArrayList<>();
+        protected List<MapCell> bestPathFromTortugaToEnd = new ArrayList<>();
+        protected List<MapCell> bestStraightPath = new ArrayList<>();
+        // Scratch memory with visited cells and current best paths of cells
+        protected SearchContext context;
+        // Cells which were entered by the current leg
+        protected int expandedCells;
+        // Cells which were expanded by all legs of the last solve
+        private long totalExpandedCells;
+
+        // Token of the current solve, and whether it stopped the solve
+        protected CancellationToken cancellation = new CancellationToken();
+        protected boolean cancelled;
+
+        @Override
+        public long getExpandedCells() {
+            return totalExpandedCells;
+        }
+
+        // Cells of the path to the current cell of the recursion, starting from the start of the leg
+        private final List<MapCell> currentCells = new ArrayList<>();
+        // Neighbours of the cell on level i of the recursion are stored at [i * 8, i * 8 + 8)
+        private int[] currentNeighbours = new int[64 * 8];
+
+        /**
+         * @return List of points which lay the shortest path to the Dead Man's Chest
+         */
+        @Override
+        public List<Point<Integer, Integer>> findShortestPath() {
+            return solveCurrentMap(this);
+        }
+
+        /**
+         * @param request - Request of the solve, its map must be the map of the solver
+         * @return Shortest path to the Dead Man's Chest with stats of the solve
+         */
+        @Override
+        public SolveResult solve(SolveRequest request) {
+            // Generally, this function works pretty much the same way as it does
+            // so you can check comments for this function in A*
+            long startTime = System.nanoTime();
+            accept(request);
+            this.cancellation = request.cancellation();
+            this.cancelled = false;
+
+            MapCell startingCell = map.cells[request.start().getX()][request.start().getY()];
+            totalExpandedCells = 0;
+            if (!hasRoute(startingCell)) return SolveResult.of(null, map.size, 0, System.nanoTime() - startTime);
+
+            // Best paths with killed Kraken are kept after the ones with alive Kraken, see getStateIndex()
+            this.context = request.acquireContext().reserve(2 * map.size * map.size);
+            resetBestPaths();
+            context.resetVisited();
+            currentCells.clear();
+
+            int fromTortugaToEnd, tortugaPath = Integer.MAX_VALUE;
+            boolean tortugaPathValid = false;
+
+            List<Point<Integer, Integer>> pointsPath = new ArrayList<>();
+            MapCell finishingCell = map.cells[map.chest.getX()][map.chest.getY()];
+
+            MapCell tortugaCell = map.cells[map.tortuga.getX()][map.tortuga.getY()];
+
+            expandedCells = 0;
+            SearchLegEvent event = SearchLegEvent.start();
+            int straightPathSolution = this.shortestPath(startingCell, finishingCell, Integer.MAX_VALUE, 0, false,true);
+            event.finish(map, this, SearchLegEvent.STRAIGHT, expandedCells, getLength(straightPathSolution));
+            totalExpandedCells += expandedCells;
+
+            boolean straightPathValid = straightPathSolution != Integer.MAX_VALUE;
+
+            int pathThroughTortuga = Integer.MAX_VALUE;
+            if (!cancelled) {
+                expandedCells = 0;
+                event = SearchLegEvent.start();
+                pathThroughTortuga = this.shortestPath(startingCell, tortugaCell, Integer.MAX_VALUE, 0, false, true);
+                event.finish(map, this, SearchLegEvent.TO_TORTUGA, expandedCells, getLength(pathThroughTortuga));
+                totalExpandedCells += expandedCells;
+            }
+            if (pathThroughTortuga != Integer.MAX_VALUE && !cancelled) {
+                // If we do not forget current best paths from Jack before calculating the path from Tortuga,
+                // the errors will occur
+                resetBestPaths();
+                expandedCells = 0;
+                event = SearchLegEvent.start();
+                fromTortugaToEnd = this.shortestPath(tortugaCell, finishingCell, Integer.MAX_VALUE, 0, true, true);
+                event.finish(map, this, SearchLegEvent.FROM_TORTUGA, expandedCells, getLength(fromTortugaToEnd));
+                totalExpandedCells += expandedCells;
+                if (fromTortugaToEnd != Integer.MAX_VALUE) {
+                    tortugaPath = pathThroughTortuga + fromTortugaToEnd;
+                    tortugaPathValid = true;
+                }
+            }
+
+            // Krakens killed on the way from Tortuga are revived, so the map stays the same for next runs
+            map.reviveKrakens();
+
+            long elapsedNanos = System.nanoTime() - startTime;
+            if (cancelled) return SolveResult.cancelled(totalExpandedCells, elapsedNanos);
+            if (!straightPathValid && !tortugaPathValid) {
+                return SolveResult.of(null, map.size, totalExpandedCells, elapsedNanos);
+            }
+
+            if (tortugaPathValid && straightPathValid && (tortugaPath < straightPathSolution) ||
+                    (tortugaPathValid && !straightPathValid)) {
+                for (MapCell cell : this.bestPathToTortuga) {
+                    if (cell == tortugaCell) continue;
+                    pointsPath.add(new Point<>(cell.x, cell.y));
+                }
+
+                for (MapCell cell : this.bestPathFromTortugaToEnd) {
+                    pointsPath.add(new Point<>(cell.x, cell.y));
+                }
+            } else {
+                for (MapCell cell : this.bestStraightPath) {
+                    pointsPath.add(new Point<>(cell.x, cell.y));
+                }
+            }
+
+            return SolveResult.of(pointsPath, map.size, totalExpandedCells, elapsedNanos);
+        }
+        
+        protected int shortestPath(MapCell currentCell, MapCell finishingCell, int bestPath, int currentPath,
+                          boolean tortugaPassed, boolean krakenIsAlive) {
+            // If we reach the destination with a better path, we update global array of Backtracking class
+            // with the path that we have found
+            if (currentCell == finishingCell) {
+                if (currentPath < bestPath) {
+                    bestPath = currentPath;
+                    List<MapCell> path = new ArrayList<>(currentCells);
+                    path.add(finishingCell);
+                    storeBestPath(finishingCell, tortugaPassed, path);
+                }
+                return bestPath;
+            }
+
+            int currentIndex = map.getIndex(currentCell);
+            expandedCells++;
+            // Reading the clock costs more than entering a cell, so the token is checked once per 64 cells
+            if ((expandedCells & 63) == 0 && cancellation.isCancelled()) cancelled = true;
+            if (cancelled) return bestPath;
+            // Set the current best path for current cell
+            context.setBestPath(getStateIndex(currentIndex, krakenIsAlive), currentPath);
+            // We visited this cell, so we mark it
+            context.setVisited(currentIndex, true);
+            int level = currentCells.size();
+            currentCells.add(currentCell);
+
+            if ((level + 1) * 8 > currentNeighbours.length) {
+                currentNeighbours = Arrays.copyOf(currentNeighbours, currentNeighbours.length * 2);
+            }
+            int[] neighbours = currentNeighbours;
+            int offset = level * 8;
+            int finishingIndex = map.getIndex(finishingCell);
+            int count = offset + getOrderedNeighbours(currentIndex, finishingIndex, neighbours, offset);
+
+            // Jack kills every Kraken he sees with the rum casks from Tortuga, even if he can't move anywhere yet
+            boolean krakenKilledHere = false;
+            if (tortugaPassed && krakenIsAlive) {
+                for (int i = offset; i < count; i++) {
+                    MapCell neighbour = map.getCell(neighbours[i]);
+                    if (!neighbour.agents.contains('K')) continue;
+                    // Kill kraken once we found it
+                    map.killKraken(neighbour);
+                    krakenIsAlive = false;
+                    krakenKilledHere = true;
+
+                    if (!neighbour.agents.contains('R') && neighbour.dangerLevel == 0) {
+                        neighbour.changeWalkability(true);
+                    }
+                }
+            }
+
+            for (int i = offset; i < count && !cancelled; i++) {
+                MapCell neighbour = map.getCell(neighbours[i]);
+                int stateIndex = getStateIndex(neighbours[i], krakenIsAlive);
+                // currentPath <= 25 is that because, based on generation of millions of maps, the maximum path
+                // I ever found was 24. Paths which can not become shorter than the best one are not continued
+                if (canWalkThrough(neighbour) && currentPath <= 25 && currentPath < context.getBestPath(stateIndex) &&
+                        currentPath + 1 + getDistance(neighbours[i], finishingIndex) < bestPath) {
+                    context.setBestPath(stateIndex, currentPath + 1);
+                    bestPath = shortestPath(neighbour, finishingCell, bestPath, currentPath + 1, tortugaPassed, krakenIsAlive);
+                }
+            }
+
+            // Krakens killed on this cell are alive for the paths which do not go through it
+            if (krakenKilledHere) map.reviveKrakens();
+            // Mark current cell as unvisited, so we can backtrack to it later
+            currentCells.remove(currentCells.size() - 1);
+            context.setVisited(currentIndex, false);
+
+            return bestPath;
+        }
+
+        /**
+         * @param length - Length of the leg, Integer.MAX_VALUE if there's no path
+         * @return Number of moves of the leg for flight recorder events, -1 if there's no path
+         */
+        private static int getLength(int length) {
+            return length == Integer.MAX_VALUE ? -1 : length;
+        }
+
+        /**
+         * Neighbours closer to the destination are tried first, so short paths are found early and prune
+         * the rest of the search. The order is the same for all versions of Backtracking, so they find the same path
+         * @param cell - Index of the cell
+         * @param finishingCell - Index of the destination of the current search
+         * @param neighbours - Array to put indices of the neighbours to
+         * @param offset - Position of the first neighbour in the array
+         * @return Number of the neighbours
+         */
+        protected int getOrderedNeighbours(int cell, int finishingCell, int[] neighbours, int offset) {
+            int count = map.getNeighbourIndices(cell, neighbours, offset);
+
+            // Insertion sort by the distance, it is stable, so equally close neighbours keep the order of the map
+            for (int i = offset + 1; i < offset + count; i++) {
+                int neighbour = neighbours[i];
+                int distance = getDistance(neighbour, finishingCell);
+                int j = i - 1;
+                for (; j >= offset && getDistance(neighbours[j], finishingCell) > distance; j--) {
+                    neighbours[j + 1] = neighbours[j];
+                }
+                neighbours[j + 1] = neighbour;
+            }
+            return count;
+        }
+
+        /**
+         * @param cell - Index of the cell
+         * @param finishingCell - Index of the destination of the current search
+         * @return Number of moves from the cell to the destination if nothing is in the way
+         */
+        protected int getDistance(int cell, int finishingCell) {
+            return Math.max(Math.abs(cell / map.size - finishingCell / map.size),
+                    Math.abs(cell % map.size - finishingCell % map.size));
+        }
+
+        /**
+         * Whether a cell can be entered depends on the Krakens killed on the way to it, so best paths of cells
+         * are kept apart for alive and killed Kraken. A single kill is made on every path, so two states are enough
+         * @param cell - Index of the cell
+         * @param krakenIsAlive - true if The Kraken was not killed on the way to the cell
+         * @return Index of the best path of the cell in the context
+         */
+        protected int getStateIndex(int cell, boolean krakenIsAlive) {
+            return krakenIsAlive ? cell : map.size * map.size + cell;
+        }
+
+        /**
+         * Forgets best paths of all cells. The straight search and the search of Tortuga both start from Jack,
+         * so the second one keeps best paths of the first one
+         */
+        protected void resetBestPaths() {
+            context.resetBestPaths();
+        }
+
+        /**
+         * @param cell - Map cell
+         * @return true if this cell is walkable and was not visited yet
+         */
+        protected boolean canWalkThrough(MapCell cell) {
+            return cell.walkable && !context.isVisited(map.getIndex(cell));
+        }
+
+        /**
+         * Puts the path into the global array which corresponds to the destination
+         * @param finishingCell - Destination of the current search
+         * @param tortugaPassed - true if the search starts from Tortuga
+         * @param path - Cells of the path from the start to the destination
+         */
+        protected void storeBestPath(MapCell finishingCell, boolean tortugaPassed, List<MapCell> path) {
+            if (finishingCell == map.cells[map.tortuga.getX()][map.tortuga.getY()]) {
+                this.bestPathToTortuga = path;
+            } else if (finishingCell == map.cells[map.chest.getX()][map.chest.getY()]) {
+                if (tortugaPassed) {
+                    this.bestPathFromTortugaToEnd = path;
+                } else {
+                    this.bestStraightPath = path;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Backtracking which keeps its own stack of primitive frames instead of recursion,
+     * so the depth of the search is limited only by the heap. It explores cells in the same order
+     * as the recursive Backtracking, and finds the same paths
+     */
+    public class IterativeBacktracking extends Backtracking {
+        // Maximal length of the path that is explored
+        private final int depthLimit;
+
+        // Frames of the stack: cell, position of the next neighbour to try, length of the path to the cell,
+        // whether The Kraken is still alive for this frame and whether it was killed on the cell of this frame
+        private int[] stackCell = new int[64];
+        private int[] stackCursor = new int[64];
+        private int[] stackDepth = new int[64];
+        private boolean[] stackKrakenIsAlive = new boolean[64];
+        private boolean[] stackKrakenKilled = new boolean[64];
+        // Neighbours of the frame on level i are stored at [i * 8, i * 8 + stackNeighboursCount[i])
+        private int[] stackNeighbours = new int[64 * 8];
+        private int[] stackNeighboursCount = new int[64];
+
+        public IterativeBacktracking() {
+            // Paths on the default map are never longer than 24, on other maps any simple path is allowed
+            this(map.size == 9 ? 25 : map.size * map.size);
+        }
+
+        /**
+         * @param depthLimit - Maximal length of the path that is explored
+         */
+        public IterativeBacktracking(int depthLimit) {
+            this.depthLimit = depthLimit;
+        }
+
+        @Override
+        protected int shortestPath(MapCell startingCell, MapCell finishingCell, int bestPath, int startingPath,
+                                   boolean tortugaPassed, boolean krakenIsAlive) {
+            int finishingIndex = map.getIndex(finishingCell);
+
+            if (map.getIndex(startingCell) == finishingIndex) {
+                if (startingPath < bestPath) {
+                    bestPath = startingPath;
+                    storeBestPath(finishingCell, tortugaPassed, new ArrayList<>(List.of(finishingCell)));
+                }
+                return bestPath;
+            }
+
+            int level = 0;
+            enter(level, map.getIndex(startingCell), finishingIndex, startingPath, tortugaPassed, krakenIsAlive);
+
+            while (level >= 0 && !cancelled) {
+                if (stackCursor[level] == stackNeighboursCount[level]) {
+                    // Krakens killed on this cell are alive for the paths which do not go through it
+                    if (stackKrakenKilled[level]) map.reviveKrakens();
+                    // All neighbours were tried, mark current cell as unvisited, so we can backtrack to it later
+                    context.setVisited(stackCell[level], false);
+                    level--;
+                    continue;
+                }
+
+                int neighbourIndex = stackNeighbours[level * 8 + stackCursor[level]++];
+                int currentPath = stackDepth[level];
+                int stateIndex = getStateIndex(neighbourIndex, stackKrakenIsAlive[level]);
+
+                if (!canWalkThrough(neighbourIndex) || currentPath > depthLimit ||
+                        currentPath >= context.getBestPath(stateIndex) ||
+                        currentPath + 1 + getDistance(neighbourIndex, finishingIndex) >= bestPath) continue;
+
+                context.setBestPath(stateIndex, currentPath + 1);
+
+                if (neighbourIndex == finishingIndex) {
+                    // Destination is not entered, so the path is taken from the stack if it is better
+                    if (currentPath + 1 < bestPath) {
+                        bestPath = currentPath + 1;
+                        storeBestPath(finishingCell, tortugaPassed, getStackPath(level, finishingCell));
+                    }
+                    continue;
+                }
+
+                level++;
+                enter(level, neighbourIndex, finishingIndex, currentPath + 1, tortugaPassed, stackKrakenIsAlive[level - 1]);
+            }
+
+            return bestPath;
+        }
+
+        /**
+         * Pushes a new frame to the stack, does the same as the recursive Backtracking before trying neighbours
+         * @param level - Level of the frame in the stack
+         * @param cell - Index of the cell
+         * @param finishingCell - Index of the destination of the current search
+         * @param currentPath - Length of the path to the cell
+         * @param tortugaPassed - true if the search starts from Tortuga
+         * @param krakenIsAlive - true if The Kraken was not killed on the way to the cell
+         */
+        private void enter(int level, int cell, int finishingCell, int currentPath, boolean tortugaPassed,
+                           boolean krakenIsAlive) {
+            if (level == stackCell.length) growStack();
+
+            // Set the current best path for current cell, and mark it as visited
+            context.setBestPath(getStateIndex(cell, krakenIsAlive), currentPath);
+            context.setVisited(cell, true);
+            expandedCells++;
+            if ((expandedCells & 63) == 0 && cancellation.isCancelled()) cancelled = true;
+
+            int count = getOrderedNeighbours(cell, finishingCell, stackNeighbours, level * 8);
+
+            // Jack kills every Kraken he sees with the rum casks from Tortuga, even if he can't move anywhere yet
+            boolean krakenKilled = false;
+            if (tortugaPassed && krakenIsAlive) {
+                for (int i = level * 8; i < level * 8 + count; i++) {
+                    MapCell neighbour = map.getCell(stackNeighbours[i]);
+                    if (!neighbour.agents.contains('K')) continue;
+                    // Kill kraken once we found it
+                    map.killKraken(neighbour);
+                    krakenIsAlive = false;
+                    krakenKilled = true;
+
+                    if (!neighbour.agents.contains('R') && neighbour.dangerLevel == 0) {
+                        neighbour.changeWalkability(true);
+                    }
+                }
+            }
+
+            stackCell[level] = cell;
+            stackDepth[level] = currentPath;
+            stackKrakenIsAlive[level] = krakenIsAlive;
+            stackKrakenKilled[level] = krakenKilled;
+            stackNeighboursCount[level] = count;
+            stackCursor[level] = 0;
+        }
+
+        /**
+         * @param level - Level of the last frame of the path
+         * @param finishingCell - Destination of the current search, it is not on the stack
+         * @return Cells of the frames from the bottom of the stack to the level, followed by the destination
+         */
+        private List<MapCell> getStackPath(int level, MapCell finishingCell) {
+            List<MapCell> path = new ArrayList<>(level + 2);
+            for (int i = 0; i <= level; i++) {
+                path.add(map.getCell(stackCell[i]));
+            }
+            path.add(finishingCell);
+            return path;
+        }
+
+        private boolean canWalkThrough(int cell) {
+            return map.getCell(cell).walkable && !context.isVisited(cell);
+        }
+
+        private void growStack() {
+            int capacity = stackCell.length * 2;
+            stackCell = Arrays.copyOf(stackCell, capacity);
+            stackCursor = Arrays.copyOf(stackCursor, capacity);
+            stackDepth = Arrays.copyOf(stackDepth, capacity);
+            stackKrakenIsAlive = Arrays.copyOf(stackKrakenIsAlive, capacity);
+            stackKrakenKilled = Arrays.copyOf(stackKrakenKilled, capacity);
+            stackNeighbours = Arrays.copyOf(stackNeighbours, capacity * 8);
+            stackNeighboursCount = Arrays.copyOf(stackNeighboursCount, capacity);
+        }
+    }
+
+
+    /**
+     * Backtracking which splits the first levels of the search tree into fork-join tasks.
+     * All tasks prune against the best path and the best paths of the cells found so far by any of them,
+     * while visited cells and killed Krakens are private for every task, so the map itself is never changed.
+     * Every task has its order in the serial search. Of the paths with equal length the one with the earlier
+     * order is kept, and a task prunes only by the cells reached by the tasks which go before it,
+     * so the result does not depend on the order in which tasks finish
+     */
+    public class ParallelBacktracking extends Backtracking {
+        // Levels of the search tree which are split into separate tasks
+        private final int splitDepth;
+        // Maximal length of the path that is explored
+        private final int depthLimit;
+        private final ForkJoinPool pool;
+
+        // Bound of the current search shared by all tasks: length of the best path in the high half,
+        // and order of the task which found it in the low half, so a smaller bound is a better path
+        private final AtomicLong bound = new AtomicLong();
+        private int[] bestCells;
+        // Best paths of the cells shared by all tasks, separately for alive and killed Kraken.
+        // Every value is packed in the same way as the bound, with the order of the task which reached the cell
+        private AtomicLongArray bestPaths = new AtomicLongArray(0);
+
+        /**
+         * Takes the split depth from -DparallelBacktracking.splitDepth, 3 by default, and the depth limit
+         * from -DparallelBacktracking.depthLimit. Trees on the default map are too small to be worth splitting,
+         * so larger maps or deeper limits are the workload this solver is meant for
+         */
+        public ParallelBacktracking() {
+            // Paths on the default map are never longer than 24, on other maps any simple path is allowed
+            this(ForkJoinPool.commonPool(), Integer.getInteger("parallelBacktracking.splitDepth", 3),
+                    Integer.getInteger("parallelBacktracking.depthLimit", map.size == 9 ? 25 : map.size * map.size));
+        }
+
+        /**
+         * @param pool - Pool to run tasks in
+         * @param splitDepth - Levels of the search tree which are split into separate tasks
+         * @param depthLimit - Maximal length of the path that is explored
+         */
+        public ParallelBacktracking(ForkJoinPool pool, int splitDepth, int depthLimit) {
+            // Orders of the tasks take 3 bits per split level, and they must fit into the low half of the bound
+            if (splitDepth < 1 || splitDepth > 11) throw new IllegalArgumentException("Split depth must be in [1, 11]");
+            if (depthLimit < 0) throw new IllegalArgumentException("Depth limit must not be negative");
+            this.pool = pool;
+            this.splitDepth = splitDepth;
+            this.depthLimit = depthLimit;
+        }
+
+        @Override
+        protected int shortestPath(MapCell startingCell, MapCell finishingCell, int bestPath, int startingPath,
+                                   boolean tortugaPassed, boolean krakenIsAlive) {
+            if (startingCell == finishingCell) {
+                if (startingPath < bestPath) {
+                    bestPath = startingPath;
+                    storeBestPath(finishingCell, tortugaPassed, new ArrayList<>(List.of(finishingCell)));
+                }
+                return bestPath;
+            }
+
+            // Paths as long as the given one are not better, whatever their order is
+            this.bound.set(getBound(bestPath, 0));
+            this.bestCells = null;
+            // Cells reached by the previous search go before all tasks of this one
+            for (int i = 0; i < this.bestPaths.length(); i++) {
+                this.bestPaths.set(i, this.bestPaths.get(i) & 0xFFFFFFFF00000000L);
+            }
+
+            int[] prefix = {map.getIndex(startingCell)};
+            this.pool.invoke(new SearchTask(prefix, 0, map.getIndex(finishingCell), startingPath,
+                    tortugaPassed, krakenIsAlive));
+
+            if (this.bestCells != null) {
+                List<MapCell> path = new ArrayList<>(this.bestCells.length);
+                for (int cell : this.bestCells) {
+                    path.add(map.getCell(cell));
+                }
+                storeBestPath(finishingCell, tortugaPassed, path);
+            }
+
+            return (int) (this.bound.get() >>> 32);
+        }
+
+        /**
+         * @param length - Length of the path
+         * @param order - Order of the task in the serial search
+         * @return Bound which is smaller for shorter paths, and for paths of equal length met earlier
+         */
+        private long getBound(int length, long order) {
+            return (long) length << 32 | order;
+        }
+
+        /**
+         * Order of the subtree in the serial search is made of positions of its first cells
+         * among the ordered neighbours of the previous ones, one base 8 digit per level.
+         * Below the split depth all paths belong to a single task, and they share its order
+         * @param order - Order of the task
+         * @param level - Level of the frame which the next cell is taken from
+         * @param cursor - Position of the next cell among the ordered neighbours of the frame
+         * @return Order of the subtree which starts with the next cell
+         */
+        private long getOrder(long order, int level, int cursor) {
+            if (level + 1 >= splitDepth) return order;
+            return order + ((long) cursor << 3 * (splitDepth - 2 - level));
+        }
+
+        /**
+         * Keeps the path if it is shorter than the best one found by all tasks,
+         * or if it has the same length and the serial Backtracking would meet it first
+         * @param cells - Cells of the path
+         * @param length - Length of the path
+         * @param order - Order of the path in the serial search
+         */
+        private synchronized void offer(int[] cells, int length, long order) {
+            if (getBound(length, order) < this.bound.get()) {
+                this.bestCells = cells;
+                this.bound.set(getBound(length, order));
+            }
+        }
+
+        /**
+         * @param state - Index of the cell and the state of The Kraken
+         * @param path - Length of the path to the cell
+         * @param order - Order in the serial search of the path to the cell
+         * @return true if the serial Backtracking would have already reached the cell by a shorter path
+         */
+        private boolean isReachedBefore(int state, int path, long order) {
+            long bestPath = this.bestPaths.get(state);
+            return (bestPath >>> 32) < path && (bestPath & 0xFFFFFFFFL) <= order;
+        }
+
+        private void setBestPath(int state, int path, long order) {
+            this.bestPaths.accumulateAndGet(state, getBound(path, order), Math::min);
+        }
+
+        @Override
+        protected void resetBestPaths() {
+            super.resetBestPaths();
+            if (this.bestPaths.length() < 2 * map.size * map.size) {
+                this.bestPaths = new AtomicLongArray(2 * map.size * map.size);
+            }
+            for (int i = 0; i < this.bestPaths.length(); i++) {
+                this.bestPaths.set(i, Long.MAX_VALUE);
+            }
+        }
+
+        private synchronized void addExpandedCells(int count) {
+            this.expandedCells += count;
+        }
+
+        private synchronized void markCancelled() {
+            this.cancelled = true;
+        }
+
+        /**
+         * Task which explores all paths starting with the given prefix. Its stack has the same frames as
+         * the stack of IterativeBacktracking, plus Krakens killed on the way to every frame
+         */
+        private class SearchTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int[] prefix;
+            // Order of the task in the serial search
+            private final long order;
+            private final int finishingCell;
+            private final int startingPath;
+            private final boolean tortugaPassed;
+            private final boolean krakenIsAlive;
+
+            // Private state of the task
+            private final boolean[] visited = new boolean[map.size * map.size];
+            // Best paths of the cells reached by this task. Other tasks may run in any order, and the cells reached
+            // by the ones which go later may hide the shared best paths, but never these ones
+            private final int[] ownBestPaths = new int[2 * map.size * map.size];
+            // Krakens killed on the current path, frame i sees first killedCount[i] of them
+            private int[] killed = new int[4];
+
+            private int[] stackCell;
+            private int[] stackCursor;
+            private boolean[] stackKrakenIsAlive;
+            private int[] stackKilledCount;
+            private int[] stackNeighbours;
+            private int[] stackNeighboursCount;
+
+            /**
+             * @param prefix - Cells of the path which this task continues, starting from the start of the search
+             * @param order - Order of the task in the serial search
+             * @param finishingCell - Destination of the search
+             * @param startingPath - Length of the path to the start of the search
+             * @param tortugaPassed - true if the search starts from Tortuga
+             * @param krakenIsAlive - true if The Kraken is alive at the start of the search
+             */
+            SearchTask(int[] prefix, long order, int finishingCell, int startingPath, boolean tortugaPassed,
+                       boolean krakenIsAlive) {
+                this.prefix = prefix;
+                this.order = order;
+                this.finishingCell = finishingCell;
+                this.startingPath = startingPath;
+                this.tortugaPassed = tortugaPassed;
+                this.krakenIsAlive = krakenIsAlive;
+            }
+
+            @Override
+            protected void compute() {
+                int capacity = Math.max(16, prefix.length * 2);
+                stackCell = new int[capacity];
+                stackCursor = new int[capacity];
+                stackKrakenIsAlive = new boolean[capacity];
+                stackKilledCount = new int[capacity];
+                stackNeighbours = new int[capacity * 8];
+                stackNeighboursCount = new int[capacity];
+                Arrays.fill(ownBestPaths, Integer.MAX_VALUE);
+
+                // Frames of the prefix are restored in the same way as they were built by the parent task
+                for (int level = 0; level < prefix.length; level++) {
+                    if (level > 0) {
+                        reach(getStateIndex(prefix[level], stackKrakenIsAlive[level - 1]), startingPath + level,
+                                order);
+                    }
+                    enter(level, prefix[level], level == 0 ? krakenIsAlive : stackKrakenIsAlive[level - 1],
+                            level == 0 ? 0 : stackKilledCount[level - 1]);
+                }
+
+                List<SearchTask> subtasks = new ArrayList<>();
+                int firstLevel = prefix.length - 1;
+                int level = firstLevel;
+                // Cells of the prefix were counted by parent tasks, except the last one
+                int expanded = 1;
+
+                while (level >= firstLevel) {
+                    if (stackCursor[level] == stackNeighboursCount[level]) {
+                        visited[stackCell[level]] = false;
+                        level--;
+                        continue;
+                    }
+
+                    int neighbour = stackNeighbours[level * 8 + stackCursor[level]++];
+                    int currentPath = startingPath + level;
+                    int state = getStateIndex(neighbour, stackKrakenIsAlive[level]);
+                    long neighbourOrder = getOrder(order, level, stackCursor[level] - 1);
+
+                    if (!canWalkThrough(neighbour, stackKilledCount[level]) || currentPath > depthLimit ||
+                            currentPath >= ownBestPaths[state] ||
+                            isReachedBefore(state, currentPath + 1, neighbourOrder)) continue;
+                    // This task or another one might have already found the path, which this one can not beat.
+                    // Paths of the same length are explored only if the serial Backtracking meets them first
+                    if (getBound(currentPath + 1 + getDistance(neighbour, finishingCell), neighbourOrder) >=
+                            bound.get()) continue;
+
+                    // Cells given to subtasks get their best paths once the subtasks start, which happens
+                    // in the serial order on a single worker. Otherwise they would hide cells reached before them
+                    if (level + 1 >= splitDepth || neighbour == finishingCell) {
+                        reach(state, currentPath + 1, neighbourOrder);
+                    }
+
+                    if (neighbour == finishingCell) {
+                        int[] cells = Arrays.copyOf(stackCell, level + 2);
+                        cells[level + 1] = neighbour;
+                        offer(cells, currentPath + 1, neighbourOrder);
+                        continue;
+                    }
+
+                    if (level + 1 < splitDepth) {
+                        // First levels of the tree are given to separate tasks
+                        int[] subtaskPrefix = Arrays.copyOf(stackCell, level + 2);
+                        subtaskPrefix[level + 1] = neighbour;
+                        subtasks.add(new SearchTask(subtaskPrefix, neighbourOrder, finishingCell, startingPath,
+                                tortugaPassed, krakenIsAlive));
+                        continue;
+                    }
+
+                    level++;
+                    enter(level, neighbour, stackKrakenIsAlive[level - 1], stackKilledCount[level - 1]);
+                    expanded++;
+
+                    // Tasks check the token on their own, the first one which sees it cancelled stops the solve
+                    if ((expanded & 63) == 0 && cancellation.isCancelled()) {
+                        markCancelled();
+                        subtasks.clear();
+                        break;
+                    }
+                }
+
+                addExpandedCells(expanded);
+                invokeAll(subtasks);
+            }
+
+            /**
+             * Pushes a new frame to the stack
+             * @param level - Level of the frame in the stack
+             * @param cell - Index of the cell
+             * @param krakenIsAlive - true if The Kraken was not killed on the way to the cell
+             * @param killedCount - Number of Krakens killed on the way to the cell
+             */
+            private void enter(int level, int cell, boolean krakenIsAlive, int killedCount) {
+                if (level == stackCell.length) growStack();
+
+                reach(getStateIndex(cell, krakenIsAlive), startingPath + level, order);
+                visited[cell] = true;
+
+                int count = getOrderedNeighbours(cell, finishingCell, stackNeighbours, level * 8);
+
+                // Jack kills every Kraken he sees with the rum casks from Tortuga, even if he can't move anywhere yet
+                if (tortugaPassed && krakenIsAlive) {
+                    for (int i = level * 8; i < level * 8 + count; i++) {
+                        int neighbour = stackNeighbours[i];
+                        if (!map.getCell(neighbour).agents.contains('K') || isKilled(neighbour, killedCount)) continue;
+                        // Kill kraken once we found it, only for the paths going through this cell
+                        if (killedCount == killed.length) killed = Arrays.copyOf(killed, killedCount * 2);
+                        killed[killedCount++] = neighbour;
+                        krakenIsAlive = false;
+                    }
+                }
+
+                stackCell[level] = cell;
+                stackKrakenIsAlive[level] = krakenIsAlive;
+                stackKilledCount[level] = killedCount;
+                stackNeighboursCount[level] = count;
+                stackCursor[level] = 0;
+            }
+
+            /**
+             * Sets the best path of the cell both for this task and for all tasks
+             * @param state - Index of the cell and the state of The Kraken
+             * @param path - Length of the path to the cell
+             * @param order - Order in the serial search of the path to the cell
+             */
+            private void reach(int state, int path, long order) {
+                ownBestPaths[state] = path;
+                setBestPath(state, path, order);
+            }
+
+            private boolean isKilled(int cell, int killedCount) {
+                for (int i = 0; i < killedCount; i++) {
+                    if (killed[i] == cell) return true;
+                }
+                return false;
+            }
+
+            /**
+             * @param cell - Index of the cell
+             * @param killedCount - Number of Krakens killed on the current path
+             * @return true if the cell was not visited and it is walkable, taking into account killed Krakens
+             */
+            private boolean canWalkThrough(int cell, int killedCount) {
+                if (visited[cell]) return false;
+
+                MapCell mapCell = map.getCell(cell);
+                if (mapCell.walkable) return true;
+
+                // The cell is walkable, if all its danger comes from Krakens that were killed on the way to it.
+                // Danger zone of The Kraken is the cross around it
+                int dangerLevel = mapCell.dangerLevel;
+                for (int i = 0; i < killedCount; i++) {
+                    int krakenX = killed[i] / map.size, krakenY = killed[i] % map.size;
+                    if (Math.abs(krakenX - mapCell.x) + Math.abs(krakenY - mapCell.y) <= 1) dangerLevel--;
+                }
+                return dangerLevel == 0;
+            }
+
+            private void growStack() {
+                int capacity = stackCell.length * 2;
+                stackCell = Arrays.copyOf(stackCell, capacity);
+                stackCursor = Arrays.copyOf(stackCursor, capacity);
+                stackKrakenIsAlive = Arrays.copyOf(stackKrakenIsAlive, capacity);
+                stackKilledCount = Arrays.copyOf(stackKilledCount, capacity);
+                stackNeighbours = Arrays.copyOf(stackNeighbours, capacity * 8);
+                stackNeighboursCount = Arrays.copyOf(stackNeighboursCount, capacity);
+            }
+        }
+    }
+
+
+    /**
+     * Hierarchical A* (HPA*), which finds the path over the abstract graph of clusters
+     * and then refines it only inside the clusters the path goes through.
+     * The graph is kept by the solver, so later solves on the same map reuse built clusters
+     */
+    public class HierarchicalAStar implements Algorithm, Pathfinder {
+        private final int clusterSize;
+
+        private SearchContext context;
+        // Nodes of the abstract graph closed by all legs of the last solve
+        private long totalExpandedCells;
+
+        // Token of the current solve, and whether it stopped the solve
+        private CancellationToken cancellation = new CancellationToken();
+        private boolean cancelled;
+
+        public HierarchicalAStar() {
+            this(16);
+        }
+
+        /**
+         * @param clusterSize - Side of a cluster in cells
+         */
+        public HierarchicalAStar(int clusterSize) {
+            this.clusterSize = clusterSize;
+        }
+
+        @Override
+        public long getExpandedCells() {
+            return totalExpandedCells;
+        }
+
+        /**
+         * @return List of points which lay the shortest path to the Dead Man's Chest
+         */
+        @Override
+        public List<Point<Integer, Integer>> findShortestPath() {
+            return solveCurrentMap(this);
+        }
+
+        /**
+         * @param request - Request of the solve, its map must be the map of the solver
+         * @return Shortest path to the Dead Man's Chest with stats of the solve
+         */
+        @Override
+        public SolveResult solve(SolveRequest request) {
+            long startTime = System.nanoTime();
+            accept(request);
+            this.cancellation = request.cancellation();
+            this.cancelled = false;
+
+            Point<Integer, Integer> start = request.start();
+            MapCell startingCell = map.cells[start.getX()][start.getY()];
+            totalExpandedCells = 0;
+            if (!hasRoute(startingCell)) return SolveResult.of(null, map.size, 0, System.nanoTime() - startTime);
+
+            if (clusterGraph == null || clusterGraph.getClusterSize() != clusterSize) {
+                clusterGraph = new ClusterGraph(map, clusterSize);
+            }
+            // Clusters changed by map edits since the previous solve are rebuilt
+            clusterGraph.update();
+            this.context = request.acquireContext();
+
+            MapCell chestCell = map.cells[map.chest.getX()][map.chest.getY()];
+            MapCell tortugaCell = map.cells[map.tortuga.getX()][map.tortuga.getY()];
+
+            List<MapCell> straightEndPath = search(startingCell, chestCell, new int[0]);
+            List<MapCell> pathThroughTortuga = search(startingCell, tortugaCell, new int[0]);
+            List<MapCell> fromTortugaToEnd = pathThroughTortuga == null ? null : pathFromTortuga(tortugaCell, chestCell);
+
+            long elapsedNanos = System.nanoTime() - startTime;
+            if (cancelled) return SolveResult.cancelled(totalExpandedCells, elapsedNanos);
+            return SolveResult.of(joinPaths(start, straightEndPath, pathThroughTortuga, fromTortugaToEnd), map.size,
+                    totalExpandedCells, elapsedNanos);
+        }
+
+        /**
+         * @param from - Starting cell
+         * @param to - Finishing cell
+         * @param krakenCells - Sorted indices of cells of Krakens which are taken as killed
+         * @return Cells of the shortest path without the starting cell, or null if there's no path or the solve
+         * was cancelled
+         */
+        private List<MapCell> search(MapCell from, MapCell to, int[] krakenCells) {
+            if (cancelled) return null;
+
+            List<MapCell> path = clusterGraph.shortestPath(from, to, context, krakenCells, cancellation);
+            totalExpandedCells += clusterGraph.getExpandedNodes();
+            cancelled = clusterGraph.isCancelled();
+            return path;
+        }
+
+        /**
+         * @param tortugaCell - Cell of Tortuga
+         * @param chestCell - Cell of the Chest
+         * @return Shortest path from Tortuga to the Chest, on which Jack may kill Krakens with rum casks
+         */
+        private List<MapCell> pathFromTortuga(MapCell tortugaCell, MapCell chestCell) {
+            List<MapCell> bestPath = search(tortugaCell, chestCell, new int[0]);
+
+            // Jack kills The Kraken as soon as he stands next to it, so every such cell is tried
+            for (Kraken kraken : map.krakens) {
+                for (var offset : Agent.surroundingPerception) {
+                    int x = kraken.getX() + offset.getX(), y = kraken.getY() + offset.getY();
+                    if (!map.isInside(x, y)) continue;
+
+                    MapCell killingCell = map.cells[x][y];
+                    if (killingCell != tortugaCell && !killingCell.walkable) continue;
+                    if (bestPath != null && getDistanceBetween(tortugaCell, killingCell) +
+                            getDistanceBetween(killingCell, chestCell) >= bestPath.size()) continue;
+
+                    List<MapCell> toKillingCell = search(tortugaCell, killingCell, new int[0]);
+                    if (toKillingCell == null || (bestPath != null &&
+                            toKillingCell.size() + getDistanceBetween(killingCell, chestCell) >= bestPath.size())) continue;
+
+                    // As in other algorithms, all Krakens seen from the cell are killed. The map is not changed,
+                    // the graph searches over variants of the clusters which their danger zones touch
+                    List<Integer> krakenCells = new ArrayList<>();
+                    for (MapCell neighbour : map.getNeighbourCells(killingCell)) {
+                        if (neighbour.agents.contains('K')) krakenCells.add(map.getIndex(neighbour));
+                    }
+                    int[] killed = krakenCells.stream().mapToInt(Integer::intValue).sorted().toArray();
+
+                    List<MapCell> fromKillingCell = search(killingCell, chestCell, killed);
+
+                    if (fromKillingCell != null &&
+                            (bestPath == null || toKillingCell.size() + fromKillingCell.size() < bestPath.size())) {
+                        bestPath = new ArrayList<>(toKillingCell);
+                        bestPath.addAll(fromKillingCell);
+                    }
+                }
+            }
+
+            return cancelled ? null : bestPath;
+        }
+
+        private int getDistanceBetween(MapCell firstCell, MapCell secondCell) {
+            return Math.max(Math.abs(firstCell.x - secondCell.x), Math.abs(firstCell.y - secondCell.y));
+        }
+    }
+
+
+    /**
+     * Many-to-one queries for a fixed board. Reverse breadth-first searches from the Chest and Tortuga,
+     * with all Krakens alive and with Krakens killed from each killing cell, are done once in the constructor.
+     * After that, the length and the path from any starting cell are answered by following stored next cells,
+     * in O(path length). The map must not be edited while the queries are used
+     */
+    public class ReverseSearch {
+        // Distance from every cell to the Chest and the next cell towards it, while all Krakens are alive
+        private final int[] toChest;
+        private final int[] nextToChest;
+
+        // Distance from every cell to Tortuga and the next cell towards it
+        private final int[] toTortuga;
+        private final int[] nextToTortuga;
+
+        // Best path from Tortuga to the Chest, on which Jack may kill Krakens with rum casks, or null
+        private final List<MapCell> fromTortugaToEnd;
+
+        public ReverseSearch() {
+            int cellsCount = map.size * map.size;
+            this.toChest = new int[cellsCount];
+            this.nextToChest = new int[cellsCount];
+            this.toTortuga = new int[cellsCount];
+            this.nextToTortuga = new int[cellsCount];
+
+            int chestCell = map.getIndex(map.cells[map.chest.getX()][map.chest.getY()]);
+            int tortugaCell = map.getIndex(map.cells[map.tortuga.getX()][map.tortuga.getY()]);
+
+            // Searches of the layer with all Krakens alive share the walkability copied by the field
+            DistanceField field = new DistanceField(map);
+            field.search(chestCell, true, toChest, nextToChest);
+            field.search(tortugaCell, true, toTortuga, nextToTortuga);
+            this.fromTortugaToEnd = pathFromTortuga(field, tortugaCell, chestCell);
+        }
+
+        /**
+         * @param x - X coordinate of Jack's starting cell
+         * @param y - Y coordinate of Jack's starting cell
+         * @return Number of moves of the shortest route to the Chest, or -1 if there's no route
+         */
+        public int getLength(int x, int y) {
+            int start = x * map.size + y;
+            int straightLength = toChest[start];
+            int tortugaLength = getTortugaLength(start);
+
+            int length = Math.min(straightLength, tortugaLength);
+            return length == Integer.MAX_VALUE ? -1 : length;
+        }
+
+        /**
+         * @param x - X coordinate of Jack's starting cell
+         * @param y - Y coordinate of Jack's starting cell
+         * @return List of points which lay the shortest path to the Dead Man's Chest, or null if there's no path
+         */
+        public List<Point<Integer, Integer>> getPath(int x, int y) {
+            int start = x * map.size + y;
+            int straightLength = toChest[start];
+            int tortugaLength = getTortugaLength(start);
+
+            if (straightLength == Integer.MAX_VALUE && tortugaLength == Integer.MAX_VALUE) return null;
+
+            List<Point<Integer, Integer>> pointsPath = new ArrayList<>();
+            pointsPath.add(new Point<>(x, y));
+
+            // As in other algorithms, the path through Tortuga is chosen only if it is strictly shorter
+            if (tortugaLength < straightLength) {
+                for (int cell = start; toTortuga[cell] != 0; ) {
+                    cell = nextToTortuga[cell];
+                    pointsPath.add(new Point<>(cell / map.size, cell % map.size));
+                }
+                for (MapCell cell : fromTortugaToEnd) {
+                    pointsPath.add(new Point<>(cell.x, cell.y));
+                }
+            } else {
+                for (int cell = start; toChest[cell] != 0; ) {
+                    cell = nextToChest[cell];
+                    pointsPath.add(new Point<>(cell / map.size, cell % map.size));
+                }
+            }
+
+            return pointsPath;
+        }
+
+        private int getTortugaLength(int start) {
+            if (toTortuga[start] == Integer.MAX_VALUE || fromTortugaToEnd == null) return Integer.MAX_VALUE;
+            return toTortuga[start] + fromTortugaToEnd.size();
+        }
+
+        /**
+         * @param field - Field of the layer with all Krakens alive
+         * @param tortugaCell - Index of the cell of Tortuga
+         * @param chestCell - Index of the cell of the Chest
+         * @return Shortest path from Tortuga to the Chest, on which Jack may kill Krakens with rum casks
+         */
+        private List<MapCell> pathFromTortuga(DistanceField field, int tortugaCell, int chestCell) {
+            int cellsCount = map.size * map.size;
+            int[] fromTortuga = new int[cellsCount];
+            int[] previousFromTortuga = new int[cellsCount];
+            field.search(tortugaCell, false, fromTortuga, previousFromTortuga);
+
+            // Layer with all Krakens alive
+            int bestLength = toChest[tortugaCell];
+            int bestKillingCell = -1;
+            int[] bestLayer = null;
+
+            // Killing cells are grouped by Krakens seen from them, so every layer with killed Krakens is searched once
+            LinkedHashMap<List<MapCell>, List<Integer>> killingCells = new LinkedHashMap<>();
+            for (Kraken kraken : map.krakens) {
+                for (var offset : Agent.surroundingPerception) {
+                    int x = kraken.getX() + offset.getX(), y = kraken.getY() + offset.getY();
+                    if (!map.isInside(x, y)) continue;
+
+                    MapCell killingCell = map.cells[x][y];
+                    int index = map.getIndex(killingCell);
+                    if (fromTortuga[index] == Integer.MAX_VALUE) continue;
+
+                    List<MapCell> krakenCells = new ArrayList<>();
+                    for (MapCell neighbour : map.getNeighbourCells(killingCell)) {
+                        if (neighbour.agents.contains('K')) krakenCells.add(neighbour);
+                    }
+                    krakenCells.sort(Comparator.comparingInt(map::getIndex));
+
+                    List<Integer> group = killingCells.computeIfAbsent(krakenCells, key -> new ArrayList<>());
+                    if (!group.contains(index)) group.add(index);
+                }
+            }
+
+            for (var entry : killingCells.entrySet()) {
+                for (MapCell krakenCell : entry.getKey()) {
+                    map.killKraken(krakenCell);
+                    if (!krakenCell.agents.contains('R') && krakenCell.dangerLevel == 0) {
+                        krakenCell.changeWalkability(true);
+                    }
+                }
+
+                // Field copies walkability of the map, so the layer needs its own one
+                int[] toChestKilled = new int[cellsCount];
+                int[] nextToChestKilled = new int[cellsCount];
+                new DistanceField(map).search(chestCell, true, toChestKilled, nextToChestKilled);
+                map.reviveKrakens();
+
+                for (int killingCell : entry.getValue()) {
+                    if (toChestKilled[killingCell] == Integer.MAX_VALUE) continue;
+
+                    int length = fromTortuga[killingCell] + toChestKilled[killingCell];
+                    if (length < bestLength) {
+                        bestLength = length;
+                        bestKillingCell = killingCell;
+                        bestLayer = nextToChestKilled;
+                    }
+                }
+            }
+
+            if (bestLength == Integer.MAX_VALUE) return null;
+
+            List<MapCell> path = new ArrayList<>();
+            if (bestKillingCell == -1) {
+                for (int cell = tortugaCell; cell != chestCell; ) {
+                    cell = nextToChest[cell];
+                    path.add(map.getCell(cell));
+                }
+                return path;
+            }
+
+            for (int cell = bestKillingCell; cell != tortugaCell; cell = previousFromTortuga[cell]) {
+                path.add(map.getCell(cell));
+            }
+            Collections.reverse(path);
+            for (int cell = bestKillingCell; cell != chestCell; ) {
+                cell = bestLayer[cell];
+                path.add(map.getCell(cell));
+            }
+
+            return path;
+        }
+    }
+
+    /**
+     * Anytime weighted A* in the spirit of ARA*: the first route is found quickly with inflated heuristic,
+     * then it is searched again with decreasing inflation factors until the token of the request is cancelled
+     * or the route is proven optimal. Weighted searches never reopen cells, so each route
+     * is at most inflation factor times longer than the optimal one
+     */
+    public class AnytimeAStar implements Algorithm, Pathfinder {
+        private final double initialInflation;
+        private final double inflationStep;
+
+        // Suboptimality bound of the returned path and number of iterations that were completed
+        private double suboptimalityBound = Double.POSITIVE_INFINITY;
+        private int iterations = 0;
+
+        private SearchContext context;
+        // Token of the current solve, its deadline is the deadline of the anytime search
+        private CancellationToken cancellation = new CancellationToken();
+        private boolean deadlinePassed;
+        private final int[] neighbours = new int[8];
+        // Cells which were closed by the current leg
+        private int expandedCells;
+        // Cells which were expanded by all legs of the last solve
+        private long totalExpandedCells;
+
+        /**
+         * Open cell with the key it was added with, so cells with outdated keys are skipped
+         */
+        private record OpenCell(double key, int cost, int index) implements Comparable<OpenCell> {
+            @Override
+            public int compareTo(OpenCell other) {
+                // Among cells with the same key deeper ones are preferred, they are closer to the finish
+                if (key != other.key) return Double.compare(key, other.key);
+                return Integer.compare(other.cost, cost);
+            }
+        }
+
+        public AnytimeAStar() {
+            this(3.0, 0.5);
+        }
+
+        /**
+         * @param initialInflation - Inflation factor of the heuristic of the first iteration
+         * @param inflationStep - Decrease of the inflation factor after every iteration
+         */
+        public AnytimeAStar(double initialInflation, double inflationStep) {
+            this.initialInflation = Math.max(1.0, initialInflation);
+            this.inflationStep = inflationStep;
+        }
+
+        /**
+         * @return Factor by which the last returned path can be longer than the optimal one, 1 if it is optimal
+         */
+        public double getSuboptimalityBound() {
+            return suboptimalityBound;
+        }
+
+        /**
+         * @return Number of iterations completed by the last solve
+         */
+        public int getIterations() {
+            return iterations;
+        }
+
+        @Override
+        public long getExpandedCells() {
+            return totalExpandedCells;
+        }
+
+        /**
+         * The solve has no deadline, so the route is improved until it is optimal
+         * @return List of points which lay the shortest path to the Dead Man's Chest
+         */
+        @Override
+        public List<Point<Integer, Integer>> findShortestPath() {
+            return solveCurrentMap(this);
+        }
+
+        /**
+         * Every iteration, the first one included, is abandoned once the token of the request is cancelled
+         * @param request - Request of the solve, its token sets the deadline of the search
+         * @return Best path found before the deadline, or TIMED_OUT if the deadline passed before the first one
+         */
+        @Override
+        public SolveResult solve(SolveRequest request) {
+            long startTime = System.nanoTime();
+            accept(request);
+            this.cancellation = request.cancellation();
+            this.suboptimalityBound = Double.POSITIVE_INFINITY;
+            this.iterations = 0;
+            this.totalExpandedCells = 0;
+
+            Point<Integer, Integer> start = request.start();
+            if (!hasRoute(map.cells[start.getX()][start.getY()])) {
+                suboptimalityBound = 1.0;
+                return SolveResult.of(null, map.size, 0, System.nanoTime() - startTime);
+            }
+            this.context = request.acquireContext();
+
+            List<Point<Integer, Integer>> bestPath = null;
+            double inflation = initialInflation;
+
+            while (true) {
+                this.deadlinePassed = false;
+                List<Point<Integer, Integer>> path = findRoute(start, inflation);
+                if (deadlinePassed) break;
+                iterations++;
+
+                // Inflation does not change which cells are reachable, so there's no route at all
+                if (path == null) {
+                    suboptimalityBound = 1.0;
+                    return SolveResult.of(null, map.size, totalExpandedCells, System.nanoTime() - startTime);
+                }
+
+                if (bestPath == null || path.size() < bestPath.size()) bestPath = path;
+                suboptimalityBound = inflation;
+
+                if (inflation == 1.0) break;
+                inflation = Math.max(1.0, inflation - inflationStep);
+            }
+
+            long elapsedNanos = System.nanoTime() - startTime;
+            if (bestPath == null) return SolveResult.timedOut(totalExpandedCells, elapsedNanos);
+            return SolveResult.of(bestPath, map.size, totalExpandedCells, elapsedNanos);
+        }
+
+        /**
+         * @param start - Point from which Jack starts
+         * @param inflation - Inflation factor of the heuristic
+         * @return Route with the same legs as in A* algorithm, or null if there's no route or the deadline passed
+         */
+        private List<Point<Integer, Integer>> findRoute(Point<Integer, Integer> start, double inflation) {
+            MapCell startingCell = map.cells[start.getX()][start.getY()];
+            MapCell chestCell = map.cells[map.chest.getX()][map.chest.getY()];
+            MapCell tortugaCell = map.cells[map.tortuga.getX()][map.tortuga.getY()];
+
+            expandedCells = 0;
+            SearchLegEvent event = SearchLegEvent.start();
+            List<MapCell> straightEndPath = shortestPath(startingCell, chestCell, inflation);
+            event.finish(map, this, SearchLegEvent.STRAIGHT, expandedCells, getLength(straightEndPath));
+            totalExpandedCells += expandedCells;
+
+            expandedCells = 0;
+            event = SearchLegEvent.start();
+            List<MapCell> pathThroughTortuga = shortestPath(startingCell, tortugaCell, inflation);
+            event.finish(map, this, SearchLegEvent.TO_TORTUGA, expandedCells, getLength(pathThroughTortuga));
+            totalExpandedCells += expandedCells;
+
+            List<MapCell> fromTortugaToEnd = null;
+            if (pathThroughTortuga != null) {
+                expandedCells = 0;
+                event = SearchLegEvent.start();
+                fromTortugaToEnd = pathFromTortuga(tortugaCell, chestCell, inflation);
+                event.finish(map, this, SearchLegEvent.FROM_TORTUGA, expandedCells, getLength(fromTortugaToEnd));
+                totalExpandedCells += expandedCells;
+            }
+
+            if (deadlinePassed) return null;
+            return joinPaths(start, straightEndPath, pathThroughTortuga, fromTortugaToEnd);
+        }
+
+        /**
+         * @return Path from Tortuga to the Chest, on which Jack may kill Krakens with rum casks
+         */
+        private List<MapCell> pathFromTortuga(MapCell tortugaCell, MapCell chestCell, double inflation) {
+            List<MapCell> bestPath = shortestPath(tortugaCell, chestCell, inflation);
+
+            // Jack kills The Kraken as soon as he stands next to it, so every such cell is tried
+            for (Kraken kraken : map.krakens) {
+                for (var offset : Agent.surroundingPerception) {
+                    if (deadlinePassed) return null;
+
+                    int x = kraken.getX() + offset.getX(), y = kraken.getY() + offset.getY();
+                    if (!map.isInside(x, y)) continue;
+
+                    MapCell killingCell = map.cells[x][y];
+                    if (killingCell != tortugaCell && !killingCell.walkable) continue;
+                    if (bestPath != null && getDistanceBetween(tortugaCell, killingCell) +
+                            getDistanceBetween(killingCell, chestCell) >= bestPath.size()) continue;
+
+                    List<MapCell> toKillingCell = shortestPath(tortugaCell, killingCell, inflation);
+                    if (toKillingCell == null || (bestPath != null &&
+                            toKillingCell.size() + getDistanceBetween(killingCell, chestCell) >= bestPath.size())) continue;
+
+                    // As in other algorithms, all Krakens seen from the cell are killed
+                    for (MapCell neighbour : map.getNeighbourCells(killingCell)) {
+                        if (!neighbour.agents.contains('K')) continue;
+
+                        map.killKraken(neighbour);
+                        if (!neighbour.agents.contains('R') && neighbour.dangerLevel == 0) {
+                            neighbour.changeWalkability(true);
+                        }
+                    }
+
+                    List<MapCell> fromKillingCell = shortestPath(killingCell, chestCell, inflation);
+                    map.reviveKrakens();
+
+                    if (fromKillingCell != null &&
+                            (bestPath == null || toKillingCell.size() + fromKillingCell.size() < bestPath.size())) {
+                        bestPath = new ArrayList<>(toKillingCell);
+                        bestPath.addAll(fromKillingCell);
+                    }
+                }
+            }
+
+            return bestPath;
+        }
+
+        /**
+         * Weighted A*, which orders open cells by G + inflation * H and never reopens closed cells
+         * @param startingCell - Starting cell
+         * @param finishingCell - Finishing cell
+         * @param inflation - Inflation factor of the heuristic
+         * @return Cells of the path without the starting cell, or null if there's no path or the deadline passed
+         */
+        private List<MapCell> shortestPath(MapCell startingCell, MapCell finishingCell, double inflation) {
+            // Legs on small maps close less than 64 cells, so the clock is also read before every leg
+            if (deadlinePassed || cancellation.isCancelled()) {
+                deadlinePassed = true;
+                return null;
+            }
+
+            context.resetCosts();
+            PriorityQueue<OpenCell> openCells = new PriorityQueue<>();
+
+            int startingIndex = map.getIndex(startingCell), finishingIndex = map.getIndex(finishingCell);
+            int heuristic = getDistanceBetween(startingCell, finishingCell);
+            context.setCosts(startingIndex, 0, heuristic, -1);
+            openCells.add(new OpenCell(inflation * heuristic, 0, startingIndex));
+
+            while (!openCells.isEmpty()) {
+                OpenCell current = openCells.poll();
+                int currentIndex = current.index();
+                if (context.isClosed(currentIndex) || current.cost() != context.getG(currentIndex)) continue;
+
+                if (currentIndex == finishingIndex) return tracePath(startingIndex, finishingIndex);
+                context.close(currentIndex);
+                expandedCells++;
+
+                // Clock is checked once in a while, it is much slower than expanding a cell
+                if ((expandedCells & 63) == 0 && cancellation.isCancelled()) {
+                    deadlinePassed = true;
+                    return null;
+                }
+
+                int newCost = current.cost() + 1;
+                int count = map.getNeighbourIndices(currentIndex, neighbours, 0);
+                for (int i = 0; i < count; i++) {
+                    int neighbourIndex = neighbours[i];
+                    MapCell neighbourCell = map.getCell(neighbourIndex);
+                    if (context.isClosed(neighbourIndex) || !neighbourCell.walkable) continue;
+                    if (newCost >= context.getG(neighbourIndex)) continue;
+
+                    heuristic = getDistanceBetween(neighbourCell, finishingCell);
+                    context.setCosts(neighbourIndex, newCost, heuristic, currentIndex);
+                    openCells.add(new OpenCell(newCost + inflation * heuristic, newCost, neighbourIndex));
+                }
+            }
+
+            return null;
+        }
+
+        private List<MapCell> tracePath(int startingIndex, int finishingIndex) {
+            List<MapCell> path = new ArrayList<>();
+            for (int index = finishingIndex; index != startingIndex; index = context.getParent(index)) {
+                path.add(map.getCell(index));
+            }
+            Collections.reverse(path);
+            return path;
+        }
+
+        private int getDistanceBetween(MapCell firstCell, MapCell secondCell) {
+            return Math.max(Math.abs(firstCell.x - secondCell.x), Math.abs(firstCell.y - secondCell.y));
+        }
+    }
+
+    /**
+     * A* algorithm with soft costs: danger zones of enemies stay impassable, but entering a cell next to them
+     * costs more, in proportion to danger levels of the neighbour cells. Move costs are small integers,
+     * so open cells are kept in a bucket queue instead of a heap and the search costs about the same
+     * as with uniform costs. The route through Tortuga is chosen only if its total cost is strictly smaller
+     */
+    public class WeightedAStar implements Algorithm, Pathfinder {
+        // Move costs are capped, so the bucket queue needs only a few buckets
+        static final int MAX_MOVE_COST = 16;
+
+        private final int proximityWeight;
+
+        // Total cost of the last returned route
+        private int routeCost = -1;
+
+        private SearchContext context;
+        // F-cost of a neighbour exceeds F-cost of the expanded cell by at most the move cost plus one
+        private final BucketQueue openCells = new BucketQueue(MAX_MOVE_COST + 1);
+        private final int[] neighbours = new int[8];
+        private final int[] dangerNeighbours = new int[8];
+        // Cells which were closed by the current leg
+        private int expandedCells;
+        // Cells which were expanded by all legs of the last solve
+        private long totalExpandedCells;
+
+        // Token of the current solve, and whether it stopped the solve
+        private CancellationToken cancellation = new CancellationToken();
+        private boolean cancelled;
+
+        // Move costs are computed when a search first enters the cell, and forgotten when Krakens die or revive
+        private int[] moveCosts = new int[0];
+        private int[] moveCostsStamp = new int[0];
+        private int moveCostsEpoch = 0;
+
+        /**
+         * Cells of a path without the starting cell, and the total cost of moves along them
+         */
+        private record Leg(List<MapCell> cells, int cost) {
+        }
+
+        /**
+         * @param proximityWeight - Extra cost of entering a cell per unit of danger level of its neighbours,
+         * with 0 every move costs 1 and the path is the shortest one
+         */
+        public WeightedAStar(int proximityWeight) {
+            if (proximityWeight < 0) throw new IllegalArgumentException("proximityWeight must not be negative");
+            this.proximityWeight = proximityWeight;
+        }
+
+        /**
+         * @return Total cost of the last returned route, or -1 if there was no route
+         */
+        public int getRouteCost() {
+            return routeCost;
+        }
+
+        @Override
+        public long getExpandedCells() {
+            return totalExpandedCells;
+        }
 
-    public JackSparrow(int x, int y, boolean dangerous, int scenario) {
-        super(x, y, dangerous);
-        // Depending on the scenario, perception of the Jack Sparrow will change
-        switch (scenario) {
-            case 1 -> this.perception = new ArrayList<>(Arrays.asList(this.topLeft, this.top, this.topRight,
-                    this.left, this.right,
-                    this.bottomLeft, this.bottom, this.bottomRight)
-            );
+        /**
+         * @return List of points which lay the cheapest path to the Dead Man's Chest
+         */
+        @Override
+        public List<Point<Integer, Integer>> findShortestPath() {
+            return solveCurrentMap(this);
+        }
 
-            case 2 -> {
+        /**
+         * @param request - Request of the solve, its map must be the map of the solver
+         * @return The cheapest path to the Dead Man's Chest with stats of the solve
+         */
+        @Override
+        public SolveResult solve(SolveRequest request) {
+            long startTime = System.nanoTime();
+            accept(request);
+            this.cancellation = request.cancellation();
+            this.cancelled = false;
+            totalExpandedCells = 0;
+            routeCost = -1;
+
+            Point<Integer, Integer> start = request.start();
+            MapCell startingCell = map.cells[start.getX()][start.getY()];
+            if (!hasRoute(startingCell)) return SolveResult.of(null, map.size, 0, System.nanoTime() - startTime);
 
-                final Point<Integer, Integer> twiceUp = new Point<>(0, -2);
-                final Point<Integer, Integer> twiceDown = new Point<>(0, 2);
-                final Point<Integer, Integer> twiceLeft = new Point<>(-2, 0);
-                final Point<Integer, Integer> twiceRight = new Point<>(2, 0);
+            int cellsCount = map.size * map.size;
+            this.context = request.acquireContext();
+            if (moveCosts.length < cellsCount) {
+                moveCosts = new int[cellsCount];
+                moveCostsStamp = new int[cellsCount];
+            }
+            forgetMoveCosts();
 
-                this.perception = new ArrayList<>(Arrays.asList(twiceUp,
-                        this.topLeft, this.top, this.topRight,
-                        twiceLeft, this.left, this.right, twiceRight,
-                        this.bottomLeft, this.bottom, this.bottomRight,
-                        twiceDown)
-                );
+            List<Point<Integer, Integer>> path = findRoute(start, startingCell);
+            long elapsedNanos = System.nanoTime() - startTime;
+            if (cancelled) {
+                routeCost = -1;
+                return SolveResult.cancelled(totalExpandedCells, elapsedNanos);
             }
+            return SolveResult.of(path, map.size, totalExpandedCells, elapsedNanos);
         }
-    }
 
-    @Override
-    public char getAlias() {
-        return 'J';
-    }
-}
+        /**
+         * @param start - Point from which Jack starts
+         * @param jackCell - Cell of the point
+         * @return The cheapest route, or null if there's no route or the solve was cancelled
+         */
+        private List<Point<Integer, Integer>> findRoute(Point<Integer, Integer> start, MapCell jackCell) {
+            MapCell chestCell = map.cells[map.chest.getX()][map.chest.getY()];
+            MapCell tortugaCell = map.cells[map.tortuga.getX()][map.tortuga.getY()];
 
+            expandedCells = 0;
+            SearchLegEvent event = SearchLegEvent.start();
+            Leg straightEndPath = shortestPath(jackCell, chestCell);
+            event.finish(map, this, SearchLegEvent.STRAIGHT, expandedCells, getLength(straightEndPath));
+            totalExpandedCells += expandedCells;
 
-/**
- * Class for Sea Map, on which all objects will be stored
- */
-class Map {
-    // Current perception of scenario
-    int scenario = 1;
+            expandedCells = 0;
+            event = SearchLegEvent.start();
+            Leg pathThroughTortuga = shortestPath(jackCell, tortugaCell);
+            event.finish(map, this, SearchLegEvent.TO_TORTUGA, expandedCells, getLength(pathThroughTortuga));
+            totalExpandedCells += expandedCells;
 
-    // Agents that will be placed on map
-    public Tortuga tortuga;
-    public Chest chest;
-    public Rock rock;
-    public Kraken kraken;
-    public DavyJones davyJones;
+            Leg fromTortugaToEnd = null;
+            if (pathThroughTortuga != null) {
+                expandedCells = 0;
+                event = SearchLegEvent.start();
+                fromTortugaToEnd = pathFromTortuga(tortugaCell, chestCell);
+                event.finish(map, this, SearchLegEvent.FROM_TORTUGA, expandedCells, getLength(fromTortugaToEnd));
+                totalExpandedCells += expandedCells;
+            }
 
-    public JackSparrow jack;
+            if (cancelled) return null;
 
-    List<Agent> agents;
+            boolean tortugaPathValid = pathThroughTortuga != null && fromTortugaToEnd != null;
+            if (tortugaPathValid && (straightEndPath == null ||
+                    pathThroughTortuga.cost() + fromTortugaToEnd.cost() < straightEndPath.cost())) {
+                routeCost = pathThroughTortuga.cost() + fromTortugaToEnd.cost();
+                return joinPaths(start, null, pathThroughTortuga.cells(), fromTortugaToEnd.cells());
+            }
 
-    // Cells of our map
-    public MapCell[][] cells;
-    // 2D ascii representation of the map
-    public char[][] asciiMap;
+            routeCost = straightEndPath == null ? -1 : straightEndPath.cost();
+            return straightEndPath == null ? null : joinPaths(start, straightEndPath.cells(), null, null);
+        }
 
-    /**
-     *  Method to change the scenario of our map
-     */
-    public void setScenario(int scenario) {
-        this.scenario = scenario;
-    }
+        /**
+         * @return Path from Tortuga to the Chest, on which Jack may kill Krakens with rum casks
+         */
+        private Leg pathFromTortuga(MapCell tortugaCell, MapCell chestCell) {
+            Leg bestPath = shortestPath(tortugaCell, chestCell);
 
+            // Jack kills The Kraken as soon as he stands next to it, so every such cell is tried.
+            // Every move costs at least 1, so Chebyshev distance bounds the cost of the rest of the path
+            for (Kraken kraken : map.krakens) {
+                for (var offset : Agent.surroundingPerception) {
+                    if (cancelled) return null;
 
-    /**
-     * @param cell - Map cell
-     * @return Set of neighbour cells on the map for the given cell
-     */
-    public HashSet<MapCell> getNeighbourCells(MapCell cell) {
-        HashSet<MapCell> neighbourCells = new HashSet<>();
-        switch(this.scenario) {
-            case 1 -> {
-                for (Point<Integer, Integer> perceptionPoint : this.jack.perception) {
-                    int newX = perceptionPoint.getX() + cell.x;
-                    int newY = perceptionPoint.getY() + cell.y;
+                    int x = kraken.getX() + offset.getX(), y = kraken.getY() + offset.getY();
+                    if (!map.isInside(x, y)) continue;
 
-                    if (newX >= 0 && newX <= 8 && newY >= 0 && newY <= 8) neighbourCells.add(cells[newX][newY]);
-                }
-            }
-            case 2 -> {
-                for (int i = -1; i <= 1; i++) {
-                    for (int j = -1; j <= 1; j++) {
-                        if (!(i == 0 && j == 0)) {
-                            int newX = cell.x + i;
-                            int newY = cell.y + j;
+                    MapCell killingCell = map.cells[x][y];
+                    if (killingCell != tortugaCell && !killingCell.walkable) continue;
+                    if (bestPath != null && getDistanceBetween(tortugaCell, killingCell) +
+                            getDistanceBetween(killingCell, chestCell) >= bestPath.cost()) continue;
+
+                    Leg toKillingCell = shortestPath(tortugaCell, killingCell);
+                    if (toKillingCell == null || (bestPath != null &&
+                            toKillingCell.cost() + getDistanceBetween(killingCell, chestCell) >= bestPath.cost())) continue;
+
+                    // As in other algorithms, all Krakens seen from the cell are killed
+                    for (MapCell neighbour : map.getNeighbourCells(killingCell)) {
+                        if (!neighbour.agents.contains('K')) continue;
 
-                            if (newX >= 0 && newX <= 8 && newY >= 0 && newY <= 8) neighbourCells.add(cells[newX][newY]);
+                        map.killKraken(neighbour);
+                        if (!neighbour.agents.contains('R') && neighbour.dangerLevel == 0) {
+                            neighbour.changeWalkability(true);
                         }
                     }
+                    forgetMoveCosts();
+
+                    Leg fromKillingCell = shortestPath(killingCell, chestCell);
+                    map.reviveKrakens();
+                    forgetMoveCosts();
+
+                    if (fromKillingCell != null &&
+                            (bestPath == null || toKillingCell.cost() + fromKillingCell.cost() < bestPath.cost())) {
+                        List<MapCell> cells = new ArrayList<>(toKillingCell.cells());
+                        cells.addAll(fromKillingCell.cells());
+                        bestPath = new Leg(cells, toKillingCell.cost() + fromKillingCell.cost());
+                    }
                 }
             }
+
+            return bestPath;
         }
 
-        return neighbourCells;
-    }
+        /**
+         * @param startingCell - Starting cell
+         * @param finishingCell - Finishing cell
+         * @return The cheapest path between the cells, or null if there's no path or the solve was cancelled
+         */
+        private Leg shortestPath(MapCell startingCell, MapCell finishingCell) {
+            if (cancelled) return null;
+            context.resetCosts();
+            openCells.clear();
 
-    /**
-     * Method to fill map cells after generating the map
-     */
-    public void fillCells(boolean refill) {
-        // Refill flag is needed to restore original cells' value of the map
-        // after performing any of the algorithms, so they will not affect each other
-        if (!refill) {
-            cells = new MapCell[9][9];
-            for (int i = 0; i < 9; i++) {
-                for (int j = 0; j < 9; j++) {
-                    cells[i][j] = new MapCell(i, j, true);
+            int startingIndex = map.getIndex(startingCell), finishingIndex = map.getIndex(finishingCell);
+            int heuristic = getDistanceBetween(startingCell, finishingCell);
+            context.setCosts(startingIndex, 0, heuristic, -1);
+            openCells.add(startingIndex, heuristic);
+
+            while (!openCells.isEmpty()) {
+                // Heuristic is consistent, so the first time a cell is polled its cost is final,
+                // and later copies of the same cell are skipped
+                int currentIndex = openCells.poll();
+                if (context.isClosed(currentIndex)) continue;
+
+                if (currentIndex == finishingIndex) {
+                    return new Leg(tracePath(startingIndex, finishingIndex), context.getG(finishingIndex));
                 }
-            }
-        } else {
-            for (int i = 0; i < 9; i++) {
-                for (int j = 0; j < 9; j++) {
-                    cells[i][j].dangerLevel = 0;
-                    cells[i][j].walkable = true;
+                context.close(currentIndex);
+                expandedCells++;
+
+                if ((expandedCells & 63) == 0 && cancellation.isCancelled()) {
+                    cancelled = true;
+                    return null;
                 }
-            }
-        }
 
+                int cost = context.getG(currentIndex);
+                int count = map.getNeighbourIndices(currentIndex, neighbours, 0);
+                for (int i = 0; i < count; i++) {
+                    int neighbourIndex = neighbours[i];
+                    MapCell neighbourCell = map.getCell(neighbourIndex);
+                    if (context.isClosed(neighbourIndex) || !neighbourCell.walkable) continue;
 
-        HashSet<Point<Integer, Integer>> perceptionPoints = new HashSet<>();
-        for (Agent agent : agents) {
-            int x = agent.getX(), y = agent.getY();
-            for (var perception : agent.perception) {
-                if (agent instanceof JackSparrow) continue;
+                    int newCost = cost + getMoveCost(neighbourIndex);
+                    if (newCost >= context.getG(neighbourIndex)) continue;
 
-                Point<Integer, Integer> perceptionPoint = getPerceptionBounds(x, perception.getX(), y, perception.getY());
-                if (agent.isDangerous) perceptionPoints.add(perceptionPoint);
+                    heuristic = getDistanceBetween(neighbourCell, finishingCell);
+                    context.setCosts(neighbourIndex, newCost, heuristic, currentIndex);
+                    openCells.add(neighbourIndex, newCost + heuristic);
+                }
             }
 
-            for (var point : perceptionPoints) {
-                if (agent.isDangerous) {
-                    // If agent is dangerous, increment its danger level and make the cell unpassable
-                    if (!(agent.getX() == point.getX() && agent.getY() == point.getY())) {
-                        cells[point.getX()][point.getY()].changeWalkability(false);
-                        cells[point.getX()][point.getY()].dangerLevel++;
-                    }
-                }
+            return null;
+        }
+
+        /**
+         * @param index - Index of the cell
+         * @return Cost of the move into the cell, from 1 to MAX_MOVE_COST
+         */
+        private int getMoveCost(int index) {
+            if (proximityWeight == 0) return 1;
+            if (moveCostsStamp[index] == moveCostsEpoch) return moveCosts[index];
+
+            int danger = 0;
+            int count = map.getNeighbourIndices(index, dangerNeighbours, 0);
+            for (int i = 0; i < count; i++) {
+                MapCell neighbour = map.getCell(dangerNeighbours[i]);
+                if (neighbour.dangerLevel == 0) continue;
+
+                // Rocks raise danger level of their own cell, but passing by them is safe
+                danger += neighbour.agents.contains('R') ? neighbour.dangerLevel - 1 : neighbour.dangerLevel;
             }
 
-            // Also, add agent to the common agents list for further purposes
-            cells[x][y].agents.add(agent.getAlias());
-            if (agent.isDangerous || agent instanceof Rock) {
-                cells[x][y].changeWalkability(false);
-                cells[x][y].dangerLevel++;
+            moveCosts[index] = 1 + Math.min(MAX_MOVE_COST - 1, proximityWeight * danger);
+            moveCostsStamp[index] = moveCostsEpoch;
+            return moveCosts[index];
+        }
+
+        private int getLength(Leg leg) {
+            return leg == null ? -1 : leg.cells().size();
+        }
+
+        private void forgetMoveCosts() {
+            if (moveCostsEpoch == Integer.MAX_VALUE) {
+                Arrays.fill(moveCostsStamp, 0);
+                moveCostsEpoch = 0;
             }
-            perceptionPoints.clear();
+            moveCostsEpoch++;
         }
-    }
 
-    /**
-     * Method to randomly generate the map
-     */
-    public void generate() {
-        Random random = new Random();
-        do {
-            this.jack = new JackSparrow(0, 0, false, this.scenario);
-            this.davyJones = new DavyJones(random.nextInt(9), random.nextInt(9), true);
-            this.kraken = new Kraken(random.nextInt(9), random.nextInt(9), true);
-            this.rock = new Rock(random.nextInt(9), random.nextInt(9), false);
-            this.chest = new Chest(random.nextInt(9), random.nextInt(9), false);
-            this.tortuga = new Tortuga(random.nextInt(9), random.nextInt(9), false);
-            this.agents = Arrays.asList(jack, davyJones, kraken, rock, chest, tortuga);
-        } while (!this.isCorrect()); // we stop randomizing map only after when current generation is correct
+        private List<MapCell> tracePath(int startingIndex, int finishingIndex) {
+            List<MapCell> path = new ArrayList<>();
+            for (int index = finishingIndex; index != startingIndex; index = context.getParent(index)) {
+                path.add(map.getCell(index));
+            }
+            Collections.reverse(path);
+            return path;
+        }
 
-        this.fillCells(false);
-        this.makeAsciiMap();
+        private int getDistanceBetween(MapCell firstCell, MapCell secondCell) {
+            return Math.max(Math.abs(firstCell.x - secondCell.x), Math.abs(firstCell.y - secondCell.y));
+        }
     }
 
     /**
-     * @param map - String representation of map
-     * @return true if map was successfully generated
+     * A* over states (cell, tick) for maps on which some enemies patrol. A cell is dangerous only at the ticks when
+     * a danger zone covers it, and Jack may wait in place until a patrol passes. The map repeats itself after
+     * the period of patrols, so states with the same cell and the same tick modulo the period are the same state,
+     * and the search ends even if the Chest is never safe. Legs are the same as in A*: straight to the Chest,
+     * or through Tortuga, after which Jack may kill all Krakens he sees from one cell. Patrolling Krakens can not
+     * be killed, the leg after Tortuga starts at the tick Jack reached it
      */
-    public boolean generate(String map) {
-        // Since the positions of agents on input map representation are always the same,
-        // we can create objects by roughly getting the indices of input string
-        this.jack = new JackSparrow(Integer.parseInt(String.valueOf(map.charAt(1))), Integer.parseInt(String.valueOf(map.charAt(3))), false, this.scenario);
-        this.davyJones = new DavyJones(Integer.parseInt(String.valueOf(map.charAt(6))), Integer.parseInt(String.valueOf(map.charAt(8))), true);
-        this.kraken = new Kraken(Integer.parseInt(String.valueOf(map.charAt(11))), Integer.parseInt(String.valueOf(map.charAt(13))), true);
-        this.rock = new Rock(Integer.parseInt(String.valueOf(map.charAt(16))), Integer.parseInt(String.valueOf(map.charAt(18))), false);
-        this.chest = new Chest(Integer.parseInt(String.valueOf(map.charAt(21))), Integer.parseInt(String.valueOf(map.charAt(23))), false);
-        this.tortuga = new Tortuga(Integer.parseInt(String.valueOf(map.charAt(26))), Integer.parseInt(String.valueOf(map.charAt(28))), false);
+    public class SpaceTimeAStar implements Algorithm, Pathfinder {
+        private static final int NOT_FOUND = -1;
+        private static final int CANCELLED = -2;
+
+        private final ReservationTable reservations;
+        // Every move takes one tick, so f-cost of the next state exceeds f-cost of the current one by at most 2
+        private final BucketQueue openStates = new BucketQueue(2);
+        private final int[] neighbours = new int[8];
+
+        // States generated by the current solve, each one is a cell, a tick and the state it came from
+        private int[] stateCells = new int[64];
+        private int[] stateTicks = new int[64];
+        private int[] stateParents = new int[64];
+        private int statesCount;
+
+        // Open addressing set of closed pairs (cell, tick modulo period), 0 marks an empty slot
+        private long[] closedKeys = new long[1024];
+        private int closedCount;
+
+        // Cells of Krakens which do not patrol and are dead on the current leg
+        private final int[] killedKrakens = new int[8];
+        private int killedCount;
+
+        // Token of the current solve, and whether it stopped the solve
+        private CancellationToken cancellation = new CancellationToken();
+        private boolean cancelled;
+
+        // Cells which were expanded by the current leg and by all legs of the last solve,
+        // and ticks Jack waited in place on the last path
+        private int expandedCells;
+        private long totalExpandedCells;
+        private int waits;
 
-        this.agents = Arrays.asList(jack, davyJones, kraken, rock, chest, tortuga);
+        /**
+         * @param reservations - Danger of patrolling enemies and of the rest of the map, it must be built for
+         * the map of the solver
+         */
+        public SpaceTimeAStar(ReservationTable reservations) {
+            this.reservations = reservations;
+        }
 
-        if (this.isCorrect()) {
-            // If the map from input file is correct, proceed
-            this.fillCells(false);
-            this.makeAsciiMap();
-            return true;
-        } else {
-            return false;
+        @Override
+        public long getExpandedCells() {
+            return totalExpandedCells;
         }
-    }
 
+        /**
+         * @return Ticks Jack waited in place on the last path, -1 if there was no path
+         */
+        public int getWaits() {
+            return waits;
+        }
 
-    /**
-     * @return true if objects are correctly placed on map
-     */
-    private boolean isCorrect() {
-        boolean isCorrectMap = jack.getX() == 0 && jack.getY() == 0;
+        /**
+         * @return List of points which lay the fastest path to the Dead Man's Chest, a point repeats while Jack waits
+         */
+        @Override
+        public List<Point<Integer, Integer>> findShortestPath() {
+            return solveCurrentMap(this);
+        }
 
-        for (Agent firstAgent : agents) {
-            for (Agent secondAgent : agents) {
-                // Skip agents when they repeat in 2nd loop
-                if (firstAgent == secondAgent) continue;
-
-                // Agents can not spawn in each other,
-                // unless it is [Rock, Kraken] or [Tortuga, Jack]
-                if (firstAgent.equals(secondAgent)) {
-                    if ((!(firstAgent instanceof Rock && secondAgent instanceof Kraken)) &&
-                            !(firstAgent instanceof Tortuga && secondAgent instanceof JackSparrow) &&
-                            !(firstAgent instanceof JackSparrow && secondAgent instanceof Tortuga) &&
-                            !(firstAgent instanceof Kraken && secondAgent instanceof Rock)) {
-                        return false;
-                    }
-                }
+        /**
+         * Context of the request is not used, since states do not fit into per-cell arrays
+         * @param request - Request of the solve, its map must be the map of the solver
+         * @return Fastest path to the Dead Man's Chest with stats of the solve
+         */
+        @Override
+        public SolveResult solve(SolveRequest request) {
+            long startTime = System.nanoTime();
+            accept(request);
+            reservations.refresh();
+            this.cancellation = request.cancellation();
+            this.cancelled = false;
+            totalExpandedCells = 0;
+            waits = -1;
+            killedCount = 0;
+
+            int start = request.start().getX() * map.size + request.start().getY();
+            int chest = map.chest.getX() * map.size + map.chest.getY();
+            int tortuga = map.tortuga.getX() * map.size + map.tortuga.getY();
+            // Losses are answered without running any of the legs
+            if (!reservations.hasRoute(start, chest, tortuga)) {
+                return SolveResult.of(null, map.size, 0, System.nanoTime() - startTime);
+            }
 
-                // Flag to check if we should compare danger zone of
-                // one enemy to the spawn coordinates of another enemy
-                boolean valid = (firstAgent.isDangerous && secondAgent instanceof Tortuga) ||
-                        (firstAgent instanceof Tortuga && secondAgent.isDangerous) ||
-                        (firstAgent.isDangerous && secondAgent instanceof Chest) ||
-                        (firstAgent instanceof Chest && secondAgent.isDangerous);
+            SearchLegEvent event = SearchLegEvent.start();
+            List<Point<Integer, Integer>> straightPath = findLeg(start, 0, chest);
+            event.finish(map, this, SearchLegEvent.STRAIGHT, expandedCells, getTicks(straightPath));
+
+            event = SearchLegEvent.start();
+            List<Point<Integer, Integer>> pathToTortuga = findLeg(start, 0, tortuga);
+            event.finish(map, this, SearchLegEvent.TO_TORTUGA, expandedCells, getTicks(pathToTortuga));
+
+            List<Point<Integer, Integer>> fromTortugaToEnd = null;
+            if (pathToTortuga != null) {
+                event = SearchLegEvent.start();
+                long expandedBefore = totalExpandedCells;
+                fromTortugaToEnd = pathFromTortuga(tortuga, getTicks(pathToTortuga), chest);
+                event.finish(map, this, SearchLegEvent.FROM_TORTUGA, (int) (totalExpandedCells - expandedBefore),
+                        getTicks(fromTortugaToEnd));
+            }
 
-                if (valid) {
-                    for (var perception : firstAgent.perception) {
-                        if ((perception.getX() + firstAgent.getX() == secondAgent.getX()) &&
-                                (perception.getY() + firstAgent.getY() == secondAgent.getY())) {
-                            return false;
-                        }
-                    }
-                }
+            long elapsedNanos = System.nanoTime() - startTime;
+            if (cancelled) return SolveResult.cancelled(totalExpandedCells, elapsedNanos);
+
+            // As in other algorithms, the route through Tortuga is chosen only if it is strictly faster
+            List<Point<Integer, Integer>> path = straightPath;
+            if (pathToTortuga != null && fromTortugaToEnd != null && (straightPath == null ||
+                    getTicks(pathToTortuga) + getTicks(fromTortugaToEnd) < getTicks(straightPath))) {
+                path = new ArrayList<>(pathToTortuga);
+                path.addAll(fromTortugaToEnd.subList(1, fromTortugaToEnd.size()));
             }
+            if (path != null) waits = countWaits(path);
+            return SolveResult.of(path, map.size, totalExpandedCells, elapsedNanos);
         }
 
-        return isCorrectMap;
-    }
+        /**
+         * @param tortuga - Cell of Tortuga
+         * @param tick - Tick at which Jack reached Tortuga
+         * @param chest - Cell of the Chest
+         * @return Fastest path from Tortuga to the Chest, on which Jack may kill Krakens with rum casks
+         */
+        private List<Point<Integer, Integer>> pathFromTortuga(int tortuga, int tick, int chest) {
+            List<Point<Integer, Integer>> bestPath = findLeg(tortuga, tick, chest);
 
-    /**
-     * Clears path that was applied to the current map
-     * @param path - Solution path
-     */
-    public void clearPath(List<Point<Integer, Integer>> path) {
-        for (Point<Integer, Integer> point : path) {
-            this.asciiMap[point.getX()][point.getY()] = '-';
-        }
-    }
+            // Jack kills The Kraken as soon as he stands next to it, so every such cell is tried.
+            // Every move takes a tick, so Chebyshev distance bounds the ticks of the rest of the path
+            for (Kraken kraken : map.krakens) {
+                if (!kraken.isDangerous || reservations.isPatrolling(kraken)) continue;
 
-    /**
-     * @param path - points path that will be highlighted on the map
-     * @param writer - output file to which the map will be printed
-     */
-    public void print(List<Point<Integer, Integer>> path, PrintWriter writer) {
-        for (Point<Integer, Integer> point : path) {
-            this.asciiMap[point.getX()][point.getY()] = '*';
-        }
+                for (var offset : Agent.surroundingPerception) {
+                    if (cancelled) return null;
 
-        _print(writer);
-    }
+                    int x = kraken.getX() + offset.getX(), y = kraken.getY() + offset.getY();
+                    if (!map.isInside(x, y)) continue;
 
-    /**
-     * @param writer - print ascii representation of map to the given file
-     */
-    private void _print(PrintWriter writer) {
-        writer.println(" —————————————————————");
-        writer.println("|   0 1 2 3 4 5 6 7 8 |");
-        for (int i = 0; i < 9; i++) {
-            writer.printf("| %d ", i);
-            for (int j = 0; j < 9; j++) {
-                writer.printf("%c ", this.asciiMap[i][j]);
+                    int killingCell = x * map.size + y;
+                    if (killingCell != tortuga && reservations.isStaticallyDangerous(killingCell)) continue;
+                    if (bestPath != null && getDistanceBetween(tortuga, killingCell) +
+                            getDistanceBetween(killingCell, chest) >= getTicks(bestPath)) continue;
+
+                    List<Point<Integer, Integer>> toKillingCell = findLeg(tortuga, tick, killingCell);
+                    if (toKillingCell == null || (bestPath != null && getTicks(toKillingCell) +
+                            getDistanceBetween(killingCell, chest) >= getTicks(bestPath))) continue;
+
+                    // As in other algorithms, all Krakens seen from the cell are killed
+                    Set<MapCell> seenCells = map.getNeighbourCells(map.getCell(killingCell));
+                    for (Kraken seen : map.krakens) {
+                        if (!seen.isDangerous || reservations.isPatrolling(seen)) continue;
+
+                        MapCell seenCell = map.cells[seen.getX()][seen.getY()];
+                        if (seenCells.contains(seenCell)) killedKrakens[killedCount++] = map.getIndex(seenCell);
+                    }
+
+                    List<Point<Integer, Integer>> fromKillingCell =
+                            findLeg(killingCell, tick + getTicks(toKillingCell), chest);
+                    killedCount = 0;
+
+                    if (fromKillingCell != null && (bestPath == null ||
+                            getTicks(toKillingCell) + getTicks(fromKillingCell) < getTicks(bestPath))) {
+                        bestPath = new ArrayList<>(toKillingCell);
+                        bestPath.addAll(fromKillingCell.subList(1, fromKillingCell.size()));
+                    }
+                }
             }
-            writer.println("|");
+
+            return bestPath;
         }
-        writer.println(" —————————————————————");
-    }
 
+        /**
+         * @param start - Cell from which the leg starts
+         * @param tick - Tick at which Jack stands on the cell
+         * @param finish - Cell at which the leg ends
+         * @return Points of the leg from the start to the finish, a point repeats while Jack waits,
+         * or null if there's no path or the solve was cancelled
+         */
+        private List<Point<Integer, Integer>> findLeg(int start, int tick, int finish) {
+            expandedCells = 0;
+            if (cancelled) return null;
+
+            int found = search(start, tick, finish);
+            totalExpandedCells += expandedCells;
+            if (found == CANCELLED) cancelled = true;
+            return found < 0 ? null : tracePath(found);
+        }
 
-    /**
-     * Method to generate ascii map after creating it
-     */
-    public void makeAsciiMap() {
-        this.asciiMap = new char[][]{
-                "---------".toCharArray(),
-                "---------".toCharArray(),
-                "---------".toCharArray(),
-                "---------".toCharArray(),
-                "---------".toCharArray(),
-                "---------".toCharArray(),
-                "---------".toCharArray(),
-                "---------".toCharArray(),
-                "---------".toCharArray(),
-        };
+        /**
+         * @return The state in which Jack reached the finish, NOT_FOUND or CANCELLED
+         */
+        private int search(int start, int startTick, int finish) {
+            int period = reservations.getPeriod();
+            statesCount = 0;
+            Arrays.fill(closedKeys, 0);
+            closedCount = 0;
+            openStates.clear();
+            // F-costs in the queue are ticks since the start of the leg, the tick of the start only shifts phases
+            openStates.add(addState(start, startTick, -1), getDistanceBetween(start, finish));
+
+            while (!openStates.isEmpty()) {
+                // Heuristic is consistent, so the first state of a pair polled from the queue is the earliest one
+                int state = openStates.poll();
+                int cell = stateCells[state], tick = stateTicks[state];
+                if (cell == finish) return state;
+                if (!close(cell, tick % period)) continue;
+
+                expandedCells++;
+                if ((expandedCells & 63) == 0 && cancellation.isCancelled()) return CANCELLED;
+
+                int nextPhase = (tick + 1) % period;
+                int nextCost = tick + 1 - startTick;
+                // Nothing changes around cells which patrols never come close to, so waiting there is useless.
+                // If Jack has to wait, he waits at the last cell before the patrols instead
+                if (reservations.isNearPatrols(cell) && isSafe(cell, nextPhase) && !isClosed(cell, nextPhase)) {
+                    openStates.add(addState(cell, tick + 1, state), nextCost + getDistanceBetween(cell, finish));
+                }
 
-        for (Agent agent : agents) {
-            int x = agent.getX(), y = agent.getY();
-            if (!(agent instanceof JackSparrow)) {
-                for (var perception : agent.perception) {
-                    Point<Integer, Integer> perceptionPoint = getPerceptionBounds(x, perception.getX(), y, perception.getY());
+                int count = map.getNeighbourIndices(cell, neighbours, 0);
+                for (int i = 0; i < count; i++) {
+                    int neighbour = neighbours[i];
+                    if (!isSafe(neighbour, nextPhase) || isClosed(neighbour, nextPhase)) continue;
 
-                    if (this.asciiMap[perceptionPoint.getX()][perceptionPoint.getY()] == '-')
-                        this.asciiMap[perceptionPoint.getX()][perceptionPoint.getY()] = '$';
+                    openStates.add(addState(neighbour, tick + 1, state),
+                            nextCost + getDistanceBetween(neighbour, finish));
                 }
             }
-            if (this.asciiMap[x][y] == '-' || this.asciiMap[x][y] == '$') this.asciiMap[x][y] = agent.getAlias();
+
+            return NOT_FOUND;
         }
 
-    }
+        private boolean isSafe(int cell, int phase) {
+            return reservations.isSafe(cell, phase, killedKrakens, killedCount);
+        }
 
+        private int addState(int cell, int tick, int parent) {
+            if (statesCount == stateCells.length) {
+                stateCells = Arrays.copyOf(stateCells, 2 * statesCount);
+                stateTicks = Arrays.copyOf(stateTicks, 2 * statesCount);
+                stateParents = Arrays.copyOf(stateParents, 2 * statesCount);
+            }
 
-    /**
-     * @param x1 - First X coordinate
-     * @param x2 - Second X coordinate
-     * @param y1 - First Y coordinate
-     * @param y2 - Second Y coordinate
-     * @return - return correct perception point, by checking boundaries
-     */
-    public Point<Integer, Integer> getPerceptionBounds(int x1, int x2, int y1, int y2) {
-        int newX, newY;
-        newX = x1 + x2;
-        newY = y1 + y2;
+            stateCells[statesCount] = cell;
+            stateTicks[statesCount] = tick;
+            stateParents[statesCount] = parent;
+            return statesCount++;
+        }
 
-        if (newX > 8) newX = 8;
-        else if (newX < 0) newX = 0;
+        private long getKey(int cell, int phase) {
+            return (long) phase * map.size * map.size + cell + 1;
+        }
 
-        if (newY > 8) newY = 8;
-        else if (newY < 0) newY = 0;
+        private int getSlot(long key, int mask) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        }
 
-        return new Point<>(newX, newY);
-    }
+        private boolean isClosed(int cell, int phase) {
+            long key = getKey(cell, phase);
+            int mask = closedKeys.length - 1;
+            for (int slot = getSlot(key, mask); closedKeys[slot] != 0; slot = (slot + 1) & mask) {
+                if (closedKeys[slot] == key) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return false if the pair was already closed
+         */
+        private boolean close(int cell, int phase) {
+            if (2 * (closedCount + 1) > closedKeys.length) growClosedKeys();
+
+            long key = getKey(cell, phase);
+            int mask = closedKeys.length - 1;
+            int slot = getSlot(key, mask);
+            for (; closedKeys[slot] != 0; slot = (slot + 1) & mask) {
+                if (closedKeys[slot] == key) return false;
+            }
 
+            closedKeys[slot] = key;
+            closedCount++;
+            return true;
+        }
 
-    /**
-     * Method to remove The Kraken and its danger zone on our map
-     * @param cell - Cell on which The Kraken was spotted
-     */
-    public void killKraken(MapCell cell) {
-        for (var perception : this.kraken.perception) {
-            Point<Integer, Integer> perceptionPoint = this.getPerceptionBounds(cell.x,
-                    perception.getX(), cell.y, perception.getY());
+        private void growClosedKeys() {
+            long[] oldKeys = closedKeys;
+            closedKeys = new long[2 * oldKeys.length];
+            int mask = closedKeys.length - 1;
 
-            if (!(perceptionPoint.getX() == cell.x && perceptionPoint.getY() == cell.y)) {
-                if (--this.cells[perceptionPoint.getX()][perceptionPoint.getY()].dangerLevel == 0) {
-                    this.cells[perceptionPoint.getX()][perceptionPoint.getY()].changeWalkability(true);
-                }
+            for (long key : oldKeys) {
+                if (key == 0) continue;
+
+                int slot = getSlot(key, mask);
+                while (closedKeys[slot] != 0) slot = (slot + 1) & mask;
+                closedKeys[slot] = key;
             }
         }
-        this.cells[cell.x][cell.y].dangerLevel--;
-    }
 
-    /**
-     * Clear current best paths for all cells,
-     * used when we divide solutions in backtracking algorithm in 2 cases:
-     * 1) Jack -> Chest
-     * or
-     * 2) Jack -> Tortuga & Tortuga -> Chest
-     *
-     * if we do not clear current best paths after calculating first path, the errors will occur
-     */
-    public void clearPathsForAllCells() {
-        for (int i = 0; i < 9; i++) {
-            for (int j = 0; j < 9; j++) {
-                this.cells[i][j].currentBestPath = Integer.MAX_VALUE;
+        private List<Point<Integer, Integer>> tracePath(int finalState) {
+            List<Point<Integer, Integer>> path = new ArrayList<>();
+            for (int state = finalState; state != -1; state = stateParents[state]) {
+                int cell = stateCells[state];
+                path.add(new Point<>(cell / map.size, cell % map.size));
             }
+            Collections.reverse(path);
+            return path;
         }
-    }
-}
-
-
-/**
- * Class to fill map with cell objects
- */
-class MapCell {
-    public boolean walkable;
-    public int x;
-    public int y;
-
-    public List<Character> agents = new ArrayList<>();
-    // Danger level of the cell
-    // It is useful when danger zones of the enemies intersect, so we do not
-    // make some cell walkable by mistake (for example, after killing kraken,
-    // the rock might be still on it so danger level will not be 0)
-    public int dangerLevel = 0;
 
-    // Current best path of the cell, used by the Backtracking algorithm
-    public int currentBestPath = Integer.MAX_VALUE;
+        private int countWaits(List<Point<Integer, Integer>> path) {
+            int count = 0;
+            for (int i = 1; i < path.size(); i++) {
+                if (path.get(i).getX().equals(path.get(i - 1).getX()) &&
+                        path.get(i).getY().equals(path.get(i - 1).getY())) count++;
+            }
+            return count;
+        }
 
-    // G and H costs used by A* algorithm
-    public int g;
-    public int h;
+        /**
+         * @param path - Points of a leg or of a route, or null
+         * @return Ticks Jack spends on it, -1 if there's no path
+         */
+        private int getTicks(List<Point<Integer, Integer>> path) {
+            return path == null ? -1 : path.size() - 1;
+        }
 
-    // Parent cell of the current cell, needed to restore path for A* algorithm
-    public MapCell parent;
+        private int getDistanceBetween(int firstCell, int secondCell) {
+            int deltaX = Math.abs(firstCell / map.size - secondCell / map.size);
+            int deltaY = Math.abs(firstCell % map.size - secondCell % map.size);
+            return Math.max(deltaX, deltaY);
+        }
+    }
 
     /**
-     * @param x - X coordinate
-     * @param y - Y coordinate
-     * @param walkable - true if the cell is walkable
+     * Route from Jack through all Chests of the map, which may call at any of the Tortugas on the way.
+     * Lengths of legs between every pair of waypoints are taken from distance fields of the map with all Krakens
+     * alive, one from every source, which are computed in parallel and shared by all legs.
+     * Then the order of waypoints is chosen by Held-Karp dynamic programming over subsets of visited waypoints,
+     * in O(2^n * n^2) instead of O(n!) for enumerating the orders. After any Tortuga, Jack carries rum casks,
+     * and on every leg he may kill all Krakens he sees from one cell, as on the leg from Tortuga in A*.
+     * Krakens killed on a leg are alive again at the start of the next one, so the route never counts on them
      */
-    public MapCell(int x, int y, boolean walkable) {
-        this.x = x;
-        this.y = y;
-        this.walkable = walkable;
-    }
+    public class WaypointRouter implements Algorithm, Pathfinder {
+        // Subsets of waypoints are indexed by int masks of dynamic programming
+        static final int MAX_WAYPOINTS = 16;
+        private static final int UNREACHABLE = Integer.MAX_VALUE;
+        // Cells freed by a kill are at most 2 cells away from the killing cell, so paths to them are first searched
+        // only this far around it. A path which leaves the window and comes back takes at least 2 * WINDOW moves
+        private static final int WINDOW = 4;
+
+        private final ForkJoinPool pool;
+
+        // Waypoints of the last solve, Tortugas first, and the order they were visited in
+        private final List<Agent> waypoints = new ArrayList<>();
+        private final List<Agent> visitOrder = new ArrayList<>();
+
+        // Layer 0 has all Krakens alive, layer i > 0 has Krakens seen from some cell killed. A layer differs
+        // from layer 0 only by the cells which those Krakens alone made dangerous, so only these cells are kept
+        private int[] killLayer;
+        private int[][] freedInLayer;
+
+        // Walkability of layer 0
+        private boolean[] walkableAlive;
+        // Distance fields of layer 0 from every source
+        private int[][] fromSource;
+        // Cells on which Jack may kill Krakens, and lengths from each of them to every waypoint after the kill
+        private int[] killingCells;
+        private int[][] lengthsAfterKill;
+
+        // Scratch of searches after a kill. Cells which a search reached are kept in the queue,
+        // so only their distances are cleared before the next search
+        private long[] freed;
+        private int[] layerDistances;
+        private int[] layerLinks;
+        private int[] layerQueue;
+        private int layerReached;
+        private final int[] neighbours = new int[8];
+        // Neighbours of the first cell of a path to a waypoint, kept apart from the ones of the traced path
+        private final int[] startNeighbours = new int[8];
+
+        private long totalExpandedCells;
+        private long legsNanos;
+        private long orderingNanos;
 
-    // Method to change walkability for the cell (used after killing The Kraken)
-    public void changeWalkability(boolean walkable) {
-        this.walkable = walkable;
-    }
+        /**
+         * Distances from a single cell, null if the token stopped the computation
+         */
+        private record Field(int[] distances, long expandedCells) {
+        }
 
-    // Get the heuristic of the cell for A* algorithm
-    public int getHeuristic() {
-        return g + h;
-    }
-}
+        public WaypointRouter() {
+            this(ForkJoinPool.commonPool());
+        }
 
+        /**
+         * @param pool - Pool to compute distance fields in
+         */
+        public WaypointRouter(ForkJoinPool pool) {
+            this.pool = pool;
+        }
 
-/**
- * Common class for both Pathfinding algorithms
- */
-class Solver {
+        @Override
+        public long getExpandedCells() {
+            return totalExpandedCells;
+        }
 
-    public Map map;
+        /**
+         * @return Waypoints in the order they were visited on the last route, empty if there was no route
+         */
+        public List<Agent> getVisitOrder() {
+            return Collections.unmodifiableList(visitOrder);
+        }
 
-    /**
-     * @param map - Current map instance
-     */
-    public Solver(Map map) {
-        this.map = map;
-    }
+        /**
+         * @return Time of finding lengths of all legs in the last solve
+         */
+        public long getLegsNanos() {
+            return legsNanos;
+        }
 
-    public class AStar implements Algorithm {
-        boolean tortugaPassed = false;
-        boolean krakenPassed = false;
+        /**
+         * @return Time of choosing the order of waypoints in the last solve
+         */
+        public long getOrderingNanos() {
+            return orderingNanos;
+        }
 
         /**
-         * @return List of points which lay the shortest path to the Dead Man's Chest
+         * @return List of points which lay the shortest route through all Chests
          */
         @Override
         public List<Point<Integer, Integer>> findShortestPath() {
-            int tortugaPath = Integer.MAX_VALUE;
-            boolean tortugaPathValid = false;
+            return solveCurrentMap(this);
+        }
 
-            List<Point<Integer, Integer>> pointsPath = new ArrayList<>();
+        /**
+         * Context of the request is not used, since the fields are computed on their own threads
+         * @param request - Request of the solve, its map must be the map of the solver
+         * @return Shortest route through all Chests with stats of the solve
+         */
+        @Override
+        public SolveResult solve(SolveRequest request) {
+            long startTime = System.nanoTime();
+            accept(request);
+            totalExpandedCells = 0;
+            visitOrder.clear();
+            waypoints.clear();
+            waypoints.addAll(map.tortugas);
+            waypoints.addAll(map.chests);
+
+            int n = waypoints.size(), tortugasCount = map.tortugas.size();
+            if (n > MAX_WAYPOINTS) {
+                throw new IllegalArgumentException(String.format("At most %d waypoints are supported", MAX_WAYPOINTS));
+            }
+            if (map.chests.isEmpty()) return SolveResult.of(null, map.size, 0, System.nanoTime() - startTime);
 
-            Point<Integer, Integer> start = new Point<>(map.jack.getX(), map.jack.getY());
-            Point<Integer, Integer> finish = new Point<>(map.chest.getX(), map.chest.getY());
-            // First, we calculate the path straight to the end, without passing through the tortuga
-            List<MapCell> straightEndPath = shortestPath(start, finish);
+            // Sources are Jack (index n) and all waypoints
+            int[] sources = new int[n + 1];
+            for (int i = 0; i < n; i++) {
+                sources[i] = waypoints.get(i).getX() * map.size + waypoints.get(i).getY();
+            }
+            sources[n] = request.start().getX() * map.size + request.start().getY();
+            buildLayers();
+
+            // Fields give legs without kills, the way to killing cells and, reversed, the rest of a leg after the kill
+            CancellationToken cancellation = request.cancellation();
+            List<Callable<Field>> tasks = new ArrayList<>();
+            for (int source = 0; source <= n; source++) {
+                int origin = sources[source];
+                tasks.add(() -> computeField(origin, cancellation));
+            }
 
-            boolean straightPathValid = straightEndPath != null;
+            fromSource = new int[n + 1][];
+            boolean cancelled = false;
+            List<Future<Field>> results = pool.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                Field field = getResult(results.get(i));
+                totalExpandedCells += field.expandedCells();
+                cancelled |= field.distances() == null;
+                fromSource[i] = field.distances();
+            }
+            if (cancelled || !findLengthsAfterKills(sources, n, cancellation)) {
+                return SolveResult.cancelled(totalExpandedCells, System.nanoTime() - startTime);
+            }
 
-            // Second, we calculate the path through Tortuga
-            Point<Integer, Integer> passThroughTortuga = new Point<>(map.tortuga.getX(), map.tortuga.getY());
-            List<MapCell> pathThroughTortuga = shortestPath(start, passThroughTortuga);
-            List<MapCell> fromTortugaToEnd = new ArrayList<>();
+            // lengths[rum][source][target], from every source to every waypoint
+            int[][][] lengths = new int[2][n + 1][n];
+            for (int source = 0; source <= n; source++) {
+                for (int target = 0; target < n; target++) {
+                    lengths[0][source][target] = getDistanceFrom(source, sources[target]);
+                }
+                lengths[1][source] = lengths[0][source].clone();
+            }
 
-            if (pathThroughTortuga != null) {
-                // If we successfully passed through the Tortuga, mark the appropriate flag as true,
-                // and try to calculate yet another path from Tortuga straight to the Dead Man's Chest
-                this.tortugaPassed = true;
-                fromTortugaToEnd = shortestPath(passThroughTortuga, finish);
+            // Legs from Jack are without rum, legs from Tortugas are with rum, legs from Chests may be both
+            for (int source = 0; source < n; source++) {
+                for (int i = 0; i < killingCells.length; i++) {
+                    int toKillingCell = getDistanceFrom(source, killingCells[i]);
+                    if (toKillingCell == UNREACHABLE) continue;
 
-                if (fromTortugaToEnd != null) {
-                    // If the path through Tortuga to the Chest was successful,
-                    // we calculate the total path and mark this path as valid
-                    tortugaPath = pathThroughTortuga.size() + fromTortugaToEnd.size();
-                    tortugaPathValid = true;
+                    for (int target = 0; target < n; target++) {
+                        int afterKill = lengthsAfterKill[i][target];
+                        if (afterKill != UNREACHABLE) {
+                            lengths[1][source][target] = Math.min(lengths[1][source][target], toKillingCell + afterKill);
+                        }
+                    }
                 }
             }
+            long legsTime = System.nanoTime();
+            legsNanos = legsTime - startTime;
 
-            // If none of the paths are valid, there's no path and therefore no answer
-            if (!tortugaPathValid && !straightPathValid) return null;
+            int[] order = chooseOrder(lengths, n, tortugasCount);
+            orderingNanos = System.nanoTime() - legsTime;
+            if (order == null) return SolveResult.of(null, map.size, totalExpandedCells, System.nanoTime() - startTime);
 
-            // Otherwise, we have some path and the initial Actor point will be immediately added to the result
-            pointsPath.add(new Point<>(map.jack.getX(), map.jack.getY()));
-
-            if ((tortugaPathValid && straightPathValid && (tortugaPath < straightEndPath.size())) ||
-                    (tortugaPathValid && !straightPathValid)) {
-                // If Tortuga path is shorter, we form its points path
-                for (MapCell cell : pathThroughTortuga) {
-                    pointsPath.add(new Point<>(cell.x, cell.y));
+            // Paths of the chosen legs are traced back along the fields
+            List<Point<Integer, Integer>> pointsPath = new ArrayList<>();
+            pointsPath.add(request.start());
+            boolean rum = false;
+            int from = n;
+            for (int waypoint : order) {
+                for (int cell : traceLeg(from, waypoint, sources, lengths[rum ? 1 : 0][from][waypoint])) {
+                    pointsPath.add(new Point<>(cell / map.size, cell % map.size));
                 }
 
-                for (MapCell cell : fromTortugaToEnd) {
-                    pointsPath.add(new Point<>(cell.x, cell.y));
-                }
-            } else {
-                // Else, if straight path is shorter, we form its points path
-                for (MapCell cell : straightEndPath) {
-                    pointsPath.add(new Point<>(cell.x, cell.y));
-                }
+                visitOrder.add(waypoints.get(waypoint));
+                rum |= waypoint < tortugasCount;
+                from = waypoint;
             }
 
-            // We restore original cells of our map to not interfere will later run of Backtracking algorithm
-            map.fillCells(true);
-
-            return pointsPath;
+            return SolveResult.of(pointsPath, map.size, totalExpandedCells, System.nanoTime() - startTime);
         }
 
         /**
-         * @param start - starting point of the algorithm
-         * @param finish - finishing point of the algorithm
-         * @return list of cells on the map which form the shortest path
+         * Held-Karp dynamic programming, best[mask][last] is the length of the shortest route from Jack
+         * which visits waypoints of the mask and ends in the waypoint last
+         * @return Waypoints in the order of the shortest route which visits all Chests, or null if there's no route
          */
-        private List<MapCell> shortestPath(Point<Integer, Integer> start, Point<Integer, Integer> finish) {
-            MapCell startingCell = map.cells[start.getX()][start.getY()];
-            MapCell finishingCell = map.cells[finish.getX()][finish.getY()];
+        private int[] chooseOrder(int[][][] lengths, int n, int tortugasCount) {
+            int masks = 1 << n;
+            int[] best = new int[masks * n];
+            Arrays.fill(best, UNREACHABLE);
 
-            // We have separate lists for open cells and closed cells
-            List<MapCell> openCells = new ArrayList<>();
-            List<MapCell> closedCells = new ArrayList<>();
-            // We start from opening the starting cell
-            openCells.add(startingCell);
+            for (int last = 0; last < n; last++) {
+                best[(1 << last) * n + last] = lengths[0][n][last];
+            }
 
-            while (!openCells.isEmpty()) {
-                // Until we have cells to analyse, we get the first available from the list
-                MapCell currentCell = openCells.get(0);
-
-                for (MapCell cell : openCells) {
-                    // If any other cell has better F-cost than the cell we already took,
-                    // we switch the cell to the cell we just found
-                    if (cell.getHeuristic() < currentCell.getHeuristic() ||
-                            (cell.getHeuristic() == currentCell.getHeuristic() && cell.h < currentCell.h)) {
-                        currentCell = cell;
+            int tortugasMask = (1 << tortugasCount) - 1;
+            for (int mask = 1; mask < masks; mask++) {
+                int rum = (mask & tortugasMask) != 0 ? 1 : 0;
+                // Only waypoints of the mask may be the last ones, and only the other ones may be the next ones
+                for (int lastBits = mask; lastBits != 0; lastBits &= lastBits - 1) {
+                    int last = Integer.numberOfTrailingZeros(lastBits);
+                    int length = best[mask * n + last];
+                    if (length == UNREACHABLE) continue;
+
+                    // Legs from Tortugas are searched only with rum, Jack always has it there
+                    int[] fromLast = lengths[last < tortugasCount ? 1 : rum][last];
+                    for (int nextBits = ~mask & (masks - 1); nextBits != 0; nextBits &= nextBits - 1) {
+                        int next = Integer.numberOfTrailingZeros(nextBits);
+                        if (fromLast[next] == UNREACHABLE) continue;
+
+                        int nextIndex = (mask | (1 << next)) * n + next;
+                        best[nextIndex] = Math.min(best[nextIndex], length + fromLast[next]);
                     }
                 }
+            }
 
-                // If we reached the destination, we trace the path
-                if (finishingCell == currentCell) return tracePath(startingCell, finishingCell);
-
-                // Since we already analysed current cell, we remove it from the open list
-                // and it to the list of closed cells
-                openCells.remove(currentCell);
-                closedCells.add(currentCell);
-
-                // Next, we retrieve neighbour cells of the current cell, based on the perception of Jack
-                HashSet<MapCell> neighbourCells = map.getNeighbourCells(currentCell);
-                // If we are currently calculating the path from Tortuga to the end, we need to check
-                // if we stand on the diagonal cell of the Kraken, so we can destroy him with the rum casks
-                if (this.tortugaPassed && !this.krakenPassed) {
-                    for (MapCell neighbourCell : neighbourCells) {
-                        // We found a Kraken with our perception zone
-                        if (neighbourCell.agents.contains('K')) {
-                            map.killKraken(neighbourCell);
-                            this.krakenPassed = true;
-                            if (!neighbourCell.agents.contains('R')) {
-                                if (map.cells[neighbourCell.x][neighbourCell.y].dangerLevel == 0) {
-                                    map.cells[neighbourCell.x][neighbourCell.y].changeWalkability(true);
-                                }
-                            }
-                        }
+            // All Chests must be visited and the route ends in one of them, Tortugas are optional
+            int chestsMask = (masks - 1) & ~tortugasMask;
+            int bestMask = -1, bestLast = -1;
+            for (int mask = chestsMask; mask < masks; mask = (mask + 1) | chestsMask) {
+                for (int last = tortugasCount; last < n; last++) {
+                    int length = best[mask * n + last];
+                    if (length != UNREACHABLE && (bestMask == -1 || length < best[bestMask * n + bestLast])) {
+                        bestMask = mask;
+                        bestLast = last;
                     }
                 }
-
-                // After that, we check neighbour cells once again to update costs
-                for (MapCell neighbourCell : neighbourCells) {
-                    // If current neighbour cells unreachable, we continue with the next neighbour
-                    if (closedCells.contains(neighbourCell) || !neighbourCell.walkable) continue;
-                    // New cost is calculated
-                    int newCost = currentCell.g + getDistanceBetween(currentCell, neighbourCell);
-
-                    if ((newCost < neighbourCell.g) || !openCells.contains(neighbourCell)) {
-                        // Update costs
-                        neighbourCell.g = newCost;
-                        neighbourCell.h = getDistanceBetween(neighbourCell, finishingCell);
-                        // Set the parent to traverse the path after completing
-                        neighbourCell.parent = currentCell;
-                        // Add neighbour cell to the open cells (if it is not here yet),
-                        // so we can analyse it on the next iterations
-                        if (!openCells.contains(neighbourCell)) openCells.add(neighbourCell);
+            }
+            if (bestMask == -1) return null;
+
+            // Order is restored backwards, by looking for the waypoint which gives the same length
+            int[] order = new int[Integer.bitCount(bestMask)];
+            for (int mask = bestMask, last = bestLast, i = order.length - 1; i >= 0; i--) {
+                order[i] = last;
+                int previousMask = mask & ~(1 << last);
+                if (previousMask == 0) break;
+
+                int rum = (previousMask & tortugasMask) != 0 ? 1 : 0;
+                for (int previous = 0; previous < n; previous++) {
+                    if ((previousMask & (1 << previous)) == 0) continue;
+
+                    int leg = lengths[previous < tortugasCount ? 1 : rum][previous][last];
+                    int length = best[previousMask * n + previous];
+                    if (leg != UNREACHABLE && length != UNREACHABLE && length + leg == best[mask * n + last]) {
+                        mask = previousMask;
+                        last = previous;
+                        break;
                     }
                 }
             }
 
-            return null;
+            return order;
         }
 
         /**
-         * Method to trace the shortest path after finding it
-         * @param startingCell - starting point of the path
-         * @param finishingCell - finishing point of the path
-         * @return list of cells on the map which form the shortest path
+         * Splits the map into layers: Krakens seen from the same cell are killed together, so every group of
+         * such Krakens gives a layer, in which their danger zones are walkable
          */
-        private List<MapCell> tracePath(MapCell startingCell, MapCell finishingCell) {
-            List<MapCell> path = new ArrayList<>();
-            MapCell currentCell = finishingCell;
+        private void buildLayers() {
+            int cellsCount = map.size * map.size;
+            killLayer = new int[cellsCount];
+            walkableAlive = new boolean[cellsCount];
+            for (int cell = 0; cell < cellsCount; cell++) {
+                walkableAlive[cell] = map.getCell(cell).walkable;
+            }
+            List<int[]> layers = new ArrayList<>();
+            layers.add(new int[0]);
+
+            // Only cells next to Krakens may be killing cells, they are visited in the order of their indices
+            long[] krakens = new long[(cellsCount + 63) >> 6];
+            TreeSet<Integer> candidates = new TreeSet<>();
+            for (Kraken kraken : map.krakens) {
+                int krakenCell = kraken.getX() * map.size + kraken.getY();
+                krakens[krakenCell >> 6] |= 1L << krakenCell;
+                int count = map.getNeighbourIndices(krakenCell, neighbours, 0);
+                for (int i = 0; i < count; i++) {
+                    candidates.add(neighbours[i]);
+                }
+            }
 
-            // Starting from the finish, we go to the starting point
-            // by traversing parents of cells
-            while (currentCell != startingCell) {
-                path.add(currentCell);
-                currentCell = currentCell.parent;
+            HashMap<List<Integer>, Integer> groups = new HashMap<>();
+            int[] coveredBy = new int[cellsCount];
+            List<Integer> killing = new ArrayList<>();
+            for (int cell : candidates) {
+                List<Integer> krakenCells = new ArrayList<>();
+                int count = map.getNeighbourIndices(cell, neighbours, 0);
+                for (int i = 0; i < count; i++) {
+                    if ((krakens[neighbours[i] >> 6] & (1L << neighbours[i])) != 0) krakenCells.add(neighbours[i]);
+                }
+                if (krakenCells.isEmpty()) continue;
+
+                // Neighbours are written in a fixed order, so the same group always gives the same list
+                killLayer[cell] = groups.computeIfAbsent(krakenCells, key -> {
+                    List<Integer> freedCells = new ArrayList<>();
+                    // Danger of a cell comes from every agent which covers it, the cell is freed only
+                    // if all of that danger comes from the killed Krakens
+                    for (int krakenCell : key) {
+                        coveredBy[krakenCell]++;
+                        for (var offset : Kraken.dangerZone) {
+                            int x = krakenCell / map.size + offset.getX(), y = krakenCell % map.size + offset.getY();
+                            if (map.isInside(x, y)) coveredBy[x * map.size + y]++;
+                        }
+                    }
+                    for (int krakenCell : key) {
+                        freeIfCovered(freedCells, coveredBy, krakenCell);
+                        for (var offset : Kraken.dangerZone) {
+                            int x = krakenCell / map.size + offset.getX(), y = krakenCell % map.size + offset.getY();
+                            if (map.isInside(x, y)) freeIfCovered(freedCells, coveredBy, x * map.size + y);
+                        }
+                    }
+
+                    layers.add(freedCells.stream().mapToInt(Integer::intValue).toArray());
+                    return layers.size() - 1;
+                });
+                killing.add(cell);
             }
 
-            Collections.reverse(path);
-            return path;
+            freedInLayer = layers.toArray(new int[0][]);
+            killingCells = killing.stream().mapToInt(Integer::intValue).toArray();
+            if (layerDistances == null || layerDistances.length != cellsCount) {
+                freed = new long[(cellsCount + 63) >> 6];
+                layerDistances = new int[cellsCount];
+                Arrays.fill(layerDistances, UNREACHABLE);
+                layerLinks = new int[cellsCount];
+                layerQueue = new int[cellsCount];
+            }
         }
 
-        private int getDistanceBetween(MapCell firstCell, MapCell secondCell) {
-            // Heuristic to get the distance between two cells
-            int deltaX = Math.abs(firstCell.x - secondCell.x);
-            int deltaY = Math.abs(firstCell.y - secondCell.y);
-            return Math.max(deltaX, deltaY);
+        private void freeIfCovered(List<Integer> freedCells, int[] coveredBy, int cell) {
+            if (coveredBy[cell] == 0) return;
+
+            if (map.getCell(cell).dangerLevel == coveredBy[cell]) freedCells.add(cell);
+            coveredBy[cell] = 0;
         }
-    }
 
-    public class Backtracking implements Algorithm {
-        private List<MapCell> bestPathToTortuga = new ArrayList<>();
-        private List<MapCell> bestPathFromTortugaToEnd = new ArrayList<>();
-        private List<MapCell> bestStraightPath = new ArrayList<>();
-        // 2D array of visited cells to optimize the algorithm flow
-        boolean[][] visited = new boolean[9][9];
+        private boolean isAlive(int cell) {
+            return walkableAlive[cell];
+        }
 
         /**
-         * @return List of points which lay the shortest path to the Dead Man's Chest
+         * Forward search of the distance field in layer 0, every move must land on a walkable cell, while
+         * the origin may be not walkable. Every task takes its own field, since the field keeps the queue
+         * @param origin - Cell to compute distances from
+         * @param cancellation - Token of the solve
+         * @return Distances of all cells
          */
-        @Override
-        public List<Point<Integer, Integer>> findShortestPath() {
-            // Generally, this function works pretty much the same way as it does
-            // so you can check comments for this function in A*
-            
-            int fromTortugaToEnd, tortugaPath = Integer.MAX_VALUE;
-            boolean tortugaPathValid = false;
-
-            List<Point<Integer, Integer>> pointsPath = new ArrayList<>();
-            MapCell startingCell = map.cells[map.jack.getX()][map.jack.getY()];
-            MapCell finishingCell = map.cells[map.chest.getX()][map.chest.getY()];
-
-            MapCell tortugaCell = map.cells[map.tortuga.getX()][map.tortuga.getY()];
-
-            int straightPathSolution = this.shortestPath(startingCell, finishingCell, Integer.MAX_VALUE, 0, false,true);
+        private Field computeField(int origin, CancellationToken cancellation) {
+            DistanceField field = new DistanceField(map);
+            int[] distances = new int[map.size * map.size];
+            boolean completed = field.search(origin, false, distances, null, cancellation);
+            return new Field(completed ? distances : null, field.getExpandedCells());
+        }
 
-            boolean straightPathValid = straightPathSolution != Integer.MAX_VALUE;
+        /**
+         * @return Length of the shortest path in layer 0 from the source to the cell
+         */
+        private int getDistanceFrom(int source, int cell) {
+            return fromSource[source][cell];
+        }
 
-            if (!straightPathValid) {
-                map.fillCells(true);
+        /**
+         * Moves are symmetric, so a path to a walkable waypoint is a path from it reversed, except that the first
+         * cell of a path may be not walkable
+         * @param target - Index of the waypoint
+         * @param cell - Cell from which the path starts
+         * @param targetCell - Cell of the waypoint
+         * @return Length of the shortest path in layer 0 from the cell to the waypoint
+         */
+        private int getDistanceTo(int target, int cell, int targetCell) {
+            if (cell == targetCell) return 0;
+            if (!isAlive(targetCell)) return UNREACHABLE;
+
+            int[] distances = fromSource[target];
+            if (walkableAlive[cell]) return distances[cell];
+
+            int distance = UNREACHABLE;
+            int count = map.getNeighbourIndices(cell, startNeighbours, 0);
+            for (int i = 0; i < count; i++) {
+                int neighbour = startNeighbours[i];
+                if (walkableAlive[neighbour] && distances[neighbour] != UNREACHABLE) {
+                    distance = Math.min(distance, distances[neighbour] + 1);
+                }
             }
+            return distance;
+        }
 
-            int pathThroughTortuga = this.shortestPath(startingCell, tortugaCell, Integer.MAX_VALUE, 0, false,true);
-            if (pathThroughTortuga != Integer.MAX_VALUE) {
-                map.clearPathsForAllCells();
-                map.fillCells(true);
-                fromTortugaToEnd = this.shortestPath(tortugaCell, finishingCell, Integer.MAX_VALUE, 0, true, true);
-                if (fromTortugaToEnd != Integer.MAX_VALUE) {
-                    tortugaPath = pathThroughTortuga + fromTortugaToEnd;
-                    tortugaPathValid = true;
+        /**
+         * Length of a leg after a kill is the shortest of: the path which never steps on freed cells, taken from
+         * the field to the waypoint, and for every freed cell, the path to it in the layer of the kill followed by
+         * the path from it which doesn't step on freed cells any more
+         * @return false if the token stopped the solve
+         */
+        private boolean findLengthsAfterKills(int[] sources, int n, CancellationToken cancellation) {
+            lengthsAfterKill = new int[killingCells.length][n];
+            for (int i = 0; i < killingCells.length; i++) {
+                if ((i & 63) == 0 && cancellation.isCancelled()) return false;
+
+                int killingCell = killingCells[i];
+                int[] freedCells = freedInLayer[killLayer[killingCell]];
+                int[] freedLengths = getFreedLengths(killingCell);
+
+                for (int target = 0; target < n; target++) {
+                    int length = getDistanceTo(target, killingCell, sources[target]);
+                    for (int j = 0; j < freedCells.length; j++) {
+                        int rest = getDistanceTo(target, freedCells[j], sources[target]);
+                        if (freedLengths[j] != UNREACHABLE && rest != UNREACHABLE) {
+                            length = Math.min(length, freedLengths[j] + rest);
+                        }
+                    }
+                    lengthsAfterKill[i][target] = length;
                 }
             }
+            return true;
+        }
 
-            if (!straightPathValid && !tortugaPathValid) return null;
+        /**
+         * Paths are searched in the window around the killing cell first, and in the whole layer only if some of
+         * them may be longer than a path which leaves the window
+         * @param killingCell - Cell on which Jack kills the Krakens he sees
+         * @return Length of the path to every freed cell of the layer, in the order of freedInLayer
+         */
+        private int[] getFreedLengths(int killingCell) {
+            int[] freedCells = freedInLayer[killLayer[killingCell]];
+            int[] lengths = new int[freedCells.length];
+
+            boolean exact = true;
+            searchLayer(killingCell, WINDOW);
+            for (int i = 0; i < freedCells.length; i++) {
+                lengths[i] = layerDistances[freedCells[i]];
+                if (lengths[i] > 2 * WINDOW) exact = false;
+            }
+            clearLayerSearch();
+            if (exact) return lengths;
 
-            if (tortugaPathValid && straightPathValid && (tortugaPath < straightPathSolution) ||
-                    (tortugaPathValid && !straightPathValid)) {
-                for (MapCell cell : this.bestPathToTortuga) {
-                    if (cell == tortugaCell) continue;
-                    pointsPath.add(new Point<>(cell.x, cell.y));
-                }
+            searchLayer(killingCell, map.size);
+            for (int i = 0; i < freedCells.length; i++) {
+                lengths[i] = layerDistances[freedCells[i]];
+            }
+            clearLayerSearch();
+            return lengths;
+        }
 
-                for (MapCell cell : this.bestPathFromTortugaToEnd) {
-                    pointsPath.add(new Point<>(cell.x, cell.y));
-                }
-            } else {
-                for (MapCell cell : this.bestStraightPath) {
-                    pointsPath.add(new Point<>(cell.x, cell.y));
+        /**
+         * Breadth-first search in the layer of the kill, over cells at most radius away from the killing cell.
+         * Distances and links stay in the scratch until it is cleared
+         */
+        private void searchLayer(int killingCell, int radius) {
+            int[] freedCells = freedInLayer[killLayer[killingCell]];
+            for (int cell : freedCells) {
+                freed[cell >> 6] |= 1L << cell;
+            }
+
+            int killingX = killingCell / map.size, killingY = killingCell % map.size;
+            int head = 0;
+            layerReached = 0;
+            layerDistances[killingCell] = 0;
+            layerLinks[killingCell] = -1;
+            layerQueue[layerReached++] = killingCell;
+
+            while (head < layerReached) {
+                int cell = layerQueue[head++];
+                int count = map.getNeighbourIndices(cell, neighbours, 0);
+                for (int i = 0; i < count; i++) {
+                    int neighbour = neighbours[i];
+                    if (layerDistances[neighbour] != UNREACHABLE) continue;
+                    if (!isAlive(neighbour) && (freed[neighbour >> 6] & (1L << neighbour)) == 0) continue;
+                    if (Math.max(Math.abs(neighbour / map.size - killingX),
+                            Math.abs(neighbour % map.size - killingY)) > radius) continue;
+
+                    layerDistances[neighbour] = layerDistances[cell] + 1;
+                    layerLinks[neighbour] = cell;
+                    layerQueue[layerReached++] = neighbour;
                 }
             }
+            totalExpandedCells += layerReached;
 
-            return pointsPath;
+            for (int cell : freedCells) {
+                freed[cell >> 6] &= ~(1L << cell);
+            }
         }
-        
-        private int shortestPath(MapCell currentCell, MapCell finishingCell, int bestPath, int currentPath,
-                          boolean tortugaPassed, boolean krakenIsAlive) {
-            // If we reach the destination, we update global array of Backtracking class
-            // with appropriate path that we have found
-            if (currentCell.x == finishingCell.x && currentCell.y == finishingCell.y) {
-                bestPath = Math.min(bestPath, currentPath);
-                if (finishingCell == map.cells[map.tortuga.getX()][map.tortuga.getY()]) {
-                    this.bestPathToTortuga = new ArrayList<>(List.of(finishingCell));
-                    tracePath(finishingCell, bestPath, this.bestPathToTortuga);
-                } else if (finishingCell == map.cells[map.chest.getX()][map.chest.getY()]) {
-                    if (tortugaPassed) {
-                        this.bestPathFromTortugaToEnd = new ArrayList<>(List.of(finishingCell));
-                        tracePath(finishingCell, bestPath, this.bestPathFromTortugaToEnd);
-                    } else {
-                        this.bestStraightPath = new ArrayList<>(List.of(finishingCell));
-                        tracePath(finishingCell, bestPath, this.bestStraightPath);
-                    }
-                }
-                return bestPath;
+
+        private void clearLayerSearch() {
+            for (int i = 0; i < layerReached; i++) {
+                layerDistances[layerQueue[i]] = UNREACHABLE;
             }
+            layerReached = 0;
+        }
 
-            // Set the current best path for current cell
-            currentCell.currentBestPath = currentPath;
-            // We visited this cell, so we mark it
-            this.visited[currentCell.x][currentCell.y] = true;
+        /**
+         * @param source - Index of the source
+         * @param target - Index of the waypoint
+         * @param length - Length of the leg which was chosen by the order
+         * @return Cells of a shortest leg of the length without the source
+         */
+        private List<Integer> traceLeg(int source, int target, int[] sources, int length) {
+            List<Integer> path = new ArrayList<>();
+            if (getDistanceFrom(source, sources[target]) == length) {
+                traceFrom(source, sources[target], path);
+                return path;
+            }
 
-            if (tortugaPassed && krakenIsAlive) {
-                if (hasUnvisitedNeighbours(currentCell)) {
-                    for (MapCell neighbour : map.getNeighbourCells(currentCell)) {
-                        if (!neighbour.agents.contains('K') || neighbour.dangerLevel == 0) continue;
-                        // Kill kraken once we found it
-                        map.killKraken(neighbour);
-                        krakenIsAlive = false;
+            // Only legs with rum are shorter than the field, so some kill gives the length
+            for (int i = 0; i < killingCells.length; i++) {
+                int killingCell = killingCells[i];
+                int toKillingCell = getDistanceFrom(source, killingCell);
+                if (toKillingCell == UNREACHABLE || lengthsAfterKill[i][target] == UNREACHABLE ||
+                        toKillingCell + lengthsAfterKill[i][target] != length) continue;
+
+                traceFrom(source, killingCell, path);
+                int rest = lengthsAfterKill[i][target];
+                if (getDistanceTo(target, killingCell, sources[target]) == rest) {
+                    traceTo(target, killingCell, sources[target], path);
+                    return path;
+                }
 
-                        if (!neighbour.agents.contains('R')) {
-                            if (map.cells[neighbour.x][neighbour.y].dangerLevel == 0) {
-                                map.cells[neighbour.x][neighbour.y].changeWalkability(true);
-                            }
+                // The path goes through some freed cell, which the window search reaches unless it is too far
+                for (int radius : new int[]{WINDOW, map.size}) {
+                    searchLayer(killingCell, radius);
+                    for (int freedCell : freedInLayer[killLayer[killingCell]]) {
+                        int toFreedCell = layerDistances[freedCell];
+                        int fromFreedCell = getDistanceTo(target, freedCell, sources[target]);
+                        if (toFreedCell == UNREACHABLE || fromFreedCell == UNREACHABLE ||
+                                toFreedCell + fromFreedCell != rest) continue;
+
+                        List<Integer> inLayer = new ArrayList<>();
+                        for (int cell = freedCell; cell != killingCell; cell = layerLinks[cell]) {
+                            inLayer.add(cell);
                         }
-                    }
-                }
-            }
+                        Collections.reverse(inLayer);
+                        path.addAll(inLayer);
+                        clearLayerSearch();
 
-            if (hasUnvisitedNeighbours(currentCell)) {
-                for (MapCell neighbour : map.getNeighbourCells(currentCell)) {
-                    // currentPath <= 25 is that because, based on generation of millions of maps, the maximum path
-                    // I ever found was 24.
-                    if (canWalkThrough(neighbour) && currentPath <= 25 && currentPath < neighbour.currentBestPath) {
-                        neighbour.currentBestPath = currentPath + 1;
-                        bestPath = shortestPath(neighbour, finishingCell, bestPath, currentPath + 1, tortugaPassed, krakenIsAlive);
+                        traceTo(target, freedCell, sources[target], path);
+                        return path;
                     }
+                    clearLayerSearch();
                 }
             }
 
-            // Mark current cell as unvisited, so we can backtrack to it later
-            this.visited[currentCell.x][currentCell.y] = false;
-
-            return bestPath;
+            throw new IllegalStateException("No leg has the length chosen by the order");
         }
 
         /**
-         * @param cell - Map cell
-         * @return true if this cell has neighbours that were not visited yet
+         * Appends cells of the shortest path in layer 0 from the source to the cell, without the source
          */
-        private boolean hasUnvisitedNeighbours(MapCell cell) {
-            for (MapCell neighbour : map.getNeighbourCells(cell)) {
-                if (canWalkThrough(neighbour)) {
-                    return true;
+        private void traceFrom(int source, int cell, List<Integer> path) {
+            List<Integer> cells = new ArrayList<>();
+            for (int current = cell; getDistanceFrom(source, current) != 0; ) {
+                cells.add(current);
+                int distance = getDistanceFrom(source, current);
+                int count = map.getNeighbourIndices(current, neighbours, 0);
+                for (int i = 0; i < count; i++) {
+                    if (getDistanceFrom(source, neighbours[i]) == distance - 1) {
+                        current = neighbours[i];
+                        break;
+                    }
                 }
             }
-            return false;
+            Collections.reverse(cells);
+            path.addAll(cells);
         }
 
         /**
-         * @param cell - Map cell
-         * @return true if this cell is walkable and was not visited yet
+         * Appends cells of the shortest path in layer 0 from the cell to the waypoint, without the cell
          */
-        private boolean canWalkThrough(MapCell cell) {
-            return map.cells[cell.x][cell.y].walkable && !visited[cell.x][cell.y];
-        }
-
-        private void tracePath(MapCell finishingCell, int bestPath, List<MapCell> currentPath) {
-            if (currentPath == null) {
-                currentPath = new ArrayList<>(List.of(finishingCell));
+        private void traceTo(int target, int cell, int targetCell, List<Integer> path) {
+            for (int current = cell; current != targetCell; ) {
+                int distance = getDistanceTo(target, current, targetCell);
+                int count = map.getNeighbourIndices(current, neighbours, 0);
+                for (int i = 0; i < count; i++) {
+                    int neighbour = neighbours[i];
+                    if (isAlive(neighbour) && getDistanceTo(target, neighbour, targetCell) == distance - 1) {
+                        current = neighbour;
+                        break;
+                    }
+                }
+                path.add(current);
             }
+        }
 
-            if (bestPath == 0) {
-                Collections.reverse(currentPath);
-                return;
-            }
-            // We trace the path by traversing through the neighbours that have the currentBestPath - 1
-            for (MapCell neighbour : map.getNeighbourCells(finishingCell)) {
-                if (finishingCell.currentBestPath == neighbour.currentBestPath + 1) {
-                    currentPath.add(neighbour);
-                    tracePath(neighbour, bestPath - 1, currentPath);
-                    break;
-                }
+        private Field getResult(Future<Field> future) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Computation of distance fields was interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Computation of a distance field failed", e.getCause());
             }
         }
     }